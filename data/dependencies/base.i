@@ -0,0 +1,3 @@
+/* base.i - included by the Base class, for DependencyIndexTest. */
+
+  def protected var baseVar as char no-undo.
@@ -16,6 +16,7 @@ import com.joanju.proparse.IntegerIndex;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,9 +39,24 @@ import java.util.Set;
  * reason for the addition of new data fields added to the output to break
  * any code using 'old' versions of the schema. Each byte offset is written
  * with a field-reference-name, and the schema is written to every blob.
+ * <p>
+ * By default the blob is built in memory. It can instead be written straight
+ * to an OutputStream as it is built. The offsets to the schema map and the index
+ * are always at the end of the blob, so a reader can find them after the last byte arrives.
  */
 public class DataXferStream {
 
+	/** Build the blob in memory. Use getBytes() to get it. */
+	public DataXferStream() {
+		bytes = new ByteArrayOutputStream();
+		out = new DataOutputStream(bytes);
+	}
+
+	/** Write the blob to a stream as it is built. The stream is not flushed or closed. */
+	public DataXferStream(OutputStream stream) {
+		out = new DataOutputStream(stream);
+	}
+
 	private int indexOffset;
 	private int schemaMapOffset;
 
@@ -51,8 +67,8 @@ public class DataXferStream {
 	private HashSet<Xferable> classExamples = new HashSet<Xferable>();
 	private HashSet<Object> queue = new HashSet<Object>();
 
-	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-	private DataOutputStream out = new DataOutputStream(bytes);
+	private ByteArrayOutputStream bytes;
+	private DataOutputStream out;
 
 
 	private static final byte XNULL = 2;
@@ -123,7 +139,9 @@ public class DataXferStream {
 	}
 
 
-	/** Once buildIndex() has been called, then use this to get the blob. */
+	/** Once buildIndex() has been called, then use this to get the blob.
+	 * Returns null if the blob was written to an OutputStream.
+	 */
 	public ByteArrayOutputStream getBytes() {return bytes;}
 
 	public int getIndexOffset() {return indexOffset;}
@@ -191,7 +209,7 @@ public class DataXferStream {
 	 * @return The offset of the stored object record.
 	 */
 	public int store(Object o) throws IOException {
-		int ret = bytes.size();
+		int ret = out.size();
 		writeObjectRecord(o);
 		processQueue();
 		return ret;
@@ -7,11 +7,16 @@ This file is made available under the terms of the Eclipse Public License v1.0.
 package com.joanju.proparse;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 
 public class ClassFinder {
 
-	Environment environment = Environment.instance();
+	ClassFinder(Environment environment) {
+		this.environment = environment;
+	}
+
+	Environment environment;
 	ArrayList<String> paths = new ArrayList<String>();
 
 	HashMap<String, String> namesMap = new HashMap<String, String>();
@@ -26,6 +31,8 @@ public class ClassFinder {
 			return;
 		if (dequoted.endsWith("*")) {
 			paths.add(dequoted.replace('.', '/').substring(0,dequoted.length()-1));
+			// Names that weren't found might be found on the new path.
+			namesMap.values().removeAll(Collections.singleton(""));
 		} else {
 			int dotPos = dequoted.lastIndexOf('.');
 			String unqualified =
@@ -33,8 +40,9 @@ public class ClassFinder {
 					? dequoted.substring(dotPos+1)
 					: dequoted;
 			unqualified = unqualified.toLowerCase();
-			// First match takes precedence.
-			if (! namesMap.containsKey(unqualified))
+			// First match takes precedence. Empty string is a name that wasn't found.
+			String prev = namesMap.get(unqualified);
+			if (prev==null || prev.length()==0)
 				namesMap.put(unqualified, dequoted);
 		}
 	}
@@ -110,6 +118,9 @@ public class ClassFinder {
 		}
 
 		// No class source was found, return empty String.
+		// The PropathIndex doesn't remember names that weren't found, so remember
+		// that here, for the rest of this parse.
+		namesMap.put(dequotedName.toLowerCase(), "");
 		return "";
 	}
 
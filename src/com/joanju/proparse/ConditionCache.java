@@ -0,0 +1,111 @@
+/*
+ConditionCache.java
+
+Copyright (C) 2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import org.prorefactor.util.Cache;
+
+
+/** Session level cache of &IF and &ELSEIF condition results, shared by all parses and threads.
+ * The same conditions show up in every compile unit that includes the same headers,
+ * and with this, each distinct condition only gets evaluated once.
+ * <p>
+ * The key is the condition's token sequence as Postlexer gets it, which is after
+ * macro expansion, and with DEFINED() already replaced by its digit. So the values of the
+ * &GLOBAL and &SCOPED names that a condition references are part of its key, and when one of
+ * those definitions changes, the condition gets a new key rather than a stale result.
+ * The only other things a result depends on are the OPSYS, PROPATH, and PROVERSION
+ * settings, and the Environment clears this cache when any of those is set.
+ * <p>
+ * Only results are cached. Conditions that throw an exception are evaluated every time.
+ * <p>
+ * All methods are thread safe.
+ * @see Environment#getConditionCache()
+ */
+public class ConditionCache {
+
+	/** @param maxEntries The number of conditions to keep. */
+	public ConditionCache(int maxEntries) {
+		map = Collections.synchronizedMap(new Cache<String, Boolean>(maxEntries));
+	}
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private long hits = 0;
+	private long misses = 0;
+	private Map<String, Boolean> map;
+
+
+
+	public void clear() {
+		map.clear();
+	}
+
+
+	/** The result for a condition's key, or null if it's not in the cache. */
+	Boolean get(String key) {
+		Boolean result = map.get(key);
+		synchronized (this) {
+			if (result==null)
+				++misses;
+			else
+				++hits;
+		}
+		return result;
+	}
+
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+
+	/** The key for a condition's tokens.
+	 * Keyword text is lowercased. Quoted string and number text is kept as it is.
+	 */
+	static String key(ArrayList<ProToken> tokens) {
+		StringBuilder bldr = new StringBuilder(tokens.size() * 8);
+		for (ProToken token : tokens) {
+			int type = token.getType();
+			String text = token.getText();
+			if (type != ProParserTokenTypes.QSTRING && type != ProParserTokenTypes.NUMBER)
+				text = text.toLowerCase();
+			// Type and length, so that no two token sequences can have the same key.
+			bldr.append(type).append(':').append(text.length()).append(':').append(text);
+		}
+		return bldr.toString();
+	}
+
+
+	void put(String key, boolean result) {
+		map.put(key, Boolean.valueOf(result));
+	}
+
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+	}
+
+
+	/** The number of conditions in the cache. */
+	public int size() { return map.size(); }
+
+
+	@Override
+	public synchronized String toString() {
+		return "ConditionCache: "
+			+ map.size() + " conditions, "
+			+ hits + " hits, "
+			+ misses + " misses";
+	}
+
+
+}
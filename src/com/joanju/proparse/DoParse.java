@@ -8,28 +8,52 @@ package com.joanju.proparse;
 
 import org.prorefactor.core.TokenTypes;
 import org.prorefactor.core.JPNode;
+import org.prorefactor.core.NodeTypeIndex;
+import org.prorefactor.core.PositionIndex;
+import org.prorefactor.nodetypes.ProgramRootNode;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.FileReader;
+import java.io.File;
 
 import antlr.TokenStreamException;
 import antlr.RecognitionException;
 
 public class DoParse {
 
+	/** Parse with the default ParseContext for the current thread. */
 	public DoParse(String fileName) {
+		this(fileName, ParseContext.getDefault());
+	}
+
+	public DoParse(String fileName, ParseContext context) {
 		this.fileName = fileName;
+		this.context = context;
+		this.env = context.getEnvironment();
+		this.listingFile = env.configGet("listing-file");
 	}
 
+	/** A nested parse, ex: for a super class, uses the primary's context. */
 	DoParse(String filename, DoParse primary) {
-		this.fileName = filename;
+		this(filename, primary.context);
 		this.primary = primary;
 	}
 
 	private DoParse primary = null;
 
+	/** For a parse of part of a compile unit, the earlier parse of the whole unit.
+	 * @see #continueFrom(DoParse, int, HashMap, HashMap)
+	 */
+	private DoParse continued = null;
+	/** The number of the continued parse's unit scope events to start the unit scope from. */
+	private int continuedUnitScopeEvents;
+	private HashMap<String, String> initialGlobalDefines;
+	private HashMap<String, String> initialScopedDefines;
+	/** Have the ParserSupport log the unit scope events, for IncrementalParse. */
+	private boolean logUnitScope = false;
+
 	// instance members
 	antlr.TokenStreamHiddenTokenFilter filter;
 
@@ -39,9 +63,16 @@ public class DoParse {
 	boolean preProcessConditionResult = false;
 	int nextNodeNum;
 	BufferedReader inStream;
-	private Environment env = Environment.instance();
+	private Environment env;
+	private ParseContext context;
+	/** Defaults to the environment's "listing-file" setting. */
+	private String listingFile;
+	/** Only while backLinkAndNodeNum() runs, if the position index is turned on. */
+	private PositionIndex.Builder positionBuilder;
+	private ArrayList<PreprocessorEventListener> preproListeners = new ArrayList<PreprocessorEventListener>();
 	ProParser parser;
 	String fileName;
+	private TextPool textPool;
 	TokenVectorIterator tvi;
 
 	IntegerIndex<String> filenameList = new IntegerIndex<String>();
@@ -68,6 +99,14 @@ public class DoParse {
 	int addFilename(String filename) {return filenameList.add(filename);}
 
 
+	/** Add a listener for the preprocessor's macro and include events.
+	 * Only the primary parse sends events, and not if we're just lexing.
+	 */
+	public void addPreprocessorListener(PreprocessorEventListener listener) {
+		preproListeners.add(listener);
+	}
+
+
 	/** Set parent and prevSibling links, as well as nodeNum.
 	 * Caller is responsible for setting nodeNum of input node,
 	 * as well as nextNodeNum value.
@@ -77,7 +116,9 @@ public class DoParse {
 		while (currNode!=null) {
 			currNode.setNodeNum(nextNodeNum++);
 			currNode.setParent(r);
+			if (positionBuilder!=null) positionBuilder.enter(currNode);
 			backLinkAndNodeNum(currNode);
+			if (positionBuilder!=null) positionBuilder.exit(currNode);
 			JPNode nextNode = currNode.nextSibling();
 			if (nextNode!=null)
 				nextNode.setPrevSibling(currNode);
@@ -86,6 +127,22 @@ public class DoParse {
 	}
 
 
+	/** Parse part of a compile unit (ex: one internal procedure), starting from the
+	 * unit scope as it was where the part starts in an earlier parse of the whole unit,
+	 * and with the &GLOBAL and &SCOPED defines that were in effect there.
+	 * The earlier parse must have been done with logUnitScope().
+	 * @param unitScopeEvents The number of the earlier parse's unit scope events before the part.
+	 * @see IncrementalParse
+	 * @see ParserSupport#unitScopeEventsBefore(int, int, int, int)
+	 */
+	void continueFrom(DoParse previous, int unitScopeEvents, HashMap<String, String> globalDefines, HashMap<String, String> scopedDefines) {
+		this.continued = previous;
+		this.continuedUnitScopeEvents = unitScopeEvents;
+		this.initialGlobalDefines = globalDefines;
+		this.initialScopedDefines = scopedDefines;
+	}
+
+
 	void doParse(ArrayList<ProToken> tokenVector)
 			throws IOException, TokenStreamException, RecognitionException {
 		tvi = new TokenVectorIterator(tokenVector, this);
@@ -96,9 +153,14 @@ public class DoParse {
 	public void doParse()
 			throws IOException, TokenStreamException, RecognitionException {
 
-		if (fileName!=null)
-			inStream = new BufferedReader(new FileReader(fileName));
-		Preprocessor prepro = new Preprocessor(fileName, inStream, this);
+		Preprocessor prepro = newPreprocessor();
+		if (initialGlobalDefines!=null) {
+			for (String name : initialGlobalDefines.keySet())
+				prepro.defGlobal(name, initialGlobalDefines.get(name));
+			for (String name : initialScopedDefines.keySet())
+				prepro.defScoped(name, initialScopedDefines.get(name));
+		}
+		ListingWriter listingWriter = null;
 
 		try {
 			if (fileName!=null)
@@ -108,12 +170,17 @@ public class DoParse {
 			if (tvi!=null) {
 				filter = new antlr.TokenStreamHiddenTokenFilter(tvi);
 			} else {
-				if (primary==null && !justLex)
-					prepro.initListing();
+				if (primary==null && !justLex) {
+					if (listingFile!=null && listingFile.length() > 0) {
+						listingWriter = new ListingWriter(listingFile);
+						prepro.addListener(listingWriter);
+					}
+					for (PreprocessorEventListener listener : preproListeners)
+						prepro.addListener(listener);
+				}
 				Lexer lexer = new Lexer(prepro);
 				Postlexer postlexer = new Postlexer(prepro, lexer, this);
 				TokenList tokenlist = new TokenList(postlexer);
-				tokenlist.build();
 				filter = new antlr.TokenStreamHiddenTokenFilter(tokenlist);
 			}
 
@@ -133,6 +200,10 @@ public class DoParse {
 			// Create the parser, with the filter as the input.
 			parser = new ProParser(filter);
 			parser.init(this);
+			if (logUnitScope)
+				parser.support.logUnitScope();
+			if (continued!=null)
+				parser.support.continueFrom(continued.getParserSupport(), continuedUnitScopeEvents);
 
 			if (justLex) {
 				// Print a nice lexeme list.
@@ -163,17 +234,16 @@ public class DoParse {
 			if (proEval) {
 				parser.program();
 				ProEval proEval = new ProEval();
+				proEval.env = env;
 				proEval.program(parser.getAST());
 			} else if (preProcessCondition) {
 				parser.expression();
 				ProEval proEval = new ProEval();
+				proEval.env = env;
 				preProcessConditionResult = proEval.preproIfEval(parser.getAST());
 			} else {
 				parser.program();
-				JPNode topNode = (JPNode) parser.getAST();
-				nextNodeNum = 0;
-				topNode.setNodeNum(nextNodeNum++);
-				backLinkAndNodeNum(topNode);
+				finishTree((JPNode) parser.getAST());
 				// Deal with trailing hidden tokens
 				JPNode.finalizeTrailingHidden((JPNode) parser.getAST());
 			}
@@ -181,31 +251,115 @@ public class DoParse {
 		} finally {
 			if (prepro !=null) {
 				// If we are listing, then we want to list all file indexes.
-				if (prepro.listing) {
-					int i = 0;
-					while (isValidIndex(i)) {
-						StringBuilder bldr = new StringBuilder();
-						bldr
-							.append("0 0 0 fileindex ")
-							.append(i)
-							.append(" ")
-							.append(getFilename(i));
-						prepro.listingStream.write(bldr.toString());
-						prepro.listingStream.newLine();
-						++i;
-					}
+				for (PreprocessorEventListener listener : prepro.listeners) {
+					for (int i = 0; isValidIndex(i); ++i)
+						listener.fileIndex(i, getFilename(i));
 				}
 				// Tell the preprocessor we're done. Releases file handles, etc.
 				prepro.parseComplete();
+				if (listingWriter!=null)
+					listingWriter.close();
 			}
 			if (primary == null) {
 				if (! env.isMultiParse() )
-					env.clearSuperCache();
+					context.clearSuperCache();
+			}
+		}
+	}
+
+
+	/** Run just the preprocessor and lexer over the file, without building the
+	 * token list or parsing, and return the number of tokens, including whitespace
+	 * and comments. Preprocessor listeners are not called. Used for timing the lexer.
+	 */
+	public int lexOnly() throws IOException, TokenStreamException {
+		Preprocessor prepro = newPreprocessor();
+		try {
+			Lexer lexer = new Lexer(prepro);
+			Postlexer postlexer = new Postlexer(prepro, lexer, this);
+			int count = 0;
+			while (postlexer.nextToken().getType() != antlr.Token.EOF_TYPE)
+				++count;
+			return count;
+		} finally {
+			prepro.parseComplete();
+		}
+	}
+
+
+	/** Run the preprocessor and lexer over the file, and return the tokens, including
+	 * whitespace and comments, but not the EOF. With tokenList, the tokens go through
+	 * the TokenList first, the same as for the parser. Preprocessor listeners are not called.
+	 * Used for testing the TokenList.
+	 */
+	public ArrayList<ProToken> lexTokens(boolean tokenList) throws IOException, TokenStreamException {
+		Preprocessor prepro = newPreprocessor();
+		try {
+			antlr.TokenStream stream = new Postlexer(prepro, new Lexer(prepro), this);
+			if (tokenList)
+				stream = new TokenList(stream);
+			ArrayList<ProToken> ret = new ArrayList<ProToken>();
+			for (;;) {
+				ProToken token = (ProToken) stream.nextToken();
+				if (token.getType() == antlr.Token.EOF_TYPE)
+					break;
+				ret.add(token);
 			}
+			return ret;
+		} finally {
+			prepro.parseComplete();
+		}
+	}
+
+
+	/** The preprocessor reads all of its input up front, so the stream gets closed here.
+	 * The caller may have opened the stream already, ex: parseSuper(). Otherwise,
+	 * the file is read straight into the preprocessor's buffer.
+	 */
+	private Preprocessor newPreprocessor() throws IOException {
+		if (fileName!=null && inStream==null)
+			return new Preprocessor(fileName, env.getSourceEncoding().read(new File(fileName)), this);
+		try {
+			return new Preprocessor(fileName, inStream, this);
+		} finally {
+			if (inStream!=null)
+				inStream.close();
+			inStream = null;
+		}
+	}
+
+
+	/** Set the node numbers and the parent and prevSibling links,
+	 * and build the tree's indexes. Also used by IncrementalParse, after
+	 * a reparsed subtree has been spliced into the tree.
+	 */
+	void finishTree(JPNode topNode) {
+		nextNodeNum = 0;
+		topNode.setNodeNum(nextNodeNum++);
+		// A partial parse's tree is only kept until it is spliced in, so it doesn't get indexes.
+		ProgramRootNode root = (topNode instanceof ProgramRootNode && continued==null) ? (ProgramRootNode) topNode : null;
+		if (root!=null && env.isPositionIndex()) {
+			positionBuilder = new PositionIndex.Builder();
+			positionBuilder.enter(topNode);
+		}
+		backLinkAndNodeNum(topNode);
+		// The node type index first, since the position index is checked against it.
+		if (root!=null)
+			root.setNodeTypeIndex(env.isNodeTypeIndex() ? NodeTypeIndex.build(topNode, nextNodeNum) : null);
+		if (positionBuilder!=null) {
+			positionBuilder.exit(topNode);
+			root.setPositionIndex(positionBuilder.build());
+			positionBuilder = null;
+		} else if (root!=null) {
+			// Built on demand, if it's wanted.
+			root.setPositionIndex(null);
 		}
 	}
 
 
+	public ParseContext getContext() {return context;}
+
+
 	String getFilename(int fileIndex) {
 		return filenameList.getValue(fileIndex);
 	}
@@ -215,6 +369,16 @@ public class DoParse {
 	public IntegerIndex<String> getFilenameList() {return filenameList;}
 
 
+	/** The pool of token text for this parse. Nested parses use the primary's pool. */
+	public TextPool getTextPool() {
+		if (primary!=null)
+			return primary.getTextPool();
+		if (textPool==null)
+			textPool = new TextPool();
+		return textPool;
+	}
+
+
 	ParserSupport getParserSupport() {
 		if (parser==null)
 			return null;
@@ -232,9 +396,25 @@ public class DoParse {
 	}
 
 
+	/** Have the parser log its unit scope definitions, so that a later parse of part
+	 * of the compile unit can start from the unit scope as it was at that part.
+	 * @see #continueFrom(DoParse, int, HashMap, HashMap)
+	 */
+	void logUnitScope() { logUnitScope = true; }
+
+
 	public void setJustLex(boolean justLex) {
 		this.justLex = justLex;
 	}
 
 
+	/** Override the environment's "listing-file" setting for this parse only.
+	 * Parses running in different threads each need their own listing file.
+	 * Blank or null turns off the listing.
+	 */
+	public void setListingFile(String listingFile) {
+		this.listingFile = listingFile;
+	}
+
+
 }
@@ -13,10 +13,10 @@ This file is made available under the terms of the Eclipse Public License v1.0.
 package com.joanju.proparse;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Arrays;
 import java.io.File;
+import java.io.IOException;
 
 import org.prorefactor.refactor.RefactorSession;
 
@@ -45,10 +45,22 @@ public class Environment {
 	boolean proparseDirectives = true;
 	int opsysNum = OPSYS_WINDOWS;
 	String batchMode = "NO";
+	/** Shared by all parses in this environment, in all threads. */
+	private ConditionCache conditionCache = new ConditionCache(ConditionCache.DEFAULT_MAX_ENTRIES);
 	String keywordAll;
+	/** The encoding settings for reading source files. Declared before the include file cache, which uses it. */
+	private SourceEncoding sourceEncoding = new SourceEncoding();
+	/** Shared by all parses in this environment, in all threads. */
+	private IncludeFileCache includeFileCache = new IncludeFileCache(IncludeFileCache.DEFAULT_MAX_CHARS, sourceEncoding);
 	/** If non-blank, the preprocessor listing gets written to this file */
 	String listingFile;
+	/** Evaluate &IF conditions with PreproEval where it can, rather than ProEval. */
+	private boolean fastPreproEval = true;
 	private boolean multiParse = false;
+	/** Build a NodeTypeIndex for each syntax tree, for JPNode.query(). */
+	private boolean nodeTypeIndex = true;
+	/** Build a PositionIndex for each syntax tree during the parse. */
+	private boolean positionIndex = false;
 	String opsys = "WIN32";
 	/** The original text that they set this flag with.
 	 * Store this in case they want to get() it and compare it. */
@@ -57,8 +69,10 @@ public class Environment {
 	String warning;
 	String windowSystem = "MS-WIN95";
 	ArrayList<String> path = new ArrayList<String>();
+	private PropathIndex propathIndex = new PropathIndex(path);
+	/** Shared by all parses in this environment, in all threads. */
+	private SuperScopeCache superScopeCache = new SuperScopeCache(SuperScopeCache.DEFAULT_MAX_ENTRIES);
 
-	private HashMap<String, SymbolScope> superCache = new HashMap<String, SymbolScope>();
 
 	public static final int OPSYS_WINDOWS = 1;
 	public static final int OPSYS_UNIX = 2;
@@ -69,35 +83,30 @@ public class Environment {
 	static {
 		validFlags.addAll(Arrays.asList(
 				"batch-mode",
+				"detect-encoding",
+				"fast-prepro-eval",
 				"keyword-all",
 				"listing-file",
 				"multi-parse",
+				"node-type-index",
 				"opsys",
+				"position-index",
 				"propath",
 				"proversion",
 				"show-proparse-directives",
+				"source-encoding",
+				"source-encoding-dirs",
 				"window-system"
 				));
 	}
 
 
 
-	/** Adds an inheritance scope regardless of the multiParse flag.
-	 * Deals with name's letter case.
-	 */
-	void addToSuperCache(String name, SymbolScope scope) {
-		superCache.put(name.toLowerCase(), scope);
-	}
-
-
 	void addToPath(String dirName) {
 		path.add(dirName);
-	}
-
-
-	/** This gets called by DoParse at cleanup time, if multiParse==false. */
-	void clearSuperCache() {
-		superCache.clear();
+		propathIndex.refresh();
+		conditionCache.clear();
+		superScopeCache.clear();
 	}
 
 
@@ -110,14 +119,22 @@ public class Environment {
 		flag = flag.trim().toLowerCase();
 		if (flag.equals("batch-mode"))
 			return batchMode;
+		if (flag.equals("detect-encoding"))
+			return sourceEncoding.isDetect() ? "true" : "false" ;
+		if (flag.equals("fast-prepro-eval"))
+			return fastPreproEval ? "true" : "false" ;
 		if (flag.equals("keyword-all"))
 			return keywordAll;
 		if (flag.equals("listing-file"))
 			return listingFile;
 		if (flag.equals("multi-parse"))
 			return multiParse ? "true" : "false" ;
+		if (flag.equals("node-type-index"))
+			return nodeTypeIndex ? "true" : "false" ;
 		if (flag.equals("opsys"))
 			return opsys;
+		if (flag.equals("position-index"))
+			return positionIndex ? "true" : "false" ;
 		if (flag.equals("propath")) {
 			String retpath = "";
 			boolean delim = false;
@@ -133,6 +150,10 @@ public class Environment {
 			return proversion;
 		if (flag.equals("show-proparse-directives"))
 			return proparseDirectivesText;
+		if (flag.equals("source-encoding"))
+			return sourceEncoding.getProjectEncoding();
+		if (flag.equals("source-encoding-dirs"))
+			return sourceEncoding.getDirEncodings();
 		if (flag.equals("window-system"))
 			return windowSystem;
 		return "";
@@ -145,13 +166,23 @@ public class Environment {
 		if (flag.equals("batch-mode")) {
 			batchMode = val;
 			refactorSession.getProgressSettings().batchmode = configValToBool(val);
+			superScopeCache.clear();
+		} else if (flag.equals("detect-encoding")) {
+			sourceEncoding.setDetect(configValToBool(val));
+			includeFileCache.clear();
+			superScopeCache.clear();
+		} else if (flag.equals("fast-prepro-eval")) {
+			fastPreproEval = configValToBool(val);
 		} else if (flag.equals("keyword-all")) {
 			keywordAll = val;
 			refactorSession.getProparseSettings().keywordall = val;
+			superScopeCache.clear();
 		} else if (flag.equals("listing-file")) {
 			listingFile = val;
 		} else if (flag.equals("multi-parse")) {
 			multiParse = configValToBool(val);
+		} else if (flag.equals("node-type-index")) {
+			nodeTypeIndex = configValToBool(val);
 		} else if (flag.equals("opsys")) {
 			refactorSession.getProgressSettings().opsys = val;
 			// Store exactly the string they gave us, then check if it's "unix"
@@ -160,19 +191,41 @@ public class Environment {
 				opsysNum = OPSYS_UNIX;
 			else
 				opsysNum = OPSYS_WINDOWS;
+			conditionCache.clear();
+			superScopeCache.clear();
+		} else if (flag.equals("position-index")) {
+			positionIndex = configValToBool(val);
 		} else if (flag.equals("propath")) {
 			refactorSession.getProgressSettings().propath = val;
 			path.clear();
 			path.addAll(Arrays.asList(val.split(",")));
+			propathIndex.refresh();
+			conditionCache.clear();
+			superScopeCache.clear();
 		} else if (flag.equals("proversion")) {
 			refactorSession.getProgressSettings().proversion = val;
 			proversion = val;
+			conditionCache.clear();
+			superScopeCache.clear();
 		} else if (flag.equals("show-proparse-directives")) {
 			proparseDirectivesText = val;
 			proparseDirectives = configValToBool(val);
+		} else if (flag.equals("source-encoding")) {
+			sourceEncoding.setProjectEncoding(val);
+			includeFileCache.clear();
+			superScopeCache.clear();
+		} else if (flag.equals("source-encoding-dirs")) {
+			try {
+				sourceEncoding.setDirEncodings(val);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			includeFileCache.clear();
+			superScopeCache.clear();
 		} else if (flag.equals("window-system")) {
 			refactorSession.getProgressSettings().windowSystem = val;
 			windowSystem = val;
+			superScopeCache.clear();
 		}
 	} // configSet()
 
@@ -207,34 +260,62 @@ public class Environment {
 			if (new File(fileName).exists())
 				return fileName;
 		}
-		for (String p : path) {
-			String tryPath = p + File.separatorChar + fileName;
-			if (new File(tryPath).exists())
-				return tryPath;
-		}
-		return "";
+		return propathIndex.find(fileName);
 	}
 
 
+	/** The cache of &IF condition results, shared by all parses in this environment. */
+	public ConditionCache getConditionCache() { return conditionCache; }
+
+
+	/** The cache of include file contents, shared by all parses in this environment. */
+	public IncludeFileCache getIncludeFileCache() { return includeFileCache; }
+
+
+	/** The encoding settings for reading source files. Change them with configSet()
+	 * ("source-encoding", "source-encoding-dirs", "detect-encoding"), which also
+	 * clears the include file cache.
+	 */
+	public SourceEncoding getSourceEncoding() { return sourceEncoding; }
+
+
+	/** The index of names found on the PROPATH.
+	 * Call refresh() on it after adding a file that hides one further down the PROPATH.
+	 */
+	public PropathIndex getPropathIndex() { return propathIndex; }
+
+
+	/** The cache of super class inheritance scopes, shared by all parses in this environment. */
+	public SuperScopeCache getSuperScopeCache() { return superScopeCache; }
+
+
 	/** Get the default instance.
 	 * In Proparse-C++, this class was enforced as a singleton.
 	 * In Java, I'm allowing for the possibility that different
 	 * parser environments might exist in different threads.
 	 */
-	public static Environment instance() {
+	public static synchronized Environment instance() {
 		if (instance==null)
 			instance = new Environment();
 		return instance;
 	}
 
 
+	/** Are &IF conditions evaluated by PreproEval, with ProEval only as the fallback? On by default. */
+	boolean isFastPreproEval() { return fastPreproEval; }
+
+
 	boolean isMultiParse() { return multiParse; }
 
 
-	/** The lookup deals with the name's letter case. */
-	SymbolScope lookupSuper(String superName) {
-		return superCache.get(superName.toLowerCase());
-	}
+	/** Do syntax trees from DoParse and from PUB get a NodeTypeIndex? On by default. */
+	public boolean isNodeTypeIndex() { return nodeTypeIndex; }
+
+
+	/** Do syntax trees from DoParse get a PositionIndex during the parse? Off by default.
+	 * @see org.prorefactor.nodetypes.ProgramRootNode#getPositionIndex()
+	 */
+	boolean isPositionIndex() { return positionIndex; }
 
 
 }
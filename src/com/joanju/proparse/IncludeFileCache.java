@@ -0,0 +1,182 @@
+/*
+IncludeFileCache.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Session level cache of include file contents, shared by all parses and threads.
+ * The same include files get pulled in by hundreds of compile units, and without
+ * this cache each reference re-opens and re-reads the file.
+ * <p>
+ * Entries are keyed by canonical path, and hold the decoded characters of the file along
+ * with the file's last-modified time and size. An entry whose file has changed is reloaded.
+ * The least recently used entries are evicted to keep the total cached characters
+ * under the limit. A file larger than the limit is never cached.
+ * <p>
+ * All methods are thread safe. The cached char arrays must not be modified.
+ * @see Environment#getIncludeFileCache()
+ */
+public class IncludeFileCache {
+
+	/** @param maxChars The limit on total characters cached. Zero turns the cache off. */
+	public IncludeFileCache(long maxChars) {
+		this(maxChars, new SourceEncoding());
+	}
+
+	/** @param maxChars The limit on total characters cached. Zero turns the cache off.
+	 * @param sourceEncoding For reading and decoding the files.
+	 */
+	public IncludeFileCache(long maxChars, SourceEncoding sourceEncoding) {
+		this.maxChars = maxChars;
+		this.sourceEncoding = sourceEncoding;
+	}
+
+	/** 16M characters (32MB) by default */
+	public static final long DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+
+	private long cachedChars = 0;
+	private long evictions = 0;
+	private long hits = 0;
+	private long maxChars;
+	private long misses = 0;
+	private LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private SourceEncoding sourceEncoding;
+
+	private static class Entry {
+		Entry(long lastModified, long length, char [] chars) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.chars = chars;
+		}
+		long lastModified;
+		long length;
+		char [] chars;
+	}
+
+
+
+	public synchronized void clear() {
+		map.clear();
+		cachedChars = 0;
+	}
+
+
+	/** Get the characters of a file, from the cache if the file has not changed.
+	 * The returned array must not be modified.
+	 */
+	public char [] get(String fileName) throws IOException {
+		File file = new File(fileName);
+		String key = file.getCanonicalPath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		synchronized (this) {
+			Entry entry = map.get(key);
+			if (entry!=null && entry.lastModified==lastModified && entry.length==length) {
+				++hits;
+				return entry.chars;
+			}
+			++misses;
+		}
+		// Read outside of the lock. Two threads might both read the same file, that's OK.
+		char [] chars = sourceEncoding.read(file);
+		put(key, new Entry(lastModified, length, chars));
+		return chars;
+	}
+
+
+	public synchronized long getCachedChars() { return cachedChars; }
+
+	public synchronized int getCachedFiles() { return map.size(); }
+
+	public synchronized long getEvictions() { return evictions; }
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMaxChars() { return maxChars; }
+
+	public synchronized long getMisses() { return misses; }
+
+
+	private synchronized void put(String key, Entry entry) {
+		Entry old = map.remove(key);
+		if (old!=null)
+			cachedChars -= old.chars.length;
+		if (entry.chars.length > maxChars)
+			return;
+		map.put(key, entry);
+		cachedChars += entry.chars.length;
+		trim();
+	}
+
+
+	/** Read the rest of the stream into an array of exactly its length, in bulk.
+	 * Does not close the stream.
+	 * @param sizeHint The expected number of characters, ex: the file's length in bytes.
+	 */
+	static char [] read(Reader reader, long sizeHint) throws IOException {
+		char [] buf = new char[(int) Math.max(16, Math.min(sizeHint, Integer.MAX_VALUE - 8))];
+		int len = 0;
+		int n;
+		while ((n = reader.read(buf, len, buf.length - len)) != -1) {
+			len += n;
+			if (len == buf.length) {
+				char [] bigger = new char[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, len);
+				buf = bigger;
+			}
+		}
+		if (len == buf.length)
+			return buf;
+		char [] ret = new char[len];
+		System.arraycopy(buf, 0, ret, 0, len);
+		return ret;
+	}
+
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+
+	/** Change the limit on total characters cached. Zero turns the cache off. */
+	public synchronized void setMaxChars(long maxChars) {
+		this.maxChars = maxChars;
+		trim();
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return "IncludeFileCache: "
+			+ map.size() + " files, "
+			+ cachedChars + "/" + maxChars + " chars, "
+			+ hits + " hits, "
+			+ misses + " misses, "
+			+ evictions + " evictions";
+	}
+
+
+	/** Evict least recently used entries until we are within the limit. */
+	private void trim() {
+		Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+		while (cachedChars > maxChars && it.hasNext()) {
+			cachedChars -= it.next().getValue().chars.length;
+			it.remove();
+			++evictions;
+		}
+	}
+
+
+}
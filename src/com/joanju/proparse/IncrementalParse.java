@@ -0,0 +1,498 @@
+/*
+IncrementalParse.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.regex.Pattern;
+
+import org.prorefactor.core.JPNode;
+
+import antlr.RecognitionException;
+import antlr.TokenStreamException;
+
+
+/** Parses a compile unit, and then reparses it after it has been edited,
+ * where possible by reparsing only the internal procedure that was edited.
+ * <p>
+ * The edit is found by comparing the new text to the text of the last parse.
+ * If the edit is within one PROCEDURE block at the top level of the compile unit,
+ * then only that block's text is lexed and parsed. Its parse starts with the unit scope
+ * as it was at the start of the block in the last full parse, and with the &GLOBAL and
+ * &SCOPED defines that were in effect there. For that, the full parse logs its unit scope
+ * definitions in order, along with where each inner scope entered from the unit scope starts,
+ * and the unit scope is rebuilt from the definitions logged before the block's own scope.
+ * (An internal procedure's own definitions go into its own scope, so the block can't change
+ * the unit scope.) The new PROCEDURE subtree replaces the old one in the tree, the positions
+ * of the nodes after it are shifted, and the tree's node numbers and indexes are redone.
+ * <p>
+ * Anything else gets a full parse: edits outside of an internal procedure, classes,
+ * and procedure blocks with include references or preprocessor directives in their text
+ * (before or after the edit). {&name} references are fine.
+ * <p>
+ * The tree from the last parse is changed in place, so nodes outside of the reparsed
+ * block stay valid. Only the parse is incremental. Symbol resolution is not: TreeParser01
+ * has no way to rerun for one procedure's scope, so after a reparse the caller has to run
+ * it (and rebuild any PUB file) over the whole compile unit, the same as after a full parse.
+ * <p>
+ * Nothing in Proparse itself uses this yet. It's meant for an editor integration,
+ * which keeps one IncrementalParse per open compile unit, and after each edit does:
+ * <pre>
+ * if (incrementalParse.reparse(editorText)) {
+ *     JPNode procedureNode = incrementalParse.getReparsedNode();
+ *     // Redo whatever was built from that PROCEDURE's subtree (outline, markers).
+ *     // Symbols still need TreeParser01 over the whole tree.
+ * } else {
+ *     // Full parse: redo everything from incrementalParse.getTopNode().
+ * }
+ * </pre>
+ * Use reparse() with no arguments if the edit has been saved to disk instead.
+ * Nodes outside of the reparsed PROCEDURE keep their identity, but their positions
+ * and node numbers may have changed, so don't keep those from before the reparse.
+ */
+public class IncrementalParse {
+
+	public IncrementalParse(String fileName) {
+		this(fileName, ParseContext.getDefault());
+	}
+
+	public IncrementalParse(String fileName, ParseContext context) {
+		this.fileName = fileName;
+		this.context = context;
+	}
+
+	/** Directives that would change the preprocessor's state for the code after the block. */
+	private static final Pattern directive = Pattern.compile(
+			"&(glob|scop|undef|if|elseif|else|endif|then|analyze-|message)"
+			, Pattern.CASE_INSENSITIVE
+			);
+
+	private ParseContext context;
+	private DefineLog defineLog;
+	/** The last full parse, for its ParserSupport. */
+	private DoParse doParse;
+	private String fileName;
+	/** Offset into text of the start of each line. */
+	private int [] lineStarts;
+	private JPNode reparsedNode;
+	private String text;
+	private JPNode topNode;
+
+
+
+	/** Keeps the &GLOBAL and &SCOPED define events of a parse, so that we can
+	 * find the defines in effect at any position in the compile unit.
+	 * Positions are in the compile unit. For events in include files,
+	 * the position is that of the compile unit's include reference.
+	 */
+	private static class DefineLog implements PreprocessorEventListener {
+		static final int DEFINE = 1;
+		static final int UNDEFINE = 2;
+		static final int INCLUDE = 3;
+		static final int INCLUDE_ARG = 4;
+		static final int INCLUDE_END = 5;
+		ArrayList<Event> events = new ArrayList<Event>();
+		int depth = 0;
+		int includeLine;
+		int includeCol;
+
+		static class Event {
+			int kind;
+			int line;
+			int col;
+			boolean isGlobal;
+			String name;
+			String value;
+		}
+
+		void add(int kind, int line, int col, boolean isGlobal, String name, String value) {
+			Event event = new Event();
+			event.kind = kind;
+			event.line = depth==0 ? line : includeLine;
+			event.col = depth==0 ? col : includeCol;
+			event.isGlobal = isGlobal;
+			event.name = name==null ? null : name.toLowerCase();
+			event.value = value;
+			events.add(event);
+		}
+
+		/** Replay the events before a position, the same way the Preprocessor keeps its defines.
+		 * Returns the global defines and the compile unit's scoped defines.
+		 */
+		@SuppressWarnings("unchecked")
+		HashMap<String, String> [] definesAt(int line, int col) {
+			HashMap<String, String> globals = new HashMap<String, String>();
+			ArrayList<HashMap<String, String>> scoped = new ArrayList<HashMap<String, String>>();
+			ArrayList<HashSet<String>> namedArgs = new ArrayList<HashSet<String>>();
+			scoped.add(new HashMap<String, String>());
+			namedArgs.add(new HashSet<String>());
+			for (Event event : events) {
+				if (event.line > line || (event.line == line && event.col >= col))
+					break;
+				int top = scoped.size() - 1;
+				switch (event.kind) {
+				case DEFINE:
+					if (event.isGlobal)
+						globals.put(event.name, event.value);
+					else
+						scoped.get(top).put(event.name, event.value);
+					break;
+				case UNDEFINE:
+					if (scoped.get(top).remove(event.name)!=null)
+						break;
+					if (namedArgs.get(top).remove(event.name))
+						break;
+					boolean found = false;
+					for (int i = top; i >= 0 && !found; --i)
+						found = scoped.get(i).remove(event.name)!=null;
+					if (!found)
+						globals.remove(event.name);
+					break;
+				case INCLUDE:
+					scoped.add(new HashMap<String, String>());
+					namedArgs.add(new HashSet<String>());
+					break;
+				case INCLUDE_ARG:
+					namedArgs.get(top).add(event.name);
+					break;
+				case INCLUDE_END:
+					scoped.remove(top);
+					namedArgs.remove(top);
+					break;
+				}
+			}
+			return new HashMap [] {globals, scoped.get(0)};
+		}
+
+		public void define(int file, int line, int column, boolean isGlobal, String name, String value) {
+			add(DEFINE, line, column, isGlobal, name, value);
+		}
+		public void include(int file, int line, int column, int includeFileIndex, String referencedWithName) {
+			if (depth==0) {
+				includeLine = line;
+				includeCol = column;
+			}
+			++depth;
+			add(INCLUDE, line, column, false, null, null);
+		}
+		public void includeArgument(String name, String value) {
+			add(INCLUDE_ARG, 0, 0, false, name, value);
+		}
+		public void includeEnd() {
+			add(INCLUDE_END, 0, 0, false, null, null);
+			--depth;
+		}
+		public void undefine(int file, int line, int column, String name) {
+			add(UNDEFINE, line, column, false, name, null);
+		}
+		public void macroRef(int file, int line, int column, String macroName) {}
+		public void macroRefEnd() {}
+		public void preproIf(int file, int line, int column, boolean isTrue) {}
+		public void preproElseIf(int file, int line, int column, Boolean isTrue) {}
+		public void preproElse(int file, int line, int column, Boolean isTrue) {}
+		public void preproEndIf(int file, int line, int column) {}
+		public void fileIndex(int fileIndex, String fileName) {}
+
+		/** Shift the positions at or after a position, after an edit. */
+		void shift(int line, int col, int lineDelta, int colDelta) {
+			for (Event event : events) {
+				if (event.line < line || (event.line == line && event.col < col))
+					continue;
+				if (event.line == line)
+					event.col += colDelta;
+				event.line += lineDelta;
+			}
+		}
+	}
+
+
+
+
+	private void fullParse(String newText) throws IOException, TokenStreamException, RecognitionException {
+		DoParse newParse = new DoParse(fileName, context);
+		newParse.logUnitScope();
+		newParse.inStream = new BufferedReader(new StringReader(newText));
+		DefineLog newLog = new DefineLog();
+		newParse.addPreprocessorListener(newLog);
+		newParse.doParse();
+		doParse = newParse;
+		defineLog = newLog;
+		topNode = doParse.getTopNode();
+		setText(newText);
+	}
+
+
+	/** The PROCEDURE node from the last reparse, or null if the last reparse was a full parse. */
+	public JPNode getReparsedNode() { return reparsedNode; }
+
+
+	/** The text from the last parse. */
+	public String getText() { return text; }
+
+
+	/** The Program_root node. The same node is kept through reparses of a single internal procedure. */
+	public JPNode getTopNode() { return topNode; }
+
+
+	/** Is the text free of include references, include arguments, and preprocessor directives?
+	 * References to {&name} are allowed, except for {&sequence}, which depends on what came before.
+	 */
+	private static boolean isPlainSource(String s) {
+		for (int i = s.indexOf('{'); i != -1; i = s.indexOf('{', i + 1)) {
+			if (i + 1 == s.length() || s.charAt(i + 1) != '&')
+				return false;
+			int close = s.indexOf('}', i);
+			if (close == -1)
+				return false;
+			String name = s.substring(i + 2, close).trim();
+			if (name.indexOf('{') != -1 || name.equalsIgnoreCase("sequence"))
+				return false;
+		}
+		return ! directive.matcher(s).find();
+	}
+
+
+	private int offset(int line, int col) {
+		if (line < 1 || line > lineStarts.length)
+			return -1;
+		return lineStarts[line - 1] + col - 1;
+	}
+
+
+	/** Parse the file. */
+	public void parse() throws IOException, TokenStreamException, RecognitionException {
+		reparsedNode = null;
+		fullParse(readFile());
+	}
+
+
+	private String readFile() throws IOException {
+		return new String(context.getEnvironment().getSourceEncoding().read(new File(fileName)));
+	}
+
+
+	/** Reparse after the file has been changed on disk.
+	 * @see #reparse(String)
+	 */
+	public boolean reparse() throws IOException, TokenStreamException, RecognitionException {
+		return reparse(readFile());
+	}
+
+
+	/** Reparse with new text for the compile unit.
+	 * Does a full parse if there hasn't been one yet, or if the edit
+	 * can't be handled by reparsing one internal procedure.
+	 * @return true if only an internal procedure was reparsed (see getReparsedNode()),
+	 * false if there was a full parse.
+	 */
+	public boolean reparse(String newText) throws IOException, TokenStreamException, RecognitionException {
+		reparsedNode = null;
+		if (topNode!=null && reparseProcedure(newText))
+			return true;
+		fullParse(newText);
+		return false;
+	}
+
+
+	private boolean reparseProcedure(String newText) {
+		ParserSupport support = doParse.getParserSupport();
+		if (support==null || support.isClass() || support.isInterface())
+			return false;
+
+		// Find the edited range: the new text from..newTo replaces the old text from..oldTo.
+		int oldLength = text.length();
+		int newLength = newText.length();
+		int from = 0;
+		int max = Math.min(oldLength, newLength);
+		while (from < max && text.charAt(from) == newText.charAt(from))
+			++from;
+		int oldTo = oldLength;
+		int newTo = newLength;
+		while (oldTo > from && newTo > from && text.charAt(oldTo - 1) == newText.charAt(newTo - 1)) {
+			--oldTo;
+			--newTo;
+		}
+
+		// Find the PROCEDURE block around the edit.
+		JPNode oldNode = null;
+		JPNode oldLast = null;
+		int start = 0;
+		int end = 0;
+		for (JPNode node = topNode.firstChild(); node!=null; node = node.nextSibling()) {
+			if (node.getFileIndex() != 0 || node.getLine() == 0)
+				continue;
+			start = offset(node.getLine(), node.getColumn());
+			if (start > from)
+				return false;
+			if (node.getType() != NodeTypes.PROCEDURE)
+				continue;
+			oldLast = JPNode.getLastDescendant(node);
+			if (oldLast.getType() != NodeTypes.PERIOD || oldLast.getFileIndex() != 0)
+				continue;
+			end = offset(oldLast.getLine(), oldLast.getColumn()) + 1;
+			if (oldTo <= end) {
+				oldNode = node;
+				break;
+			}
+		}
+		if (oldNode==null)
+			return false;
+		// Check that the node positions really are where we think they are in the text,
+		// (they wouldn't be for tokens from a macro expansion) and for preprocessing.
+		String oldBlock = text.substring(start, end);
+		if (	! oldBlock.regionMatches(true, 0, oldNode.getText(), 0, oldNode.getText().length())
+			||	oldBlock.charAt(oldBlock.length() - 1) != '.'
+			||	! isPlainSource(oldBlock)
+			)
+			return false;
+		int newEnd = end + newLength - oldLength;
+		if (newEnd <= start)
+			return false;
+		String newBlock = newText.substring(start, newEnd);
+		if (! isPlainSource(newBlock))
+			return false;
+
+		// Parse the new block. Padding puts its tokens at their line and column in the compile unit.
+		int line = oldNode.getLine();
+		int col = oldNode.getColumn();
+		StringBuilder source = new StringBuilder(line + col + newBlock.length());
+		for (int i = 1; i < line; i++)
+			source.append('\n');
+		for (int i = 1; i < col; i++)
+			source.append(' ');
+		source.append(newBlock);
+		// The unit scope as it was at the block: the events logged before the block's scope.
+		int unitScopeEvents = support.unitScopeEventsBefore(line, col, oldLast.getLine(), oldLast.getColumn() + 1);
+		if (unitScopeEvents < 0)
+			return false;
+		HashMap<String, String> [] defines = defineLog.definesAt(line, col);
+		DoParse fragment = new DoParse(fileName, context);
+		fragment.setListingFile(null);
+		fragment.logUnitScope();
+		fragment.continueFrom(doParse, unitScopeEvents, defines[0], defines[1]);
+		fragment.inStream = new BufferedReader(new StringReader(source.toString()));
+		try {
+			fragment.doParse();
+		} catch (Exception e) {
+			// The full parse reports the error.
+			return false;
+		}
+		JPNode newNode = fragment.getTopNode().firstChild();
+		if (	newNode==null
+			||	newNode.getType() != NodeTypes.PROCEDURE
+			||	newNode.nextSibling()==null
+			||	newNode.nextSibling().getType() != NodeTypes.Program_tail
+			||	fragment.isValidIndex(1)
+			||	! fragment.getParserSupport().isOneInnerScope()
+			)
+			return false;
+		JPNode newLast = JPNode.getLastDescendant(newNode);
+		if (newLast.getType() != NodeTypes.PERIOD)
+			return false;
+
+		// The positions after the block move by the change in the block's end.
+		int oldEndLine = oldLast.getLine();
+		int oldEndCol = oldLast.getColumn() + 1;
+		int newEndLine = newLast.getLine();
+		int newEndCol = newLast.getColumn() + 1;
+
+		// Splice the new subtree in, with the old block's leading and trailing hidden tokens.
+		setFilenameList(newNode, doParse.getFilenameList());
+		newNode.setHiddenBefore(oldNode.getHiddenBefore());
+		newLast.setHiddenAfter(oldLast.getHiddenAfter());
+		JPNode prev = oldNode.prevSibling();
+		newNode.setNextSibling(oldNode.nextSibling());
+		if (prev==null)
+			topNode.setFirstChild(newNode);
+		else
+			prev.setNextSibling(newNode);
+
+		if (newEndLine != oldEndLine || newEndCol != oldEndCol) {
+			IdentityHashMap<ProToken, Boolean> done = new IdentityHashMap<ProToken, Boolean>();
+			shiftHidden(newLast.getHiddenAfter(), oldEndLine, oldEndCol, newEndLine - oldEndLine, newEndCol - oldEndCol, done);
+			for (JPNode node = newNode.nextSibling(); node!=null; node = node.nextSibling())
+				shift(node, oldEndLine, oldEndCol, newEndLine - oldEndLine, newEndCol - oldEndCol, done);
+			defineLog.shift(oldEndLine, oldEndCol, newEndLine - oldEndLine, newEndCol - oldEndCol);
+			support.shiftUnitScopeLog(oldEndLine, oldEndCol, newEndLine - oldEndLine, newEndCol - oldEndCol);
+		}
+		support.replaceInnerScope(unitScopeEvents, fragment.getParserSupport());
+
+		doParse.finishTree(topNode);
+		setText(newText);
+		reparsedNode = newNode;
+		return true;
+	}
+
+
+	/** Point a new subtree's tokens (and hidden tokens) at the compile unit's file name list. */
+	private static void setFilenameList(JPNode node, IntegerIndex<String> filenameList) {
+		node.setFilenameList(filenameList);
+		for (ProToken t = node.getHiddenBefore(); t!=null; t = t.getPrev())
+			t.setFilenameList(filenameList);
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			setFilenameList(child, filenameList);
+	}
+
+
+	private void setText(String newText) {
+		text = newText;
+		int count = 1;
+		for (int i = 0; i < newText.length(); i++) {
+			if (newText.charAt(i) == '\n')
+				++count;
+		}
+		lineStarts = new int[count];
+		count = 1;
+		for (int i = 0; i < newText.length(); i++) {
+			if (newText.charAt(i) == '\n')
+				lineStarts[count++] = i + 1;
+		}
+	}
+
+
+	private static void shift(JPNode node, int line, int col, int lineDelta, int colDelta, IdentityHashMap<ProToken, Boolean> done) {
+		for (ProToken t = node.getHiddenBefore(); t!=null; t = t.getPrev())
+			shiftToken(t, line, col, lineDelta, colDelta, done);
+		shiftNode(node, line, col, lineDelta, colDelta);
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			shift(child, line, col, lineDelta, colDelta, done);
+	}
+
+
+	private static void shiftHidden(ProToken t, int line, int col, int lineDelta, int colDelta, IdentityHashMap<ProToken, Boolean> done) {
+		for (; t!=null; t = t.getNext())
+			shiftToken(t, line, col, lineDelta, colDelta, done);
+	}
+
+
+	private static void shiftNode(JPNode node, int line, int col, int lineDelta, int colDelta) {
+		if (node.getFileIndex() != 0 || node.getLine() < line || (node.getLine() == line && node.getColumn() < col))
+			return;
+		if (node.getLine() == line)
+			node.setColumn(node.getColumn() + colDelta);
+		node.setLine(node.getLine() + lineDelta);
+	}
+
+
+	private static void shiftToken(ProToken t, int line, int col, int lineDelta, int colDelta, IdentityHashMap<ProToken, Boolean> done) {
+		if (done.put(t, Boolean.TRUE)!=null)
+			return;
+		if (t.getFileIndex() != 0 || t.getLine() < line || (t.getLine() == line && t.getColumn() < col))
+			return;
+		if (t.getLine() == line)
+			t.setColumn(t.getColumn() + colDelta);
+		t.setLine(t.getLine() + lineDelta);
+	}
+
+
+}
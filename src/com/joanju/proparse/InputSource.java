@@ -15,9 +15,6 @@ This file is made available under the terms of the Eclipse Public License v1.0.
 */
 package com.joanju.proparse;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-
 
 class InputSource {
 
@@ -28,24 +25,38 @@ class InputSource {
 	int nextCol = 1;
 	int nextLine = 1;
 
-	private BufferedReader theInput;
+	/** The whole input, read up front. Never written to, so the
+	 * IncludeFileCache's arrays can be used as they are.
+	 */
+	private char [] chars;
+	private int end;
+	private int pos = 0;
+
+	private static final char [] EMPTY = new char[0];
 
 
-	InputSource(int sourceNum, BufferedReader theStream) {
+	/** Input from an include file's characters, ex: from the IncludeFileCache. */
+	InputSource(int sourceNum, char [] chars) {
 		this.sourceNum = sourceNum;
-		theInput = theStream;
+		this.chars = chars;
+		end = chars.length;
 	}
 
-	InputSource(int sourceNum, BufferedReader theStream, boolean isPrimary) {
-		this.sourceNum = sourceNum;
+	/** Input from a macro expansion or an argument reference. */
+	InputSource(int sourceNum, String text) {
+		this(sourceNum, text.toCharArray());
+	}
+
+	/** The primary input. Null is an empty input, ex: for parsing a token vector. */
+	InputSource(int sourceNum, char [] chars, boolean isPrimary) {
+		this(sourceNum, chars==null ? EMPTY : chars);
 		isPrimaryInput = isPrimary;
-		theInput = theStream;
 	}
 
 
 
 
-	int get() throws IOException {
+	int get() {
 		// We use nextLine and nextCol - that way '\n' can have a column
 		// number at the end of the line it's on, rather than at column
 		// 0 of the following line.
@@ -53,7 +64,14 @@ class InputSource {
 		// or line number. Those just stay put at the file position where the
 		// macro '{' was referenced.
 		// (Doesn't apply to filenames)
-		int currChar = theInput.read();
+		// At the end, the column still gets incremented, the same as it
+		// did when this read from a Reader, so EOF has the column after the last character.
+		if (pos == end) {
+			if (!isMacroExpansion)
+				nextCol++;
+			return Preprocessor.EOF_CHAR;
+		}
+		char currChar = chars[pos++];
 		if (!isMacroExpansion) {
 			if (currChar=='\n') {
 				nextLine++;
@@ -65,6 +83,41 @@ class InputSource {
 	}
 
 
+	/** Append the run of characters from here for which plain[c] is true, and move past them.
+	 * Characters above the table's range are in the run if highPlain, except for
+	 * the conversion error character 65533, which has to go through get() for its error.
+	 * Line and column are updated once for the whole run, not per character.
+	 */
+	void appendRun(StringBuilder sb, boolean [] plain, boolean highPlain) {
+		int start = pos;
+		int p = pos;
+		int newlines = 0;
+		int lastNewline = -1;
+		while (p < end) {
+			char c = chars[p];
+			if (c < plain.length ? !plain[c] : (!highPlain || c == 65533))
+				break;
+			if (c == '\n') {
+				newlines++;
+				lastNewline = p;
+			}
+			p++;
+		}
+		if (p == start)
+			return;
+		sb.append(chars, start, p - start);
+		pos = p;
+		if (isMacroExpansion)
+			return;
+		if (newlines == 0) {
+			nextCol += p - start;
+		} else {
+			nextLine += newlines;
+			nextCol = p - lastNewline;
+		}
+	}
+
+
 	void setInputFilePos(int fileIndex, int line, int col) {
 		this.fileIndex = fileIndex;
 		this.nextLine = line;
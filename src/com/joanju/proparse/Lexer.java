@@ -7,6 +7,7 @@ This file is made available under the terms of the Eclipse Public License v1.0.
 package com.joanju.proparse;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 
 public class Lexer implements ProParserTokenTypes {
@@ -14,6 +15,7 @@ public class Lexer implements ProParserTokenTypes {
 	Lexer(Preprocessor prepro) throws IOException {
 		this.prepro = prepro;
 		this.filenameList = prepro.doParse.getFilenameList();
+		this.textPool = prepro.doParse.getTextPool();
 		getChar(); // We always assume "currChar" is available.
 	}
 
@@ -28,6 +30,7 @@ public class Lexer implements ProParserTokenTypes {
 
 	private IntegerIndex<String> filenameList;
 	private Preprocessor prepro;
+	private TextPool textPool;
 
 	private boolean gettingAmpIfDefArg = false;
 	private boolean preserve = false;
@@ -44,6 +47,38 @@ public class Lexer implements ProParserTokenTypes {
 
 	private static final int EOF_CHAR = Preprocessor.EOF_CHAR;
 
+	// Characters which can be taken as a run with Preprocessor.appendRun(),
+	// rather than by a getChar() each. None of these may be an escape, '{', or '.'.
+	private static final boolean [] WHITESPACE_RUN = runOf(" \t\f\n\r", false);
+	private static final boolean [] ID_RUN = runOf(
+			"0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_-$#%&/!\"*+;@^`", true);
+	private static final boolean [] COMMENT_RUN = runOfAllBut("*/");
+	private static final boolean [] SQUOTE_RUN = runOfAllBut("'");
+	private static final boolean [] DQUOTE_RUN = runOfAllBut("\"");
+
+	/** The listed characters, and optionally the extended characters 128-255. */
+	private static boolean [] runOf(String chars, boolean extended) {
+		boolean [] table = new boolean[256];
+		for (int i = 0; i < chars.length(); i++)
+			table[chars.charAt(i)] = true;
+		if (extended)
+			Arrays.fill(table, 128, 256, true);
+		return table;
+	}
+
+	/** Every character but the listed ones, the escapes, '{', and '.'. */
+	private static boolean [] runOfAllBut(String chars) {
+		boolean [] table = new boolean[256];
+		Arrays.fill(table, true);
+		for (int i = 0; i < chars.length(); i++)
+			table[chars.charAt(i)] = false;
+		table['~'] = false;
+		table['\\'] = false;
+		table['{'] = false;
+		table['.'] = false;
+		return table;
+	}
+
 
 	
 
@@ -331,6 +366,7 @@ public class Lexer implements ProParserTokenTypes {
 			case '\n':
 			case '\r':
 				append();
+				prepro.appendRun(currText, WHITESPACE_RUN, false);
 				getChar();
 				break;
 			default:
@@ -370,6 +406,8 @@ public class Lexer implements ProParserTokenTypes {
 			else if (currInt==EOF_CHAR) {
 				prepro.lexicalThrow("Missing end of comment");
 			}
+			else
+				prepro.appendRun(currText, COMMENT_RUN, true);
 		}
 		prepro.doingComment = false;
 		getChar();
@@ -393,7 +431,8 @@ public class Lexer implements ProParserTokenTypes {
 				} else {
 					break; // close quote
 				}
-			}
+			} else
+				prepro.appendRun(currText, currStringType=='"' ? DQUOTE_RUN : SQUOTE_RUN, true);
 			getChar();
 		}
 
@@ -753,6 +792,7 @@ public class Lexer implements ProParserTokenTypes {
 			case '^':
 			case '`':
 				append();
+				prepro.appendRun(currText, ID_RUN, false);
 				getChar();
 				break;
 			case '\\':
@@ -975,7 +1015,13 @@ public class Lexer implements ProParserTokenTypes {
 
 	void getChar() throws IOException {
 		currInt = prepro.getChar();
-		currChar = Character.toLowerCase(currInt);
+		// Most source is ASCII, and this is done for every character.
+		if (currInt >= 'A' && currInt <= 'Z')
+			currChar = currInt + ('a' - 'A');
+		else if (currInt < 128)
+			currChar = currInt;
+		else
+			currChar = Character.toLowerCase(currInt);
 	}
 
 
@@ -999,21 +1045,12 @@ public class Lexer implements ProParserTokenTypes {
 		String defText = StringFuncs.stripComments(currText.substring(it));
 		defText = defText.trim();
 		// Do listing before lowercasing the name
-		// Escape line breaks. Somehow it is possible to get line breaks into globdef/scopdef.
-		if (prepro.listing) {
-			StringBuilder bldr = new StringBuilder();
-			bldr
-				.append(textStartFile)
-				.append(" ")
-				.append(textStartLine)
-				.append(" ")
-				.append(textStartCol)
-				.append((defType==AMPGLOBALDEFINE ? " globdef " : " scopdef "))
-				.append(macroName)
-				.append(" ")
-				.append(StringFuncs.escapeLineBreaks(defText));
-			prepro.listingStream.write(bldr.toString());
-			prepro.listingStream.newLine();
+		// Somehow it is possible to get line breaks into globdef/scopdef.
+		for (PreprocessorEventListener listener : prepro.listeners) {
+			listener.define(
+					textStartFile, textStartLine, textStartCol
+					, defType==AMPGLOBALDEFINE, macroName, defText
+					);
 		}
 		if (defType == AMPGLOBALDEFINE)
 			prepro.defGlobal(macroName.toLowerCase(), defText);
@@ -1036,19 +1073,8 @@ public class Lexer implements ProParserTokenTypes {
 			++it;  // macro name
 		String macroName = currText.substring(start, it);
 		// List the name as in the code - not lowercased
-		if (prepro.listing) {
-			StringBuilder bldr = new StringBuilder();
-			bldr
-				.append(textStartFile)
-				.append(" ")
-				.append(textStartLine)
-				.append(" ")
-				.append(textStartCol)
-				.append(" undef ")
-				.append(macroName);
-			prepro.listingStream.write(bldr.toString());
-			prepro.listingStream.newLine();
-		}
+		for (PreprocessorEventListener listener : prepro.listeners)
+			listener.undefine(textStartFile, textStartLine, textStartCol, macroName);
 		prepro.undef(macroName.toLowerCase());
 	}
 
@@ -1057,7 +1083,7 @@ public class Lexer implements ProParserTokenTypes {
 		return new ProToken(
 			filenameList
 			, ttype
-			, currText.toString()
+			, textPool.intern(currText)
 			, textStartFile
 			, textStartLine
 			, textStartCol
@@ -1068,7 +1094,7 @@ public class Lexer implements ProParserTokenTypes {
 
 	ProToken makeToken(int ttype, String text) {
 		return new ProToken(
-			filenameList, ttype, text, textStartFile, textStartLine, textStartCol, textStartSource
+			filenameList, ttype, textPool.intern(text), textStartFile, textStartLine, textStartCol, textStartSource
 			);
 	}
 
@@ -1077,7 +1103,7 @@ public class Lexer implements ProParserTokenTypes {
 		return new ProToken(
 			filenameList
 			, ttype
-			, Character.toString(text)
+			, textPool.intern(Character.toString(text))
 			, textStartFile
 			, textStartLine
 			, textStartCol
@@ -0,0 +1,149 @@
+/*
+ListingWriter.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import static com.joanju.proparse.StringFuncs.escapeLineBreaks;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+
+/** Writes the preprocessor listing file. This is just for debugging now -
+ * ProRefactor builds its macro graph in memory, from the same events.
+ * <p>
+ * Each line is "file line column token ...", where file/line/column
+ * are zeros for events that have no position of their own.
+ * Line breaks in text are escaped.
+ * @see org.prorefactor.macrolevel.ListingParser
+ */
+public class ListingWriter implements PreprocessorEventListener {
+
+	public ListingWriter(String listingFile) throws IOException {
+		stream = new BufferedWriter(new FileWriter(listingFile));
+	}
+
+	private BufferedWriter stream;
+
+
+	public void close() throws IOException {
+		stream.close();
+	}
+
+
+	public void define(int file, int line, int column, boolean isGlobal, String name, String value) throws IOException {
+		writeLine(position(file, line, column)
+				.append(isGlobal ? "globdef " : "scopdef ")
+				.append(name)
+				.append(" ")
+				.append(escapeLineBreaks(value))
+				);
+	}
+
+
+	public void fileIndex(int fileIndex, String fileName) throws IOException {
+		writeLine(position(0, 0, 0)
+				.append("fileindex ")
+				.append(fileIndex)
+				.append(" ")
+				.append(fileName)
+				);
+	}
+
+
+	public void include(int file, int line, int column, int includeFileIndex, String referencedWithName) throws IOException {
+		writeLine(position(file, line, column)
+				.append("include ")
+				.append(includeFileIndex)
+				.append(" ")
+				.append(referencedWithName)
+				);
+	}
+
+
+	public void includeArgument(String name, String value) throws IOException {
+		// Unlike named macros, include args can contain line breaks.
+		writeLine(position(0, 0, 0)
+				.append("incarg ")
+				.append(name)
+				.append(" ")
+				.append(escapeLineBreaks(value))
+				);
+	}
+
+
+	public void includeEnd() throws IOException {
+		writeLine(position(0, 0, 0).append("incend"));
+	}
+
+
+	public void macroRef(int file, int line, int column, String macroName) throws IOException {
+		// Using this trick: {{&undefined-argument}{&*}}
+		// it is possible to get line breaks into the macroName. See test data bug15.p and bug15.i.
+		writeLine(position(file, line, column)
+				.append("macroref ")
+				.append(escapeLineBreaks(macroName))
+				);
+	}
+
+
+	public void macroRefEnd() throws IOException {
+		writeLine(position(0, 0, 0).append("macrorefend"));
+	}
+
+
+	private StringBuilder position(int file, int line, int column) {
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(file)
+			.append(" ")
+			.append(line)
+			.append(" ")
+			.append(column)
+			.append(" ");
+		return bldr;
+	}
+
+
+	public void preproElse(int file, int line, int column, Boolean isTrue) throws IOException {
+		writeLine(position(file, line, column).append("ampelse ").append(result(isTrue)));
+	}
+
+
+	public void preproElseIf(int file, int line, int column, Boolean isTrue) throws IOException {
+		writeLine(position(file, line, column).append("ampelseif ").append(result(isTrue)));
+	}
+
+
+	public void preproEndIf(int file, int line, int column) throws IOException {
+		writeLine(position(file, line, column).append("ampendif"));
+	}
+
+
+	public void preproIf(int file, int line, int column, boolean isTrue) throws IOException {
+		writeLine(position(file, line, column).append("ampif ").append(result(isTrue)));
+	}
+
+
+	private static String result(Boolean isTrue) {
+		if (isTrue==null)
+			return "?";
+		return isTrue ? "true" : "false";
+	}
+
+
+	public void undefine(int file, int line, int column, String name) throws IOException {
+		writeLine(position(file, line, column).append("undef ").append(name));
+	}
+
+
+	private void writeLine(StringBuilder bldr) throws IOException {
+		stream.write(bldr.toString());
+		stream.newLine();
+	}
+
+
+}
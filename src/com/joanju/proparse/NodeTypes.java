@@ -178,14 +178,14 @@ public class NodeTypes implements ProParserTokenTypes, TokenTypesI, Xferable {
 	}
 
 
-	static boolean isReserved(int nodeType) {
+	public static boolean isReserved(int nodeType) {
 		return (	isValidType(nodeType)
 				&&	((typeInfoArray[nodeType].bitset & TI.RESERVED) > 0)
 				);
 	}
 
 
-	static boolean isSystemHandleName(int nodeType) {
+	public static boolean isSystemHandleName(int nodeType) {
 		return (	isValidType(nodeType)
 				&&	((typeInfoArray[nodeType].bitset & TI.SYSHDL) > 0)
 				);
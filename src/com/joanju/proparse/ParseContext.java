@@ -0,0 +1,103 @@
+/*
+ParseContext.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.refactor.RefactorSession;
+
+
+/** The configuration and state for a parse: PROPATH, PROVERSION, and the other
+ * Environment settings, the schema, the project settings, and the cache of
+ * super class scopes.
+ * <p>
+ * A ParseContext is thread-confined: it is passed from DoParse to the Preprocessor,
+ * ParserSupport, and on to TreeParser01 (by way of ParseUnit), and it must only be
+ * used by one parse at a time. A parse of a super class uses the same context as the
+ * parse of the subclass which triggered it.
+ * <p>
+ * By default, each thread gets its own context, which refers to the Environment,
+ * Schema, and RefactorSession singletons. Only the super class cache belongs to
+ * the context itself.
+ * @see #getDefault()
+ */
+public class ParseContext {
+
+	/** A context for the Environment, Schema, and RefactorSession singletons. */
+	public ParseContext() {
+		this(Environment.instance(), Schema.getInstance(), RefactorSession.getInstance());
+	}
+
+	public ParseContext(Environment environment, Schema schema, RefactorSession session) {
+		this.environment = environment;
+		this.schema = schema;
+		this.session = session;
+	}
+
+	private Environment environment;
+	private HashMap<String, SymbolScope> superCache = new HashMap<String, SymbolScope>();
+	private RefactorSession session;
+	private Schema schema;
+
+	private static ThreadLocal<ParseContext> defaultContext = new ThreadLocal<ParseContext>() {
+		@Override
+		protected ParseContext initialValue() {
+			return new ParseContext();
+		}
+	};
+
+
+
+	/** Adds an inheritance scope regardless of the multiParse flag.
+	 * Deals with name's letter case.
+	 */
+	void addToSuperCache(String name, SymbolScope scope) {
+		superCache.put(name.toLowerCase(), scope);
+	}
+
+
+	/** This gets called by DoParse at cleanup time, if multiParse==false. */
+	void clearSuperCache() {
+		superCache.clear();
+	}
+
+
+	/** The default context for the current thread.
+	 * Uses the Environment, Schema, and RefactorSession singletons, with a super class
+	 * cache of its own, so that parses in different threads don't share a cache.
+	 */
+	public static ParseContext getDefault() {
+		return defaultContext.get();
+	}
+
+
+	public Environment getEnvironment() { return environment; }
+
+
+	/** The PROPATH entries, in order. Don't modify the list. */
+	public List<String> getPropath() { return environment.path; }
+
+
+	public String getProversion() { return environment.proversion; }
+
+
+	public Schema getSchema() { return schema; }
+
+
+	/** The project settings, and the project directory for PUB files etc. */
+	public RefactorSession getSession() { return session; }
+
+
+	/** The lookup deals with the name's letter case. */
+	SymbolScope lookupSuper(String superName) {
+		return superCache.get(superName.toLowerCase());
+	}
+
+
+}
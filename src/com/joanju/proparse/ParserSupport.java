@@ -7,19 +7,23 @@ package com.joanju.proparse;
 import antlr.TokenStreamException;
 import antlr.RecognitionException;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.util.LinkedHashMap;
+import java.io.File;
 import java.io.IOException;
 
 import org.prorefactor.core.JPNode;
+import org.prorefactor.refactor.FileStuff;
 
 public class ParserSupport {
 
 	ParserSupport(DoParse doParse) {
-		unitScope = new SymbolScope();
-		currentScope = unitScope;
 		this.doParse = doParse;
+		context = doParse.getContext();
+		classFinder = new ClassFinder(context.getEnvironment());
+		unitScope = new SymbolScope(context.getSchema());
+		currentScope = unitScope;
 	}
 
 	private JPNode topNode;
@@ -27,10 +31,10 @@ public class ParserSupport {
 	private boolean currDefInheritable = false;
 	private boolean unitIsInterface = false;
 
-	private ClassFinder classFinder = new ClassFinder();
+	private ClassFinder classFinder;
 	private DoParse doParse;
 
-	private Environment environment = Environment.instance();
+	private ParseContext context;
 
 	private HashMap<String, SymbolScope> funcScopeMap = new HashMap<String, SymbolScope>();
 
@@ -47,10 +51,38 @@ public class ParserSupport {
 	// It might be "sub" to a super scope in a class hierarchy.
 	private SymbolScope unitScope;
 
+	// The files (and timestamps) that our super class scopes were built from.
+	// Null if we got the super scope from this parse's own cache, and we don't know.
+	private LinkedHashMap<String, Long> superDependencies = new LinkedHashMap<String, Long>();
+
 	// Last field referenced. Used for inline defines using LIKE or AS.
 	private JPNode lastFieldRefNode;
 	private JPNode lastFieldIDNode;
 
+	// The definitions made in the unit scope, in order, and the start of each inner scope
+	// entered from the unit scope. Null unless logUnitScope() was called. See IncrementalParse.
+	private ArrayList<UnitScopeEvent> unitScopeLog;
+
+
+
+	/** A definition in the unit scope, or the start of an inner scope entered from the unit scope. */
+	private static class UnitScopeEvent {
+		static final int INNER_SCOPE = 0;
+		static final int VAR = 1;
+		static final int BUFFER = 2;
+		static final int TABLE = 3;
+		static final int FUNC = 4;
+		static final int METHOD = 5;
+		int kind;
+		String name;
+		String bufferFor;
+		SymbolScope.FieldType tableType;
+		// For INNER_SCOPE: the position of the first token in the scope.
+		// Line is -1 if that token isn't in the compile unit's own file.
+		int line;
+		int col;
+	}
+
 
 
 	/** An AS phrase allows further abbreviations on the datatype names.
@@ -82,7 +114,13 @@ public class ParserSupport {
 	}
 
 
-	void addInnerScope() {
+	void addInnerScope() throws TokenStreamException {
+		if (unitScopeLog!=null && currentScope==unitScope) {
+			UnitScopeEvent event = logEvent(UnitScopeEvent.INNER_SCOPE, null, null, null);
+			ProToken next = (ProToken) doParse.parser.LT(1);
+			event.line = next.getFileIndex()==0 ? next.getLine() : -1;
+			event.col = next.getColumn();
+		}
 		currentScope = new SymbolScope(currentScope);
 	}
 
@@ -93,12 +131,38 @@ public class ParserSupport {
 	}
 
 
+	/** For a parse of part of a compile unit: start with the unit scope as it was at that part
+	 * in an earlier parse of the whole unit, by replaying the earlier parse's unit scope events
+	 * from before the part. Definitions that come after the part in the compile unit are left out.
+	 * @see DoParse#continueFrom(DoParse, int, java.util.HashMap, java.util.HashMap)
+	 */
+	void continueFrom(ParserSupport previous, int unitScopeEvents) {
+		unitScope = new SymbolScope(context.getSchema());
+		currentScope = unitScope;
+		for (int i = 0; i < unitScopeEvents; i++) {
+			UnitScopeEvent event = previous.unitScopeLog.get(i);
+			switch (event.kind) {
+			case UnitScopeEvent.VAR: unitScope.defVar(event.name); break;
+			case UnitScopeEvent.BUFFER: unitScope.defBuffer(event.name, event.bufferFor); break;
+			case UnitScopeEvent.TABLE: unitScope.defTable(event.name, event.tableType); break;
+			case UnitScopeEvent.FUNC: unitScope.defFunc(event.name); break;
+			case UnitScopeEvent.METHOD: unitScope.defMethod(event.name); break;
+			}
+		}
+		funcScopeMap = previous.funcScopeMap;
+		classFinder = previous.classFinder;
+	}
+
+
 	void declareMethod(String s) {
+		logEvent(UnitScopeEvent.METHOD, s, null, null);
 		unitScope.defMethod(s);
 	}
 
 
 	void defBuffer(String bufferName, String tableName) {
+		if (currentScope==unitScope)
+			logEvent(UnitScopeEvent.BUFFER, bufferName, tableName, null);
 		currentScope.defBuffer(bufferName, tableName);
 		if (currDefInheritable)
 			inheritanceScope.defBuffer(bufferName, tableName);
@@ -112,17 +176,21 @@ public class ParserSupport {
 
 			// We always build an inheritance scope, because the parser is called recursively, and
 			// we might only be parsing for the purpose of finding inherite symbols for a subclass.
-			// That pointer is stored in the Environment, and that cache of SymbolScopes is cleaned
+			// That pointer is stored in the ParseContext, and that cache of SymbolScopes is cleaned
 			// up via a method it provides.
-			inheritanceScope = new SymbolScope();
-			environment.addToSuperCache(thisClassName, inheritanceScope);
+			inheritanceScope = new SymbolScope(context.getSchema());
+			context.addToSuperCache(thisClassName, inheritanceScope);
 			inheritanceScope.setScopeName(thisClassName);
 
 			// Does this class have a super class?
 			JPNode nextNode = idNode.nextSibling();
 			if ((nextNode!=null) && nextNode.getType()==NodeTypes.INHERITS) {
 				String inheritName = nextNode.firstChild().attrGetS(JPNode.AK_QUALIFIEDCLASS);
-				SymbolScope scope = environment.lookupSuper(inheritName);
+				SymbolScope scope = context.lookupSuper(inheritName);
+				if (scope!=null)
+					superDependencies = null;
+				else
+					scope = cachedSuper(inheritName);
 				if (scope==null)
 					scope = parseSuper(classNode, inheritName);
 				if (scope!=null) {
@@ -142,6 +210,7 @@ public class ParserSupport {
 		String methodName = idNode.getText();
 		// Methods can only be defined at the "unit" (class) scope.
 		// Next line is redundant: method names were already picked up by the scan-ahead.
+		logEvent(UnitScopeEvent.METHOD, methodName, null, null);
 		unitScope.defMethod(methodName);
 		if (currDefInheritable)
 			inheritanceScope.defMethod(methodName);
@@ -152,6 +221,8 @@ public class ParserSupport {
 		// I think the compiler will only allow table defs at the class/unit scope,
 		// but we don't need to enforce that here. It'll go in the right spot by the
 		// nature of the code.
+		if (currentScope==unitScope)
+			logEvent(UnitScopeEvent.TABLE, name, null, ttype);
 		currentScope.defTable(name, ttype);
 		if (currDefInheritable)
 			inheritanceScope.defTable(name, ttype);
@@ -159,6 +230,8 @@ public class ParserSupport {
 
 
 	void defVar(String name) {
+		if (currentScope==unitScope)
+			logEvent(UnitScopeEvent.VAR, name, null, null);
 		currentScope.defVar(name);
 		if (currDefInheritable)
 			inheritanceScope.defVar(name);
@@ -166,6 +239,8 @@ public class ParserSupport {
 
 
 	void defVarInline() {
+		if (currentScope==unitScope)
+			logEvent(UnitScopeEvent.VAR, lastFieldIDNode.getText(), null, null);
 		currentScope.defVar(lastFieldIDNode.getText());
 		// I'm not sure if this would ever be inheritable. Doesn't hurt to check.
 		if (currDefInheritable)
@@ -217,6 +292,7 @@ public class ParserSupport {
 			currentScope = newScope;
 			funcScopeMap.put(lowername, newScope);
 			// User functions are always at the "unit" scope.
+			logEvent(UnitScopeEvent.FUNC, lowername, null, null);
 			unitScope.defFunc(lowername);
 			// User funcs are not inheritable.
 		}
@@ -283,6 +359,42 @@ public class ParserSupport {
 	}
 
 
+	/** Get a super class scope from the Environment's SuperScopeCache. */
+	private SymbolScope cachedSuper(String qualSuperName) {
+		String superFileName = classFinder.findClassFile(qualSuperName);
+		if (superFileName.length()==0)
+			return null;
+		SuperScopeCache.Entry entry = context.getEnvironment().getSuperScopeCache().get(superFileName, context);
+		if (entry==null)
+			return null;
+		context.addToSuperCache(qualSuperName, entry.scope);
+		superDependencies = entry.dependencies;
+		return entry.scope;
+	}
+
+
+	/** Add to the unit scope log, if there is one. Returns the new event, or null. */
+	private UnitScopeEvent logEvent(int kind, String name, String bufferFor, SymbolScope.FieldType tableType) {
+		if (unitScopeLog==null)
+			return null;
+		UnitScopeEvent event = new UnitScopeEvent();
+		event.kind = kind;
+		event.name = name;
+		event.bufferFor = bufferFor;
+		event.tableType = tableType;
+		unitScopeLog.add(event);
+		return event;
+	}
+
+
+	/** Start logging the unit scope definitions, and the inner scopes entered from the unit scope.
+	 * @see DoParse#logUnitScope()
+	 */
+	void logUnitScope() {
+		unitScopeLog = new ArrayList<UnitScopeEvent>();
+	}
+
+
 	int methodOrFunc(String name) {
 		// Methods and user functions are only at the "unit" (class) scope.
 		// Methods can also be inherited from superclasses.
@@ -298,9 +410,8 @@ public class ParserSupport {
 			// vendor libraries, etc.
 			return null;
 		}
-		BufferedReader ifstream = new BufferedReader(new FileReader(superFileName));
+		// DoParse reads the file, with the Environment's source encoding.
 		DoParse superDoParse = new DoParse(superFileName, doParse);
-		superDoParse.inStream = ifstream;
 		superDoParse.doParse();
 		ParserSupport superSupport = superDoParse.getParserSupport();
 		if ( ! superSupport.isClass() )
@@ -310,7 +421,7 @@ public class ParserSupport {
 				+ qualSuperName
 				+ " which is not a class."
 				);
-		SymbolScope superScope = environment.lookupSuper(qualSuperName);
+		SymbolScope superScope = context.lookupSuper(qualSuperName);
 		if (superScope==null)
 			throw new RuntimeException("Internal error. parseSuper failed to find superScope.");
 		for (SymbolScope p = superScope.getSuperScope(); p!=null; p = p.getSuperScope()) {
@@ -318,6 +429,20 @@ public class ParserSupport {
 				throw new RuntimeException("Circular inheritance found from class: " + qualSuperName);
 		}
 		classNode.setLink(JPNode.SUPER_CLASS_TREE, superSupport.topNode);
+		// Share the super scope with later parses, unless it depends on something
+		// from this parse that we can't keep track of.
+		if (superSupport.superDependencies==null) {
+			superDependencies = null;
+		} else {
+			LinkedHashMap<String, Long> deps = new LinkedHashMap<String, Long>();
+			for (String fileName : superDoParse.getFilenameList().getValues()) {
+				File file = new File(fileName);
+				deps.put(FileStuff.fullpath(file), file.lastModified());
+			}
+			deps.putAll(superSupport.superDependencies);
+			superDependencies = context.getEnvironment().getSuperScopeCache()
+					.put(superFileName, superScope, deps, context).dependencies;
+		}
 		return superScope;
 	}
 
@@ -350,6 +475,56 @@ public class ParserSupport {
 	void setTopNode(JPNode refTopNode) { topNode = refTopNode; }
 
 
+	/** Shift the logged inner scope positions at or after a position, after an edit. */
+	void shiftUnitScopeLog(int line, int col, int lineDelta, int colDelta) {
+		for (UnitScopeEvent event : unitScopeLog) {
+			if (event.line < line || (event.line == line && event.col < col))
+				continue;
+			if (event.line == line)
+				event.col += colDelta;
+			event.line += lineDelta;
+		}
+	}
+
+
+	/** The number of logged unit scope events before the one inner scope that starts within
+	 * a range of the compile unit (ex: an internal procedure's block).
+	 * Returns -1 if there isn't exactly one.
+	 */
+	int unitScopeEventsBefore(int line, int col, int endLine, int endCol) {
+		int found = -1;
+		for (int i = 0; i < unitScopeLog.size(); i++) {
+			UnitScopeEvent event = unitScopeLog.get(i);
+			if (	event.kind != UnitScopeEvent.INNER_SCOPE
+				||	event.line < line || (event.line == line && event.col < col)
+				||	event.line > endLine || (event.line == endLine && event.col >= endCol)
+				)
+				continue;
+			if (found != -1)
+				return -1;
+			found = i;
+		}
+		return found;
+	}
+
+
+	/** Is the unit scope log just one inner scope, with no unit scope definitions?
+	 * That's what a reparse of an internal procedure logs.
+	 */
+	boolean isOneInnerScope() {
+		return unitScopeLog.size()==1 && unitScopeLog.get(0).kind==UnitScopeEvent.INNER_SCOPE;
+	}
+
+
+	/** After a part of the compile unit has been reparsed, replace the inner scope event
+	 * at that index with the reparse's one inner scope event.
+	 * @see #isOneInnerScope()
+	 */
+	void replaceInnerScope(int index, ParserSupport reparse) {
+		unitScopeLog.set(index, reparse.unitScopeLog.get(0));
+	}
+
+
 	void typenameLookup(JPNode typenameNode) {
 		typenameNode.attrSet(
 				JPNode.AK_QUALIFIEDCLASS
@@ -24,13 +24,20 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 		this.lexer = lexer;
 		this.doParse = doParse;
 		this.filenameList = doParse.getFilenameList();
+		Environment env = doParse.getContext().getEnvironment();
+		conditionCache = env.getConditionCache();
+		if (env.isFastPreproEval())
+			preproEval = new PreproEval(env);
 	}
 	
+	private ConditionCache conditionCache;
 	private ProToken currToken;
 	private DoParse doParse;
 	private IntegerIndex<String> filenameList;
 	private Lexer lexer;
 	private Preprocessor prepro;
+	/** Null if the "fast-prepro-eval" flag is off. */
+	private PreproEval preproEval = null;
 	private LinkedList<PreproIfState> preproIfVec = new LinkedList<PreproIfState>();
 
 	class PreproIfState {
@@ -105,25 +112,9 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 	}
 
 
-	void listingLine(ProToken token, String text) throws IOException {
-		if (! prepro.listing)
-			return;
-		StringBuilder bldr = listingToken(token);
-		bldr.append(text);
-		prepro.listingStream.write(bldr.toString());
-		prepro.listingStream.newLine();
-	}
-
-
-	StringBuilder listingToken(ProToken token) {
-		StringBuilder bldr = new StringBuilder();
-		bldr.append(token.fileIndex)
-			.append(" ")
-			.append(token.getLine())
-			.append(" ")
-			.append(token.getColumn())
-			.append(" ");
-		return bldr;
+	private void listElse(ProToken token, Boolean isTrue) throws IOException {
+		for (PreprocessorEventListener listener : prepro.listeners)
+			listener.preproElse(token.fileIndex, token.getLine(), token.getColumn(), isTrue);
 	}
 
 
@@ -162,27 +153,18 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 	void preproIf()
 			throws IOException, TokenStreamException, RecognitionException {
 		// Preserve the currToken current position for listing, before evaluating the expression.
-		// We can't just write to listing here, because the expression evaluation may
+		// We can't just send the event here, because the expression evaluation may
 		// find macro references to list.
-		StringBuilder bldr = listingToken(currToken);
-		bldr.append("ampif ");
+		ProToken ifToken = currToken;
 		PreproIfState preproIfState = new PreproIfState();
 		preproIfVec.add(preproIfState);
 		// Only evaluate if we aren't consuming from an outer &IF.
 		boolean isTrue = preproIfCond(prepro.consuming==0);
+		for (PreprocessorEventListener listener : prepro.listeners)
+			listener.preproIf(ifToken.fileIndex, ifToken.getLine(), ifToken.getColumn(), isTrue);
 		if (isTrue) {
-			if (prepro.listing) {
-				bldr.append("true");
-				prepro.listingStream.write(bldr.toString());
-				prepro.listingStream.newLine();
-			}
 			preproIfState.done = true;
 		} else {
-			if (prepro.listing) {
-				bldr.append("false");
-				prepro.listingStream.write(bldr.toString());
-				prepro.listingStream.newLine();
-			}
 			preproIfState.consuming = true;
 			preproconsume();
 		}
@@ -194,16 +176,16 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 		PreproIfState preproIfState = preproIfVec.getLast();
 		if (! preproIfState.done) {
 			preproIfState.consuming = false;
-			listingLine(currToken, "ampelse ?");
+			listElse(currToken, null);
 		}
 		else {
 			if (! preproIfState.consuming) {
-				listingLine(currToken, "ampelse true");
+				listElse(currToken, true);
 				preproIfState.consuming = true;
 				preproconsume();
 			}
 			// else: already consuming. no change.
-			listingLine(currToken, "ampelse ?");
+			listElse(currToken, null);
 		}
 	}
 
@@ -211,10 +193,9 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 	void preproElseif()
 			throws IOException, TokenStreamException, RecognitionException {
 		// Preserve the current position for listing, before evaluating the expression.
-		// We can't just write to listing here, because the expression evaluation may
+		// We can't just send the event here, because the expression evaluation may
 		// find macro references to list.
-		StringBuilder bldr = listingToken(currToken);
-		bldr.append("ampelseif ");
+		ProToken elseifToken = currToken;
 		boolean evaluate = true;
 		// Don't evaluate if we're consuming from an outer &IF
 		if (prepro.consuming - 1 > 0)
@@ -223,17 +204,11 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 		if (preproIfVec.getLast().done)
 			evaluate = false;
 		boolean isTrue = preproIfCond(evaluate);
-		if (prepro.listing) {
-			if (!evaluate) {
-					bldr.append("?");
-			} else {
-				if (isTrue)
-					bldr.append("true");
-				else
-					bldr.append("false");
-			}
-			prepro.listingStream.write(bldr.toString());
-			prepro.listingStream.newLine();
+		for (PreprocessorEventListener listener : prepro.listeners) {
+			listener.preproElseIf(
+					elseifToken.fileIndex, elseifToken.getLine(), elseifToken.getColumn()
+					, evaluate ? Boolean.valueOf(isTrue) : null
+					);
 		}
 		PreproIfState preproIfState = preproIfVec.getLast();
 		if (isTrue && (! preproIfState.done)) {
@@ -250,7 +225,8 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 
 
 	void preproEndif() throws IOException {
-		listingLine(currToken, "ampendif");
+		for (PreprocessorEventListener listener : prepro.listeners)
+			listener.preproEndIf(currToken.fileIndex, currToken.getLine(), currToken.getColumn());
 		preproIfVec.removeLast();
 	}
 
@@ -292,27 +268,45 @@ public class Postlexer implements antlr.TokenStream, ProParserTokenTypes {
 		if ((tokenVector.size()==0) || (!evaluate))
 			return false;
 		else {
-			DoParse evalDoParse = new DoParse(null, doParse);
-			evalDoParse.preProcessCondition = true;
-			for (int i = 0; i < 4; i++) {
-				tokenVector.add(new ProToken(filenameList, EOF, ""));
-			}
-			try {
-				evalDoParse.doParse(tokenVector);
-			} catch(ProEvalException e) {
-				e.appendMessage(" Unable to evaluate &IF condition:");
-				for (ProToken tok : tokenVector) {
-					e.appendMessage(" " + tok.getText());
-				}
-				int theIndex = currToken.fileIndex;
-				if (doParse.isValidIndex(theIndex))
-					e.filename = doParse.getFilename(theIndex);
-				e.line = currToken.getLine();
-				e.column = currToken.getColumn();
-				throw e;
+			String key = ConditionCache.key(tokenVector);
+			Boolean cached = conditionCache.get(key);
+			if (cached!=null)
+				return cached;
+			boolean isTrue = preproIfEval(tokenVector);
+			conditionCache.put(key, isTrue);
+			return isTrue;
+		}
+	}
+
+
+	private boolean preproIfEval(ArrayList<ProToken> tokenVector)
+			throws IOException, TokenStreamException, RecognitionException {
+		if (preproEval!=null) {
+			Boolean isTrue = preproEval.evaluate(tokenVector);
+			if (isTrue!=null)
+				return isTrue;
+		}
+		// Anything PreproEval doesn't handle gets parsed and evaluated by ProEval.
+		DoParse evalDoParse = new DoParse(null, doParse);
+		evalDoParse.preProcessCondition = true;
+		for (int i = 0; i < 4; i++) {
+			tokenVector.add(new ProToken(filenameList, EOF, ""));
+		}
+		try {
+			evalDoParse.doParse(tokenVector);
+		} catch(ProEvalException e) {
+			e.appendMessage(" Unable to evaluate &IF condition:");
+			for (ProToken tok : tokenVector) {
+				e.appendMessage(" " + tok.getText());
 			}
-			return evalDoParse.preProcessConditionResult;
+			int theIndex = currToken.fileIndex;
+			if (doParse.isValidIndex(theIndex))
+				e.filename = doParse.getFilename(theIndex);
+			e.line = currToken.getLine();
+			e.column = currToken.getColumn();
+			throw e;
 		}
+		return evalDoParse.preProcessConditionResult;
 	}
 
 
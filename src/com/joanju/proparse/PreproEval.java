@@ -0,0 +1,408 @@
+/*
+PreproEval.java
+
+Evaluates &IF conditions directly from their tokens.
+
+Copyright (C) 2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import static com.joanju.proparse.ProEvalSupport.*;
+
+import java.util.ArrayList;
+
+
+/** Evaluates an &IF or &ELSEIF condition straight from the token vector that
+ * Postlexer collects, without creating a DoParse, ProParser, and ProEval for it.
+ * <p>
+ * This is a precedence climbing parser with the same levels as ProParser's
+ * expression rules (OR, AND, NOT, relational, additive, multiplicative, unary),
+ * and it computes each value as it goes, the same way ProEval does, using ProEvalSupport.
+ * It only handles the common ground: constants, parens, operators, and the functions that
+ * ProEval can evaluate. For anything else (an unsupported function, a syntax error,
+ * tokens left over after the expression) and for any exception during evaluation,
+ * evaluate() returns null, and the caller falls back to ProEval. That way the
+ * results and the error messages stay exactly the same as ProEval's.
+ * <p>
+ * One instance is used for all the conditions in a parse. Not thread safe.
+ * @see Postlexer#preproIfCond(boolean)
+ */
+class PreproEval implements ProParserTokenTypes {
+
+	PreproEval(Environment env) {
+		this.env = env;
+	}
+
+	private Environment env;
+	private ArrayList<ProToken> tokens;
+	private int pos;
+	private int la;
+
+	/** Thrown for anything this evaluator doesn't handle. There is only the one
+	 * instance, and it has no stack trace, so the fallback is cheap.
+	 */
+	private static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+		@Override
+		public synchronized Throwable fillInStackTrace() { return this; }
+	}
+	private static final Unsupported UNSUPPORTED = new Unsupported();
+
+
+
+
+	/** Evaluate the condition, or return null if ProEval has to do it.
+	 * @param tokenVector The condition's tokens, without whitespace or comments,
+	 * and without the EOF tokens that the ProEval fallback needs.
+	 */
+	Boolean evaluate(ArrayList<ProToken> tokenVector) {
+		tokens = tokenVector;
+		pos = -1;
+		consume();
+		try {
+			Object a = expression();
+			if (la != EOF)
+				return null;
+			return Boolean.valueOf(a!=null && getBool(a));
+		} catch (Unsupported e) {
+			return null;
+		} catch (RuntimeException e) {
+			// ProEvalException, ClassCastException, etc. ProEval decides what gets thrown,
+			// because it checks the syntax of the whole expression before evaluating any of it.
+			return null;
+		} finally {
+			tokens = null;
+		}
+	}
+
+
+	private void consume() {
+		++pos;
+		la = pos < tokens.size() ? tokens.get(pos).getType() : EOF;
+	}
+
+
+	private void match(int type) throws Unsupported {
+		if (la != type)
+			throw UNSUPPORTED;
+		consume();
+	}
+
+
+	private Object expression() throws Unsupported {
+		Object a = andExpression();
+		while (la == OR) {
+			consume();
+			Object b = andExpression();
+			a = Boolean.valueOf(getBool(a) || getBool(b));
+		}
+		return a;
+	}
+
+
+	private Object andExpression() throws Unsupported {
+		Object a = notExpression();
+		while (la == AND) {
+			consume();
+			Object b = notExpression();
+			a = Boolean.valueOf(getBool(a) && getBool(b));
+		}
+		return a;
+	}
+
+
+	private Object notExpression() throws Unsupported {
+		// Same as the parser: NOT applies to a relational expression, and can't be repeated.
+		if (la == NOT) {
+			consume();
+			return Boolean.valueOf(!getBool(relationalExpression()));
+		}
+		return relationalExpression();
+	}
+
+
+	private Object relationalExpression() throws Unsupported {
+		Object a = additiveExpression();
+		for (;;) {
+			int op = la;
+			switch (op) {
+			case MATCHES:
+			case BEGINS:
+			case EQUAL:
+			case EQ:
+			case GTORLT:
+			case NE:
+			case RIGHTANGLE:
+			case GTHAN:
+			case GTOREQUAL:
+			case GE:
+			case LEFTANGLE:
+			case LTHAN:
+			case LTOREQUAL:
+			case LE:
+				break;
+			default:
+				return a;
+			}
+			consume();
+			Object b = additiveExpression();
+			switch (op) {
+			case MATCHES:
+				a = matches(a, b);
+				break;
+			case BEGINS:
+				a = Boolean.valueOf(((String)a).toLowerCase().startsWith(((String)b).toLowerCase()));
+				break;
+			case EQUAL:
+			case EQ:
+				a = compare(a, b, Compare.EQ);
+				break;
+			case GTORLT:
+			case NE:
+				a = compare(a, b, Compare.NE);
+				break;
+			case RIGHTANGLE:
+			case GTHAN:
+				a = compare(a, b, Compare.GT);
+				break;
+			case GTOREQUAL:
+			case GE:
+				a = compare(a, b, Compare.GE);
+				break;
+			case LEFTANGLE:
+			case LTHAN:
+				a = compare(a, b, Compare.LT);
+				break;
+			default:
+				a = compare(a, b, Compare.LE);
+			}
+		}
+	}
+
+
+	private Object additiveExpression() throws Unsupported {
+		Object a = multiplicativeExpression();
+		for (;;) {
+			if (la == PLUS) {
+				consume();
+				a = opPlus(a, multiplicativeExpression());
+			} else if (la == MINUS) {
+				consume();
+				a = opMinus(a, multiplicativeExpression());
+			} else {
+				return a;
+			}
+		}
+	}
+
+
+	private Object multiplicativeExpression() throws Unsupported {
+		Object a = unaryExpression();
+		for (;;) {
+			if (la == STAR) {
+				consume();
+				a = opMultiply(a, unaryExpression());
+			} else if (la == SLASH) {
+				consume();
+				a = opDivide(a, unaryExpression());
+			} else if (la == MODULO) {
+				consume();
+				Object b = unaryExpression();
+				// Progress rounds the operands to integer.
+				Double m1 = getFloat(a) + .5;
+				Double m2 = getFloat(b) + .5;
+				a = new Integer(m1.intValue() % m2.intValue());
+			} else {
+				return a;
+			}
+		}
+	}
+
+
+	private Object unaryExpression() throws Unsupported {
+		if (la == MINUS) {
+			consume();
+			Object a = exprt();
+			if (a instanceof Integer)
+				return (Integer)a * -1;
+			return (Float)a * -1;
+		}
+		if (la == PLUS) {
+			consume();
+			return exprt();
+		}
+		return exprt();
+	}
+
+
+	private Object exprt() throws Unsupported {
+		Object a = term();
+		// Attributes and methods (ex: PROVERSION:...) are left to ProEval.
+		if (la == OBJCOLON || la == DOUBLECOLON)
+			throw UNSUPPORTED;
+		return a;
+	}
+
+
+	private Object term() throws Unsupported {
+		ProToken token = pos < tokens.size() ? tokens.get(pos) : null;
+		switch (la) {
+		case LEFTPAREN:
+			consume();
+			Object a = expression();
+			match(RIGHTPAREN);
+			return a;
+		case NUMBER:
+			consume();
+			return getNumber(token.getText());
+		case QSTRING:
+			consume();
+			// Strip the quotes, and any string attributes after the last quote.
+			return StringFuncs.qstringStrip(token.getText());
+		case YES:
+		case TRUE_KW:
+			consume();
+			return Boolean.TRUE;
+		case NO:
+		case FALSE_KW:
+			consume();
+			return Boolean.FALSE;
+		case UNKNOWNVALUE:
+			consume();
+			return null;
+		case OPSYS:
+			consume();
+			if (env.opsys == null || env.opsys.length()==0)
+				throw new ProEvalException("OPSYS has not been configured in Proparse.");
+			return env.opsys;
+		case PROPATH:
+			consume();
+			return propath(env);
+		case PROVERSION:
+			consume();
+			if (env.proversion == null || env.proversion.length()==0)
+				throw new ProEvalException("PROVERSION has not been configured in Proparse.");
+			return env.proversion;
+		default:
+			return function();
+		}
+	}
+
+
+	/** The functions with arguments that ProEval can evaluate. */
+	private Object function() throws Unsupported {
+		int func = la;
+		int min;
+		int max;
+		switch (func) {
+		case DECIMAL:
+		case INTEGER:
+		case KEYWORD:
+		case KEYWORDALL:
+			min = 1; max = 1;
+			break;
+		case LEFTTRIM:
+		case LENGTH:
+		case NUMENTRIES:
+		case RIGHTTRIM:
+		case STRING:
+		case TRIM:
+			min = 1; max = 2;
+			break;
+		case ENTRY:
+		case INDEX:
+		case LOOKUP:
+		case RINDEX:
+			min = 2; max = 3;
+			break;
+		case REPLACE:
+			min = 3; max = 3;
+			break;
+		case SUBSTRING:
+			min = 2; max = 4;
+			break;
+		case MAXIMUM:
+		case MINIMUM:
+			min = 2; max = Integer.MAX_VALUE;
+			break;
+		default:
+			throw UNSUPPORTED;
+		}
+		consume();
+		match(LEFTPAREN);
+		ArrayList<Object> args = new ArrayList<Object>(4);
+		args.add(expression());
+		while (la == COMMA) {
+			consume();
+			args.add(expression());
+		}
+		match(RIGHTPAREN);
+		int count = args.size();
+		if (count < min || count > max)
+			throw UNSUPPORTED;
+		// Missing optional arguments are null, the same as in ProEval.
+		while (args.size() < 4)
+			args.add(null);
+		Object a = args.get(0);
+		Object b = args.get(1);
+		Object c = args.get(2);
+		switch (func) {
+		case DECIMAL:
+			return decimal(a);
+		case ENTRY:
+			return entry(a, b, c);
+		case INDEX:
+			return index(a, b, c);
+		case INTEGER:
+			return integer(a);
+		case KEYWORD:
+			return keyword(a);
+		case KEYWORDALL:
+			return keywordall(a);
+		case LEFTTRIM:
+			return lefttrim(a, b);
+		case LENGTH:
+			if (b!=null)
+				throw new ProEvalException("Type option of LENGTH function not yet supported.");
+			return new Integer(getString(a).length());
+		case LOOKUP:
+			return lookup(a, b, c);
+		case MAXIMUM:
+		case MINIMUM:
+			Object ret = a;
+			for (int i = 1; i < count; i++) {
+				b = args.get(i);
+				if (ret==null || b==null)
+					ret = null;
+				else if (compare(b, ret, func==MAXIMUM ? Compare.GT : Compare.LT))
+					ret = b;
+			}
+			return ret;
+		case NUMENTRIES:
+			return numentries(a, b);
+		case REPLACE:
+			return replace(getString(a), getString(b), getString(c));
+		case RIGHTTRIM:
+			if (b!=null)
+				return StringFuncs.rtrim(getString(a), getString(b));
+			return StringFuncs.rtrim(getString(a));
+		case RINDEX:
+			return rindex(a, b, c);
+		case STRING:
+			if (b!=null)
+				throw new ProEvalException("Format option of STRING function is not yet supported.");
+			return string(a);
+		case SUBSTRING:
+			if (args.get(3)!=null)
+				throw new ProEvalException("Type option of STRING function is not yet supported.");
+			return substring(a, b, c);
+		default: // TRIM
+			if (b!=null)
+				return StringFuncs.trim(getString(a), getString(b));
+			return getString(a).trim();
+		}
+	}
+
+
+}
@@ -34,25 +34,37 @@ import java.util.ListIterator;
 import java.util.regex.Pattern;
 import java.io.*;
 
-import static com.joanju.proparse.StringFuncs.escapeLineBreaks;
 
 
 public class Preprocessor {
 
 	/** An existing reference to the input stream is required for construction.
-	 * The caller is responsible for closing that stream once parsing is complete.
+	 * The whole stream is read here, so the caller can close it
+	 * as soon as this returns.
 	 */
 	public Preprocessor(
 		String fileName
 		, BufferedReader inStream
 		, DoParse doParse
+		) throws IOException {
+		this(fileName, inStream==null ? null : IncludeFileCache.read(inStream, 8192), doParse);
+	}
+
+	/** The primary input's characters, which are not copied or changed.
+	 * Null for no input, ex: for parsing a token vector.
+	 */
+	Preprocessor(
+		String fileName
+		, char [] chars
+		, DoParse doParse
 		) {
 
 		this.doParse = doParse;
+		this.env = doParse.getContext().getEnvironment();
 		// Create input source with flag isPrimaryInput=true
 		sourceCounter = -1;
 		currFile = doParse.addFilename(fileName);
-		currentInput = new InputSource(++sourceCounter, inStream, true);
+		currentInput = new InputSource(++sourceCounter, chars, true);
 		currentInput.fileIndex = currFile;
 		currentInclude = new IncludeFile(fileName, currentInput);
 		includeVector.add(currentInclude);
@@ -83,11 +95,8 @@ public class Preprocessor {
 	String escapeText;
 	DoParse doParse;
 
-	/** Are we writing a preprocessor-listing file? */
-	boolean listing = false;
-
-	/** The listing stream (only open if listing) */
-	BufferedWriter listingStream;
+	/** Listeners for macro and include events. The listing file writer is just one of these. */
+	ArrayList<PreprocessorEventListener> listeners = new ArrayList<PreprocessorEventListener>();
 
 	/** Is the current '.' a name dot? (i.e. not followed by whitespace) */
 	boolean nameDot;
@@ -107,7 +116,7 @@ public class Preprocessor {
 
 	private IncludeFile currentInclude;
 	private InputSource currentInput;
-	private Environment env = Environment.instance();
+	private Environment env;
 	private HashMap<String,String> globalDefdNames = new HashMap<String, String>();
 	private boolean gotLookahead = false;
 	private LinkedList<IncludeFile> includeVector = new LinkedList<IncludeFile>();
@@ -384,6 +393,19 @@ public class Preprocessor {
 	}
 
 
+	/** Append a run of plain characters straight from the current input, as if each had
+	 * been returned by getChar(), and move past them. The table must leave out the characters
+	 * which getChar() handles specially: escapes, '{', and '.'.
+	 * Nothing is appended if there's a lookahead character, since that has already been read.
+	 * The caller calls getChar() next, which sets the line and column for the following character.
+	 */
+	void appendRun(StringBuilder sb, boolean [] plain, boolean highPlain) {
+		if (gotLookahead)
+			return;
+		currentInput.appendRun(sb, plain, highPlain);
+	}
+
+
 	int getColumn() {return currCol;}
 
 	int getFileIndex() {return currFile;}
@@ -419,20 +441,20 @@ public class Preprocessor {
 			// This is the 'replacement' character in Unicode, used by Java as a
 			// placeholder for a character which could not be converted.
 			// Java silently uses the replacement character, rather than throw an exception.
-			// This would only happen if the source file is a different character
-			// encoding than the system character encoding picked by the JVM.
-			// This is unlikely, unless the source file came from an outside source.
+			// This would only happen if the source file is in a different character
+			// encoding than the one configured for it.
 			// For example, in my test environment, I have samples of source code
 			// from lots of different places.
-			// See http://java.sun.com/j2se/1.5.0/docs/guide/intl/encoding.doc.html
+			// See SourceEncoding for how the encoding of a file is decided.
 			throw new RuntimeException(
 				"Character conversion error."
 				+ "\nCould not read character from source file\n"
 				+ getFilename() + " line " + currLine + " column " + currCol
 				+ "\nThis indicates a character that cannot be converted to Unicode using"
-				+ "\nthe current file I/O code page: " + System.getProperty("file.encoding")
-				+ "\nTry using a different encoding from the Java Virtual Machine command line"
-				+ "\nfor example: -Dfile.encoding=\"ISO8859_1\""
+				+ "\nthe encoding configured for the file: " + sourceEncodingName()
+				+ "\nTry setting the encoding for the project or for the file's directory"
+				+ "\n(source-encoding, source-encoding-dirs), for example: source-encoding=ISO8859-1"
+				+ "\nor add a byte order mark or a /* cpstream=... */ comment to the top of the file."
 				);
 		}
 		while (currChar == EOF_CHAR) {
@@ -465,6 +487,18 @@ public class Preprocessor {
 
 	int getSourceNum() {return currSourceNum;}
 
+
+	/** For error messages: the encoding that a file with no byte order mark or cpstream
+	 * marker would be read with.
+	 */
+	private String sourceEncodingName() {
+		try {
+			return env.getSourceEncoding().charsetFor(new File(getFilename())).name();
+		} catch (IOException e) {
+			return env.getSourceEncoding().getProjectEncoding();
+		}
+	}
+
 	
 	/* Get the next include reference arg, reposition the charpos.
 	 * A doublequote will start a string -
@@ -511,12 +545,8 @@ public class Preprocessor {
 	}
 
 
-	void initListing() throws IOException {
-		String listingFile = env.configGet("listing-file");
-		if (listingFile == null || listingFile.length()==0)
-			return;
-		listing = true;
-		listingStream = new BufferedWriter(new FileWriter(listingFile));
+	void addListener(PreprocessorEventListener listener) {
+		listeners.add(listener);
 	}
 
 
@@ -606,19 +636,9 @@ public class Preprocessor {
 			// This will be counted as a source whether picked up here or picked
 			// up as a normal macro ref.
 			++sourceCounter;
-			if (listing) {
-				StringBuilder bldr = new StringBuilder();
-				bldr
-					.append(refPos.file)
-					.append(" ")
-					.append(refPos.line)
-					.append(" ")
-					.append(refPos.col)
-					.append(" macroref _proparse_");
-				listingStream.write(bldr.toString());
-				listingStream.newLine();
-				listingStream.write("0 0 0 macrorefend");
-				listingStream.newLine();
+			for (PreprocessorEventListener listener : listeners) {
+				listener.macroRef(refPos.file, refPos.line, refPos.col, "_proparse_");
+				listener.macroRefEnd();
 			}
 			return;
 		}
@@ -738,21 +758,8 @@ public class Preprocessor {
 				// currfile is only updated with a push/pop of the input stack.
 				currFile = currentInput.fileIndex;
 				currSourceNum = currentInput.sourceNum;
-				if (listing) {
-					StringBuilder bldr = new StringBuilder();
-					bldr
-						.append(refPos.file)
-						.append(" ")
-						.append(refPos.line)
-						.append(" ")
-						.append(refPos.col)
-						.append(" include ")
-						.append(currFile)
-						.append(" ")
-						.append(includeFilename);
-					listingStream.write(bldr.toString());
-					listingStream.newLine();
-				}
+				for (PreprocessorEventListener listener : listeners)
+					listener.include(refPos.file, refPos.line, refPos.col, currFile, includeFilename);
 				// Add the arguments to the new include object.
 				int argNum = 1;
 				for (IncludeArg incarg : incArgs) {
@@ -760,17 +767,12 @@ public class Preprocessor {
 						currentInclude.defNamedArg(incarg.argName, incarg.argVal);
 					else
 						currentInclude.numdArgs.add(incarg.argVal);
-					if (listing) {
-						// See Note[1] at end of this file
-						listingStream.write("0 0 0 incarg ");
-						if (usingNamed)
-							listingStream.write(incarg.argName);
-						else
-							listingStream.write(Integer.toString(argNum));
-						// Unlike named macros, include args can contain line breaks.
-						listingStream.write(" ");
-						listingStream.write(escapeLineBreaks(incarg.argVal));
-						listingStream.newLine();
+					// See Note[1] at end of this file
+					for (PreprocessorEventListener listener : listeners) {
+						listener.includeArgument(
+								usingNamed ? incarg.argName : Integer.toString(argNum)
+								, incarg.argVal
+								);
 					}
 					argNum++;
 				}
@@ -794,7 +796,7 @@ public class Preprocessor {
 				getFilename() + ": " + "Could not find include file: " + referencedWithName
 				);
 
-		currentInput = new InputSource(++sourceCounter, new BufferedReader(new FileReader(fName)));
+		currentInput = new InputSource(++sourceCounter, env.getIncludeFileCache().get(fName));
 		currentInput.fileIndex = doParse.addFilename(fName);
 		currentInclude = new IncludeFile(referencedWithName, currentInput);
 		includeVector.add(currentInclude);
@@ -812,57 +814,30 @@ public class Preprocessor {
 	 * Returns false if there's nothing to expand.
 	 */
 	void newMacroRef(String macroName, FilePos refPos) throws IOException {
-		if (listing) {
-			StringBuilder bldr = new StringBuilder();
-			bldr
-				.append(refPos.file)
-				.append(" ")
-				.append(refPos.line)
-				.append(" ")
-				.append(refPos.col)
-				.append(" macroref ")
-				// Using this trick: {{&undefined-argument}{&*}}
-				// it is possible to get line breaks into what we
-				// get here as the macroName. See test data bug15.p and bug15.i.
-				.append(escapeLineBreaks(macroName));
-			listingStream.write(bldr.toString());
-			listingStream.newLine();
-		}
+		// Using this trick: {{&undefined-argument}{&*}}
+		// it is possible to get line breaks into what we
+		// get here as the macroName. See test data bug15.p and bug15.i.
+		for (PreprocessorEventListener listener : listeners)
+			listener.macroRef(refPos.file, refPos.line, refPos.col, macroName);
 		newMacroRef2(getArgText(macroName), refPos);
 	}
 
 	void newMacroRef(int argNum, FilePos refPos) throws IOException {
-		if (listing) {
-			StringBuilder bldr = new StringBuilder();
-			bldr
-				.append(refPos.file)
-				.append(" ")
-				.append(refPos.line)
-				.append(" ")
-				.append(refPos.col)
-				.append(" macroref ")
-				.append(argNum);
-			listingStream.write(bldr.toString());
-			listingStream.newLine();
-		}
+		for (PreprocessorEventListener listener : listeners)
+			listener.macroRef(refPos.file, refPos.line, refPos.col, Integer.toString(argNum));
 		newMacroRef2(getArgText(argNum), refPos);
 	}
 
 	void newMacroRef2(String theText, FilePos refPos) throws IOException {
 		if (theText.length() == 0) {
 			++sourceCounter;
-			if (listing) {
-				listingStream.write("0 0 0 macrorefend");
-				listingStream.newLine();
-			}
+			for (PreprocessorEventListener listener : listeners)
+				listener.macroRefEnd();
 			return;
 		}
 		// We must expand macros even if consuming,
 		// because we can have &ENDIF inside a preprocesstoken
-		currentInput = new InputSource(
-				++sourceCounter
-				, new BufferedReader(new StringReader(theText))
-				);
+		currentInput = new InputSource(++sourceCounter, theText);
 		currentInclude.inputVector.add(currentInput);
 		// For a macro/argument expansion, we use the file/line/col of
 		// the opening curly '{' of the ref file, for all characters/tokens.
@@ -882,9 +857,6 @@ public class Preprocessor {
 		// Otherwise, these hang around until the next parse or until the Progress
 		// session closes, and nothing else can write to the include files.
 		while(popInput()!=0) {}
-		// Close the listing stream.
-		if (listing)
-			listingStream.close();
 	}
 
 
@@ -904,10 +876,8 @@ public class Preprocessor {
 		if (currentInclude.inputVector.size() > 1) {
 			currentInclude.inputVector.removeLast();
 			currentInput = (currentInclude.inputVector.getLast());
-			if (listing) {
-				listingStream.write("0 0 0 macrorefend");
-				listingStream.newLine();
-			}
+			for (PreprocessorEventListener listener : listeners)
+				listener.macroRefEnd();
 			return 2;
 		}
 		else if (includeVector.size() > 1) {
@@ -918,10 +888,8 @@ public class Preprocessor {
 				System.out.println();
 				System.out.println("** Back to file: " + getFilename());
 			}
-			if (listing) {
-				listingStream.write("0 0 0 incend");
-				listingStream.newLine();
-			}
+			for (PreprocessorEventListener listener : listeners)
+				listener.includeEnd();
 			return 1;
 		} else {
 			return 0;
@@ -0,0 +1,56 @@
+/*
+PreprocessorEventListener.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.IOException;
+
+
+/** Receives the macro and include events from the preprocessor, in source order.
+ * Each event corresponds to one line in the old "preprocessor listing" file,
+ * and that file is now just written by one of these listeners.
+ * Positions are file index, line, and column of the reference or directive.
+ * @see DoParse#addPreprocessorListener(PreprocessorEventListener)
+ * @see ListingWriter
+ */
+public interface PreprocessorEventListener {
+
+	/** &GLOBAL-DEFINE or &SCOPED-DEFINE. The name is as it appears in the code, not lowercased. */
+	void define(int file, int line, int column, boolean isGlobal, String name, String value) throws IOException;
+
+	/** Reference to an include file. The include file's arguments follow, then includeEnd() at the end of the file. */
+	void include(int file, int line, int column, int includeFileIndex, String referencedWithName) throws IOException;
+
+	/** An argument to the most recent include(). For numbered arguments, the name is the argument number. */
+	void includeArgument(String name, String value) throws IOException;
+
+	void includeEnd() throws IOException;
+
+	/** Reference to a named macro or argument: {&name}, {1}, {*}, etc. */
+	void macroRef(int file, int line, int column, String macroName) throws IOException;
+
+	/** End of the expansion of the most recent macroRef(). */
+	void macroRefEnd() throws IOException;
+
+	/** &IF. */
+	void preproIf(int file, int line, int column, boolean isTrue) throws IOException;
+
+	/** &ELSEIF. The value is null if the expression was not evaluated. */
+	void preproElseIf(int file, int line, int column, Boolean isTrue) throws IOException;
+
+	/** &ELSE. The value is true if this is where an earlier true branch ends, otherwise null. */
+	void preproElse(int file, int line, int column, Boolean isTrue) throws IOException;
+
+	/** &ENDIF. */
+	void preproEndIf(int file, int line, int column) throws IOException;
+
+	/** &UNDEFINE. The name is as it appears in the code, not lowercased. */
+	void undefine(int file, int line, int column, String name) throws IOException;
+
+	/** Sent for each file in the parse's file index, once preprocessing is done. */
+	void fileIndex(int fileIndex, String fileName) throws IOException;
+
+}
@@ -18,6 +18,9 @@ import antlr.collections.impl.ASTArray;
 
 public class ProEval extends antlr.TreeParser       implements ProEvalTokenTypes
  {
+
+	/** For OPSYS, PROPATH, PROVERSION. DoParse sets this from its ParseContext. */
+	Environment env = Environment.instance();
 public ProEval() {
 	tokenNames = _tokenNames;
 }
@@ -2190,7 +2193,7 @@ public ProEval() {
 		AST tmp130_AST_in = (AST)_t;
 		match(_t,OPSYS);
 		_t = _t.getNextSibling();
-			String opsys = Environment.instance().opsys;
+			String opsys = env.opsys;
 					if (opsys == null || opsys.length()==0)
 						throw new ProEvalException("OPSYS has not been configured in Proparse.");
 					ret = opsys;
@@ -2207,7 +2210,7 @@ public ProEval() {
 		AST tmp131_AST_in = (AST)_t;
 		match(_t,PROPATH);
 		_t = _t.getNextSibling();
-			ret = propath();
+			ret = propath(env);
 				
 		_retTree = _t;
 		return ret;
@@ -2221,7 +2224,7 @@ public ProEval() {
 		AST tmp132_AST_in = (AST)_t;
 		match(_t,PROVERSION);
 		_t = _t.getNextSibling();
-			String proversion = Environment.instance().proversion;
+			String proversion = env.proversion;
 					if (proversion == null || proversion.length()==0)
 						throw new ProEvalException("PROVERSION has not been configured in Proparse.");
 					ret = proversion;
@@ -382,10 +382,10 @@ public class ProEvalSupport {
 	}
 
 
-	static String propath() {
+	static String propath(Environment env) {
 		StringBuilder bldr = new StringBuilder();
 		boolean delim = false;
-		for (String p : Environment.instance().path) {
+		for (String p : env.path) {
 			if (delim)
 				bldr.append(',');
 			bldr.append(p);
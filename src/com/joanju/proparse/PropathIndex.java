@@ -0,0 +1,81 @@
+/*
+PropathIndex.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** Index of relative file names to where they resolve on the PROPATH.
+ * Without this, every include reference and every class lookup
+ * does a file exists check for each PROPATH entry, and with
+ * a long PROPATH on network storage that adds up.
+ * <p>
+ * The index is built lazily: the first lookup of a name searches
+ * the PROPATH, and where it was found is remembered.
+ * A remembered file is checked with one exists() on each lookup, so a file that has
+ * been moved or removed is searched for again, the same as a name that isn't remembered.
+ * Names that were not found are not remembered, so a file which gets
+ * added later is found on the next lookup, at the cost of searching
+ * the PROPATH again for each lookup of a missing name.
+ * Names that start with '/', '\', '.', or a drive letter are not
+ * searched for on the PROPATH, and are not indexed.
+ * <p>
+ * The index does not notice a file being added to an earlier PROPATH entry
+ * than the one it was found in. Call refresh() after that sort of change.
+ * Changing the PROPATH through Environment.configSet() refreshes the index,
+ * and so does the Proparse server's --loadproject request.
+ * <p>
+ * This class is thread safe.
+ * @see Environment#getPropathIndex()
+ */
+public class PropathIndex {
+
+	/** @param path The PROPATH entries. Not copied - the Environment owns this list. */
+	PropathIndex(List<String> path) {
+		this.path = path;
+	}
+
+	private List<String> path;
+	private Map<String, String> map = new ConcurrentHashMap<String, String>();
+
+
+
+	/** Find a relative file name on the PROPATH.
+	 * @return The PROPATH entry plus file name, or empty string if not found.
+	 */
+	public String find(String fileName) {
+		String ret = map.get(fileName);
+		if (ret!=null) {
+			if (new File(ret).exists())
+				return ret;
+			map.remove(fileName);
+		}
+		for (String p : path) {
+			String tryPath = p + File.separatorChar + fileName;
+			if (new File(tryPath).exists()) {
+				map.put(fileName, tryPath);
+				return tryPath;
+			}
+		}
+		return "";
+	}
+
+
+	/** Forget all lookups. Files are searched for again on next lookup. */
+	public void refresh() {
+		map.clear();
+	}
+
+
+	/** The number of names in the index. */
+	public int size() { return map.size(); }
+
+
+}
@@ -0,0 +1,365 @@
+/*
+SourceEncoding.java
+
+Copyright (C) 2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+
+/** Decides the character encoding of each source file, and reads and decodes source files.
+ * <p>
+ * The encoding for a file is the first of:
+ * <ul>
+ * <li>a byte order mark (UTF-8, UTF-16BE, UTF-16LE), if detection is on
+ * <li>a cpstream marker inside a comment near the top of the file,
+ * ex: <code>/* cpstream=IBM850 *&#47;</code>, if detection is on
+ * <li>the encoding for the closest configured directory that the file is in
+ * <li>the project's encoding
+ * <li>the JVM's default encoding (file.encoding)
+ * </ul>
+ * Encoding names can be Java charset names or Progress code page names, ex: 1252 or ISO8859-1.
+ * Bytes that can't be decoded become U+FFFD, and the Preprocessor reports those
+ * with the file, line, and column.
+ * <p>
+ * Files are read through a FileChannel into a byte buffer, and decoded by a CharsetDecoder.
+ * Each thread keeps its own byte buffer and decoders, and reuses them for every file.
+ * <p>
+ * All methods are thread safe. Decoded files are kept in the IncludeFileCache, and
+ * super class scopes parsed from them in the SuperScopeCache, so those have to be cleared
+ * after the settings here change. The Environment does that.
+ * @see Environment#getSourceEncoding()
+ */
+public class SourceEncoding {
+
+	public SourceEncoding() { }
+
+	/** How far into the file to look for a cpstream marker. */
+	private static final int DETECT_BYTES = 1024;
+
+	/** Don't keep a byte buffer bigger than this around between files. */
+	private static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+	/** Progress code page names which are not also Java charset names. */
+	private static final String [][] PROGRESS_NAMES = {
+		{"BIG-5", "Big5"},
+		{"SHIFT-JIS", "Shift_JIS"},
+		{"UCS2", "UTF-16"},
+		{"UTF-16", "UTF-16"},
+	};
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() { return new Buffers(); }
+	};
+
+	private boolean detect = true;
+	/** Sorted longest path first, so the closest directory is found first. */
+	private ArrayList<DirEncoding> dirs = new ArrayList<DirEncoding>();
+	private String dirsText = "";
+	private Charset projectCharset = Charset.defaultCharset();
+	private String projectEncodingText = "";
+
+	private static class Buffers {
+		ByteBuffer bytes = ByteBuffer.allocate(8192);
+		HashMap<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+	}
+
+	private static class DirEncoding {
+		DirEncoding(String path, Charset charset) {
+			this.path = path;
+			this.charset = charset;
+		}
+		String path;
+		Charset charset;
+	}
+
+
+
+	/** The charset for a Java charset name or a Progress code page name, or null if there isn't one. */
+	static Charset charsetForName(String name) {
+		name = name.trim();
+		if (name.length()==0)
+			return null;
+		String upper = name.toUpperCase(Locale.ENGLISH);
+		for (String [] pair : PROGRESS_NAMES) {
+			if (pair[0].equals(upper))
+				return Charset.forName(pair[1]);
+		}
+		if (upper.matches("ISO8859-\\d+"))
+			name = "ISO-8859-" + upper.substring(8);
+		else if (upper.matches("125\\d"))
+			name = "windows-" + upper;
+		try {
+			if (Charset.isSupported(name))
+				return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			// Illegal charset name
+		}
+		return null;
+	}
+
+
+	private static Charset checkedCharset(String name) {
+		Charset charset = charsetForName(name);
+		if (charset==null)
+			throw new IllegalArgumentException("Unknown source encoding: " + name);
+		return charset;
+	}
+
+
+	/** The charset to use for a file which has no byte order mark or cpstream marker. */
+	public Charset charsetFor(File file) throws IOException {
+		synchronized (this) {
+			if (dirs.isEmpty())
+				return projectCharset;
+		}
+		String path = file.getCanonicalPath();
+		synchronized (this) {
+			for (DirEncoding dir : dirs) {
+				if (path.startsWith(dir.path))
+					return dir.charset;
+			}
+			return projectCharset;
+		}
+	}
+
+
+	private static char [] decode(CharsetDecoder decoder, ByteBuffer bytes) {
+		decoder.reset();
+		char [] chars = new char[(int) (bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1];
+		CharBuffer out = CharBuffer.wrap(chars);
+		for (;;) {
+			CoderResult result = decoder.decode(bytes, out, true);
+			if (! result.isOverflow())
+				result = decoder.flush(out);
+			if (! result.isOverflow())
+				break;
+			// Not expected, given maxCharsPerByte().
+			int len = out.position();
+			char [] bigger = new char[chars.length * 2];
+			System.arraycopy(chars, 0, bigger, 0, len);
+			chars = bigger;
+			out = CharBuffer.wrap(chars);
+			out.position(len);
+		}
+		int len = out.position();
+		if (len == chars.length)
+			return chars;
+		char [] ret = new char[len];
+		System.arraycopy(chars, 0, ret, 0, len);
+		return ret;
+	}
+
+
+	/** Check for a byte order mark, and skip over it.
+	 * @return The charset from the byte order mark, or null if there isn't one.
+	 */
+	private static Charset detectBom(ByteBuffer bytes) {
+		int start = bytes.position();
+		int len = bytes.remaining();
+		if (len >= 3
+				&& (bytes.get(start) & 0xFF) == 0xEF
+				&& (bytes.get(start + 1) & 0xFF) == 0xBB
+				&& (bytes.get(start + 2) & 0xFF) == 0xBF) {
+			bytes.position(start + 3);
+			return Charset.forName("UTF-8");
+		}
+		if (len >= 2) {
+			int b0 = bytes.get(start) & 0xFF;
+			int b1 = bytes.get(start + 1) & 0xFF;
+			if (b0 == 0xFE && b1 == 0xFF) {
+				bytes.position(start + 2);
+				return Charset.forName("UTF-16BE");
+			}
+			if (b0 == 0xFF && b1 == 0xFE) {
+				bytes.position(start + 2);
+				return Charset.forName("UTF-16LE");
+			}
+		}
+		return null;
+	}
+
+
+	/** Look for "cpstream" inside a comment in the first DETECT_BYTES of the file,
+	 * followed by '=' or whitespace and the code page name.
+	 * The bytes are looked at as ASCII, which works for the ASCII compatible encodings.
+	 * UTF-16 source has a byte order mark, which is checked first.
+	 * @return The charset for the code page, or null if there's no marker, or the name is unknown.
+	 */
+	private static Charset detectCpstream(ByteBuffer bytes) {
+		int start = bytes.position();
+		int end = start + Math.min(bytes.remaining(), DETECT_BYTES);
+		int commentLevel = 0;
+		for (int i = start; i < end - 1; i++) {
+			int c = bytes.get(i);
+			int next = bytes.get(i + 1);
+			if (c == '/' && next == '*') {
+				++commentLevel;
+				++i;
+			} else if (c == '*' && next == '/' && commentLevel > 0) {
+				--commentLevel;
+				++i;
+			} else if (commentLevel > 0 && (c == 'c' || c == 'C') && matchesCpstream(bytes, i, end)) {
+				i += 8;
+				int sep = i;
+				while (i < end && (bytes.get(i) == '=' || bytes.get(i) == ' ' || bytes.get(i) == '\t'))
+					++i;
+				if (i == sep)
+					continue;
+				StringBuilder name = new StringBuilder();
+				while (i < end && isNameByte(bytes.get(i)))
+					name.append((char) bytes.get(i++));
+				if (name.length() > 0)
+					return charsetForName(name.toString());
+			}
+		}
+		return null;
+	}
+
+
+	public synchronized String getDirEncodings() { return dirsText; }
+
+
+	public synchronized String getProjectEncoding() { return projectEncodingText; }
+
+
+	private static boolean isNameByte(byte b) {
+		return (b >= 'a' && b <= 'z')
+			|| (b >= 'A' && b <= 'Z')
+			|| (b >= '0' && b <= '9')
+			|| b == '-' || b == '_' || b == '.' || b == ':';
+	}
+
+
+	public synchronized boolean isDetect() { return detect; }
+
+
+	private static boolean matchesCpstream(ByteBuffer bytes, int pos, int end) {
+		String marker = "cpstream";
+		if (end - pos < marker.length())
+			return false;
+		for (int i = 0; i < marker.length(); i++) {
+			int c = bytes.get(pos + i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if (c != marker.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+
+	/** Read and decode the whole file.
+	 * The returned array is a new one, of exactly the length of the decoded text.
+	 */
+	public char [] read(File file) throws IOException {
+		Buffers state = buffers.get();
+		ByteBuffer bytes = readBytes(file, state);
+		Charset charset = null;
+		boolean detect = isDetect();
+		if (detect)
+			charset = detectBom(bytes);
+		if (charset==null && detect)
+			charset = detectCpstream(bytes);
+		if (charset==null)
+			charset = charsetFor(file);
+		CharsetDecoder decoder = state.decoders.get(charset);
+		if (decoder==null) {
+			decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			state.decoders.put(charset, decoder);
+		}
+		return decode(decoder, bytes);
+	}
+
+
+	/** Read the whole file into the thread's byte buffer, growing it if need be. */
+	private static ByteBuffer readBytes(File file, Buffers state) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8)
+				throw new IOException("File is too big to parse: " + file.getPath());
+			ByteBuffer bytes = state.bytes;
+			if (size > bytes.capacity()) {
+				bytes = ByteBuffer.allocate((int) size);
+				if (size <= MAX_KEPT_BUFFER)
+					state.bytes = bytes;
+			}
+			bytes.clear();
+			bytes.limit((int) size);
+			while (bytes.hasRemaining() && channel.read(bytes) != -1) { }
+			bytes.flip();
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/** Set whether byte order marks and cpstream markers are looked for. On by default. */
+	public synchronized void setDetect(boolean detect) {
+		this.detect = detect;
+	}
+
+
+	/** Set the encodings for directories, as comma separated dir=encoding pairs,
+	 * ex: "src/legacy=IBM850,src/web=UTF-8". A file uses the encoding of the closest
+	 * directory it's in. Relative directories are relative to the working directory.
+	 * @throws IllegalArgumentException if an entry isn't a pair, or an encoding is unknown.
+	 */
+	public void setDirEncodings(String text) throws IOException {
+		ArrayList<DirEncoding> list = new ArrayList<DirEncoding>();
+		for (String entry : text.split(",")) {
+			if (entry.trim().length()==0)
+				continue;
+			int eq = entry.lastIndexOf('=');
+			if (eq < 1)
+				throw new IllegalArgumentException("Expected dir=encoding, but got: " + entry);
+			String path = new File(entry.substring(0, eq).trim()).getCanonicalPath();
+			if (! path.endsWith(File.separator))
+				path += File.separator;
+			list.add(new DirEncoding(path, checkedCharset(entry.substring(eq + 1))));
+		}
+		// Longest first, so that the closest directory matches first.
+		Collections.sort(list, new Comparator<DirEncoding>() {
+			public int compare(DirEncoding a, DirEncoding b) {
+				return b.path.length() - a.path.length();
+			}
+		});
+		synchronized (this) {
+			dirs = list;
+			dirsText = text;
+		}
+	}
+
+
+	/** Set the project's encoding. Blank for the JVM's default encoding.
+	 * @throws IllegalArgumentException if the encoding is unknown.
+	 */
+	public synchronized void setProjectEncoding(String name) {
+		projectCharset = name.trim().length()==0 ? Charset.defaultCharset() : checkedCharset(name);
+		projectEncodingText = name;
+	}
+
+
+}
@@ -0,0 +1,218 @@
+/*
+SuperScopeCache.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.refactor.FileStuff;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.util.Cache;
+
+
+/** Session level cache of the inheritance scopes built by parsing super class files,
+ * shared by all parses and threads.
+ * Without this, every parse of a subclass does a nested parse of each class
+ * in its class hierarchy.
+ * <p>
+ * Entries are keyed by the canonical path of the class file. Each entry records
+ * the files that its scope was built from - the class file, its include files,
+ * and the same for all of its ancestor classes - along with their last-modified times.
+ * It also records the Environment settings that the parse depends on (PROPATH, PROVERSION,
+ * OPSYS, source encodings, etc) and the schema's checksum.
+ * If any of those files or settings has changed, the entry is dropped and the class
+ * gets parsed again.
+ * <p>
+ * If project binaries are enabled, entries are also written to a ".scope" file
+ * next to the class's PUB file, and read from there when not found in memory.
+ * <p>
+ * All methods are thread safe. The cached scopes must not be modified.
+ * @see Environment#getSuperScopeCache()
+ */
+public class SuperScopeCache {
+
+	/** @param maxEntries The number of class scopes to keep in memory. */
+	public SuperScopeCache(int maxEntries) {
+		map = Collections.synchronizedMap(new Cache<String, Entry>(maxEntries));
+	}
+
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+	private long hits = 0;
+	private long invalidations = 0;
+	private long misses = 0;
+	private Map<String, Entry> map;
+
+	/** The Environment settings which the parse of a class depends on, apart from its files. */
+	private static final String [] SETTINGS = {
+		"batch-mode",
+		"detect-encoding",
+		"keyword-all",
+		"opsys",
+		"propath",
+		"proversion",
+		"source-encoding",
+		"source-encoding-dirs",
+		"window-system"
+	};
+
+	static class Entry implements Serializable {
+		private static final long serialVersionUID = 2010101801L;
+		Entry(LinkedHashMap<String, Long> dependencies, SymbolScope scope, Schema schema, String settings) {
+			this.dependencies = dependencies;
+			this.scope = scope;
+			this.schema = schema;
+			this.settings = settings;
+		}
+		/** Map of file name to last-modified time, for every file this scope was built from. */
+		LinkedHashMap<String, Long> dependencies;
+		SymbolScope scope;
+		transient Schema schema;
+		/** From settings(), at the time the scope was built. */
+		String settings;
+		boolean isCurrent(String currentSettings) {
+			if (! currentSettings.equals(settings))
+				return false;
+			for (Map.Entry<String, Long> dep : dependencies.entrySet()) {
+				if (new File(dep.getKey()).lastModified() != dep.getValue().longValue())
+					return false;
+			}
+			return true;
+		}
+	}
+
+
+
+	public void clear() {
+		map.clear();
+	}
+
+
+	/** Get the entry for a class file, if there is one and none of its files have changed.
+	 * Returns null otherwise.
+	 */
+	Entry get(String classFileName, ParseContext context) {
+		String key = FileStuff.fullpath(new File(classFileName));
+		Entry entry = map.get(key);
+		if (entry!=null && entry.schema!=context.getSchema())
+			entry = null;
+		if (entry==null && context.getSession().getProjectBinaraiesEnabled())
+			entry = load(key, context);
+		if (entry!=null && ! entry.isCurrent(settings(context))) {
+			map.remove(key);
+			synchronized (this) { ++invalidations; }
+			entry = null;
+		}
+		synchronized (this) {
+			if (entry==null) {
+				++misses;
+				return null;
+			}
+			++hits;
+		}
+		map.put(key, entry);
+		return entry;
+	}
+
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getInvalidations() { return invalidations; }
+
+	public synchronized long getMisses() { return misses; }
+
+
+	private Entry load(String key, ParseContext context) {
+		Schema schema = context.getSchema();
+		File file = scopeFile(key, context.getSession());
+		if (! file.exists())
+			return null;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+			try {
+				Entry entry = (Entry) in.readObject();
+				entry.schema = schema;
+				entry.scope.setSchema(schema);
+				return entry;
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// Old or damaged file. It just gets rebuilt.
+			return null;
+		}
+	}
+
+
+	/** Add the scope for a class file.
+	 * @param dependencies Map of file name to last-modified time. Not copied.
+	 */
+	Entry put(String classFileName, SymbolScope scope, LinkedHashMap<String, Long> dependencies, ParseContext context)
+			throws IOException {
+		String key = FileStuff.fullpath(new File(classFileName));
+		Entry entry = new Entry(dependencies, scope, context.getSchema(), settings(context));
+		map.put(key, entry);
+		if (context.getSession().getProjectBinaraiesEnabled()) {
+			File file = scopeFile(key, context.getSession());
+			file.getParentFile().mkdirs();
+			File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile));
+			try {
+				out.writeObject(entry);
+			} finally {
+				out.close();
+			}
+			FileStuff.replaceFile(tempFile, file);
+		}
+		return entry;
+	}
+
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+		invalidations = 0;
+	}
+
+
+	private static File scopeFile(String fullPath, RefactorSession session) {
+		return new File(PUB.pubDirFileName(fullPath, session) + ".scope");
+	}
+
+
+	/** The settings and the schema checksum, as one string, for comparing with an entry's. */
+	static String settings(ParseContext context) {
+		Environment env = context.getEnvironment();
+		StringBuilder bldr = new StringBuilder();
+		for (String flag : SETTINGS)
+			bldr.append(flag).append('=').append(env.configGet(flag)).append('\n');
+		bldr.append("schema=").append(context.getSchema().getChecksum());
+		return bldr.toString();
+	}
+
+
+	@Override
+	public synchronized String toString() {
+		return "SuperScopeCache: "
+			+ map.size() + " classes, "
+			+ hits + " hits, "
+			+ misses + " misses, "
+			+ invalidations + " invalidations";
+	}
+
+
+}
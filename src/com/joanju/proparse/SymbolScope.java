@@ -9,22 +9,31 @@ package com.joanju.proparse;
 import org.prorefactor.core.schema.Schema;
 import org.prorefactor.core.schema.Table;
 
+import java.io.Serializable;
 import java.util.HashSet;
 import java.util.HashMap;
 
-public class SymbolScope {
+/** Serializable, so that inheritance scopes can be saved by SuperScopeCache.
+ * The schema is not saved, see setSchema().
+ */
+public class SymbolScope implements Serializable {
 
-	SymbolScope() {}
+	SymbolScope(Schema schema) {
+		this.schema = schema;
+	}
 	SymbolScope(SymbolScope superScope) {
 		this.superScope = superScope;
+		this.schema = superScope.schema;
 	}
 
+	private static final long serialVersionUID = 2010070601L;
+
 	private String scopeName;
 	private HashMap<String, TableRef> tableMap = new HashMap<String, TableRef>();
 	private HashSet<String> functionSet = new HashSet<String>();
 	private HashSet<String> methodSet = new HashSet<String>();
 	private HashSet<String> varSet = new HashSet<String>();
-	private Schema schema = Schema.getInstance();
+	private transient Schema schema;
 	private SymbolScope superScope;
 
 
@@ -39,7 +48,8 @@ public class SymbolScope {
 	}
 
 
-	private class TableRef {
+	private class TableRef implements Serializable {
+		private static final long serialVersionUID = 2010070601L;
 		FieldType tableType;
 		String bufferFor;
 		String fullName;
@@ -192,6 +202,13 @@ public class SymbolScope {
 	}
 
 
+	/** Set the schema for this scope and its super scopes, after being deserialized. */
+	void setSchema(Schema schema) {
+		for (SymbolScope scope = this; scope!=null; scope = scope.superScope)
+			scope.schema = schema;
+	}
+
+
 	/** Set to the class name if this is an "inheritance scope". */
 	void setScopeName(String inName) { scopeName = inName; }
 
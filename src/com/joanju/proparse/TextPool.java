@@ -0,0 +1,155 @@
+/*
+TextPool.java
+
+Copyright (C) 2001-2010 Joanju Software (www.joanju.com). All rights reserved.
+This file is made available under the terms of the Eclipse Public License v1.0.
+*/
+package com.joanju.proparse;
+
+
+/** Canonical String instances for token text, so that the thousands of tokens
+ * with the same text ("DEFINE", ".", " ", "i") share one String rather than
+ * each token holding its own copy.
+ * <p>
+ * Text is looked up first in a table of the keyword literals from NodeTypes
+ * (in lowercase and in uppercase), which is built once and shared by all parses.
+ * Other text goes into this pool. There is one pool per parse, shared with any nested
+ * parses (super classes, preprocessor expressions), so the pool's memory goes away
+ * along with the parse, and a long session does not accumulate every identifier ever seen.
+ * <p>
+ * Text longer than MAX_LENGTH (long comments and strings, mostly) is never pooled.
+ * Looking up a CharSequence does not create a String unless the text is new.
+ * Not thread safe.
+ * @see DoParse#getTextPool()
+ */
+public class TextPool {
+
+	/** Longer text is not pooled. */
+	public static final int MAX_LENGTH = 32;
+
+	private static final TextPool keywords = new TextPool(4096);
+
+	static {
+		for (String literal : NodeTypes.literalsMap.keySet()) {
+			keywords.add(literal);
+			keywords.add(literal.toUpperCase());
+		}
+	}
+
+	private String [] table;
+	private int size = 0;
+	private long keywordHits = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+
+
+	public TextPool() {
+		this(1024);
+	}
+
+
+	private TextPool(int capacity) {
+		table = new String[capacity];
+	}
+
+
+
+
+	private void add(String text) {
+		int hash = text.hashCode();
+		int mask = table.length - 1;
+		int pos = hash & mask;
+		while (table[pos]!=null) {
+			if (table[pos].equals(text))
+				return;
+			pos = (pos + 1) & mask;
+		}
+		table[pos] = text;
+		if (++size * 2 > table.length)
+			grow();
+	}
+
+
+	/** Number of lookups that were found in this pool (but not in the keywords). */
+	public long getHits() { return hits; }
+
+
+	/** The fraction of lookups that did not create a new String. */
+	public double getHitRate() {
+		long total = keywordHits + hits + misses;
+		return total==0 ? 0 : (double)(keywordHits + hits) / total;
+	}
+
+
+	/** Number of lookups that were found in the keyword literals. */
+	public long getKeywordHits() { return keywordHits; }
+
+
+	/** Number of lookups that added new text to this pool. */
+	public long getMisses() { return misses; }
+
+
+	private void grow() {
+		String [] old = table;
+		table = new String[old.length * 2];
+		size = 0;
+		for (String s : old) {
+			if (s!=null)
+				add(s);
+		}
+	}
+
+
+	/** Same as String.hashCode(), without creating the String. */
+	private static int hash(CharSequence text) {
+		int hash = 0;
+		int len = text.length();
+		for (int i = 0; i < len; i++)
+			hash = 31 * hash + text.charAt(i);
+		return hash;
+	}
+
+
+	/** Returns the canonical String with the same text.
+	 * If the text is longer than MAX_LENGTH, then this is just text.toString().
+	 */
+	public String intern(CharSequence text) {
+		if (text.length() > MAX_LENGTH)
+			return text.toString();
+		int hash = hash(text);
+		String ret = keywords.lookup(text, hash);
+		if (ret!=null) {
+			++keywordHits;
+			return ret;
+		}
+		ret = lookup(text, hash);
+		if (ret!=null) {
+			++hits;
+			return ret;
+		}
+		++misses;
+		ret = text.toString();
+		add(ret);
+		return ret;
+	}
+
+
+	private String lookup(CharSequence text, int hash) {
+		int mask = table.length - 1;
+		int pos = hash & mask;
+		String s;
+		while ((s = table[pos])!=null) {
+			if (s.hashCode()==hash && s.contentEquals(text))
+				return s;
+			pos = (pos + 1) & mask;
+		}
+		return null;
+	}
+
+
+	/** Number of Strings in this pool, not counting the keywords. */
+	public int size() { return size; }
+
+
+}
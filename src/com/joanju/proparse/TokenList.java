@@ -8,7 +8,6 @@ package com.joanju.proparse;
 
 import antlr.TokenStreamException;
 
-import java.util.ArrayList;
 import java.io.StringWriter;
 
 
@@ -17,6 +16,12 @@ import java.io.StringWriter;
  * and examining that list for fine-tuning before sending it on to the parser.
  * The complete tool chain is:<br/>
  * preprocessor-lexer-postlexer-tokenlist-filter-parser
+ * <p>
+ * Tokens are read from the postlexer as the parser asks for them, into a ring buffer.
+ * A token is handed on only once reviewObjcolon() can no longer change it, and is
+ * dropped from the buffer once it has been handed on, so the buffer only holds the
+ * few tokens that an OBJCOLON could still reach back to, not the whole compile unit.
+ * Positions are counted from the start of the compile unit.
  */
 public class TokenList implements antlr.TokenStream, ProParserTokenTypes {
 
@@ -25,30 +30,96 @@ public class TokenList implements antlr.TokenStream, ProParserTokenTypes {
 		this.input = input;
 	}
 
+	/** The position of the next token for the parser. */
 	int currentPosition = 0;
-	int listSize;
 	antlr.TokenStream input;
-	ArrayList<ProToken> list = new ArrayList<ProToken>();
 
+	/** The first position still in the ring. */
+	private int base = 0;
+	private boolean gotEof = false;
+	/** The token at position p is at ring[p & mask]. */
+	private int mask = 63;
+	private ProToken [] ring = new ProToken[64];
+	/** Tokens before this position can't be changed by reviewObjcolon(). */
+	private int sealed = 0;
+	/** The number of tokens read, less any that were merged into another token. */
+	private int size = 0;
+
+
+
+	private void add(ProToken token) {
+		if (size - base == ring.length) {
+			ProToken [] bigger = new ProToken[ring.length * 2];
+			int biggerMask = bigger.length - 1;
+			for (int i = base; i < size; i++)
+				bigger[i & biggerMask] = ring[i & mask];
+			ring = bigger;
+			mask = biggerMask;
+		}
+		ring[size & mask] = token;
+		++size;
+	}
 
 
-	public void build() throws TokenStreamException {
-		for(;;) {
-			ProToken nextToken = (ProToken) input.nextToken();
-			list.add(nextToken);
-			if (nextToken.getType()==OBJCOLON)
-				reviewObjcolon();
-			if (nextToken.getType()==EOF)
-				break;
-		}
-		listSize = list.size();
+	private ProToken get(int position) {
+		return ring[position & mask];
 	}
 
 
 	public ProToken nextToken() throws TokenStreamException {
-		if (currentPosition >= listSize)
-			return new ProToken(null, EOF, "");
-		return list.get(currentPosition++);
+		while (currentPosition >= sealed) {
+			if (gotEof)
+				return new ProToken(null, EOF, "");
+			read();
+		}
+		ProToken token = get(currentPosition++);
+		// Keep the token in front of the sealed position, which reviewObjcolon() may look at.
+		int keep = Math.min(currentPosition, sealed - 1);
+		while (base < keep)
+			ring[base++ & mask] = null;
+		return token;
+	}
+
+
+	/** Read the next token from the input, and move the sealed position up if we can.
+	 * reviewObjcolon() walks back from an OBJCOLON over whitespace and comments to the last token,
+	 * and then over any NAMEDOT pairs and tokens that start with '.', and stops at whitespace.
+	 * So a new token which follows whitespace or a comment seals everything before it.
+	 * So does a new token which can't be part of a NAMEDOT pair, and which doesn't start with '.'.
+	 * In either case, a later walk back stops at the new token, at the latest.
+	 */
+	private void read() throws TokenStreamException {
+		ProToken token = (ProToken) input.nextToken();
+		add(token);
+		int type = token.getType();
+		if (type==OBJCOLON)
+			reviewObjcolon();
+		if (type==EOF) {
+			gotEof = true;
+			sealed = size;
+			return;
+		}
+		// The new token's position, after any merge done by reviewObjcolon().
+		int position = size - 1;
+		if (position==0 || type==WS || type==COMMENT)
+			return;
+		int prevType = get(position - 1).getType();
+		// The walk back stops at the start of the list without checking
+		// whether the first token is whitespace.
+		boolean prevHidden = position > 1 && (prevType==WS || prevType==COMMENT);
+		if (	prevHidden
+			||	(type!=NAMEDOT && prevType!=NAMEDOT && ! token.getText().startsWith("."))
+			)
+			sealed = position;
+	}
+
+
+	/** Remove the token at a position. Only done for positions which are not sealed. */
+	private void remove(int position) {
+		for (int i = position; i < size - 1; i++)
+			ring[i & mask] = ring[(i + 1) & mask];
+		--size;
+		ring[size & mask] = null;
 	}
 
 
@@ -79,14 +150,15 @@ public class TokenList implements antlr.TokenStream, ProParserTokenTypes {
 	 */
 	private void reviewObjcolon() {
 
-		int colonIndex = list.size() - 1;
+		int colonIndex = size - 1;
 		int lastIndex = colonIndex - 1;
 
 		// There may be whitespace in front of an OBJCOLON.
-		int ttype = list.get(lastIndex).getType();
-		while (ttype==WS || ttype==COMMENT) {
-			ttype = list.get(--lastIndex).getType();
-		}
+		// If there's nothing else in front of it, then there's nothing to review.
+		while (lastIndex >= 0 && (get(lastIndex).getType()==WS || get(lastIndex).getType()==COMMENT))
+			--lastIndex;
+		if (lastIndex < 0)
+			return;
 
 		// Look for NAMEDOT pairs.
 		// Actually, it's not that easy. Something like:
@@ -98,15 +170,16 @@ public class TokenList implements antlr.TokenStream, ProParserTokenTypes {
 		for(;;) {
 			if (index==0)
 				break;
-			int currType = list.get(index).getType();
+			int currType = get(index).getType();
 			if (currType==WS || currType==COMMENT) {
 				// There can be space in front of a NAMEDOT in a table or field name.
 				// We don't want to fiddle with those here.
 				return;
 			}
-			if (list.get(index-1).getType() == NAMEDOT) {
+			// A NAMEDOT with nothing in front of it (ex: a unit starting ".x:Foo") joins nothing.
+			if (index >= 2 && get(index-1).getType() == NAMEDOT) {
 				index = index - 2;
-			} else if(list.get(index).getText().charAt(0)=='.') {
+			} else if(get(index).getText().charAt(0)=='.') {
 				index = index - 1;
 			} else {
 				break;
@@ -115,23 +188,23 @@ public class TokenList implements antlr.TokenStream, ProParserTokenTypes {
 		}
 		if (foundNamedot) {
 			// Now merge all the parts into one ID token.
-			ProToken token = list.get(index);
+			ProToken token = get(index);
 			token.setType(ID);
 			StringWriter text = new StringWriter();
 			text.append(token.getText());
 			int drop = index + 1;
 			for (int i = 0; i < lastIndex - index; i++) {
-				text.append(list.get(drop).getText());
-				list.remove(drop);
+				text.append(get(drop).getText());
+				remove(drop);
 			}
 			token.setText(text.toString());
 			return;
 		}
 
 		// Not namedotted, so if it's reserved and not a system handle, convert to ID.
-		ttype = list.get(index).getType();
+		int ttype = get(index).getType();
 		if (NodeTypes.isReserved(ttype) && (! NodeTypes.isSystemHandleName(ttype)))
-			list.get(index).setType(ID);
+			get(index).setType(ID);
 	}
 
 
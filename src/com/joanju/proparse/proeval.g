@@ -25,6 +25,13 @@ options {
 }
 
 
+// Additional methods and members.
+{
+	/** For OPSYS, PROPATH, PROVERSION. DoParse sets this from its ParseContext. */
+	Environment env = Environment.instance();
+}
+
+
 ///////////////////////////////////////////////////////////////////////////////////////////////////
 // Begin grammar
 ///////////////////////////////////////////////////////////////////////////////////////////////////
@@ -545,7 +552,7 @@ numentries_fun returns [Object ret]
 
 opsys_fun returns [Object ret]
 	:	OPSYS
-		{	String opsys = Environment.instance().opsys;
+		{	String opsys = env.opsys;
 			if (opsys == null || opsys.length()==0)
 				throw new ProEvalException("OPSYS has not been configured in Proparse.");
 			ret = opsys;
@@ -555,14 +562,14 @@ opsys_fun returns [Object ret]
 
 propath_fun returns [Object ret]
 	:	PROPATH
-		{	ret = propath();
+		{	ret = propath(env);
 		}
 	;
 
 
 proversion_fun returns [Object ret]
 	:	PROVERSION
-		{	String proversion = Environment.instance().proversion;
+		{	String proversion = env.proversion;
 			if (proversion == null || proversion.length()==0)
 				throw new ProEvalException("PROVERSION has not been configured in Proparse.");
 			ret = proversion;
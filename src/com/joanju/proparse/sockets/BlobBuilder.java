@@ -16,6 +16,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.JarURLConnection;
 import java.util.jar.Manifest;
@@ -28,11 +29,20 @@ public class BlobBuilder {
 
 	BlobBuilder(String filename) {
 		this.filename = filename;
+		xfer = new DataXferStream();
+	}
+
+	/** Write the blob to a stream as it is built, rather than building it in memory.
+	 * getBlob() returns null.
+	 */
+	BlobBuilder(String filename, OutputStream blobStream) {
+		this.filename = filename;
+		xfer = new DataXferStream(blobStream);
 	}
 
 	private ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
 	private DataOutputStream header = new DataOutputStream(headerBytes);
-	private DataXferStream xfer = new DataXferStream();
+	private DataXferStream xfer;
 	private String filename;
 
 	private static int proparseBuildNum = 0;
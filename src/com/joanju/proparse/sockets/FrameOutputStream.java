@@ -0,0 +1,115 @@
+/** July 2010
+ *
+ * Copyright (C) 2010 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.joanju.proparse.sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/** The output stream for the server's streaming protocol mode.
+ * Bytes are collected in a direct ByteBuffer, and each time the buffer
+ * fills up it is written to the channel as one frame: a 4 byte length
+ * followed by that many bytes. close() writes the last frame, and then
+ * a zero length frame to mark the end.
+ * <p>
+ * The buffers are pooled and shared by all threads, so a blob of any size
+ * is sent using one buffer, and never has to be held in memory.
+ * @see SocketListener
+ */
+public class FrameOutputStream extends OutputStream {
+
+	public FrameOutputStream(WritableByteChannel channel) {
+		this.channel = channel;
+		buffer = pool.poll();
+		if (buffer==null)
+			buffer = ByteBuffer.allocateDirect(FRAME_SIZE + 4);
+		buffer.clear();
+		buffer.position(4);
+	}
+
+	/** The maximum number of data bytes in a frame. */
+	public static final int FRAME_SIZE = 64 * 1024;
+
+	private static final int MAX_POOLED = 16;
+
+	private static ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private ByteBuffer buffer;
+	private WritableByteChannel channel;
+
+
+
+	/** Write any pending frame, then the end marker, and release the buffer.
+	 * Does not close the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer==null)
+			return;
+		flush();
+		writeFrame();
+		release();
+	}
+
+
+	/** Write the pending bytes as a frame, if there are any. */
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 4)
+			writeFrame();
+	}
+
+
+	/** Return the buffer to the pool without writing anything more.
+	 * Used when a response is abandoned part way through. Safe to call after close().
+	 */
+	public void release() {
+		if (buffer==null)
+			return;
+		if (pool.size() < MAX_POOLED)
+			pool.offer(buffer);
+		buffer = null;
+	}
+
+
+	@Override
+	public void write(int b) throws IOException {
+		if (! buffer.hasRemaining())
+			writeFrame();
+		buffer.put((byte) b);
+	}
+
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (! buffer.hasRemaining())
+				writeFrame();
+			int n = Math.min(len, buffer.remaining());
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+
+	private void writeFrame() throws IOException {
+		buffer.putInt(0, buffer.position() - 4);
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		buffer.position(4);
+	}
+
+
+}
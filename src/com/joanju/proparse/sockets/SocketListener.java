@@ -9,6 +9,7 @@
 package com.joanju.proparse.sockets;
 
 import com.joanju.DataXferStream;
+import com.joanju.proparse.Environment;
 import com.joanju.proparse.NodeTypes;
 import org.prorefactor.refactor.RefactorSession;
 
@@ -17,7 +18,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.InputStreamReader;
 import java.net.Socket;
-
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+
+/** Handles one request from a Proparse client.
+ * <p>
+ * By default, each blob in the response is sent with its size first,
+ * so the whole blob is built in memory before any of it is sent.
+ * If the request is prefixed with "--stream " then the blob is written
+ * to the socket as it is built, in frames (see FrameOutputStream):
+ * <pre>
+ *   int length, bytes    (repeated, length &gt; 0)
+ *   int 0                (end of blob)
+ *   int length, header   (the same header as the default mode, zero length if none)
+ * </pre>
+ * The blob's schema map and index come last, and their offsets are the last
+ * 8 bytes of the blob, just as in the default mode.
+ * An error at any point is sent as a negative length followed by the message.
+ */
 public class SocketListener implements Runnable {
 
 	public SocketListener(Socket socket) {
@@ -43,13 +62,31 @@ public class SocketListener implements Runnable {
 			if (input == null)
 				return;
 
+			boolean streaming = input.toLowerCase().startsWith("--stream ");
+			if (streaming)
+				input = input.substring(9).trim();
+
 
 			if (input.trim().equalsIgnoreCase("--allschema")) {
 
-				DataXferStream xfer = allSchema();
-				xfer.buildIndexes();
-				out.writeInt(xfer.size());
-				xfer.getBytes().writeTo(out);
+				if (streaming) {
+					FrameOutputStream frames = new FrameOutputStream(channel());
+					try {
+						DataXferStream xfer = new DataXferStream(frames);
+						allSchema(xfer);
+						xfer.buildIndexes();
+						frames.close();
+					} finally {
+						frames.release();
+					}
+					out.writeInt(0);
+				} else {
+					DataXferStream xfer = new DataXferStream();
+					allSchema(xfer);
+					xfer.buildIndexes();
+					out.writeInt(xfer.size());
+					xfer.getBytes().writeTo(out);
+				}
 
 			} else if (input.toLowerCase().startsWith("--buildnum")) {
 
@@ -63,17 +100,45 @@ public class SocketListener implements Runnable {
 
 			} else if (input.trim().equalsIgnoreCase("--nodetypes")) {
 
-				DataXferStream xfer = new DataXferStream();
-				xfer.store(new NodeTypes());
-				xfer.buildIndexes();
-				out.writeInt(xfer.size());
-				xfer.getBytes().writeTo(out);
+				if (streaming) {
+					FrameOutputStream frames = new FrameOutputStream(channel());
+					try {
+						DataXferStream xfer = new DataXferStream(frames);
+						xfer.store(new NodeTypes());
+						xfer.buildIndexes();
+						frames.close();
+					} finally {
+						frames.release();
+					}
+					out.writeInt(0);
+				} else {
+					DataXferStream xfer = new DataXferStream();
+					xfer.store(new NodeTypes());
+					xfer.buildIndexes();
+					out.writeInt(xfer.size());
+					xfer.getBytes().writeTo(out);
+				}
 
 			} else if (input.trim().equalsIgnoreCase("--shutdown")) {
 
 				System.out.println("Shutdown requested by client.");
 				System.exit(0);
 
+			} else if (streaming) {
+
+				FrameOutputStream frames = new FrameOutputStream(channel());
+				ByteArrayOutputStream header;
+				try {
+					BlobBuilder builder = new BlobBuilder(input, frames);
+					builder.build();
+					frames.close();
+					header = builder.getHeader();
+				} finally {
+					frames.release();
+				}
+				out.writeInt(header.size());
+				header.writeTo(out);
+
 			} else {
 
 				BlobBuilder builder = new BlobBuilder(input);
@@ -103,12 +168,11 @@ public class SocketListener implements Runnable {
 	}
 
 
-	/** Build an xfer blob containing schema for all transfered classes.
+	/** Add the schema for all transfered classes to an xfer blob.
 	 * This list is maintained by hand (sigh). Using reflection to find
 	 * Xferable classes turned out to be more trouble than it was worth.
 	 */
-	private DataXferStream allSchema() throws Exception {
-		DataXferStream xfer = new DataXferStream();
+	private void allSchema(DataXferStream xfer) throws Exception {
 		xfer.addSchemaFor(com.joanju.proparse.ProToken.class.newInstance());
 		xfer.addSchemaFor(org.prorefactor.core.JPNode.class.newInstance());
 		xfer.addSchemaFor(org.prorefactor.core.schema.Database.class.newInstance());
@@ -144,7 +208,16 @@ public class SocketListener implements Runnable {
 		xfer.addSchemaFor(org.prorefactor.widgettypes.MenuItem.class.newInstance());
 		xfer.addSchemaFor(org.prorefactor.widgettypes.Rectangle.class.newInstance());
 		xfer.addSchemaFor(org.prorefactor.widgettypes.Submenu.class.newInstance());
-		return xfer;
+	}
+
+
+	/** The channel for streaming mode.
+	 * The socket has one if it was accepted from a ServerSocketChannel (see proparse.Server).
+	 */
+	private WritableByteChannel channel() throws Exception {
+		if (socket.getChannel()!=null)
+			return socket.getChannel();
+		return Channels.newChannel(socket.getOutputStream());
 	}
 
 
@@ -156,6 +229,8 @@ public class SocketListener implements Runnable {
 		System.out.println("Proparse Server: Client requested load project: " + projectName);
 		System.out.flush();
 		RefactorSession.getInstance().loadProject(projectName);
+		// The client may have changed files on the PROPATH since the project was loaded.
+		Environment.instance().getPropathIndex().refresh();
 	}
 
 
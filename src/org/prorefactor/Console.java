@@ -26,6 +26,7 @@ import org.prorefactor.refactor.RefactorException;
 import org.prorefactor.refactor.RefactorSession;
 import org.prorefactor.reports.HowUsedConsole;
 import org.prorefactor.reports.WhereUsedConsole;
+import org.prorefactor.treeparser.BatchParser;
 import org.prorefactor.treeparser.ParseUnit;
 
 
@@ -62,13 +63,47 @@ public class Console {
 	
 	
 	protected void processSelection(String choice) throws Exception {
-		if (choice.equalsIgnoreCase("h")) howUsedReport();
+		if (choice.equalsIgnoreCase("b")) batchParseDirectory();
+		else if (choice.equalsIgnoreCase("d")) rebuildAffected();
+		else if (choice.equalsIgnoreCase("h")) howUsedReport();
 		else if (choice.equalsIgnoreCase("l")) loadProjectSettings();
 		else if (choice.equalsIgnoreCase("p")) parseDirectory();
 		else if (choice.equalsIgnoreCase("w")) whereUsedReport();
 	}
 	
 	
+	/** Same as parseDirectory(), but with a pool of worker threads.
+	 * @see BatchParser
+	 */
+	@SuppressWarnings("unchecked")
+	private void batchParseDirectory() throws Exception {
+		checkProjectIsLoaded();
+		out.println("Enter the directory to parse.");
+		File dir = promptDirectory();
+		if (dir==null) return;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		out.print("Number of worker threads [" + numThreads + "]: ");
+		String threadsText = reader.readLine();
+		if (threadsText!=null && threadsText.trim().length() > 0) {
+			try {
+				numThreads = Integer.parseInt(threadsText.trim());
+			} catch (NumberFormatException e) {
+				out.println(threadsText + " is not a number.");
+				return;
+			}
+		}
+		LogWriter log = new LogWriter(out);
+		try {
+			BatchParser batchParser = new BatchParser(findCompileUnits(dir), numThreads);
+			batchParser.setLogWriter(log);
+			batchParser.setProgressStream(out);
+			batchParser.run();
+		} finally {
+			log.close();
+		}
+	}
+
+
 	@SuppressWarnings("unchecked")
 	public Collection buildCUListFromFile(String listFileName) throws IOException {
 		out.println("Reading files list...");
@@ -158,6 +193,44 @@ public class Console {
 	}
 
 
+	/** Find the compile units affected by a list of changed files (include files,
+	 * classes, compile units), using the project's DependencyIndex, and rebuild
+	 * their PUBs with a BatchParser. The list file has one file name per line.
+	 * Deleted files can be listed too.
+	 * @see org.prorefactor.refactor.DependencyIndex
+	 */
+	private void rebuildAffected() throws Exception {
+		checkProjectIsLoaded();
+		session.setProjectBinariesEnabledOn();
+		out.print("File with the list of changed files: ");
+		String listFileName = reader.readLine();
+		if (listFileName==null || listFileName.trim().length()==0) return;
+		ArrayList<File> changed = new ArrayList<File>();
+		BufferedReader list = new BufferedReader(new FileReader(new File(listFileName.trim())));
+		try {
+			for (String name = list.readLine(); name!=null; name = list.readLine()) {
+				name = name.trim();
+				if (name.length() > 0) changed.add(new File(name));
+			}
+		} finally {
+			list.close();
+		}
+		ArrayList<File> affected = session.getDependencyIndex().getAffectedUnits(changed);
+		out.println(changed.size() + " changed files affect " + affected.size() + " compile units.");
+		if (affected.isEmpty()) return;
+		LogWriter log = new LogWriter(out);
+		try {
+			BatchParser batchParser = new BatchParser(affected);
+			batchParser.setForceParse(true);
+			batchParser.setLogWriter(log);
+			batchParser.setProgressStream(out);
+			batchParser.run();
+		} finally {
+			log.close();
+		}
+	}
+
+
 	/** Prompt for a directory.
 	 * @return null if no valid directory selected.
 	 */
@@ -176,7 +249,9 @@ public class Console {
 	
 	protected void showMenu() {
 		out.println(
-			  "h) How-used report \n"
+			  "b) Batch parse a directory, using parallel worker threads \n"
+			+ "d) Rebuild the compile units affected by a list of changed files \n"
+			+ "h) How-used report \n"
 			+ "l) Load Settings for a project \n"
 			+ "p) Parse a directory \n"
 			+ "q) Quit \n"
@@ -0,0 +1,322 @@
+/**
+ * FlatTree.java
+ *
+ * Copyright (c) 2010 Joanju Software (www.joanju.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/** An immutable syntax tree, stored as parallel int arrays indexed by node number,
+ * for analysis that only reads the tree.
+ * A JPNode tree is an object per node, each with a ProToken, links to its relatives,
+ * hidden tokens, and so on. A FlatTree is just a few ints per node, and walking it
+ * doesn't chase any pointers.
+ * <p>
+ * Nodes are numbered in preorder, with Program_root as node zero, the same as
+ * JPNode.getNodeNum() for a parsed tree or a tree loaded from PUB. Because of that,
+ * a node's first child (if it has one) is always the next node number, and a node's
+ * subtree is all of the node numbers from the node up to its next sibling (or its
+ * parent's next sibling, and so on).
+ * <p>
+ * Each node has its type, parent, next sibling, file index, line, column, and text.
+ * Node attributes, links, and hidden tokens (comments and whitespace) are not kept.
+ * <p>
+ * Nodes can be worked on by node number, or through a Cursor, which has
+ * navigation functions like JPNode's.
+ * @see #build(JPNode)
+ * @see org.prorefactor.refactor.PUB#getFlatTree()
+ */
+public class FlatTree {
+
+	private int [] type;
+	private int [] parent;
+	private int [] nextSibling;
+	private int [] fileIndex;
+	private int [] line;
+	private int [] column;
+	/** Index into strings, or zero for the node type's default text (or empty text if none). */
+	private int [] text;
+	private String [] strings;
+	private String [] filenames;
+	private int size;
+
+
+
+	private FlatTree(int size) {
+		this.size = size;
+		type = new int[size];
+		parent = new int[size];
+		nextSibling = new int[size];
+		fileIndex = new int[size];
+		line = new int[size];
+		column = new int[size];
+		text = new int[size];
+	}
+
+
+
+
+	/** Build a FlatTree from a JPNode tree.
+	 * The node numbers are assigned by walking the tree, so they match getNodeNum()
+	 * if the JPNode tree's node numbers are set.
+	 * Node text is kept as it is in the JPNode, except that empty text is
+	 * replaced by the node type's default text, if it has one. (JPNode trees loaded
+	 * from PUB have empty text for those.)
+	 */
+	public static FlatTree build(JPNode root) {
+		int count = 0;
+		for (JPNode node = root; node!=null; node = nextPreorder(node, root))
+			count++;
+		FlatTree tree = new FlatTree(count);
+		HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		ArrayList<String> stringList = new ArrayList<String>();
+		stringList.add(null);
+		// lastChild[n] is the most recent child added to node n.
+		int [] lastChild = new int[count];
+		Arrays.fill(lastChild, -1);
+		int [] ancestors = new int[16];
+		int depth = 0;
+		int num = 0;
+		JPNode node = root;
+		while (node!=null) {
+			int parentNum = depth==0 ? -1 : ancestors[depth - 1];
+			tree.parent[num] = parentNum;
+			tree.nextSibling[num] = -1;
+			if (parentNum != -1) {
+				if (lastChild[parentNum] != -1)
+					tree.nextSibling[lastChild[parentNum]] = num;
+				lastChild[parentNum] = num;
+			}
+			tree.type[num] = node.getType();
+			tree.fileIndex[num] = node.getFileIndex();
+			tree.line[num] = node.getLine();
+			tree.column[num] = node.getColumn();
+			String s = node.getText();
+			if (s.length()==0) {
+				tree.text[num] = 0;
+			} else {
+				Integer index = stringIndexes.get(s);
+				if (index==null) {
+					index = stringList.size();
+					stringList.add(s);
+					stringIndexes.put(s, index);
+				}
+				tree.text[num] = index;
+			}
+			// Same walk as nextPreorder(), keeping track of the ancestors' node numbers.
+			if (node.firstChild()!=null) {
+				if (depth == ancestors.length)
+					ancestors = Arrays.copyOf(ancestors, depth * 2);
+				ancestors[depth++] = num;
+				node = node.firstChild();
+			} else {
+				while (node!=root && node.nextSibling()==null) {
+					node = node.parent();
+					--depth;
+				}
+				node = node==root ? null : node.nextSibling();
+			}
+			++num;
+		}
+		tree.strings = stringList.toArray(new String[stringList.size()]);
+		tree.filenames = root.getFilenames();
+		return tree;
+	}
+
+
+	/** Build a FlatTree from preorder columns, like the ones stored in a PUB file.
+	 * The arrays are used as they are, and must not be changed afterward.
+	 * @param parent The parent node number of each node, -1 for node zero.
+	 * @param text Index into strings, or zero for the node type's default text (or empty text if none).
+	 */
+	public static FlatTree build(int [] type, int [] parent, int [] fileIndex, int [] line,
+			int [] column, int [] text, String [] strings, String [] filenames) {
+		FlatTree tree = new FlatTree(0);
+		tree.size = type.length;
+		tree.type = type;
+		tree.parent = parent;
+		tree.fileIndex = fileIndex;
+		tree.line = line;
+		tree.column = column;
+		tree.text = text;
+		tree.strings = strings;
+		tree.filenames = filenames;
+		tree.nextSibling = new int[tree.size];
+		int [] lastChild = new int[tree.size];
+		Arrays.fill(lastChild, -1);
+		for (int num = 0; num < tree.size; num++) {
+			tree.nextSibling[num] = -1;
+			int parentNum = parent[num];
+			if (parentNum == -1)
+				continue;
+			if (lastChild[parentNum] != -1)
+				tree.nextSibling[lastChild[parentNum]] = num;
+			lastChild[parentNum] = num;
+		}
+		return tree;
+	}
+
+
+	/** A new cursor, positioned at node zero (Program_root). */
+	public Cursor cursor() { return new Cursor(0); }
+
+
+	/** A new cursor, positioned at a node number. */
+	public Cursor cursor(int node) { return new Cursor(node); }
+
+
+	public int getColumn(int node) { return column[node]; }
+
+
+	public int getFileIndex(int node) { return fileIndex[node]; }
+
+
+	/** The file names, indexed by getFileIndex(). Index zero is the compile unit. */
+	public String getFilename(int fileIndex) { return filenames[fileIndex]; }
+
+
+	/** The first child's node number, or -1 if none. */
+	public int getFirstChild(int node) {
+		return node + 1 < size && parent[node + 1] == node ? node + 1 : -1;
+	}
+
+
+	public int getLine(int node) { return line[node]; }
+
+
+	/** The next sibling's node number, or -1 if none. */
+	public int getNextSibling(int node) { return nextSibling[node]; }
+
+
+	/** The parent's node number, or -1 for node zero. */
+	public int getParent(int node) { return parent[node]; }
+
+
+	/** The node's text, or the node type's default text. Never null. */
+	public String getText(int node) {
+		if (text[node] > 0) return strings[text[node]];
+		String s = TokenTypes.getDefaultText(type[node]);
+		return s==null ? "" : s;
+	}
+
+
+	public int getType(int node) { return type[node]; }
+
+
+	/** One past the last node number in the node's subtree. */
+	public int getSubtreeEnd(int node) {
+		for (int n = node; n != -1; n = parent[n]) {
+			if (nextSibling[n] != -1)
+				return nextSibling[n];
+		}
+		return size;
+	}
+
+
+	/** The node after this one in preorder within the tree under root, or null. */
+	private static JPNode nextPreorder(JPNode node, JPNode root) {
+		if (node.firstChild()!=null)
+			return node.firstChild();
+		while (node!=root && node.nextSibling()==null)
+			node = node.parent();
+		return node==root ? null : node.nextSibling();
+	}
+
+
+	/** The node numbers of all nodes of a given type in a node's subtree (including the node),
+	 * in preorder. Same as JPNode.query(), but this is just a scan of the type array.
+	 */
+	public int [] query(int node, int findType) {
+		int end = getSubtreeEnd(node);
+		int count = 0;
+		for (int n = node; n < end; n++) {
+			if (type[n] == findType)
+				count++;
+		}
+		int [] ret = new int[count];
+		count = 0;
+		for (int n = node; n < end; n++) {
+			if (type[n] == findType)
+				ret[count++] = n;
+		}
+		return ret;
+	}
+
+
+	/** The number of nodes. */
+	public int size() { return size; }
+
+
+
+
+	/** A position in a FlatTree, with navigation like JPNode's.
+	 * The navigation functions move the cursor and return true, or if there is
+	 * no such node, they return false and the cursor stays where it is.
+	 * Cursors are cheap. Use copy() to keep a position while moving on.
+	 */
+	public class Cursor {
+		private Cursor(int node) {
+			this.node = node;
+		}
+
+		private int node;
+
+		public Cursor copy() { return new Cursor(node); }
+
+		/** Move to the first child. */
+		public boolean firstChild() {
+			int n = getFirstChild(node);
+			if (n == -1) return false;
+			node = n;
+			return true;
+		}
+
+		public int getColumn() { return column[node]; }
+		public int getFileIndex() { return fileIndex[node]; }
+		public String getFilename() { return filenames[fileIndex[node]]; }
+		public int getLine() { return line[node]; }
+		public int getNodeNum() { return node; }
+		public String getText() { return FlatTree.this.getText(node); }
+		public FlatTree getTree() { return FlatTree.this; }
+		public int getType() { return type[node]; }
+
+		/** Move to a node number. */
+		public void moveTo(int node) {
+			if (node < 0 || node >= size)
+				throw new IndexOutOfBoundsException("Node number " + node);
+			this.node = node;
+		}
+
+		/** Move to the next sibling. */
+		public boolean nextSibling() {
+			int n = nextSibling[node];
+			if (n == -1) return false;
+			node = n;
+			return true;
+		}
+
+		/** Move to the parent. */
+		public boolean parent() {
+			int n = parent[node];
+			if (n == -1) return false;
+			node = n;
+			return true;
+		}
+
+		/** The node numbers of the nodes of a given type in this node's subtree (including this node).
+		 * @see FlatTree#query(int, int)
+		 */
+		public int [] query(int findType) { return FlatTree.this.query(node, findType); }
+	}
+
+
+}
@@ -12,9 +12,11 @@ package org.prorefactor.core;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
 
 import org.prorefactor.treeparser.Call;
@@ -80,14 +82,29 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 	private int nodeNum = -1;
 	private static final long serialVersionUID = 328939790131475436L;
-	private HashMap<Integer, Integer> attrMap;
-	private HashMap<String, String> attrMapStrings;
-	private HashMap<Integer, Object> linkMap;
-	private HashMap<Integer, String> stringAttributes;
+	/* Attributes and links are stored in small arrays rather than in maps, because
+	 * there can be a lot of nodes, and each one only has a few attributes, if any.
+	 * The arrays are created when the first attribute or link is set, and grow by one
+	 * entry at a time. Lookups are a linear search.
+	 */
+	/** Integer attributes, as key/value pairs. */
+	private int [] attrs;
+	/** Link keys, and the linked objects in linkValues at the same positions. */
+	private int [] linkKeys;
+	private Object [] linkValues;
+	/** String attributes, as key/value pairs. The key is an Integer for attrSet(int, String),
+	 * or a String for attrSetS(String, String). These are rare.
+	 */
+	private Object [] stringAttrs;
 	private JPNode left;
 	private JPNode up;
 	private ProToken token;
 
+	/** Counts changes to the structure or node types of any tree. NodeTypeIndex compares this
+	 * against the count it last checked itself at, rather than every change finding its tree's index.
+	 */
+	private static final AtomicInteger treeChanges = new AtomicInteger();
+
 	static HashMap<String, Integer> attrIntEqs = new HashMap<String, Integer>();
 	static HashMap<Integer, String> attrStrEqs = new HashMap<Integer, String>();
 
@@ -228,8 +245,9 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 
 	public int attrGet(int key) {
-		if (attrMap!=null && attrMap.containsKey(key))
-			return attrMap.get(key);
+		int pos = attrPos(key);
+		if (pos != -1)
+			return attrs[pos + 1];
 		switch (key) {
 			case 1600:  // "node-type-keyword"
 				return NodeTypes.isKeywordType(getType()) ? 1 : 0;
@@ -246,15 +264,17 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 
 	public String attrGetS(int attrNum) {
-		if (stringAttributes!=null && stringAttributes.containsKey(attrNum)) {
-			return stringAttributes.get(attrNum);
+		int pos = stringAttrPos(attrNum);
+		if (pos != -1) {
+			return (String) stringAttrs[pos + 1];
 		}
-		if (attrMap!=null && attrMap.containsKey(attrNum)) {
+		pos = attrPos(attrNum);
+		if (pos != -1) {
 			if (attrNum==AK_STATE2) {
-				String typename = NodeTypes.getTypeName(attrMap.get(attrNum));
+				String typename = NodeTypes.getTypeName(attrs[pos + 1]);
 				return typename==null ? "" : typename;
 			} else {
-				String ret = attrEq(attrMap.get(attrNum));
+				String ret = attrEq(attrs[pos + 1]);
 				if (ret!=null)
 					return ret;
 			}
@@ -287,11 +307,9 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 
 	public String attrGetS(String attrName) {
-		if (attrMapStrings!=null) {
-			String ret = attrMapStrings.get(attrName);
-			if (ret!=null)
-				return ret;
-		}
+		int pos = stringAttrPos(attrName);
+		if (pos != -1 && stringAttrs[pos + 1] != null)
+			return (String) stringAttrs[pos + 1];
 		Integer intKey = attrEq(attrName);
 		if (intKey != null)
 			return attrGetS(intKey);
@@ -299,27 +317,45 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	}
 
 
+	/** Position of the key in attrs, or -1. */
+	private int attrPos(int key) {
+		if (attrs!=null) {
+			for (int i = 0; i < attrs.length; i += 2) {
+				if (attrs[i] == key)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+
 	public void attrSet(int key, String value) {
-		if (stringAttributes==null)
-			stringAttributes = new HashMap<Integer, String>();
-		stringAttributes.put(key, value);
+		stringAttrSet(key, value);
 	}
 
 
 	public void attrSet(int key, int val) {
-		if (attrMap==null)
-			initAttrMap();
-		attrMap.put(key, val);
+		int pos = attrPos(key);
+		if (pos == -1) {
+			if (attrs==null) {
+				attrs = new int[2];
+				pos = 0;
+			} else {
+				pos = attrs.length;
+				attrs = Arrays.copyOf(attrs, pos + 2);
+			}
+			attrs[pos] = key;
+		}
+		attrs[pos + 1] = val;
 	}
 
 
 	public void attrSetS(String key, String value) {
-		if (attrMapStrings==null)
-			attrMapStrings = new HashMap<String, String>();
-		attrMapStrings.put(key, value);
+		stringAttrSet(key, value);
 	}
 
 
+
 	public static void finalizeTrailingHidden(JPNode root) {
 		/*
 		   The node passed in should be the Program_root. The last
@@ -556,11 +592,32 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	 * Integers from -200 through -499 are reserved for Joanju.
 	 */
 	public Object getLink(Integer key) {
-		if (linkMap==null) return null;
-		return linkMap.get(key);
+		int pos = linkPos(key);
+		if (pos == -1) return null;
+		return linkValues[pos];
 	}
 
 
+	/** The node type index of the tree this node is in, or null if there isn't one.
+	 * It's kept by the tree's ProgramRootNode.
+	 * If the tree's structure or a node's type has been changed since the index was built,
+	 * the index no longer answers queries, and query() walks the tree.
+	 * @see NodeTypeIndex
+	 */
+	public NodeTypeIndex getNodeTypeIndex() {
+		JPNode top = this;
+		while (top.parent()!=null)
+			top = top.parent();
+		return top==this ? null : top.getNodeTypeIndex();
+	}
+
+
+	/** The count of changes to tree structure and node types, in any tree.
+	 * Used for checking whether an index built from a tree might be out of date.
+	 */
+	public static int getTreeChanges() { return treeChanges.get(); }
+
+
 	/** Node number, as counted in the syntax tree.
 	 * If this node was created from PUB or from the "getTree" functions to build
 	 * the tree from Proparse, then the nodeNum is set. Otherwise, it is -1.
@@ -574,8 +631,7 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 	/** If this AST was constructed from another, then get the original. */
 	public JPNode getOriginal() {
-		if (linkMap==null) return null;
-		return (JPNode)linkMap.get(ORIGINAL);
+		return (JPNode)getLink(ORIGINAL);
 	}
 
 
@@ -641,9 +697,14 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	}
 
 
-	private void initAttrMap() { if (attrMap==null) attrMap = new HashMap<Integer, Integer>(); }
-
-	private void initLinkMap() { if (linkMap==null) linkMap = new HashMap<Integer, Object>(); }
+	/** The integer attributes as a map, for writeXferBytes(). */
+	private HashMap<Integer, Integer> intAttrMap() {
+		if (attrs==null) return null;
+		HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+		for (int i = 0; i < attrs.length; i += 2)
+			map.put(attrs[i], attrs[i + 1]);
+		return map;
+	}
 
 
 	boolean isAbbreviated() {
@@ -684,6 +745,28 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	}
 
 
+	/** The links as a map, for writeXferBytes(). */
+	private HashMap<Integer, Object> linkMap() {
+		if (linkKeys==null) return null;
+		HashMap<Integer, Object> map = new HashMap<Integer, Object>();
+		for (int i = 0; i < linkKeys.length; i++)
+			map.put(linkKeys[i], linkValues[i]);
+		return map;
+	}
+
+
+	/** Position of the key in linkKeys, or -1. */
+	private int linkPos(int key) {
+		if (linkKeys!=null) {
+			for (int i = 0; i < linkKeys.length; i++) {
+				if (linkKeys[i] == key)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+
 	/** First child if there is one, otherwise next sibling. */
 	public JPNode nextNode() {
 		if (firstChild()!=null) return firstChild();
@@ -716,11 +799,28 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	public JPNode prevSibling() { return left; }
 
 
-	/** Get an array of all descendant nodes (including this node) of a given type. */
+	/** Get an array of all descendant nodes (including this node) of a given type.
+	 * Uses the tree's NodeTypeIndex if it has one, otherwise walks the subtree.
+	 */
 	public ArrayList<JPNode> query(int findType) {
+		NodeTypeIndex index = getNodeTypeIndex();
+		if (index!=null) {
+			ArrayList<JPNode> list = index.query(this, findType);
+			if (list!=null) return list;
+		}
 		ArrayList<JPNode> list = new ArrayList<JPNode>();
-		if (this.getType() == findType) list.add(this);
-		queryHelper(this.firstChild(), findType, list);
+		// Walk the subtree in preorder, without recursion.
+		JPNode node = this;
+		while (node!=null) {
+			if (node.getType() == findType) list.add(node);
+			if (node.firstChild()!=null) {
+				node = node.firstChild();
+				continue;
+			}
+			while (node!=this && node.nextSibling()==null)
+				node = node.parent();
+			node = node==this ? null : node.nextSibling();
+		}
 		return list;
 	}
 	/** This variant is primarily for ease of use from ABL. */
@@ -730,12 +830,6 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 		list.toArray(ret);
 		return ret;
 	}
-	private static void queryHelper(JPNode node, int type, ArrayList<JPNode> list) {
-		if (node==null) return;
-		if (node.getType() == type) list.add(node);
-		queryHelper(node.firstChild(), type, list);
-		queryHelper(node.nextSibling(), type, list);
-	}
 
 
 	/** Some nodes like RUN, USER_FUNC, LOCAL_METHOD_REF have a Call object linked to them by TreeParser01. */
@@ -754,7 +848,10 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	public void setComments(String comments) { setLink(COMMENTS, comments); }
 
 
-	void setDown(JPNode down) {this.down = down;}
+	void setDown(JPNode down) {
+		treeChanges.incrementAndGet();
+		this.down = down;
+	}
 
 
 	/** @see #getFieldContainer() */
@@ -777,8 +874,20 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 	/** @see #getLink(Integer) */
 	public void setLink(Integer key, Object value) {
-		if (linkMap==null) initLinkMap();
-		linkMap.put(key, value);
+		int pos = linkPos(key);
+		if (pos == -1) {
+			if (linkKeys==null) {
+				linkKeys = new int[1];
+				linkValues = new Object[1];
+				pos = 0;
+			} else {
+				pos = linkKeys.length;
+				linkKeys = Arrays.copyOf(linkKeys, pos + 1);
+				linkValues = Arrays.copyOf(linkValues, pos + 1);
+			}
+			linkKeys[pos] = key;
+		}
+		linkValues[pos] = value;
 	}
 
 
@@ -796,7 +905,10 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 	}
 
 
-	void setRight(JPNode right) {this.right = right;}
+	void setRight(JPNode right) {
+		treeChanges.incrementAndGet();
+		this.right = right;
+	}
 
 
 	/** Used when re-loading serialized nodes. */
@@ -808,10 +920,17 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 
 	public void setFirstChild(JPNode child) {
+		treeChanges.incrementAndGet();
 		down = child;
 	}
 
 
+	@Override
+	public void setFirstChild(AST child) {
+		setFirstChild((JPNode) child);
+	}
+
+
 	public void setHiddenAfter(ProToken t) {
 		token.setHiddenAfter(t);
 	}
@@ -823,10 +942,17 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 
 	public void setNextSibling(JPNode sibling) {
+		treeChanges.incrementAndGet();
 		right = sibling;
 	}
 
 
+	@Override
+	public void setNextSibling(AST sibling) {
+		setNextSibling((JPNode) sibling);
+	}
+
+
 	public void setPrevSibling(JPNode n) {
 		left = n;
 	}
@@ -836,13 +962,59 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 		for (AST next = getNextSibling(); next!=null; next = next.getNextSibling()) {
 			((JPNode)next).up = null;
 		}
-		super.setNextSibling(n);
+		setNextSibling((JPNode) n);
 		for (AST next = getNextSibling(); next!=null; next = next.getNextSibling()) {
 			((JPNode)next).up = this.up;
 		}
 	}
 
 
+	/** Position of the key (Integer or String) in stringAttrs, or -1. */
+	private int stringAttrPos(Object key) {
+		if (stringAttrs!=null) {
+			for (int i = 0; i < stringAttrs.length; i += 2) {
+				if (stringAttrs[i].equals(key))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+
+	/** The string attributes with the given class of key (Integer or String) as a map,
+	 * for writeXferBytes().
+	 */
+	private HashMap<Object, String> stringAttrMap(Class keyClass) {
+		HashMap<Object, String> map = null;
+		if (stringAttrs!=null) {
+			for (int i = 0; i < stringAttrs.length; i += 2) {
+				if (stringAttrs[i].getClass() != keyClass)
+					continue;
+				if (map==null)
+					map = new HashMap<Object, String>();
+				map.put(stringAttrs[i], (String) stringAttrs[i + 1]);
+			}
+		}
+		return map;
+	}
+
+
+	private void stringAttrSet(Object key, String value) {
+		int pos = stringAttrPos(key);
+		if (pos == -1) {
+			if (stringAttrs==null) {
+				stringAttrs = new Object[2];
+				pos = 0;
+			} else {
+				pos = stringAttrs.length;
+				stringAttrs = Arrays.copyOf(stringAttrs, pos + 2);
+			}
+			stringAttrs[pos] = key;
+		}
+		stringAttrs[pos + 1] = value;
+	}
+
+
 	@Override
 	public void setText(String text) {
 		token.setText(text);
@@ -851,6 +1023,8 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 
 	@Override
 	public void setType(int type) {
+		if (type!=getType())
+			treeChanges.incrementAndGet();
 		super.setType(type);
 		token.setType(type);
 	}
@@ -909,11 +1083,11 @@ public class JPNode extends BaseAST implements IJPNode, Xferable {
 		out.writeRef(parent());
 		out.writeRef(prevSibling());
 		out.writeRef(getHiddenTokens());
-		out.writeRef(attrMap);
-		out.writeRef(stringAttributes);
-		out.writeRef(attrMapStrings);
+		out.writeRef(intAttrMap());
+		out.writeRef(stringAttrMap(Integer.class));
+		out.writeRef(stringAttrMap(String.class));
 		out.writeInt(nodeNum);
-		out.writeRef(linkMap);
+		out.writeRef(linkMap());
 	}
 	/** Implement Xferable. */
 	public void writeXferSchema(DataXferStream out) throws IOException {
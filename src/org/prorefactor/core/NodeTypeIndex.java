@@ -0,0 +1,231 @@
+/**
+ * NodeTypeIndex.java
+ *
+ * Copyright (c) 2010 Joanju Software (www.joanju.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/** Index of a syntax tree's nodes by node type, for JPNode.query().
+ * Without this, every query walks the whole subtree.
+ * <p>
+ * Relies on the node numbers being in preorder, which they are for a tree
+ * from DoParse or from PUB. For each node type, the index has a sorted array of
+ * the node numbers of that type, and a node's subtree is the range of node numbers
+ * from the node to the end of its subtree. So a query is two binary searches,
+ * and then the time it takes to build the list of results.
+ * <p>
+ * The index is built once for the tree, and is kept by the tree's ProgramRootNode.
+ * It's not updated if the tree's structure is changed. JPNode's setFirstChild(),
+ * setNextSibling(), and setType() only count the change, without looking for the index.
+ * If there have been changes (in any tree) since the index last checked itself, query()
+ * first checks the type, node number, first child, and next sibling of every indexed node
+ * against the index. That's one pass over the tree, and then queries are fast again until
+ * the next change. If the check fails, the index is out of date for good, and query()
+ * returns null from then on, so the caller walks the tree.
+ * (PUB links its nodes as it creates them, and those changes do agree with the index.)
+ * @see JPNode#getNodeTypeIndex()
+ */
+public class NodeTypeIndex {
+
+	/** Indexed by node number. From PUB, these are filled in as the nodes are created. */
+	private JPNode [] nodes;
+	/** The parent node number of each node, -1 for the root. */
+	private int [] parent;
+	/** The node type of each node. */
+	private int [] type;
+	/** One past the last node number in each node's subtree. */
+	private int [] subtreeEnd;
+	/** Node numbers, by type and then by node number. */
+	private int [] nodeNums;
+	/** For type t, the node numbers are in nodeNums from typeStart[t] up to typeStart[t+1]. */
+	private int [] typeStart;
+	/** JPNode.getTreeChanges() as of the last time the index checked itself. */
+	private int checkedChanges;
+	/** Set if the tree no longer agrees with the index. */
+	private boolean outOfDate = false;
+	/** PUB only links Program_root to the top level nodes, and those to each other,
+	 * once the whole tree has been created. Until then, those links aren't checked.
+	 */
+	private boolean topLevelLinked = false;
+
+
+
+	/** Create an index from the type and parent node number of each node,
+	 * indexed by node number. The nodes themselves are added with setNode().
+	 */
+	public NodeTypeIndex(int [] type, int [] parent) {
+		int size = type.length;
+		this.type = type;
+		this.parent = parent;
+		nodes = new JPNode[size];
+		subtreeEnd = new int[size];
+		for (int num = 0; num < size; num++)
+			subtreeEnd[num] = num + 1;
+		// A parent's subtree ends where its last child's subtree ends.
+		for (int num = size - 1; num > 0; num--) {
+			int p = parent[num];
+			if (subtreeEnd[num] > subtreeEnd[p])
+				subtreeEnd[p] = subtreeEnd[num];
+		}
+		int maxType = 0;
+		for (int num = 0; num < size; num++)
+			maxType = Math.max(maxType, type[num]);
+		// Counting sort by type. Within each type, the node numbers stay in order.
+		typeStart = new int[maxType + 2];
+		for (int num = 0; num < size; num++)
+			typeStart[type[num] + 1]++;
+		for (int t = 1; t < typeStart.length; t++)
+			typeStart[t] += typeStart[t - 1];
+		int [] next = Arrays.copyOf(typeStart, typeStart.length);
+		nodeNums = new int[size];
+		for (int num = 0; num < size; num++)
+			nodeNums[next[type[num]]++] = num;
+		checkedChanges = JPNode.getTreeChanges();
+	}
+
+
+
+
+	/** Does the tree still agree with the index?
+	 * This checks the whole tree if there have been any tree changes since the last check.
+	 */
+	public boolean isCurrent() { return check(); }
+
+
+	/** Check the tree against the index, if there have been any tree changes since the last check.
+	 * A node that hasn't been created yet (PUB) isn't checked.
+	 * @return false if the index is out of date.
+	 */
+	private synchronized boolean check() {
+		if (outOfDate)
+			return false;
+		int changes = JPNode.getTreeChanges();
+		if (changes==checkedChanges)
+			return true;
+		if (nodes[0]!=null && nodes[0].firstChild()!=null)
+			topLevelLinked = true;
+		for (int num = 0; num < nodes.length && ! outOfDate; num++) {
+			JPNode node = nodes[num];
+			if (node==null)
+				continue;
+			if (node.getType()!=type[num] || node.getNodeNum()!=num) {
+				outOfDate = true;
+				break;
+			}
+			int p = parent[num];
+			JPNode child = node.firstChild();
+			if (subtreeEnd[num]==num + 1)
+				outOfDate = child!=null;
+			else if (child==null)
+				outOfDate = topLevelLinked || p >= 0;
+			else
+				outOfDate = child!=nodes[num + 1];
+			if (outOfDate)
+				break;
+			JPNode sibling = node.nextSibling();
+			if (p < 0 || subtreeEnd[num]==subtreeEnd[p])
+				outOfDate = sibling!=null;
+			else if (sibling==null)
+				outOfDate = topLevelLinked || parent[p] >= 0;
+			else
+				outOfDate = sibling!=nodes[subtreeEnd[num]];
+		}
+		if (! outOfDate)
+			checkedChanges = changes;
+		return ! outOfDate;
+	}
+
+
+	/** Build the index for a tree, which must have node numbers from zero up, in preorder.
+	 * @param size The number of nodes in the tree.
+	 */
+	public static NodeTypeIndex build(JPNode root, int size) {
+		int [] type = new int[size];
+		int [] parent = new int[size];
+		JPNode [] nodes = new JPNode[size];
+		JPNode node = root;
+		while (node!=null) {
+			int num = node.getNodeNum();
+			type[num] = node.getType();
+			parent[num] = node==root ? -1 : node.parent().getNodeNum();
+			nodes[num] = node;
+			if (node.firstChild()!=null) {
+				node = node.firstChild();
+				continue;
+			}
+			while (node!=root && node.nextSibling()==null)
+				node = node.parent();
+			node = node==root ? null : node.nextSibling();
+		}
+		NodeTypeIndex index = new NodeTypeIndex(type, parent);
+		index.nodes = nodes;
+		index.topLevelLinked = true;
+		return index;
+	}
+
+
+	/** Is this the node that the index has for its node number? */
+	private boolean isIndexed(JPNode node) {
+		int num = node.getNodeNum();
+		return num >= 0 && num < nodes.length && nodes[num]==node;
+	}
+
+
+	/** The first position in nodeNums[from,to) with a node number not less than num. */
+	private int lowerBound(int from, int to, int num) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (nodeNums[mid] < num)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+
+	/** Same as JPNode.query(): all nodes of a type in the node's subtree, including the node.
+	 * @return null if the node is not in this index, if not all of
+	 * the result nodes have been created yet (PUB), or if the tree's structure
+	 * or node types have been changed since the index was built.
+	 */
+	public ArrayList<JPNode> query(JPNode node, int findType) {
+		if (! isIndexed(node) || ! check())
+			return null;
+		int num = node.getNodeNum();
+		ArrayList<JPNode> list = new ArrayList<JPNode>();
+		if (findType < 0 || findType + 1 >= typeStart.length)
+			return list;
+		int from = lowerBound(typeStart[findType], typeStart[findType + 1], num);
+		int to = lowerBound(from, typeStart[findType + 1], subtreeEnd[num]);
+		list.ensureCapacity(to - from);
+		for (int i = from; i < to; i++) {
+			JPNode found = nodes[nodeNums[i]];
+			if (found==null || found.getType()!=findType || found.getNodeNum()!=nodeNums[i])
+				return null;
+			list.add(found);
+		}
+		return list;
+	}
+
+
+	/** Add a node that was created after the index. Used by PUB. */
+	public void setNode(JPNode node) {
+		nodes[node.getNodeNum()] = node;
+	}
+
+
+	/** The number of nodes. */
+	public int size() { return nodes.length; }
+
+
+}
@@ -3,55 +3,401 @@
  * John Green
  *
  * Copyright (C) 2004 Joanju Limited
- * All rights reserved. This program and the accompanying materials 
+ * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
  * http://www.eclipse.org/legal/epl-v10.html
  */
 package org.prorefactor.core;
 
-import java.util.Comparator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 
 
-/** Provides an index of JPNode objects, sorted by fileIndex, line, and column.
+/** Provides an index of the JPNode objects in a syntax tree by source position,
+ * for finding the node or statement at a position in a file.
+ * <p>
+ * Each node has a span in one file: from the start of the first token in its subtree
+ * to the end of the last, counting only the tokens in the same file as the first one.
+ * (Synthetic nodes have no position of their own, so their span comes from their
+ * descendants.) For each file index, the spans are kept in primitive arrays sorted by start,
+ * with the enclosing span of each. Positions are line and column, with the line in the
+ * high 32 bits of a long. Ends are exclusive.
+ * <p>
+ * Finding a node is a binary search, and then for covering queries, a walk
+ * out through the enclosing spans until one covers the position (at most the depth of the tree).
+ * <p>
+ * getNodeFrom() keeps its old meaning, from when this was a sorted set of nodes by their own
+ * token's position: nodes are found by their own token, not by their span, and of the nodes
+ * at the same position, it finds the first one added (the outermost, for a tree walked in preorder).
+ * Each file also has the nodes' own token positions in sorted arrays, for that.
+ * <p>
+ * The index is built with a Builder, as the tree is walked. DoParse does that
+ * in the same pass that assigns the node numbers, if the "position-index" flag is on.
+ * @see org.prorefactor.nodetypes.ProgramRootNode#getPositionIndex()
  */
 public class PositionIndex {
 
-	private SortedSet nodeSet = new TreeSet(FILE_POSITION);
+	/** Create an empty index, for adding nodes one at a time with addNode().
+	 * @deprecated Use build(JPNode) or a Builder, which index each node's whole span.
+	 * Nodes added with addNode() only span their own token.
+	 */
+	@Deprecated
+	public PositionIndex() {
+		added = new ArrayList<JPNode>();
+		files = new FileSpans[0];
+	}
 
+	private PositionIndex(FileSpans [] files) {
+		this.files = files;
+	}
 
-	/**
-	 * Comparator for sorting by fileIndex/line/col.
+	/** Nodes from addNode(), if this index was created that way. */
+	private ArrayList<JPNode> added;
+	/** Indexed by file index. Null for a file with no nodes.
+	 * Null altogether after addNode(), until the next query.
 	 */
-	private static final Comparator FILE_POSITION = new Comparator() {
-		public int compare(Object o1, Object o2) {
-			int ret;
-			JPNode n1 = (JPNode) o1;
-			JPNode n2 = (JPNode) o2;
-			ret = n1.getFileIndex() - n2.getFileIndex();
-			if (ret!=0) return ret;
-			ret = n1.getLine() - n2.getLine();
-			if (ret!=0) return ret;
-			return n1.getColumn() - n2.getColumn();
+	private FileSpans [] files;
+
+	/** The spans in one file, sorted by start, then by end descending, then outer before inner. */
+	private static class FileSpans {
+		long [] start = new long[16];
+		long [] end = new long[16];
+		JPNode [] nodes = new JPNode[16];
+		/** The position in these arrays of the nearest enclosing span, or -1. */
+		int [] enclosing;
+		/** Order added to the builder, for sorting nested nodes with the same span. */
+		int [] order = new int[16];
+		/** The position of the node's own token, or -1 for a synthetic node.
+		 * After finish(), only the nodes with their own token, sorted by position and then order.
+		 */
+		long [] tokenStart = new long[16];
+		/** After finish(), the position in the span arrays of each node in tokenStart. */
+		int [] tokenSpan;
+		int size = 0;
+
+		void add(JPNode node, long s, long e, long t, int o) {
+			if (size == start.length) {
+				start = Arrays.copyOf(start, size * 2);
+				end = Arrays.copyOf(end, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+				order = Arrays.copyOf(order, size * 2);
+				tokenStart = Arrays.copyOf(tokenStart, size * 2);
+			}
+			start[size] = s;
+			end[size] = e;
+			nodes[size] = node;
+			order[size] = o;
+			tokenStart[size] = t;
+			++size;
+		}
+
+		int compare(int i, int j, boolean byToken) {
+			if (byToken) {
+				if (tokenStart[i] != tokenStart[j]) return tokenStart[i] < tokenStart[j] ? -1 : 1;
+				return order[i] - order[j];
+			}
+			if (start[i] != start[j]) return start[i] < start[j] ? -1 : 1;
+			if (end[i] != end[j]) return end[i] > end[j] ? -1 : 1;
+			return order[i] - order[j];
 		}
-	};
 
+		/** Sort (a merge sort on positions, since nodes are added in post-order),
+		 * trim the arrays, and find each span's enclosing span.
+		 * Also sort the nodes that have their own token by that token's position.
+		 */
+		void finish() {
+			int [] perm = new int[size];
+			for (int i = 0; i < size; i++) perm[i] = i;
+			int [] temp = new int[size];
+			int [] byToken = new int[size];
+			int tokens = 0;
+			for (int i = 0; i < size; i++) {
+				if (tokenStart[i] != -1) byToken[tokens++] = i;
+			}
+			mergeSort(byToken, temp, 0, tokens, true);
+			mergeSort(perm, temp, 0, size, false);
+			int [] spanOf = new int[size];
+			long [] s = new long[size];
+			long [] e = new long[size];
+			JPNode [] n = new JPNode[size];
+			for (int i = 0; i < size; i++) {
+				s[i] = start[perm[i]];
+				e[i] = end[perm[i]];
+				n[i] = nodes[perm[i]];
+				spanOf[perm[i]] = i;
+			}
+			long [] t = new long[tokens];
+			tokenSpan = new int[tokens];
+			for (int i = 0; i < tokens; i++) {
+				t[i] = tokenStart[byToken[i]];
+				tokenSpan[i] = spanOf[byToken[i]];
+			}
+			start = s;
+			end = e;
+			nodes = n;
+			tokenStart = t;
+			order = null;
+			enclosing = new int[size];
+			int [] stack = new int[16];
+			int depth = 0;
+			for (int i = 0; i < size; i++) {
+				while (depth > 0 && end[stack[depth - 1]] <= start[i])
+					--depth;
+				enclosing[i] = depth > 0 ? stack[depth - 1] : -1;
+				if (depth == stack.length)
+					stack = Arrays.copyOf(stack, depth * 2);
+				stack[depth++] = i;
+			}
+		}
+
+		void mergeSort(int [] a, int [] temp, int from, int to, boolean byToken) {
+			if (to - from < 2) return;
+			int mid = (from + to) >>> 1;
+			mergeSort(a, temp, from, mid, byToken);
+			mergeSort(a, temp, mid, to, byToken);
+			if (compare(a[mid - 1], a[mid], byToken) <= 0) return;
+			System.arraycopy(a, from, temp, from, to - from);
+			int i = from;
+			int j = mid;
+			for (int k = from; k < to; k++) {
+				if (j >= to || (i < mid && compare(temp[i], temp[j], byToken) <= 0))
+					a[k] = temp[i++];
+				else
+					a[k] = temp[j++];
+			}
+		}
+
+		/** The last position with a start not after pos, or -1. */
+		int lastStartingBy(long pos) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (start[mid] <= pos) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo - 1;
+		}
+
+		/** The first position in tokenStart not before pos, or tokenStart.length. */
+		int firstTokenFrom(long pos) {
+			int lo = 0;
+			int hi = tokenStart.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (tokenStart[mid] < pos) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+	}
 
 
+
+	/** Builds a PositionIndex while walking a tree.
+	 * Call enter() for each node in preorder, and exit() for the node once
+	 * its subtree has been walked.
+	 */
+	public static class Builder {
+		private ArrayList<FileSpans> files = new ArrayList<FileSpans>();
+		private int count = 0;
+		// The open nodes: enter() has been called, and exit() has not.
+		private int depth = 0;
+		private int [] openFile = new int[64];
+		private long [] openStart = new long[64];
+		private long [] openEnd = new long[64];
+		private long [] openToken = new long[64];
+		private int [] openOrder = new int[64];
+
+		public void enter(JPNode node) {
+			if (depth == openFile.length) {
+				openFile = Arrays.copyOf(openFile, depth * 2);
+				openStart = Arrays.copyOf(openStart, depth * 2);
+				openEnd = Arrays.copyOf(openEnd, depth * 2);
+				openToken = Arrays.copyOf(openToken, depth * 2);
+				openOrder = Arrays.copyOf(openOrder, depth * 2);
+			}
+			openOrder[depth] = count++;
+			int line = node.getLine();
+			if (line > 0) {
+				openFile[depth] = node.getFileIndex();
+				openStart[depth] = pos(line, node.getColumn());
+				openEnd[depth] = tokenEnd(line, node.getColumn(), node.getText());
+				openToken[depth] = openStart[depth];
+			} else {
+				openFile[depth] = -1;
+				openToken[depth] = -1;
+			}
+			++depth;
+		}
+
+		public void exit(JPNode node) {
+			--depth;
+			int file = openFile[depth];
+			if (file == -1)
+				return;
+			long s = openStart[depth];
+			long e = openEnd[depth];
+			while (files.size() <= file)
+				files.add(null);
+			FileSpans spans = files.get(file);
+			if (spans==null) {
+				spans = new FileSpans();
+				files.set(file, spans);
+			}
+			spans.add(node, s, e, openToken[depth], openOrder[depth]);
+			// Extend the parent's span. A synthetic parent takes the file of its first child with a position.
+			if (depth > 0) {
+				int p = depth - 1;
+				if (openFile[p] == -1) {
+					openFile[p] = file;
+					openStart[p] = s;
+					openEnd[p] = e;
+				} else if (openFile[p] == file) {
+					if (s < openStart[p]) openStart[p] = s;
+					if (e > openEnd[p]) openEnd[p] = e;
+				}
+			}
+		}
+
+		public PositionIndex build() {
+			FileSpans [] array = files.toArray(new FileSpans[files.size()]);
+			for (FileSpans spans : array) {
+				if (spans!=null)
+					spans.finish();
+			}
+			return new PositionIndex(array);
+		}
+	}
+
+
+
+
+	/** Add one node to an index created with PositionIndex().
+	 * The node is indexed by its own token's position, not by its subtree.
+	 * @deprecated Use build(JPNode) or a Builder.
+	 */
+	@Deprecated
 	public void addNode(JPNode node) {
-		nodeSet.add(node);
+		added.add(node);
+		files = null;
 	}
 
 
+	/** Build the index for a tree, with its own walk of the tree. */
+	public static PositionIndex build(JPNode root) {
+		Builder builder = new Builder();
+		JPNode node = root;
+		builder.enter(node);
+		while (node!=null) {
+			if (node.firstChild()!=null) {
+				node = node.firstChild();
+				builder.enter(node);
+				continue;
+			}
+			builder.exit(node);
+			while (node!=root && node.nextSibling()==null) {
+				node = node.parent();
+				builder.exit(node);
+			}
+			if (node==root) break;
+			node = node.nextSibling();
+			builder.enter(node);
+		}
+		return builder.build();
+	}
+
+
+	private FileSpans file(int file) {
+		if (files==null) {
+			// Rebuild from the nodes added with addNode().
+			Builder builder = new Builder();
+			for (JPNode node : added) {
+				builder.enter(node);
+				builder.exit(node);
+			}
+			files = builder.build().files;
+		}
+		return file >= 0 && file < files.length ? files[file] : null;
+	}
+
 
-	/** Get the node at a position, or the next node immediately after the position. */
+	/** The innermost node whose span covers the position, or null if none.
+	 * This is a binary search for the last span starting by the position, and then a walk
+	 * out through its enclosing spans to the first one that covers the position.
+	 * So it's O(log n + depth), not O(log n): the walk can take up to the depth of the tree.
+	 */
+	public JPNode getCoveringNode(int file, int line, int col) {
+		FileSpans spans = file(file);
+		if (spans==null) return null;
+		long pos = pos(line, col);
+		int i = spans.lastStartingBy(pos);
+		while (i != -1 && spans.end[i] <= pos)
+			i = spans.enclosing[i];
+		return i == -1 ? null : spans.nodes[i];
+	}
+
+
+	/** Get the node at a position, or the next node immediately after the position.
+	 * Nodes are found by their own token's position. If more than one node is at
+	 * that position, this is the first one added to the index.
+	 */
 	public JPNode getNodeFrom(int file, int line, int col) {
-		SortedSet tailSet = nodeSet.tailSet(new JPNode(file, line, col));
-		if (tailSet.size()==0) return null;
-		return (JPNode) tailSet.first();
+		FileSpans spans = file(file);
+		if (spans==null) return null;
+		int i = spans.firstTokenFrom(pos(line, col));
+		if (i >= spans.tokenStart.length) return null;
+		return spans.nodes[spans.tokenSpan[i]];
+	}
+
+
+	/** The nodes whose spans are within a range of the file, in order of their start.
+	 * @param toLine The range's end line (exclusive end)
+	 * @param toCol The range's end column (exclusive end)
+	 */
+	public ArrayList<JPNode> getNodesInRange(int file, int fromLine, int fromCol, int toLine, int toCol) {
+		ArrayList<JPNode> list = new ArrayList<JPNode>();
+		FileSpans spans = file(file);
+		if (spans==null) return list;
+		long from = pos(fromLine, fromCol);
+		long to = pos(toLine, toCol);
+		int i = spans.lastStartingBy(from - 1) + 1;
+		int end = spans.lastStartingBy(to - 1) + 1;
+		for (; i < end; i++) {
+			if (spans.end[i] <= to)
+				list.add(spans.nodes[i]);
+		}
+		return list;
+	}
+
+
+	/** The statement head node of the innermost statement covering the position, or null.
+	 * @see JPNode#getStatement()
+	 */
+	public JPNode getStatement(int file, int line, int col) {
+		JPNode node = getCoveringNode(file, line, col);
+		return node==null ? null : node.getStatement();
+	}
+
+
+	private static long pos(int line, int col) {
+		return ((long) line << 32) | (col & 0xffffffffL);
+	}
+
+
+	/** The position just past the end of a token's text, which may span lines. */
+	private static long tokenEnd(int line, int col, String text) {
+		int len = text==null ? 0 : text.length();
+		int lastNewline = text==null ? -1 : text.lastIndexOf('\n');
+		if (lastNewline == -1)
+			return pos(line, col + Math.max(len, 1));
+		int newlines = 0;
+		for (int i = 0; i <= lastNewline; i++) {
+			if (text.charAt(i) == '\n') ++newlines;
+		}
+		return pos(line + newlines, len - lastNewline);
 	}
 
 
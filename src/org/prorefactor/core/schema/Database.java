@@ -36,6 +36,7 @@ public class Database implements Xferable {
 
 	private String name;
 	private TreeSet<Table> tableSet = new TreeSet<Table>(Table.NAME_ORDER);
+	private NameIndex<Table> tableNames = new NameIndex<Table>();
 	
 	/** Comparator for sorting by name. */
 	public static final Comparator<Database> NAME_ORDER = new Comparator<Database>() {
@@ -45,13 +46,19 @@ public class Database implements Xferable {
 	};
 
 	public void add(Table table) {
-		tableSet.add(table);
+		if (tableSet.add(table))
+			tableNames.add(table.getName(), table);
 	}
 
 	public String getName() { return name; }
 
 	public TreeSet<Table> getTableSet() { return tableSet; }
 
+	/** Lookup a table by name[start,end), which may be a unique abbreviation. */
+	Table lookupTable(String name, int start, int end) {
+		return tableNames.lookupUnique(name, start, end);
+	}
+
 	public void setName(String name) { this.name = name; }
 
 
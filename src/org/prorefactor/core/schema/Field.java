@@ -43,11 +43,6 @@ public class Field implements Primative, Xferable {
 		this.table = table;
 		if (table!=null) table.add(this);
 	}
-	/** Constructor for temporary "lookup" fields. "Package" visibility. */
-	Field(String inName) {
-		this.name = inName;
-		this.table = Schema.nullTable;
-	}
 
 	private int extent;
 	String name; // "Package" access for fast access in NAME_ORDER
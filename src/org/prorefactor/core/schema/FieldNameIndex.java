@@ -0,0 +1,180 @@
+/**
+ * FieldNameIndex.java
+ *
+ * Copyright (c) 2010 Joanju Software (www.joanju.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.schema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import org.prorefactor.core.IConstants;
+
+
+/** Index of the field names in a set of tables, for looking up unqualified field names.
+ * Without this, an unqualified field lookup has to do a Table.lookupField() for every table.
+ * <p>
+ * The index is a sorted array of lowercase field names, with a parallel array
+ * of the Field objects. Each table has a number - its position in the set of
+ * tables - and a lookup returns the same Field that calling Table.lookupField()
+ * for each table in that order would: the first table with a field name that
+ * starts with the lookup name, and in that table, the first such field name.
+ * Like Table.lookupField(), uniqueness of abbreviations is not tested.
+ * That job is left to the compiler.
+ * <p>
+ * Lookups do not create any objects.
+ * @see Schema#lookupUnqualifiedField(String)
+ * @see org.prorefactor.treeparser.SymbolScopeRoot
+ */
+public class FieldNameIndex {
+
+	private static final int INITIAL_SIZE = 16;
+
+	private Field [] fields = new Field[INITIAL_SIZE];
+	private String [] names = new String[INITIAL_SIZE];
+	private int [] tableNums = new int[INITIAL_SIZE];
+	private int size = 0;
+	private int numTables = 0;
+
+	private static class Entry {
+		Entry(Field field, int tableNum) {
+			this.field = field;
+			this.name = field.getName().toLowerCase();
+			this.tableNum = tableNum;
+		}
+		Field field;
+		String name;
+		int tableNum;
+	}
+
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			int ret = e1.name.compareTo(e2.name);
+			return ret!=0 ? ret : e1.tableNum - e2.tableNum;
+		}
+	};
+
+
+
+	/** Add a field. Called by Table.add() for tables registered with setFieldIndex(). */
+	void add(Field field, int tableNum) {
+		if (size == fields.length) {
+			fields = Arrays.copyOf(fields, size * 2);
+			names = Arrays.copyOf(names, size * 2);
+			tableNums = Arrays.copyOf(tableNums, size * 2);
+		}
+		String name = field.getName().toLowerCase();
+		// After any entries with the same name and table, so that the first one added is found first.
+		int pos = size;
+		while (pos > 0) {
+			int cmp = names[pos - 1].compareTo(name);
+			if (cmp < 0 || (cmp==0 && tableNums[pos - 1] <= tableNum))
+				break;
+			--pos;
+		}
+		System.arraycopy(fields, pos, fields, pos + 1, size - pos);
+		System.arraycopy(names, pos, names, pos + 1, size - pos);
+		System.arraycopy(tableNums, pos, tableNums, pos + 1, size - pos);
+		fields[pos] = field;
+		names[pos] = name;
+		tableNums[pos] = tableNum;
+		++size;
+	}
+
+
+	/** Add a table and all of its fields. Tables added first are found first.
+	 * If the table is a temp or work table, then fields added to it later
+	 * are added to this index as well.
+	 */
+	public void addTable(Table table) {
+		int tableNum = numTables++;
+		if (table.getStoretype() != IConstants.ST_DBTABLE && ! table.hasFieldIndex())
+			table.setFieldIndex(this, tableNum);
+		for (Field field : table.getFieldPosOrder())
+			add(field, tableNum);
+	}
+
+
+	/** Build an index of a set of tables, in their iteration order. */
+	public static FieldNameIndex build(Collection<Table> tables) {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		int tableNum = 0;
+		for (Table table : tables) {
+			for (Field field : table.getFieldPosOrder())
+				entries.add(new Entry(field, tableNum));
+			++tableNum;
+		}
+		// A stable sort, so fields with the same name in a table stay in the order they were added.
+		Entry [] sorted = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(sorted, ENTRY_ORDER);
+		FieldNameIndex index = new FieldNameIndex();
+		int capacity = Math.max(INITIAL_SIZE, sorted.length);
+		index.fields = new Field[capacity];
+		index.names = new String[capacity];
+		index.tableNums = new int[capacity];
+		for (int i = 0; i < sorted.length; i++) {
+			index.fields[i] = sorted[i].field;
+			index.names[i] = sorted[i].name;
+			index.tableNums[i] = sorted[i].tableNum;
+		}
+		index.size = sorted.length;
+		index.numTables = tableNum;
+		return index;
+	}
+
+
+	/** Compare an indexed (lowercase) name to the first part of a lookup name, ignoring case. */
+	private static int compareIgnoreCase(String indexName, String lookupName) {
+		int len = Math.min(indexName.length(), lookupName.length());
+		for (int i = 0; i < len; i++) {
+			char c1 = indexName.charAt(i);
+			char c2 = Character.toLowerCase(lookupName.charAt(i));
+			if (c1 != c2)
+				return c1 - c2;
+		}
+		return indexName.length() - lookupName.length();
+	}
+
+
+	/** Lookup an unqualified field name, which may be abbreviated.
+	 * @return null if not found.
+	 */
+	public Field lookup(String name) {
+		// Binary search for the first name that's not less than the lookup name.
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareIgnoreCase(names[mid], name) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		// The names that start with the lookup name are all together from there.
+		// Take the one from the first table.
+		int found = -1;
+		int nameLength = name.length();
+		for (int i = low; i < size; i++) {
+			String indexName = names[i];
+			if (indexName.length() < nameLength
+					|| ! indexName.regionMatches(true, 0, name, 0, nameLength))
+				break;
+			if (found == -1 || tableNums[i] < tableNums[found])
+				found = i;
+		}
+		return found == -1 ? null : fields[found];
+	}
+
+
+	/** The number of fields in the index. */
+	public int size() { return size; }
+
+
+}
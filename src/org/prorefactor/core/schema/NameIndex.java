@@ -0,0 +1,176 @@
+/**
+ * NameIndex.java
+ *
+ * Copyright (c) 2010 Joanju Software (www.joanju.com)
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.schema;
+
+import java.util.Arrays;
+
+
+/** Case insensitive name lookup for databases, tables, and fields.
+ * Names are stored as lowercase char arrays, in sorted order, with a parallel
+ * array of the named objects. A lookup is a binary search that lowercases
+ * the lookup name one character at a time, so it does not create any objects.
+ * <p>
+ * The lookup name is given as a range of a String, so that the parts of a
+ * qualified name like "db.table" can be looked up without splitting it.
+ * <p>
+ * Adding a name is linear time. If names are equal, the first one added is found first.
+ */
+public class NameIndex<T> {
+
+	private static final int INITIAL_SIZE = 8;
+
+	private char [][] names = new char[INITIAL_SIZE][];
+	private Object [] values = new Object[INITIAL_SIZE];
+	private int size = 0;
+
+
+
+	/** Add a name. Goes after any equal names already in the index. */
+	public void add(String name, T value) {
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		char [] lname = new char[name.length()];
+		for (int i = 0; i < lname.length; i++)
+			lname[i] = Character.toLowerCase(name.charAt(i));
+		int pos = size;
+		while (pos > 0 && compare(names[pos - 1], lname) > 0)
+			--pos;
+		System.arraycopy(names, pos, names, pos + 1, size - pos);
+		System.arraycopy(values, pos, values, pos + 1, size - pos);
+		names[pos] = lname;
+		values[pos] = value;
+		++size;
+	}
+
+
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+
+	private static int compare(char [] n1, char [] n2) {
+		int len = Math.min(n1.length, n2.length);
+		for (int i = 0; i < len; i++) {
+			if (n1[i] != n2[i])
+				return n1[i] - n2[i];
+		}
+		return n1.length - n2.length;
+	}
+
+
+	/** Compare an indexed name to key[start,end), ignoring case. */
+	private static int compare(char [] name, String key, int start, int end) {
+		int keyLength = end - start;
+		int len = Math.min(name.length, keyLength);
+		for (int i = 0; i < len; i++) {
+			char c = Character.toLowerCase(key.charAt(start + i));
+			if (name[i] != c)
+				return name[i] - c;
+		}
+		return name.length - keyLength;
+	}
+
+
+	/** The position of the first name that is not less than key[start,end). */
+	private int lowerBound(String key, int start, int end) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(names[mid], key, start, end) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+
+	/** Lookup a name which must match exactly (but ignoring case).
+	 * @return null if not found.
+	 */
+	public T lookupExact(String key, int start, int end) {
+		int pos = lowerBound(key, start, end);
+		if (pos < size && compare(names[pos], key, start, end) == 0)
+			return value(pos);
+		return null;
+	}
+
+
+	/** Lookup a name which may be abbreviated.
+	 * Returns the first name which starts with key[start,end).
+	 * Does not test that the abbreviation is unique.
+	 * @return null if not found.
+	 */
+	public T lookupFirst(String key, int start, int end) {
+		int pos = lowerBound(key, start, end);
+		if (pos < size && startsWith(names[pos], key, start, end))
+			return value(pos);
+		return null;
+	}
+
+
+	/** Lookup a name which may be abbreviated, but must be unique.
+	 * An exact match is returned, even if it is also the start of other names.
+	 * @return null if not found, or if the abbreviation is not unique.
+	 */
+	public T lookupUnique(String key, int start, int end) {
+		int pos = lowerBound(key, start, end);
+		if (pos >= size || ! startsWith(names[pos], key, start, end))
+			return null;
+		if (names[pos].length > end - start
+				&& pos + 1 < size
+				&& startsWith(names[pos + 1], key, start, end))
+			return null;
+		return value(pos);
+	}
+
+
+	/** Remove the first entry with exactly this name (ignoring case).
+	 * @return The value that was removed, or null if not found.
+	 */
+	public T remove(String key) {
+		int pos = lowerBound(key, 0, key.length());
+		if (pos >= size || compare(names[pos], key, 0, key.length()) != 0)
+			return null;
+		T ret = value(pos);
+		--size;
+		System.arraycopy(names, pos + 1, names, pos, size - pos);
+		System.arraycopy(values, pos + 1, values, pos, size - pos);
+		names[size] = null;
+		values[size] = null;
+		return ret;
+	}
+
+
+	public int size() { return size; }
+
+
+	private static boolean startsWith(char [] name, String key, int start, int end) {
+		if (name.length < end - start)
+			return false;
+		for (int i = start; i < end; i++) {
+			if (name[i - start] != Character.toLowerCase(key.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private T value(int pos) { return (T) values[pos]; }
+
+
+}
@@ -13,38 +13,67 @@
 
 package org.prorefactor.core.schema;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 
+import org.prorefactor.refactor.FileStuff;
 import org.prorefactor.treeparser.DataType;
 
 
 
 /**
- * Schema is a singleton with methods and fields for
+ * Schema is normally used as a singleton, with methods and fields for
  * working with database schema names, and references
  * to those from 4gl compile units.
  */
 public class Schema {
 
-	private Schema() { initRefresh(); }
+	/** A schema of its own, ex: for a ParseContext other than the default one.
+	 * Most applications just use the singleton.
+	 * @see #getInstance()
+	 */
+	public Schema() { initRefresh(); }
 
 	
 	public static Database nullDatabase = new Database("");
 	private static Schema theInstance;
 	public static Table nullTable = new Table("");
 
+	/** Appended to the schema file name for the compiled schema file. */
+	public static final String COMPILED_SUFFIX = ".bin";
+	private static final int COMPILED_MAGIC = 0x50534348; // "PSCH"
+	private static final int COMPILED_VERSION = 2;
+
+	private boolean compiledEnabled = true;
+	private File compiledDir = null;
+	private boolean lastLoadCompiled = false;
+	/** See getChecksum(). */
+	private long loadedChecksum;
+
 	// See initRefresh() for member initializations.
-	private HashMap<String, String> aliases;
+	private NameIndex<String> aliases;
+	private NameIndex<Database> dbNames;
 	private TreeSet<Database> dbSet;
 	private TreeSet<Table> allTables;
+	private NameIndex<Table> allTableNames;
+	/** Built on first use, since not every session looks up unqualified field names. */
+	private volatile FieldNameIndex fieldIndex;
 
 
 
@@ -55,16 +84,20 @@ public class Schema {
 	/**
 	 * Schema is a "Singleton"
 	 */
-	public static Schema getInstance() {
+	public static synchronized Schema getInstance() {
 		if (theInstance == null)
 			theInstance = new Schema();
 		return theInstance;
 	}
 	public void clear() { initRefresh(); }
 	private void initRefresh() {
-		aliases = new HashMap<String, String>();
+		aliases = new NameIndex<String>();
+		dbNames = new NameIndex<Database>();
 		dbSet = new TreeSet<Database>(Database.NAME_ORDER);
 		allTables = new TreeSet<Table>(ALLTABLES_ORDER);
+		allTableNames = new NameIndex<Table>();
+		fieldIndex = null;
+		loadedChecksum = 0;
 	}
 
 
@@ -97,7 +130,8 @@ public class Schema {
 	 * @return Empty string.
 	 */
 	public String aliasCreate(String aliasname, String dbname) {
-		aliases.put(aliasname.toLowerCase(), dbname);
+		aliases.remove(aliasname);
+		aliases.add(aliasname, dbname);
 		return "";
 	}
 
@@ -111,7 +145,7 @@ public class Schema {
 		if (aliasname == null || aliasname.length() == 0) {
 			aliases.clear();
 		} else {
-			aliases.remove(aliasname.toLowerCase());
+			aliases.remove(aliasname);
 		}
 	}
 
@@ -124,11 +158,196 @@ public class Schema {
 
 
 
+	private Database addDatabase(String name, ArrayList<Database> loaded) {
+		Database db = new Database(name);
+		loaded.add(db);
+		if (dbSet.add(db))
+			dbNames.add(name, db);
+		return db;
+	}
+
+
+
+	/** The CRC32 of a file's contents. */
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte [] buffer = new byte[64 * 1024];
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(buffer)) > 0)
+				crc.update(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+
+
+	/** A checksum of the schema files loaded since the last clear(), or zero if none were.
+	 * Anything built from the schema can compare this to tell whether the schema has changed.
+	 */
+	public long getChecksum() { return loadedChecksum; }
+
+
+	/** The directory that compiled schema files are written to and read from.
+	 * Null if none was set, in which case the compiled schema file is not used.
+	 */
+	public File getCompiledDir() { return compiledDir; }
+
+
+	/** The compiled schema file for a schema file, or null if there's no compiled dir. */
+	private File getCompiledFile(File sourceFile) {
+		if (compiledDir==null)
+			return null;
+		return new File(compiledDir, sourceFile.getName() + COMPILED_SUFFIX);
+	}
+
+
+	/** Is the schema loaded through a compiled schema file? On by default,
+	 * but only used if a compiled dir has been set.
+	 * @see #setCompiledDir(File)
+	 */
+	public boolean isCompiledEnabled() { return compiledEnabled; }
+
+	/** Was the last loadSchema() done from the compiled schema file (rather than the text file)? */
+	public boolean isLastLoadCompiled() { return lastLoadCompiled; }
+
+
+
 	/**
 	 * Load schema names and RECID from a flat file.
+	 * <p>
+	 * If a compiled dir has been set, then the first time a schema file is loaded,
+	 * a compiled (binary) copy of it is written to that directory, with COMPILED_SUFFIX
+	 * appended to the file name. The compiled file records the length, the last-modified
+	 * time, and the CRC32 checksum of the text file. After that, the schema is loaded from
+	 * the compiled file, which is much faster than parsing the text, as long as the
+	 * text file's length and last-modified time still match. If only the time is different,
+	 * the text file's checksum is compared instead. Otherwise, or if the compiled file
+	 * can't be read or written, the text file is used.
 	 * @param from The filename to read from.
+	 * @see #setCompiledDir(File)
+	 * @see #setCompiledEnabled(boolean)
 	 */
 	public void loadSchema(String from) throws IOException {
+		lastLoadCompiled = false;
+		File sourceFile = new File(from);
+		File compiledFile = compiledEnabled ? getCompiledFile(sourceFile) : null;
+		long sourceLength = sourceFile.length();
+		long sourceModified = sourceFile.lastModified();
+		Long checksum = null;
+		ByteBuffer in = null;
+		if (compiledFile!=null && compiledFile.exists() && sourceFile.exists())
+			in = readCompiledHeader(compiledFile, sourceLength);
+		if (in!=null) {
+			long compiledModified = in.getLong();
+			long compiledChecksum = in.getLong();
+			checksum = compiledModified==sourceModified ? compiledChecksum : checksum(sourceFile);
+			if (checksum.longValue()==compiledChecksum)
+				lastLoadCompiled = loadCompiled(in);
+		}
+		if (checksum==null)
+			checksum = sourceFile.exists() ? checksum(sourceFile) : 0;
+		if (! lastLoadCompiled) {
+			ArrayList<Database> loaded = loadText(from);
+			if (compiledFile!=null) {
+				try {
+					writeCompiled(compiledFile, loaded, sourceLength, sourceModified, checksum);
+				} catch (IOException e) {
+					// Read-only directory, etc. The text file just gets used next time too.
+				}
+			}
+		}
+		// Rebuilt from allTables, so that tables with the same name are in database name order.
+		allTableNames.clear();
+		for (Table table : allTables)
+			allTableNames.add(table.getName(), table);
+		fieldIndex = null;
+		loadedChecksum = loadedChecksum * 31 + checksum;
+	} // loadSchema()
+
+
+
+	/** Load the databases and tables from a compiled schema file, positioned after its header.
+	 * The file is read all the way through before anything is added to the schema,
+	 * so if the file is no good then nothing gets loaded.
+	 * Only the databases and tables are created here. Each table's fields are read
+	 * from the buffer when they are first used. See readCompiledFields().
+	 * The buffer is on the heap, not mapped, so that the compiled file can be rewritten
+	 * (on Windows too) while tables still refer to the buffer.
+	 * @return false if the file can't be read.
+	 */
+	private boolean loadCompiled(ByteBuffer in) {
+		ArrayList<Database> databases = new ArrayList<Database>();
+		ArrayList<Table> tables = new ArrayList<Table>();
+		try {
+			int numDatabases = in.getInt();
+			for (int d = 0; d < numDatabases; d++) {
+				Database db = new Database(readString(in));
+				databases.add(db);
+				int numTables = in.getInt();
+				for (int t = 0; t < numTables; t++) {
+					Table table = new Table(readString(in), db);
+					tables.add(table);
+					// The fields are read when the table's fields are first used.
+					int fieldBytes = in.getInt();
+					table.setCompiledFields(in, in.position());
+					in.position(in.position() + fieldBytes);
+				}
+			}
+			if (in.getInt() != COMPILED_MAGIC)
+				return false;
+		} catch (Exception e) {
+			// Damaged file. It just gets rewritten from the text file.
+			return false;
+		}
+		for (Database db : databases) {
+			if (dbSet.add(db))
+				dbNames.add(db.getName(), db);
+		}
+		allTables.addAll(tables);
+		return true;
+	}
+
+
+
+	/** Read a compiled schema file into a heap buffer, and check its header.
+	 * @return The buffer, positioned at the text file's last-modified time in the header,
+	 * or null if the file can't be read, is from another version, or is for a text file
+	 * of a different length.
+	 */
+	private static ByteBuffer readCompiledHeader(File compiledFile, long sourceLength) {
+		try {
+			FileInputStream fileIn = new FileInputStream(compiledFile);
+			ByteBuffer in;
+			try {
+				FileChannel channel = fileIn.getChannel();
+				in = ByteBuffer.allocate((int) channel.size());
+				while (in.hasRemaining() && channel.read(in) != -1) { }
+				in.flip();
+			} finally {
+				fileIn.close();
+			}
+			if (	in.getInt() != COMPILED_MAGIC
+				||	in.getInt() != COMPILED_VERSION
+				||	in.getLong() != sourceLength
+				) return null;
+			return in;
+		} catch (Exception e) {
+			// Damaged or truncated file. It just gets rewritten from the text file.
+			return null;
+		}
+	}
+
+
+
+	/** Parse the text schema file.
+	 * @return The Database objects created, in the order they were read.
+	 */
+	private ArrayList<Database> loadText(String from) throws IOException {
+		ArrayList<Database> loaded = new ArrayList<Database>();
 		BufferedReader reader = new BufferedReader(new FileReader(from));
 		StreamTokenizer tokenstream  = new StreamTokenizer(reader);
 		tokenstream.eolIsSignificant(false);
@@ -143,8 +362,7 @@ public class Schema {
 					tokenstream.nextToken();
 					String dbname = tokenstream.sval;
 					tokenstream.nextToken(); // database number is no longer stored
-					currDatabase = new Database(dbname);
-					dbSet.add(currDatabase);
+					currDatabase = addDatabase(dbname, loaded);
 				} else if (theString.equals(":")) {
 					// table name
 					tokenstream.nextToken();
@@ -176,36 +394,26 @@ public class Schema {
 			throw e2;
 		}
 		reader.close();
-	} // loadSchema()
+		return loaded;
+	}
 
 
 
 	/** Lookup Database, with alias checks. */
 	public Database lookupDatabase(String inName) {
-		Database db = lookupDatabase2(inName);
+		return lookupDatabase(inName, 0, inName.length());
+	}
+
+	/** Lookup Database by name[start,end), with alias checks. */
+	private Database lookupDatabase(String name, int start, int end) {
+		Database db = dbNames.lookupExact(name, start, end);
 		if (db != null)
 			return db;
 		// Check for database alias
-		String realName = aliases.get(inName.toLowerCase());
+		String realName = aliases.lookupExact(name, start, end);
 		if (realName == null)
 			return null;
-		return lookupDatabase2(realName);
-	}
-
-
-
-	/**
-	 * Lookup Database by name.
-	 * Called twice by lookupDatabase().
-	 */
-	private Database lookupDatabase2(String inName) {
-		SortedSet dbTailSet = dbSet.tailSet(new Database(inName));
-		if (dbTailSet.size() == 0)
-			return null;
-		Database db = (Database)(dbTailSet.first());
-		if ( db == null || db.getName().compareToIgnoreCase(inName) != 0 )
-			return null;
-		return db;
+		return dbNames.lookupExact(realName, 0, realName.length());
 	}
 	
 	
@@ -230,49 +438,34 @@ public class Schema {
 	 * in the rest of the databases.
 	 */
 	public Table lookupTable(String inName) {
-		if (inName.indexOf('.') > -1) {
-			Table firstTry = lookupTable2(inName);
+		int dot = inName.indexOf('.');
+		if (dot > -1) {
+			// As if split on '.': anything after a second dot is ignored.
+			int tableEnd = inName.indexOf('.', dot + 1);
+			if (tableEnd == -1)
+				tableEnd = inName.length();
+			Table firstTry = lookupTable(inName, 0, dot, inName, dot + 1, tableEnd);
 			if (firstTry != null) return firstTry;
-			return lookupMetaTable(inName);
+			return lookupMetaTable(inName, dot + 1, tableEnd);
 		}
-		return lookupTableCheckName(allTables.tailSet(new Table(inName)), inName);
+		// It turns out that we *do* have to test for uniqueness - we can't just leave
+		// that job to the compiler. That's because when looking up schema names for
+		// a DEF..LIKE x, if x is non-unique in schema, then we move on to temp/work/buffer names.
+		return allTableNames.lookupUnique(inName, 0, inName.length());
 	}
 	
 	
 	
 	/** Lookup a table, given a database name and a table name. */
 	public Table lookupTable(String dbName, String tableName) {
-		Database db = lookupDatabase(dbName);
-		if (db==null) return null;
-		return lookupTableCheckName(db.getTableSet().tailSet(new Table(tableName)), tableName);
+		return lookupTable(dbName, 0, dbName.length(), tableName, 0, tableName.length());
 	}
 
-
-
-	// It turns out that we *do* have to test for uniqueness - we can't just leave
-	// that job to the compiler. That's because when looking up schema names for
-	// a DEF..LIKE x, if x is non-unique in schema, then we move on to temp/work/buffer names.
-	private Table lookupTableCheckName(SortedSet set, String name) {
-		String lname = name.toLowerCase();
-		Iterator it = set.iterator();
-		if (! it.hasNext()) return null;
-		Table table = (Table)(it.next());
-		// test that we got a match
-		if (! table.getName().toLowerCase().startsWith(lname)) return null;
-		// test that we got a unique match
-		if (lname.length() < table.getName().length()  &&  it.hasNext()) {
-			Table next = (Table)(it.next());
-			if (next.getName().toLowerCase().startsWith(lname)) return null;
-		}
-		return table;
-	}
-
-
-	
-	/** Lookup a qualified table name */
-	private Table lookupTable2(String inName) {
-		String [] parts = inName.split("\\.");
-		return lookupTable(parts[0], parts[1]);
+	/** Lookup a table, given ranges of strings for the database name and the table name. */
+	private Table lookupTable(String dbName, int dbStart, int dbEnd, String tableName, int tableStart, int tableEnd) {
+		Database db = lookupDatabase(dbName, dbStart, dbEnd);
+		if (db==null) return null;
+		return db.lookupTable(tableName, tableStart, tableEnd);
 	}
 
 
@@ -280,29 +473,128 @@ public class Schema {
 	/**
 	 * This is for looking up names like "sports._file". We return the dictdb Table.
 	 */
-	private Table lookupMetaTable(String inName) {
-		String [] parts = inName.split("\\.");
-		Database db = lookupDatabase("dictdb");
-		if (db == null) return null;
-		return lookupTableCheckName(db.getTableSet().tailSet(new Table(parts[1])), parts[1]);
+	private Table lookupMetaTable(String inName, int tableStart, int tableEnd) {
+		return lookupTable("dictdb", 0, 6, inName, tableStart, tableEnd);
 	}
 
 
 
 	/** Lookup an unqualified schema field name.
+	 * Finds the same field as a Table.lookupField() on each table in db.table order would,
+	 * but uses an index of all field names which is built on the first call after loadSchema().
 	 * Does not test for uniqueness. That job is left to the compiler.
 	 * (In fact, anywhere this is run, the compiler would check that the
 	 * field name is also unique against temp/work tables.)
 	 * Returns null if nothing found.
 	 */
 	public Field lookupUnqualifiedField(String name) {
-		Field field;
-		for (Object allTable : allTables) {
-			Table table = (Table) allTable;
-			field = table.lookupField(name);
-			if (field != null) return field;
+		FieldNameIndex index = fieldIndex;
+		if (index==null)
+			index = buildFieldIndex();
+		return index.lookup(name);
+	}
+
+
+
+	private synchronized FieldNameIndex buildFieldIndex() {
+		if (fieldIndex==null)
+			fieldIndex = FieldNameIndex.build(allTables);
+		return fieldIndex;
+	}
+
+
+
+	/** Read a table's fields from a compiled schema file. Called by Table. */
+	static void readCompiledFields(Table table, ByteBuffer buffer, int offset) {
+		ByteBuffer in = buffer.duplicate();
+		in.position(offset);
+		try {
+			int numFields = in.getInt();
+			for (int f = 0; f < numFields; f++) {
+				Field field = new Field(readString(in), table);
+				field.setDataType(DataType.getDataType(in.getInt()));
+				if (field.getDataType()==null)
+					throw new IOException("Unknown datatype");
+				field.setExtent(in.getInt());
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("Damaged compiled schema file, table " + table.getName(), e);
+		}
+	}
+
+
+
+	private static String readString(ByteBuffer in) throws IOException {
+		byte [] bytes = new byte[in.getShort() & 0xffff];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+
+
+	/** Set the directory for compiled schema files, ex: the ProRefactor project directory.
+	 * Null (the default) turns off the compiled schema file.
+	 * Takes effect at the next loadSchema(). Not changed by clear().
+	 */
+	public void setCompiledDir(File dir) { compiledDir = dir; }
+
+
+
+	/** Turn the compiled schema file on or off. Takes effect at the next loadSchema(). */
+	public void setCompiledEnabled(boolean enabled) { compiledEnabled = enabled; }
+
+
+
+	/** Write the compiled schema file.
+	 * It's written to a temp file first, so that another process never reads a partial file.
+	 */
+	private void writeCompiled(File compiledFile, ArrayList<Database> databases
+			, long sourceLength, long sourceModified, long sourceChecksum) throws IOException {
+		compiledFile.getAbsoluteFile().getParentFile().mkdirs();
+		File tempFile = File.createTempFile(compiledFile.getName(), ".tmp", compiledFile.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		boolean written = false;
+		try {
+			out.writeInt(COMPILED_MAGIC);
+			out.writeInt(COMPILED_VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeLong(sourceChecksum);
+			out.writeInt(databases.size());
+			for (Database db : databases) {
+				writeString(out, db.getName());
+				out.writeInt(db.getTableSet().size());
+				for (Table table : db.getTableSet()) {
+					writeString(out, table.getName());
+					// The fields are written with their length first, so that they can be skipped.
+					ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+					DataOutputStream fieldsOut = new DataOutputStream(fieldBytes);
+					fieldsOut.writeInt(table.getFieldPosOrder().size());
+					for (Field field : table.getFieldPosOrder()) {
+						writeString(fieldsOut, field.getName());
+						fieldsOut.writeInt(field.getDataType().getTokenType());
+						fieldsOut.writeInt(field.getExtent());
+					}
+					out.writeInt(fieldBytes.size());
+					fieldBytes.writeTo(out);
+				}
+			}
+			// Marks the end, so that a truncated file is not used.
+			out.writeInt(COMPILED_MAGIC);
+			written = true;
+		} finally {
+			out.close();
+			if (! written)
+				tempFile.delete();
 		}
-		return null;
+		FileStuff.replaceFile(tempFile, compiledFile);
+	}
+
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte [] bytes = s.getBytes("UTF-8");
+		out.writeShort(bytes.length);
+		out.write(bytes);
 	}
 
 
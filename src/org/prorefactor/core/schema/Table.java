@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.TreeSet;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.prorefactor.core.IConstants;
 import org.prorefactor.treeparser.SymbolScopeRoot;
@@ -53,11 +54,18 @@ public class Table implements Xferable {
 		database = Schema.nullDatabase;
 	}
 
+	private int compiledFieldsOffset;
+	private int fieldIndexNum;
 	private int storetype = IConstants.ST_DBTABLE;
 	private ArrayList<Field> fieldPosOrder = new ArrayList<Field>();
 	String name; // package access
 	private Database database;
+	/** Temp/work tables: the index of the root scope the table was defined in. */
+	private FieldNameIndex fieldIndex;
 	private TreeSet<Field> fieldSet = new TreeSet<Field>(Field.NAME_ORDER);
+	private NameIndex<Field> fieldNames = new NameIndex<Field>();
+	/** Loaded from a compiled schema file: the file's buffer, until the fields have been read from it. */
+	private volatile ByteBuffer compiledFields;
 
 	/** This is a convenience class for working with a string table name, where
 	 * there may or may not be a database qualifier in the name.
@@ -101,8 +109,11 @@ public class Table implements Xferable {
 	
 	/** Add a Field to this table. "Package" visibility only. */
 	void add(Field field) {
-		fieldSet.add(field);
+		if (fieldSet.add(field))
+			fieldNames.add(field.name, field);
 		fieldPosOrder.add(field);
+		if (fieldIndex!=null)
+			fieldIndex.add(field, fieldIndexNum);
 	}
 
 
@@ -117,7 +128,7 @@ public class Table implements Xferable {
 		Table t = scope.lookupTableDefinition(this.name);
 		if (t!=null) return t;
 		t = new Table(this.name, this.storetype);
-		for (Field field : this.fieldPosOrder) {
+		for (Field field : this.getFieldPosOrder()) {
 			field.copyBare(t);
 		}
 		return t;
@@ -127,14 +138,22 @@ public class Table implements Xferable {
 	public Database getDatabase() { return database; }
 	
 	/** Get the ArrayList of fields in field position order (rather than sorted alpha). */
-	public ArrayList<Field> getFieldPosOrder() { return fieldPosOrder; }
+	public ArrayList<Field> getFieldPosOrder() {
+		readCompiledFields();
+		return fieldPosOrder;
+	}
 
-	public TreeSet<Field> getFieldSet() { return fieldSet; }
+	public TreeSet<Field> getFieldSet() {
+		readCompiledFields();
+		return fieldSet;
+	}
 
 	public String getName() { return name; }
 	
 	public int getStoretype() { return storetype; }
 
+	boolean hasFieldIndex() { return fieldIndex!=null; }
+
 
 	/**
 	 * Lookup a field by name.
@@ -142,15 +161,41 @@ public class Table implements Xferable {
 	 * This function expects an unqualified field name (no name dots).
 	 */
 	public Field lookupField(String lookupName) {
-		java.util.SortedSet<Field> fieldTailSet = fieldSet.tailSet(new Field(lookupName));
-		if (fieldTailSet.size() == 0)
-			return null;
-		Field field = (fieldTailSet.first());
-		if (	field == null
-			||	! field.getName().toLowerCase().startsWith(lookupName.toLowerCase())
-			)
-			return null;
-		return field;
+		readCompiledFields();
+		return fieldNames.lookupFirst(lookupName, 0, lookupName.length());
+	}
+
+
+	/** If this table was loaded from a compiled schema file, and its fields
+	 * have not been read yet, then read them now.
+	 */
+	private void readCompiledFields() {
+		if (compiledFields==null)
+			return;
+		synchronized (this) {
+			if (compiledFields==null)
+				return;
+			Schema.readCompiledFields(this, compiledFields, compiledFieldsOffset);
+			compiledFields = null;
+		}
+	}
+
+
+	/** The fields are read from the compiled schema file when they are first needed.
+	 * "Package" visibility only. See Schema.loadCompiled().
+	 */
+	void setCompiledFields(ByteBuffer buffer, int offset) {
+		compiledFieldsOffset = offset;
+		compiledFields = buffer;
+	}
+
+
+	/** Fields added to this table from now on are also added to the index.
+	 * "Package" visibility only. See FieldNameIndex.addTable().
+	 */
+	void setFieldIndex(FieldNameIndex index, int tableNum) {
+		fieldIndex = index;
+		fieldIndexNum = tableNum;
 	}
 
 
@@ -35,6 +35,19 @@ public class AllTests {
 		suite.addTest(new TestSuite(TP01FramesTest.class));
 		suite.addTest(new TestSuite(BugFixTests.class));
 		suite.addTest(new TestSuite(TestNewSyntax.class));
+		suite.addTest(new TestSuite(MacroGraphTest.class));
+		suite.addTest(new TestSuite(IncludeFileCacheTest.class));
+		suite.addTest(new TestSuite(PropathIndexTest.class));
+		suite.addTest(new TestSuite(SuperScopeCacheTest.class));
+		suite.addTest(new TestSuite(ParseContextTest.class));
+		suite.addTest(new TestSuite(SocketStreamTest.class));
+		suite.addTest(new TestSuite(FieldNameIndexTest.class));
+		suite.addTest(new TestSuite(CompiledSchemaTest.class));
+		suite.addTest(new TestSuite(PositionIndexTest.class));
+		suite.addTest(new TestSuite(IncrementalParseTest.class));
+		suite.addTest(new TestSuite(PreproEvalTest.class));
+		suite.addTest(new TestSuite(SourceEncodingTest.class));
+		suite.addTest(new TestSuite(TokenListTest.class));
 		//$JUnit-END$
 		return suite;
 	}
@@ -0,0 +1,132 @@
+/**
+ * CompiledSchemaTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.core.schema.Field;
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.core.schema.Table;
+import org.prorefactor.refactor.RefactorSession;
+
+
+/** Test loading the schema from the compiled schema file,
+ * and falling back to the text file when the compiled file is stale or damaged.
+ * The compiled file goes into the compiled dir, not next to the text file.
+ */
+public class CompiledSchemaTest extends TestCase {
+
+	private File compiledDir;
+	private File compiledFile;
+	private File schemaFile;
+	private Schema schema = Schema.getInstance();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		schemaFile = File.createTempFile("compiled", ".schema");
+		FileUtils.copyFile(new File("prorefactor/projects/sports2000/proparse.schema"), schemaFile);
+		compiledDir = File.createTempFile("compiled", "");
+		compiledDir.delete();
+		schema.setCompiledDir(compiledDir);
+		compiledFile = new File(compiledDir, schemaFile.getName() + Schema.COMPILED_SUFFIX);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		schemaFile.delete();
+		FileUtils.deleteDirectory(compiledDir);
+		schema.setCompiledDir(null);
+		// Put back the schema for the other tests.
+		String projectName = RefactorSession.getInstance().getProjectName();
+		if (projectName!=null)
+			RefactorSession.getInstance().loadProjectForced(projectName);
+		super.tearDown();
+	}
+
+
+	/** A listing of all tables and fields, for comparing two loads. */
+	private String describe() {
+		StringBuilder bldr = new StringBuilder();
+		for (Iterator it = schema.getAllTablesIterator(); it.hasNext(); ) {
+			Table table = (Table) it.next();
+			bldr.append(table.getDatabase().getName()).append('.').append(table.getName()).append('\n');
+			for (Field field : table.getFieldPosOrder()) {
+				bldr.append(' ').append(field.getName())
+					.append(' ').append(field.getDataType().getProgressName())
+					.append(' ').append(field.getExtent()).append('\n');
+			}
+		}
+		return bldr.toString();
+	}
+
+
+	private void load() throws Exception {
+		schema.clear();
+		schema.loadSchema(schemaFile.getPath());
+	}
+
+
+	public void test01() throws Exception {
+		load();
+		assertFalse(schema.isLastLoadCompiled());
+		assertTrue(compiledFile.exists());
+		assertFalse(new File(schemaFile.getPath() + Schema.COMPILED_SUFFIX).exists());
+		String expect = describe();
+		long checksum = schema.getChecksum();
+
+		load();
+		assertTrue(schema.isLastLoadCompiled());
+		assertEquals(expect, describe());
+		assertNotNull(schema.lookupTable("sports2000.customer"));
+		assertNotNull(schema.lookupUnqualifiedField("custnum"));
+		assertEquals(checksum, schema.getChecksum());
+
+		// Touched but not changed: the checksum still matches.
+		schemaFile.setLastModified(schemaFile.lastModified() + 2000);
+		load();
+		assertTrue(schema.isLastLoadCompiled());
+		assertEquals(checksum, schema.getChecksum());
+
+		// Changed text file of the same length: the compiled file is stale, and gets rewritten.
+		FileUtils.writeStringToFile(schemaFile,
+				FileUtils.readFileToString(schemaFile).replace("CustNum", "CustNbr"));
+		load();
+		assertFalse(schema.isLastLoadCompiled());
+		assertFalse(checksum==schema.getChecksum());
+		assertNotNull(schema.lookupUnqualifiedField("custnbr"));
+		load();
+		assertTrue(schema.isLastLoadCompiled());
+		assertNotNull(schema.lookupUnqualifiedField("custnbr"));
+
+		// Changed length: stale, without the checksum being needed.
+		FileUtils.writeStringToFile(schemaFile, FileUtils.readFileToString(schemaFile) + "\n");
+		load();
+		assertFalse(schema.isLastLoadCompiled());
+		load();
+		assertTrue(schema.isLastLoadCompiled());
+
+		// Truncated compiled file: nothing is loaded from it.
+		RandomAccessFile raf = new RandomAccessFile(compiledFile, "rw");
+		raf.setLength(raf.length() / 2);
+		raf.close();
+		load();
+		assertFalse(schema.isLastLoadCompiled());
+		assertEquals(2, schema.getDbSet().size()); // sports2000 and dictdb
+	}
+
+
+}
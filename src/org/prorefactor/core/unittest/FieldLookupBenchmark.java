@@ -0,0 +1,103 @@
+/**
+ * FieldLookupBenchmark.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.prorefactor.core.schema.Field;
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.core.schema.Table;
+
+
+/** Compares unqualified field name lookup through the schema's field name index
+ * against looking the name up in each table, which is what Schema.lookupUnqualifiedField()
+ * used to do.
+ * <p>
+ * Usage: FieldLookupBenchmark [tables [fieldsPerTable]]
+ * Generates a schema, 900 tables of 25 fields by default.
+ * Half of the lookups are full field names, and half are abbreviations.
+ */
+public class FieldLookupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int numTables = args.length > 0 ? Integer.parseInt(args[0]) : 900;
+		int numFields = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+		Random random = new Random(0);
+		File schemaFile = File.createTempFile("fieldlookup", ".schema");
+		ArrayList<String> lookups = new ArrayList<String>();
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(schemaFile));
+			writer.write(":: bench 1\n");
+			int recid = 1;
+			for (int t = 0; t < numTables; t++) {
+				writer.write(": table" + t + " " + recid++ + "\n");
+				for (int f = 0; f < numFields; f++) {
+					String name = "t" + t + "Field" + random.nextInt(100000);
+					writer.write(name + " " + recid++ + " CHARACTER 0\n");
+					lookups.add(random.nextBoolean() ? name : name.substring(0, name.length() - 2));
+				}
+			}
+			writer.close();
+			Schema schema = Schema.getInstance();
+			schema.clear();
+			schema.loadSchema(schemaFile.getPath());
+			new FieldLookupBenchmark().run(schema, lookups);
+		} finally {
+			schemaFile.delete();
+		}
+	}
+
+
+	private static Field lookupEachTable(Schema schema, String name) {
+		for (Iterator it = schema.getAllTablesIterator(); it.hasNext(); ) {
+			Field field = ((Table) it.next()).lookupField(name);
+			if (field!=null) return field;
+		}
+		return null;
+	}
+
+
+	void run(Schema schema, ArrayList<String> lookups) {
+		String [] names = lookups.toArray(new String[lookups.size()]);
+		int indexedPasses = 200;
+		int eachTablePasses = 2;
+		// Warm up, then time.
+		time(schema, names, 20, true);
+		time(schema, names, 1, false);
+		long indexed = time(schema, names, indexedPasses, true);
+		long eachTable = time(schema, names, eachTablePasses, false);
+		long indexedPer = indexed / indexedPasses / names.length;
+		long eachTablePer = eachTable / eachTablePasses / names.length;
+		System.out.println("Lookups per pass:  " + names.length);
+		System.out.println("Each table lookup: " + eachTablePer + " nanosec per lookup");
+		System.out.println("Field name index:  " + indexedPer + " nanosec per lookup");
+		System.out.println("Speedup: " + (eachTablePer / Math.max(1, indexedPer)) + "x");
+	}
+
+
+	private static long time(Schema schema, String [] names, int passes, boolean indexed) {
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++) {
+			for (String name : names) {
+				Field field = indexed ? schema.lookupUnqualifiedField(name) : lookupEachTable(schema, name);
+				if (field==null) throw new RuntimeException("Not found: " + name);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+
+}
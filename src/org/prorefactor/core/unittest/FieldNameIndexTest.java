@@ -0,0 +1,111 @@
+/**
+ * FieldNameIndexTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.core.IConstants;
+import org.prorefactor.core.schema.Field;
+import org.prorefactor.core.schema.FieldNameIndex;
+import org.prorefactor.core.schema.NameIndex;
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.core.schema.Table;
+import org.prorefactor.refactor.RefactorSession;
+
+
+/** Test that the unqualified field name index finds the same fields
+ * as looking up the name in each table.
+ */
+public class FieldNameIndexTest extends TestCase {
+
+	/** The lookup that the index replaces. */
+	private Field lookupEachTable(Schema schema, String name) {
+		for (Iterator it = schema.getAllTablesIterator(); it.hasNext(); ) {
+			Field field = ((Table) it.next()).lookupField(name);
+			if (field!=null) return field;
+		}
+		return null;
+	}
+
+
+	public void testSchema() throws Exception {
+		RefactorSession.getInstance().loadProject("sports2000");
+		Schema schema = Schema.getInstance();
+		int count = 0;
+		for (Iterator it = schema.getAllTablesIterator(); it.hasNext(); ) {
+			Table table = (Table) it.next();
+			for (Field field : table.getFieldPosOrder()) {
+				String name = field.getName().toUpperCase();
+				for (int len = 1; len <= name.length(); len++) {
+					String abbrev = name.substring(0, len);
+					assertSame(abbrev, lookupEachTable(schema, abbrev), schema.lookupUnqualifiedField(abbrev));
+					++count;
+				}
+				assertNull(schema.lookupUnqualifiedField(name + "~"));
+			}
+		}
+		assertTrue(count > 0);
+	}
+
+
+	public void testNameIndex() throws Exception {
+		NameIndex<String> index = new NameIndex<String>();
+		index.add("Customer", "customer");
+		index.add("CustomerType", "customertype");
+		index.add("Order", "order");
+		assertEquals("customer", index.lookupExact("sports.CUSTOMER", 7, 15));
+		assertNull(index.lookupExact("cust", 0, 4));
+		assertEquals("customer", index.lookupFirst("cust", 0, 4));
+		assertNull("Not unique", index.lookupUnique("cust", 0, 4));
+		assertEquals("customer", index.lookupUnique("customer", 0, 8));
+		assertEquals("customertype", index.lookupUnique("customert", 0, 9));
+		assertEquals("order", index.lookupUnique("o", 0, 1));
+		assertEquals("order", index.remove("ORDER"));
+		assertNull(index.lookupFirst("o", 0, 1));
+		assertEquals(2, index.size());
+
+		RefactorSession.getInstance().loadProject("sports2000");
+		Schema schema = Schema.getInstance();
+		Table customer = schema.lookupTable("customer");
+		assertNotNull(customer);
+		assertSame(customer, schema.lookupTable("sports2000.cust"));
+		assertSame(customer, schema.lookupTable("sports2000", "Customer"));
+		Table file = schema.lookupTable("dictdb._file");
+		assertNotNull(file);
+		assertSame(file, schema.lookupTable("sports2000._file"));
+		assertNull(schema.lookupTable("nosuchdb.customer"));
+	}
+
+
+	public void testTempTables() throws Exception {
+		FieldNameIndex index = new FieldNameIndex();
+		Table tt1 = new Table("tt1", IConstants.ST_TTABLE);
+		Field f1 = new Field("custName", tt1);
+		index.addTable(tt1);
+		Table tt2 = new Table("tt2", IConstants.ST_TTABLE);
+		index.addTable(tt2);
+		assertSame(f1, index.lookup("CUSTN"));
+		assertNull(index.lookup("custNum"));
+
+		// Fields added after the table are indexed too.
+		Field f2 = new Field("custNum", tt2);
+		assertSame(f2, index.lookup("custNum"));
+		Field f3 = new Field("custNum", null);
+		f3.setTable(tt1);
+		assertSame("Table defined first is found first", f3, index.lookup("custNum"));
+		assertSame(f1, index.lookup("cust"));
+		assertEquals(3, index.size());
+	}
+
+
+}
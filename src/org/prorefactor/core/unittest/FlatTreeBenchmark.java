@@ -0,0 +1,141 @@
+/**
+ * FlatTreeBenchmark.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import org.prorefactor.core.FlatTree;
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+
+
+/** Compares a FlatTree to the JPNode tree it was built from: heap used, and the time
+ * for a walk of the whole tree that counts the nodes of one type.
+ * <p>
+ * Usage: FlatTreeBenchmark [file]
+ * Without a file, a program of 15000 lines is generated.
+ */
+public class FlatTreeBenchmark {
+
+	private static final int PASSES = 50;
+
+	public static void main(String[] args) throws Exception {
+		RefactorSession.getInstance().loadProject("sports2000");
+		File file;
+		if (args.length > 0) {
+			file = new File(args[0]);
+		} else {
+			file = File.createTempFile("flattree", ".p");
+			file.deleteOnExit();
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			for (int i = 0; i < 3000; i++) {
+				writer.write("define variable v" + i + " as character no-undo.\n");
+				writer.write("for each customer no-lock where customer.name begins v" + i + ":\n");
+				writer.write("  display customer.custnum customer.name customer.city.\n");
+				writer.write("  v" + i + " = customer.name + \" \" + string(customer.custnum).\n");
+				writer.write("end.\n");
+			}
+			writer.close();
+		}
+
+		long base = usedMemory();
+		DoParse doParse = new DoParse(file.getPath());
+		doParse.doParse();
+		JPNode root = doParse.getTopNode();
+		doParse = null;
+		long withNodes = usedMemory();
+		FlatTree flat = FlatTree.build(root);
+		long withBoth = usedMemory();
+
+		int type = TokenTypes.Field_ref;
+		// Warm up, then time.
+		walkNodes(root, type);
+		walkCursor(flat, type);
+		flat.query(0, type);
+		long start = System.nanoTime();
+		int nodeCount = 0;
+		for (int i = 0; i < PASSES; i++)
+			nodeCount = walkNodes(root, type);
+		long nodeTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		int cursorCount = 0;
+		for (int i = 0; i < PASSES; i++)
+			cursorCount = walkCursor(flat, type);
+		long cursorTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		int queryCount = 0;
+		for (int i = 0; i < PASSES; i++)
+			queryCount = flat.query(0, type).length;
+		long queryTime = System.nanoTime() - start;
+		if (nodeCount != cursorCount || nodeCount != queryCount)
+			throw new RuntimeException("Counts differ: " + nodeCount + " " + cursorCount + " " + queryCount);
+
+		System.out.println("Nodes: " + flat.size() + ", Field_ref nodes: " + nodeCount);
+		System.out.println("Heap, JPNode tree: " + (withNodes - base) / flat.size() + " bytes per node");
+		System.out.println("Heap, FlatTree:    " + (withBoth - withNodes) / flat.size() + " bytes per node");
+		System.out.println("Walk, JPNode:          " + nodeTime / PASSES / 1000 + " microsec");
+		System.out.println("Walk, FlatTree.Cursor: " + cursorTime / PASSES / 1000 + " microsec");
+		System.out.println("FlatTree.query():      " + queryTime / PASSES / 1000 + " microsec");
+	}
+
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+	/** Preorder walk with the cursor, without recursion. */
+	private static int walkCursor(FlatTree tree, int type) {
+		int count = 0;
+		FlatTree.Cursor cursor = tree.cursor();
+		for (;;) {
+			if (cursor.getType() == type)
+				count++;
+			if (cursor.firstChild())
+				continue;
+			while (! cursor.nextSibling()) {
+				if (! cursor.parent())
+					return count;
+			}
+		}
+	}
+
+
+	/** Preorder walk of the JPNode tree, without recursion. */
+	private static int walkNodes(JPNode root, int type) {
+		int count = 0;
+		JPNode node = root;
+		while (node!=null) {
+			if (node.getType() == type)
+				count++;
+			if (node.firstChild()!=null) {
+				node = node.firstChild();
+				continue;
+			}
+			while (node!=root && node.nextSibling()==null)
+				node = node.parent();
+			node = node==root ? null : node.nextSibling();
+		}
+		return count;
+	}
+
+
+}
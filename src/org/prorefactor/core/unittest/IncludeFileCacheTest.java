@@ -0,0 +1,65 @@
+/**
+ * IncludeFileCacheTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.joanju.proparse.IncludeFileCache;
+
+
+/** Test the include file cache's reloading and eviction. */
+public class IncludeFileCacheTest extends TestCase {
+
+	public void test01() throws Exception {
+		File file1 = File.createTempFile("inccache", ".i");
+		File file2 = File.createTempFile("inccache", ".i");
+		try {
+			FileUtils.writeStringToFile(file1, "display 'one'.");
+			FileUtils.writeStringToFile(file2, "display 'two'.");
+			IncludeFileCache cache = new IncludeFileCache(100);
+
+			assertEquals("display 'one'.", new String(cache.get(file1.getPath())));
+			assertEquals("display 'one'.", new String(cache.get(file1.getPath())));
+			assertEquals(1, cache.getHits());
+			assertEquals(1, cache.getMisses());
+
+			// Changed size means the file gets read again.
+			FileUtils.writeStringToFile(file1, "display 'one changed'.");
+			assertEquals("display 'one changed'.", new String(cache.get(file1.getPath())));
+			assertEquals(2, cache.getMisses());
+			assertEquals(1, cache.getCachedFiles());
+
+			// Over the limit, the least recently used gets evicted.
+			cache.get(file2.getPath());
+			assertEquals(2, cache.getCachedFiles());
+			cache.setMaxChars(30);
+			assertEquals(1, cache.getCachedFiles());
+			assertEquals(1, cache.getEvictions());
+			cache.get(file2.getPath());
+			assertEquals(2, cache.getHits());
+
+			// Too big to cache at all.
+			cache.setMaxChars(5);
+			assertEquals("display 'two'.", new String(cache.get(file2.getPath())));
+			assertEquals(0, cache.getCachedFiles());
+			assertEquals(0, cache.getCachedChars());
+		} finally {
+			file1.delete();
+			file2.delete();
+		}
+	}
+
+
+}
@@ -0,0 +1,186 @@
+/**
+ * IncrementalParseTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.IncrementalParse;
+import com.joanju.proparse.ProToken;
+
+
+/** Test that reparsing one internal procedure gives the same tree as a full parse. */
+public class IncrementalParseTest extends TestCase {
+
+	private static final String SOURCE =
+		"&SCOPED-DEFINE greeting \"hello\"\n"
+		+ "&GLOBAL-DEFINE count 3\n"
+		+ "def var i as int no-undo.\n"
+		+ "def var c as char no-undo.\n"
+		+ "\n"
+		+ "procedure p1:\n"
+		+ "  def var x as int no-undo.\n"
+		+ "  do i = 1 to {&count}:\n"
+		+ "    x = x + i.\n"
+		+ "  end.\n"
+		+ "  message {&greeting} x.\n"
+		+ "end procedure.\n"
+		+ "\n"
+		+ "&UNDEFINE greeting\n"
+		+ "&SCOPED-DEFINE greeting \"bye\"\n"
+		+ "\n"
+		+ "procedure p2:\n"
+		+ "  find first customer no-lock no-error.\n"
+		+ "  if available customer then c = customer.name.\n"
+		+ "  message {&greeting} c.\n"
+		+ "end procedure.\n"
+		+ "\n"
+		+ "run p1. /* trailing */ run p2.\n"
+		;
+
+	private File file;
+
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		file = File.createTempFile("incremental", ".p");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write(SOURCE);
+		writer.close();
+	}
+
+
+	/** Reparse, and compare to a full parse of the same text. */
+	private boolean reparse(IncrementalParse incremental, String newText) throws Exception {
+		boolean ret = incremental.reparse(newText);
+		IncrementalParse full = new IncrementalParse(file.getPath());
+		assertFalse(full.reparse(newText));
+		compare(full.getTopNode(), incremental.getTopNode());
+		return ret;
+	}
+
+
+	private void compare(JPNode expected, JPNode actual) {
+		String where = expected.getLine() + ":" + expected.getColumn() + " " + expected.getText();
+		assertEquals(where, expected.getType(), actual.getType());
+		assertEquals(where, expected.getText(), actual.getText());
+		assertEquals(where, expected.getFileIndex(), actual.getFileIndex());
+		assertEquals(where, expected.getLine(), actual.getLine());
+		assertEquals(where, expected.getColumn(), actual.getColumn());
+		assertEquals(where, expected.getNodeNum(), actual.getNodeNum());
+		assertEquals(where, expected.getFilename(), actual.getFilename());
+		ProToken a = actual.getHiddenBefore();
+		for (ProToken e = expected.getHiddenBefore(); e!=null; e = e.getPrev()) {
+			assertNotNull(where, a);
+			assertEquals(where, e.getText(), a.getText());
+			assertEquals(where, e.getLine(), a.getLine());
+			assertEquals(where, e.getColumn(), a.getColumn());
+			a = a.getPrev();
+		}
+		assertNull(where, a);
+		JPNode actualChild = actual.firstChild();
+		for (JPNode child = expected.firstChild(); child!=null; child = child.nextSibling()) {
+			assertNotNull(where, actualChild);
+			assertSame(actual, actualChild.parent());
+			compare(child, actualChild);
+			actualChild = actualChild.nextSibling();
+		}
+		assertNull(where, actualChild);
+	}
+
+
+	public void testReparse() throws Exception {
+		IncrementalParse incremental = new IncrementalParse(file.getPath());
+		incremental.parse();
+		JPNode root = incremental.getTopNode();
+
+		// Within p1, adding a line.
+		String text = SOURCE.replace("x = x + i.", "x = x + i * 2.\n    display x.");
+		assertTrue(reparse(incremental, text));
+		assertSame(root, incremental.getTopNode());
+		assertEquals(TokenTypes.PROCEDURE, incremental.getReparsedNode().getType());
+		assertEquals("p1", incremental.getReparsedNode().firstChild().getText());
+		assertEquals(1, root.query(TokenTypes.DISPLAY).size());
+
+		// Within p2, on one line. The scoped define was redefined before p2.
+		text = text.replace("message {&greeting} c.", "message {&greeting} c skip.");
+		assertTrue(reparse(incremental, text));
+		assertEquals("p2", incremental.getReparsedNode().firstChild().getText());
+		assertEquals("\"bye\"", incremental.getReparsedNode().query(TokenTypes.QSTRING).get(0).getText());
+
+		// Removing the added line again.
+		text = text.replace("x = x + i * 2.\n    display x.", "x = x + i.");
+		assertTrue(reparse(incremental, text));
+		assertEquals(0, root.query(TokenTypes.DISPLAY).size());
+
+		// Outside of the procedures.
+		text = text.replace("run p1.", "run p2.");
+		assertFalse(reparse(incremental, text));
+		assertNull(incremental.getReparsedNode());
+
+		// A preprocessor directive within a procedure.
+		text = text.replace("x = x + i.", "&SCOPED-DEFINE other 1\n    x = x + i.");
+		assertFalse(reparse(incremental, text));
+
+		// A syntax error gets reported by the full parse.
+		try {
+			incremental.reparse(text.replace("x = x + i.", "x = x + ."));
+			fail("Expected a parse error");
+		} catch (Exception e) {
+		}
+	}
+
+
+	/** A unit scope definition after the procedure isn't seen by the procedure's reparse.
+	 * Here "customer" in the procedure is the table, since the variable isn't defined yet.
+	 */
+	public void testLaterDefinition() throws Exception {
+		String source =
+			"procedure p1:\n"
+			+ "  display customer.\n"
+			+ "end procedure.\n"
+			+ "def var customer as char no-undo.\n"
+			+ "procedure p2:\n"
+			+ "  display customer.\n"
+			+ "end procedure.\n"
+			;
+		IncrementalParse incremental = new IncrementalParse(file.getPath());
+		assertFalse(incremental.reparse(source));
+		JPNode root = incremental.getTopNode();
+		assertEquals(1, root.query(TokenTypes.RECORD_NAME).size());
+
+		String text = source.replace("  display customer.\nend procedure.\ndef", "  display customer.\n  message 1.\nend procedure.\ndef");
+		assertTrue(reparse(incremental, text));
+		assertEquals("p1", incremental.getReparsedNode().firstChild().getText());
+		assertEquals(1, incremental.getReparsedNode().query(TokenTypes.RECORD_NAME).size());
+
+		// And p2, after it, does see the variable. The reparse of p1 moved p2 down a line.
+		text = text.replace("procedure p2:\n  display customer.", "procedure p2:\n  display customer skip.");
+		assertTrue(reparse(incremental, text));
+		assertEquals("p2", incremental.getReparsedNode().firstChild().getText());
+		assertEquals(0, incremental.getReparsedNode().query(TokenTypes.RECORD_NAME).size());
+
+		// p1 again, after the reparses have replaced the blocks' inner scope events.
+		text = text.replace("message 1.", "message 2.");
+		assertTrue(reparse(incremental, text));
+		assertEquals("p1", incremental.getReparsedNode().firstChild().getText());
+	}
+
+
+}
@@ -0,0 +1,72 @@
+/**
+ * LexerBenchmark.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+
+
+/** Lexing throughput: the preprocessor, lexer, and postlexer (&IF evaluation)
+ * over the source files in a directory, without the parser.
+ * <p>
+ * Usage: LexerBenchmark [dir]
+ * The default directory is data. Files that don't lex (ex: test data for errors)
+ * are left out. MB/s is for the sizes of the files in the directory, and doesn't count
+ * the include files they reference again, although those get lexed too.
+ */
+public class LexerBenchmark {
+
+	private static final int WARMUP = 20;
+	private static final int PASSES = 100;
+
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws Exception {
+		RefactorSession.getInstance().loadProject("sports2000");
+		File dir = new File(args.length > 0 ? args[0] : "data");
+		String [] extensions = {"p", "w", "i", "cls"};
+		Collection<File> all = FileUtils.listFiles(dir, extensions, true);
+		ArrayList<File> files = new ArrayList<File>();
+		long bytes = 0;
+		for (File file : all) {
+			try {
+				new DoParse(file.getPath()).lexOnly();
+			} catch (Exception e) {
+				continue;
+			}
+			files.add(file);
+			bytes += file.length();
+		}
+		long tokens = 0;
+		long nanos = 0;
+		for (int pass = 0; pass < WARMUP + PASSES; pass++) {
+			long start = System.nanoTime();
+			long count = 0;
+			for (File file : files)
+				count += new DoParse(file.getPath()).lexOnly();
+			if (pass >= WARMUP) {
+				nanos += System.nanoTime() - start;
+				tokens += count;
+			}
+		}
+		double seconds = nanos / 1e9;
+		double mb = (double) bytes * PASSES / (1024 * 1024);
+		System.out.println(files.size() + " files, " + bytes + " bytes, " + tokens / PASSES + " tokens");
+		System.out.println(String.format("%.1f MB/s, %.0f tokens/s", mb / seconds, tokens / seconds));
+	}
+
+
+}
@@ -0,0 +1,107 @@
+/**
+ * MacroGraphTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.macrolevel.IncludeRef;
+import org.prorefactor.macrolevel.ListingParser;
+import org.prorefactor.macrolevel.MacroDef;
+import org.prorefactor.macrolevel.MacroEvent;
+import org.prorefactor.macrolevel.MacroGraphBuilder;
+import org.prorefactor.macrolevel.MacroRef;
+import org.prorefactor.macrolevel.NamedMacroRef;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+
+
+/** Test that the macro graph built in memory from the preprocessor's events
+ * is the same as the one built by parsing the listing file.
+ */
+public class MacroGraphTest extends TestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession refpack = RefactorSession.getInstance();
+		refpack.loadProjectForced("unittest");
+	}
+
+
+	private void describe(MacroEvent event, StringBuilder bldr) {
+		if (event==null) {
+			bldr.append("null\n");
+			return;
+		}
+		if (event instanceof MacroDef) {
+			MacroDef def = (MacroDef) event;
+			bldr.append("def ").append(def.type).append(" ").append(def.name)
+				.append(" ").append(def.line).append(":").append(def.column)
+				.append(" [").append(def.value).append("]\n");
+			return;
+		}
+		MacroRef ref = (MacroRef) event;
+		bldr.append(ref.getClass().getSimpleName())
+			.append(" ").append(ref.getListingFileLine())
+			.append(" ").append(ref.refLine).append(":").append(ref.refColumn);
+		if (ref instanceof IncludeRef) {
+			IncludeRef inc = (IncludeRef) ref;
+			bldr.append(" file ").append(inc.fileIndex).append(" ").append(inc.getFileRefName())
+				.append(" args ").append(inc.numArgs());
+			for (int i = 1; i <= inc.numArgs(); i++)
+				bldr.append(" [").append(inc.getArgNumber(i).name).append("=").append(inc.getArgNumber(i).value).append("]");
+		}
+		if (ref instanceof NamedMacroRef) {
+			MacroDef def = ((NamedMacroRef) ref).macroDef;
+			bldr.append(" -> ").append(def==null ? "?" : def.name);
+		}
+		bldr.append("\n");
+		for (MacroEvent child : ref.macroEventList)
+			describe(child, bldr);
+		bldr.append("end\n");
+	}
+
+
+	private String describe(IncludeRef root) {
+		StringBuilder bldr = new StringBuilder();
+		describe(root, bldr);
+		return bldr.toString();
+	}
+
+
+	public void test01() throws Exception {
+		File listingFile = new File(RefactorSession.getListingFileName());
+		String [] extensions = {"p", "w"};
+		Collection files = FileUtils.listFiles(new File("data/bugsfixed"), extensions, true);
+		files.add(new File("data/c-win.w"));
+		files.add(new File("data/pub/test01.p"));
+		for (Iterator it = files.iterator(); it.hasNext();) {
+			File file = (File) it.next();
+			MacroGraphBuilder builder = new MacroGraphBuilder();
+			DoParse doParse = new DoParse(file.getPath());
+			doParse.setListingFile(listingFile.getPath());
+			doParse.addPreprocessorListener(builder);
+			doParse.doParse();
+			ListingParser listingParser = new ListingParser(listingFile.getPath());
+			listingParser.parse();
+			assertEquals(file.toString(), describe(listingParser.getRoot()), describe(builder.getRoot()));
+			assertEquals(file.toString(), listingParser.fileIndexes, builder.getFileIndexes());
+		}
+	}
+
+
+}
@@ -0,0 +1,120 @@
+/**
+ * NodeMemoryBenchmark.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.core.ICallback;
+import org.prorefactor.core.JPNode;
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.ParseUnit;
+
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.TextPool;
+
+
+/** Measures the heap used by fully tree parsed syntax trees, in bytes per node.
+ * The node attributes and links that TreeParser01 sets are a large part of that.
+ * <p>
+ * Usage: NodeMemoryBenchmark [dir-or-file [passes]]
+ * Parses and runs TreeParser01 on every .p, .w, and .cls file under the directory
+ * (data by default), or on the one file, with the sports2000 project loaded.
+ * Files which don't parse are skipped. The trees are parsed the given number of
+ * times (3 by default), and all of the trees are kept, so that the heap difference
+ * is large enough to measure.
+ * <p>
+ * Also reports how much of the token text was found in the TextPool.
+ */
+public class NodeMemoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : "data");
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		RefactorSession.getInstance().loadProject("sports2000");
+		Collection files = dir.isFile()
+				? Collections.singletonList(dir)
+				: FileUtils.listFiles(dir, new String[] {"p", "w", "cls"}, true);
+		ArrayList<File> good = new ArrayList<File>();
+		for (Iterator it = files.iterator(); it.hasNext(); ) {
+			File file = (File) it.next();
+			try {
+				parse(file);
+				good.add(file);
+			} catch (Throwable e) {
+				// Not all of the test data is meant to parse.
+			}
+		}
+		ArrayList<JPNode> trees = new ArrayList<JPNode>();
+		long before = usedMemory();
+		for (int i = 0; i < passes; i++) {
+			for (File file : good)
+				trees.add(parse(file));
+		}
+		long after = usedMemory();
+		final int [] count = new int[1];
+		ICallback counter = new ICallback() {
+			public Object run(Object obj) {
+				++count[0];
+				return null;
+			}
+		};
+		for (JPNode tree : trees)
+			tree.walk(counter);
+		System.out.println("Files: " + good.size() + " of " + files.size() + ", passes: " + passes);
+		System.out.println("Nodes: " + count[0]);
+		System.out.println("Heap:  " + (after - before) + " bytes");
+		System.out.println("Bytes per node: " + (after - before) / Math.max(1, count[0]));
+		textPoolStats(good);
+	}
+
+
+	private static JPNode parse(File file) throws Exception {
+		ParseUnit pu = new ParseUnit(file);
+		pu.treeParser01();
+		return pu.getTopNode();
+	}
+
+
+	/** Parse each file once more, to report how the token text pool did. */
+	private static void textPoolStats(ArrayList<File> files) throws Exception {
+		long keywordHits = 0;
+		long hits = 0;
+		long misses = 0;
+		for (File file : files) {
+			DoParse doParse = new DoParse(file.getPath());
+			doParse.doParse();
+			TextPool pool = doParse.getTextPool();
+			keywordHits += pool.getKeywordHits();
+			hits += pool.getHits();
+			misses += pool.getMisses();
+		}
+		long total = Math.max(1, keywordHits + hits + misses);
+		System.out.println("Token text: " + keywordHits * 100 / total + "% keyword hits, "
+				+ hits * 100 / total + "% pool hits, " + misses * 100 / total + "% new");
+	}
+
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+
+}
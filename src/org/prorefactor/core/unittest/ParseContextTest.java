@@ -0,0 +1,100 @@
+/**
+ * ParseContextTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.core.schema.Table;
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.FieldBuffer;
+import org.prorefactor.treeparser.ParseUnit;
+
+import com.joanju.proparse.Environment;
+import com.joanju.proparse.ParseContext;
+
+
+/** Test parsing the same compile unit under two ParseContexts, each with its own schema.
+ * The second schema has CustNum renamed to CustNbr.
+ */
+public class ParseContextTest extends TestCase {
+
+	private File dir;
+	private File unitFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		dir = File.createTempFile("context", "");
+		dir.delete();
+		dir.mkdir();
+		unitFile = new File(dir, "unit.p");
+		FileUtils.writeStringToFile(unitFile, "display creditlimit customer.custn.");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+
+	/** The FieldBuffer symbols of the Field_ref nodes, in tree order. */
+	private FieldBuffer [] fields(ParseContext context) throws Exception {
+		ParseUnit pu = new ParseUnit(unitFile);
+		pu.setContext(context);
+		pu.treeParser01();
+		List<JPNode> refs = pu.getTopNode().query(TokenTypes.Field_ref);
+		FieldBuffer [] ret = new FieldBuffer[refs.size()];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = (FieldBuffer) refs.get(i).getSymbol();
+		return ret;
+	}
+
+
+	public void test01() throws Exception {
+		File schemaFile = new File(dir, "renamed.schema");
+		FileUtils.writeStringToFile(schemaFile, FileUtils.readFileToString(
+				new File("prorefactor/projects/sports2000/proparse.schema")).replace("CustNum", "CustNbr"));
+		Schema renamed = new Schema();
+		renamed.loadSchema(schemaFile.getPath());
+		ParseContext renamedContext = new ParseContext(
+				Environment.instance(), renamed, RefactorSession.getInstance());
+		Schema schema = Schema.getInstance();
+
+		FieldBuffer [] fields = fields(ParseContext.getDefault());
+		assertEquals(2, fields.length);
+		assertEquals("CustNum", fields[1].getField().getName());
+		assertSame(schema.lookupTable("customer"), fields[0].getField().getTable());
+		assertSame(schema.lookupTable("customer"), fields[1].getField().getTable());
+
+		fields = fields(renamedContext);
+		assertEquals(2, fields.length);
+		assertEquals("CustNbr", fields[1].getField().getName());
+		Table table = renamed.lookupTable("customer");
+		assertNotSame(schema.lookupTable("customer"), table);
+		assertSame(table, fields[0].getField().getTable());
+		assertSame(table, fields[1].getField().getTable());
+
+		// The default context is not affected by the other one.
+		fields = fields(ParseContext.getDefault());
+		assertEquals("CustNum", fields[1].getField().getName());
+	}
+
+
+}
@@ -0,0 +1,147 @@
+/**
+ * PositionIndexTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.PositionIndex;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.nodetypes.ProgramRootNode;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.Environment;
+
+
+/** Test the PositionIndex queries, and that the index built during
+ * the parse is the same as one built from the finished tree.
+ */
+public class PositionIndexTest extends TestCase {
+
+	private ProgramRootNode root;
+
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		Environment.instance().configSet("position-index", "true");
+		try {
+			DoParse doParse = new DoParse(new File("data/pub/test01.p").getPath());
+			doParse.doParse();
+			root = (ProgramRootNode) doParse.getTopNode();
+		} finally {
+			Environment.instance().configSet("position-index", "false");
+		}
+	}
+
+
+	public void testQueries() throws Exception {
+		PositionIndex index = root.getPositionIndex();
+
+		// def shared var sharedChar as char.
+		JPNode node = index.getCoveringNode(0, 4, 1);
+		assertEquals(TokenTypes.DEFINE, node.getType());
+		assertSame(node, index.getStatement(0, 4, 17));
+		assertEquals("sharedChar", index.getCoveringNode(0, 4, 17).getText());
+
+		// "  myChar = customer.name." inside the DO block.
+		node = index.getCoveringNode(0, 11, 3);
+		assertEquals("myChar", node.getText());
+		assertSame(node, index.getNodeFrom(0, 11, 1));
+		JPNode statement = index.getStatement(0, 11, 3);
+		assertSame(node.getStatement(), statement);
+		assertSame(statement, index.getStatement(0, 11, 20));
+		ArrayList<JPNode> inRange = index.getNodesInRange(0, 11, 1, 12, 1);
+		assertSame(statement, inRange.get(0));
+		assertTrue(inRange.contains(node));
+		for (JPNode n : inRange)
+			assertSame(statement, n.getStatement());
+
+		// Whitespace within the block is covered by the DO statement.
+		assertEquals(TokenTypes.DO, index.getStatement(0, 11, 1).getType());
+
+		// The include file.
+		assertEquals(TokenTypes.RETURN, index.getStatement(1, 3, 1).getType());
+
+		assertNull(index.getCoveringNode(0, 1000, 1));
+		assertNull(index.getCoveringNode(9, 1, 1));
+	}
+
+
+	/** The index from the parse and the index built by walking the tree find the same nodes. */
+	public void testBuild() throws Exception {
+		PositionIndex fromParse = root.getPositionIndex();
+		PositionIndex fromTree = PositionIndex.build(root);
+		assertTrue(compare(root, fromParse, fromTree) > 10);
+	}
+
+
+	/** The old way, adding nodes one at a time, still finds the node at or after a position. */
+	@SuppressWarnings("deprecation")
+	public void testAddNode() throws Exception {
+		PositionIndex index = new PositionIndex();
+		assertNull(index.getNodeFrom(0, 1, 1));
+		JPNode node = root.getPositionIndex().getCoveringNode(0, 11, 3);
+		index.addNode(node);
+		assertSame(node, index.getNodeFrom(0, 11, 1));
+		assertNull(index.getNodeFrom(0, 11, 4));
+		JPNode doNode = root.getPositionIndex().getStatement(0, 9, 1);
+		assertEquals(TokenTypes.DO, doNode.getType());
+		index.addNode(doNode);
+		assertSame(doNode, index.getNodeFrom(0, 1, 1));
+		assertSame(node, index.getNodeFrom(0, 9, 2));
+		assertSame(node, index.getNodeFrom(0, 11, 3));
+		// Of two nodes at the same position, the first one added.
+		JPNode other = new JPNode(0, 11, 3);
+		other.setText("x");
+		index.addNode(other);
+		assertSame(node, index.getNodeFrom(0, 11, 3));
+	}
+
+
+	/** After the tree is changed, getPositionIndex() builds a new index. */
+	public void testTreeChange() throws Exception {
+		PositionIndex index = root.getPositionIndex();
+		assertSame(index, root.getPositionIndex());
+		JPNode first = root.firstChild();
+		JPNode define = index.getCoveringNode(0, 4, 1);
+		assertSame(define, index.getStatement(0, 4, 1));
+		// Drop the statements up to and including the DEFINE.
+		root.setFirstChild(define.nextSibling());
+		PositionIndex changed = root.getPositionIndex();
+		assertNotSame(index, changed);
+		assertNull(changed.getStatement(0, 4, 1));
+		assertSame(changed, root.getPositionIndex());
+		root.setFirstChild(first);
+	}
+
+
+	private int compare(JPNode node, PositionIndex fromParse, PositionIndex fromTree) {
+		int count = 0;
+		if (node.getLine() > 0) {
+			int file = node.getFileIndex();
+			int line = node.getLine();
+			int col = node.getColumn();
+			assertSame(fromParse.getCoveringNode(file, line, col), fromTree.getCoveringNode(file, line, col));
+			assertSame(fromParse.getNodeFrom(file, line, col), fromTree.getNodeFrom(file, line, col));
+			++count;
+		}
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			count += compare(child, fromParse, fromTree);
+		return count;
+	}
+
+
+}
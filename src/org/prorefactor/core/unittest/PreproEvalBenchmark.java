@@ -0,0 +1,94 @@
+/**
+ * PreproEvalBenchmark.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.Environment;
+
+
+/** Time for parsing a program with lots of &IF conditions, with the "fast-prepro-eval"
+ * flag on (PreproEval) and off (a DoParse and ProEval for every condition),
+ * and with the results from an earlier parse in the ConditionCache.
+ * <p>
+ * Usage: PreproEvalBenchmark [file]
+ * Without a file, a program with 4000 version checks like the ones
+ * in framework headers is generated.
+ */
+public class PreproEvalBenchmark {
+
+	private static final int PASSES = 10;
+
+	public static void main(String[] args) throws Exception {
+		RefactorSession.getInstance().loadProject("sports2000");
+		File file;
+		if (args.length > 0) {
+			file = new File(args[0]);
+		} else {
+			file = File.createTempFile("preproeval", ".p");
+			file.deleteOnExit();
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			writer.write("&GLOBAL-DEFINE version 10.2B\n");
+			writer.write("&GLOBAL-DEFINE db-count 2\n");
+			for (int i = 0; i < 1000; i++) {
+				writer.write("&IF DEFINED(feature" + i + ") = 0 &THEN\n");
+				writer.write("&SCOPED-DEFINE feature" + i + " yes\n");
+				writer.write("&ENDIF\n");
+				writer.write("&IF \"{&version}\" >= \"10.1\" AND {&db-count} > 1 &THEN\n");
+				writer.write("define variable v" + i + " as int64 no-undo.\n");
+				writer.write("&ELSEIF INTEGER(ENTRY(1, PROVERSION, \".\")) >= 9 &THEN\n");
+				writer.write("define variable v" + i + " as integer no-undo.\n");
+				writer.write("&ENDIF\n");
+				writer.write("&IF LOOKUP(OPSYS, \"UNIX,WIN32\") > 0 &THEN\n");
+				writer.write("v" + i + " = " + i + ".\n");
+				writer.write("&ENDIF\n");
+			}
+			writer.close();
+		}
+
+		Environment env = Environment.instance();
+		long [] millis = new long[3];
+		try {
+			// Warm up all of the modes before timing any of them.
+			for (int pass = 0; pass < 2; pass++) {
+				for (int mode = 0; mode < 3; mode++) {
+					env.configSet("fast-prepro-eval", mode == 1 ? "false" : "true");
+					boolean useCache = mode == 2;
+					long start = System.nanoTime();
+					for (int i = 0; i < PASSES; i++)
+						parse(file, useCache);
+					millis[mode] = (System.nanoTime() - start) / PASSES / 1000000;
+				}
+			}
+		} finally {
+			env.configSet("fast-prepro-eval", "true");
+		}
+		System.out.println("Parse with PreproEval:      " + millis[0] + " ms");
+		System.out.println("Parse with ProEval:         " + millis[1] + " ms");
+		System.out.println("Parse with ConditionCache:  " + millis[2] + " ms");
+		System.out.println(env.getConditionCache());
+	}
+
+
+	private static void parse(File file, boolean useCache) throws Exception {
+		if (! useCache)
+			Environment.instance().getConditionCache().clear();
+		DoParse doParse = new DoParse(file.getPath());
+		doParse.doParse();
+	}
+
+
+}
@@ -0,0 +1,227 @@
+/**
+ * PreproEvalTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.ConditionCache;
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.Environment;
+import com.joanju.proparse.PreprocessorEventListener;
+
+
+/** Test that &IF conditions evaluate the same with PreproEval
+ * as they do with ProEval (the "fast-prepro-eval" flag turned off),
+ * and test the ConditionCache.
+ */
+public class PreproEvalTest extends TestCase {
+
+	/** Each condition, and what it should evaluate to. */
+	private static final Object [][] CONDITIONS = {
+		{"1 = 1", true},
+		{"1 = 2", false},
+		{"\"abc\" BEGINS \"AB\"", true},
+		{"DEFINED(version) = 1", true},
+		{"DEFINED(count) = 3", true},
+		{"DEFINED(nosuch) = 0", true},
+		{"\"{&version}\" >= \"10.1\"", true},
+		{"\"{&version}\" < \"10.1\"", false},
+		{"{&count} * 2 + 1 = 7", true},
+		{"NOT {&count} > 5", true},
+		{"{&count} > 1 AND {&count} < 3", false},
+		{"{&count} = 1 OR {&count} = 3", true},
+		{"{&count} <> 3", false},
+		{"INTEGER(ENTRY(1, \"{&version}\", \".\")) >= 10", true},
+		{"LOOKUP(OPSYS, \"UNIX,WIN32\") = 2", true},
+		{"PROVERSION BEGINS \"9\"", true},
+		{"MAXIMUM(1, 5, 3) = 5", true},
+		{"MINIMUM(4, 2, 8) = 2", true},
+		{"SUBSTRING(\"abcdef\", 2, 3) = \"bcd\"", true},
+		{"\"hello\" MATCHES \"h*o\"", true},
+		{"7 MODULO 3 = 1", true},
+		{"-2 + 5 = 3", true},
+		{"(1 + 2) * 3 = 9", true},
+		{"1 + 2 * 3 = 7", true},
+		{"10 / 4 = 2", true},
+		{"1.5 + 1 > 2", true},
+		{"TRIM(\"  x  \") = \"x\"", true},
+		{"LENGTH(\"abc\") = 3", true},
+		{"NUM-ENTRIES(\"a,b,c\") = 3", true},
+		{"INDEX(\"abc\", \"c\") = 3", true},
+		{"R-INDEX(\"abcabc\", \"b\") = 5", true},
+		{"REPLACE(\"aXa\", \"x\", \"b\") = \"aba\"", true},
+		{"STRING(12) = \"12\"", true},
+		{"KEYWORD(\"def\") = \"DEFINE\"", true},
+		{"?", false},
+		{"\"\"", false},
+		{"\"x\"", true},
+		{"0", false},
+		{"yes", true},
+		// Left to ProEval, which ignores the tokens after the expression.
+		{"1 = 1 2", true},
+	};
+
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+	}
+
+
+	/** Records the result of each &IF and &ELSEIF. */
+	private static class IfResults implements PreprocessorEventListener {
+		ArrayList<Boolean> results = new ArrayList<Boolean>();
+		public void define(int file, int line, int column, boolean isGlobal, String name, String value) {}
+		public void fileIndex(int fileIndex, String fileName) {}
+		public void include(int file, int line, int column, int includeFileIndex, String referencedWithName) {}
+		public void includeArgument(String name, String value) {}
+		public void includeEnd() {}
+		public void macroRef(int file, int line, int column, String macroName) {}
+		public void macroRefEnd() {}
+		public void preproElse(int file, int line, int column, Boolean isTrue) {}
+		public void preproElseIf(int file, int line, int column, Boolean isTrue) { results.add(isTrue); }
+		public void preproEndIf(int file, int line, int column) {}
+		public void preproIf(int file, int line, int column, boolean isTrue) { results.add(isTrue); }
+		public void undefine(int file, int line, int column, String name) {}
+	}
+
+
+	private File writeFile(String text) throws IOException {
+		File file = File.createTempFile("preproeval", ".p");
+		file.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write(text);
+		writer.close();
+		return file;
+	}
+
+
+	private ArrayList<Boolean> evaluate(File file, boolean fast) throws Exception {
+		Environment env = Environment.instance();
+		// Otherwise the second evaluation just gets the results from the first.
+		env.getConditionCache().clear();
+		env.configSet("fast-prepro-eval", fast ? "true" : "false");
+		try {
+			return parse(file);
+		} finally {
+			env.configSet("fast-prepro-eval", "true");
+		}
+	}
+
+
+	private ArrayList<Boolean> parse(File file) throws Exception {
+		IfResults ifResults = new IfResults();
+		DoParse doParse = new DoParse(file.getPath());
+		doParse.addPreprocessorListener(ifResults);
+		doParse.doParse();
+		return ifResults.results;
+	}
+
+
+	public void testConditions() throws Exception {
+		StringBuilder text = new StringBuilder();
+		text.append("&GLOBAL-DEFINE version 10.2B\n");
+		text.append("&SCOPED-DEFINE count 3\n");
+		ArrayList<Boolean> expected = new ArrayList<Boolean>();
+		for (Object [] condition : CONDITIONS) {
+			text.append("&IF " + condition[0] + " &THEN\n");
+			text.append("display 1.\n");
+			text.append("&ENDIF\n");
+			expected.add((Boolean) condition[1]);
+		}
+		// &ELSEIF is evaluated only if the &IF was false.
+		text.append("&IF 1 = 2 &THEN\n&ELSEIF {&count} = 3 &THEN\n&ELSEIF yes &THEN\n&ENDIF\n");
+		expected.add(false);
+		expected.add(true);
+		expected.add(null);
+		File file = writeFile(text.toString());
+		ArrayList<Boolean> fast = evaluate(file, true);
+		for (int i = 0; i < CONDITIONS.length; i++)
+			assertEquals((String) CONDITIONS[i][0], expected.get(i), fast.get(i));
+		assertEquals(expected, fast);
+		assertEquals(evaluate(file, false), fast);
+	}
+
+
+	public void testConditionCache() throws Exception {
+		Environment env = Environment.instance();
+		ConditionCache cache = env.getConditionCache();
+		cache.clear();
+		cache.resetCounters();
+		String conditions =
+			"&IF \"{&level}\" > \"1\" &THEN\n&ENDIF\n"
+			+ "&IF DEFINED(level) = 0 &THEN\n&ENDIF\n"
+			+ "&IF PROVERSION BEGINS \"9\" &THEN\n&ENDIF\n";
+		File level2 = writeFile("&GLOBAL-DEFINE level 2\n" + conditions);
+		File level0 = writeFile("&GLOBAL-DEFINE level 0\n" + conditions);
+		File undefined = writeFile(conditions);
+		try {
+			ArrayList<Boolean> first = parse(level2);
+			assertEquals(0, cache.getHits());
+			assertEquals(3, cache.getMisses());
+			assertEquals(first, parse(level2));
+			assertEquals(3, cache.getHits());
+			assertEquals(3, cache.getMisses());
+
+			// A different value for the referenced name is a different condition.
+			// The other two conditions are the same.
+			ArrayList<Boolean> results = parse(level0);
+			assertEquals(Boolean.FALSE, results.get(0));
+			assertEquals(first.subList(1, 3), results.subList(1, 3));
+			assertEquals(5, cache.getHits());
+			assertEquals(4, cache.getMisses());
+			results = parse(undefined);
+			assertEquals(Boolean.TRUE, results.get(1));
+			assertEquals(6, cache.getMisses());
+
+			// Changing the PROVERSION setting clears the cache.
+			String proversion = env.configGet("proversion");
+			env.configSet("proversion", "10.2B");
+			try {
+				assertEquals(0, cache.size());
+				results = parse(level2);
+				assertEquals(Boolean.FALSE, results.get(2));
+			} finally {
+				env.configSet("proversion", proversion);
+			}
+			assertEquals(first, parse(level2));
+		} finally {
+			cache.clear();
+		}
+	}
+
+
+	/** Errors come from ProEval, either way. */
+	public void testError() throws Exception {
+		File file = writeFile("&IF 1 + \"a\" = 2 &THEN\n&ENDIF\n");
+		String [] messages = new String[2];
+		for (int i = 0; i < 2; i++) {
+			try {
+				evaluate(file, i == 0);
+				fail("Expected an exception");
+			} catch (RuntimeException e) {
+				messages[i] = e.getMessage();
+			}
+		}
+		assertTrue(messages[0], messages[0].contains("Incompatible data type"));
+		assertEquals(messages[1], messages[0]);
+	}
+
+
+}
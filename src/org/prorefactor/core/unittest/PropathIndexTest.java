@@ -0,0 +1,98 @@
+/**
+ * PropathIndexTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import com.joanju.proparse.Environment;
+import com.joanju.proparse.PropathIndex;
+
+
+/** Test finding files through the PropathIndex: hits, names that aren't found,
+ * refresh(), files that are removed, and changing the PROPATH.
+ */
+public class PropathIndexTest extends TestCase {
+
+	private File dir;
+	private File dirA;
+	private File dirB;
+	private Environment env;
+	private String oldPropath;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		env = Environment.instance();
+		oldPropath = env.configGet("propath");
+		dir = File.createTempFile("propath", "");
+		dir.delete();
+		dirA = new File(dir, "a");
+		dirB = new File(dir, "b");
+		dirA.mkdirs();
+		dirB.mkdirs();
+		env.configSet("propath", dirA.getPath() + "," + dirB.getPath());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		env.configSet("propath", oldPropath);
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+
+	private String path(File base, String name) {
+		return base.getPath() + File.separatorChar + name;
+	}
+
+
+	public void test01() throws Exception {
+		PropathIndex index = env.getPropathIndex();
+		FileUtils.writeStringToFile(new File(dirB, "inc/b.i"), "");
+		assertEquals(0, index.size());
+
+		// Found in the second entry, and remembered.
+		assertEquals(path(dirB, "inc/b.i"), index.find("inc/b.i"));
+		assertEquals(1, index.size());
+		FileUtils.writeStringToFile(new File(dirA, "inc/b.i"), "");
+		assertEquals(path(dirB, "inc/b.i"), index.find("inc/b.i"));
+
+		// After refresh(), the earlier PROPATH entry wins.
+		index.refresh();
+		assertEquals(0, index.size());
+		assertEquals(path(dirA, "inc/b.i"), index.find("inc/b.i"));
+
+		// Names that aren't found aren't remembered, so a new file is found right away.
+		assertEquals("", index.find("inc/new.i"));
+		assertEquals(1, index.size());
+		FileUtils.writeStringToFile(new File(dirB, "inc/new.i"), "");
+		assertEquals(path(dirB, "inc/new.i"), index.find("inc/new.i"));
+		assertEquals(2, index.size());
+
+		// A remembered file that has been removed is searched for again.
+		new File(dirA, "inc/b.i").delete();
+		assertEquals(path(dirB, "inc/b.i"), index.find("inc/b.i"));
+		new File(dirB, "inc/b.i").delete();
+		assertEquals("", index.find("inc/b.i"));
+		FileUtils.writeStringToFile(new File(dirB, "inc/b.i"), "");
+
+		// Changing the PROPATH refreshes the index.
+		env.configSet("propath", dirB.getPath());
+		assertEquals(0, index.size());
+		assertEquals(path(dirB, "inc/b.i"), index.find("inc/b.i"));
+	}
+
+
+}
@@ -0,0 +1,119 @@
+/**
+ * SocketStreamTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.sockets.FrameOutputStream;
+import com.joanju.proparse.sockets.SocketListener;
+
+
+/** Test that the server's streaming mode sends the same blob and header
+ * as the default length-prefixed mode.
+ */
+public class SocketStreamTest extends TestCase {
+
+	private ServerSocketChannel serverChannel;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("localhost", 0));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		serverChannel.close();
+		super.tearDown();
+	}
+
+
+	/** Send a request, and have a SocketListener handle it on the server side.
+	 * Returns the stream of the response.
+	 */
+	private DataInputStream request(String request) throws Exception {
+		Socket client = new Socket("localhost", serverChannel.socket().getLocalPort());
+		OutputStream out = client.getOutputStream();
+		out.write((request + "\n").getBytes());
+		out.flush();
+		new Thread(new SocketListener(serverChannel.accept().socket())).start();
+		return new DataInputStream(client.getInputStream());
+	}
+
+
+	private byte [] readBlock(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		assertTrue("Error from server", size >= 0);
+		byte [] bytes = new byte[size];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+
+	private byte [] readFrames(DataInputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int size;
+		while ((size = in.readInt()) != 0) {
+			assertTrue("Error from server", size > 0);
+			assertTrue(size <= FrameOutputStream.FRAME_SIZE);
+			byte [] frame = new byte[size];
+			in.readFully(frame);
+			bytes.write(frame);
+		}
+		return bytes.toByteArray();
+	}
+
+
+	public void testNodeTypes() throws Exception {
+		byte [] blob = readBlock(request("--nodetypes"));
+		DataInputStream in = request("--stream --nodetypes");
+		byte [] streamed = readFrames(in);
+		assertEquals(0, readBlock(in).length);
+		assertEquals(blob.length, streamed.length);
+	}
+
+
+	public void testParse() throws Exception {
+		String fileName = new File("data/pub/test01.p").getCanonicalPath();
+		DataInputStream in = request(fileName);
+		ByteBuffer header = ByteBuffer.wrap(readBlock(in));
+		byte [] blob = readBlock(in);
+
+		in = request("--stream " + fileName);
+		byte [] streamed = readFrames(in);
+		ByteBuffer streamedHeader = ByteBuffer.wrap(readBlock(in));
+		assertEquals(blob.length, streamed.length);
+		assertEquals(header.capacity(), streamedHeader.capacity());
+		// The record order isn't fixed, but the index must be in the same place,
+		// and the last 8 bytes are the schema map and index offsets.
+		int indexOffset = streamedHeader.getInt(20);
+		assertEquals(header.getInt(20), indexOffset);
+		ByteBuffer trailer = ByteBuffer.wrap(streamed, streamed.length - 8, 8);
+		assertEquals(streamedHeader.getInt(16), trailer.getInt());
+		assertEquals(indexOffset, trailer.getInt());
+	}
+
+
+}
@@ -0,0 +1,134 @@
+/**
+ * SourceEncodingTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.Environment;
+import com.joanju.proparse.SourceEncoding;
+
+
+/** Test the project and directory source encodings, and byte order mark and cpstream detection. */
+public class SourceEncodingTest extends TestCase {
+
+	private static final String UMLAUTS = "\u00f6 \u00e4 \u00dc \u00d6 \u00c4 \u00df";
+
+	private File dir;
+	private Environment env;
+
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		env = Environment.instance();
+		dir = File.createTempFile("encoding", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+
+	protected void tearDown() throws Exception {
+		env.configSet("source-encoding", "");
+		env.configSet("source-encoding-dirs", "");
+		env.configSet("detect-encoding", "true");
+		FileUtils.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+
+	private File writeFile(String name, byte [] prefix, String text, String charset) throws IOException {
+		File file = new File(dir, name);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(prefix);
+			out.write(text.getBytes(charset));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+
+	private void parse(File file) throws Exception {
+		new DoParse(file.getPath()).doParse();
+	}
+
+
+	public void testProjectEncoding() throws Exception {
+		File file = new File("data/codepage850.p");
+		env.configSet("source-encoding", "UTF-8");
+		try {
+			parse(file);
+			fail("Expected a character conversion error");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Character conversion error"));
+			assertTrue(e.getMessage(), e.getMessage().contains("UTF-8"));
+		}
+		env.configSet("source-encoding", "IBM850");
+		parse(file);
+		assertTrue(new String(env.getSourceEncoding().read(file)).contains(UMLAUTS));
+		try {
+			env.configSet("source-encoding", "no-such-codepage");
+			fail("Expected an unknown encoding");
+		} catch (IllegalArgumentException e) {
+			assertEquals("IBM850", env.configGet("source-encoding"));
+		}
+	}
+
+
+	public void testDirEncodings() throws Exception {
+		String text = "/* " + UMLAUTS + " */ display 1.";
+		File cp850 = writeFile("legacy/a.p", new byte[0], text, "IBM850");
+		File utf8 = writeFile("legacy/web/b.p", new byte[0], text, "UTF-8");
+		File latin1 = writeFile("c.p", new byte[0], text, "ISO-8859-1");
+		File inc = writeFile("legacy/inc.i", new byte[0], "/* " + UMLAUTS + " */", "IBM850");
+		File main = writeFile("legacy/web/main.p", new byte[0], "{" + inc.getCanonicalPath() + "} /* " + UMLAUTS + " */", "UTF-8");
+		env.configSet("source-encoding", "1252");
+		env.configSet("source-encoding-dirs"
+				, new File(dir, "legacy").getPath() + "=IBM850,"
+				+ new File(dir, "legacy/web").getPath() + "=UTF-8");
+		SourceEncoding encoding = env.getSourceEncoding();
+		assertEquals("windows-1252", encoding.charsetFor(latin1).name());
+		assertEquals(text, new String(encoding.read(cp850)));
+		assertEquals(text, new String(encoding.read(utf8)));
+		assertEquals(text, new String(encoding.read(latin1)));
+		// The include file is read with its own directory's encoding.
+		parse(main);
+	}
+
+
+	public void testDetect() throws Exception {
+		String text = "/* " + UMLAUTS + " */ display 1.";
+		byte [] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+		File withBom = writeFile("bom.p", bom, text, "UTF-8");
+		String marked = "/* Header\n * cpstream=IBM850\n */\n" + text;
+		File withMarker = writeFile("marker.p", new byte[0], marked, "IBM850");
+		env.configSet("source-encoding", "ISO8859-1");
+		SourceEncoding encoding = env.getSourceEncoding();
+		assertEquals(text, new String(encoding.read(withBom)));
+		assertEquals(marked, new String(encoding.read(withMarker)));
+		parse(withBom);
+		env.configSet("detect-encoding", "false");
+		assertFalse(text.equals(new String(encoding.read(withBom))));
+		assertFalse(marked.equals(new String(encoding.read(withMarker))));
+	}
+
+
+}
@@ -0,0 +1,148 @@
+/**
+ * SuperScopeCacheTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.ParseUnit;
+import org.prorefactor.treeparser.SymbolScopeSuper;
+
+import com.joanju.proparse.Environment;
+import com.joanju.proparse.SuperScopeCache;
+
+
+/** Test that super class scopes are shared between parses,
+ * and dropped when the super class file changes.
+ * Test1 uses a temp-table inherited from FindMe, so it only parses
+ * if the inherited scope is right.
+ */
+public class SuperScopeCacheTest extends TestCase {
+
+	private RefactorSession refpack;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		refpack = RefactorSession.getInstance();
+		refpack.loadProjectForced("unittest");
+	}
+
+
+	private void parse(String fileName) throws Exception {
+		// TreeParser01 has a super scope cache of its own.
+		SymbolScopeSuper.cache.clear();
+		ParseUnit pu = new ParseUnit(new File(fileName));
+		pu.treeParser01();
+	}
+
+
+	public void test01() throws Exception {
+		SuperScopeCache cache = Environment.instance().getSuperScopeCache();
+		cache.clear();
+		cache.resetCounters();
+
+		parse("data/newsyntax/101b/Test2.cls");
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		parse("data/newsyntax/101b/Test1.cls");
+		assertEquals(1, cache.getHits());
+
+		File findMe = new File("data/newsyntax/101b/deep/FindMe.cls");
+		long lastModified = findMe.lastModified();
+		try {
+			findMe.setLastModified(lastModified + 2000);
+			parse("data/newsyntax/101b/Test1.cls");
+			assertEquals(1, cache.getInvalidations());
+			assertEquals(2, cache.getMisses());
+		} finally {
+			findMe.setLastModified(lastModified);
+		}
+	}
+
+
+	public void testPersisted() throws Exception {
+		SuperScopeCache cache = Environment.instance().getSuperScopeCache();
+		refpack.setProjectBinariesEnabledOn();
+		try {
+			cache.clear();
+			parse("data/newsyntax/101b/Test2.cls");
+			// Not in memory anymore, so it has to come from the .scope file.
+			cache.clear();
+			cache.resetCounters();
+			parse("data/newsyntax/101b/Test1.cls");
+			assertEquals(1, cache.getHits());
+			assertEquals(0, cache.getMisses());
+		} finally {
+			refpack.setProjectBinariesEnabledOff();
+			cache.clear();
+		}
+	}
+
+
+	/** A .scope file written with other settings is not used. */
+	public void testSettings() throws Exception {
+		SuperScopeCache cache = Environment.instance().getSuperScopeCache();
+		Environment env = Environment.instance();
+		String proversion = env.configGet("proversion");
+		refpack.setProjectBinariesEnabledOn();
+		try {
+			cache.clear();
+			parse("data/newsyntax/101b/Test2.cls");
+			// Setting PROVERSION clears the cache in memory.
+			env.configSet("proversion", "9.1E");
+			cache.resetCounters();
+			parse("data/newsyntax/101b/Test1.cls");
+			assertEquals(0, cache.getHits());
+			assertEquals(1, cache.getInvalidations());
+			assertEquals(1, cache.getMisses());
+		} finally {
+			env.configSet("proversion", proversion);
+			refpack.setProjectBinariesEnabledOff();
+			cache.clear();
+		}
+	}
+
+
+	/** Changing a source encoding setting drops the scopes in memory, and the .scope files aren't used. */
+	public void testEncodingSettings() throws Exception {
+		SuperScopeCache cache = Environment.instance().getSuperScopeCache();
+		Environment env = Environment.instance();
+		try {
+			cache.clear();
+			parse("data/newsyntax/101b/Test2.cls");
+			env.configSet("source-encoding", "UTF-8");
+			cache.resetCounters();
+			parse("data/newsyntax/101b/Test1.cls");
+			assertEquals(0, cache.getInvalidations());
+			assertEquals(1, cache.getMisses());
+
+			// Written to the .scope file with UTF-8, and read back with detection off.
+			refpack.setProjectBinariesEnabledOn();
+			cache.clear();
+			parse("data/newsyntax/101b/Test2.cls");
+			env.configSet("detect-encoding", "false");
+			cache.resetCounters();
+			parse("data/newsyntax/101b/Test1.cls");
+			assertEquals(0, cache.getHits());
+			assertEquals(1, cache.getInvalidations());
+		} finally {
+			env.configSet("source-encoding", "");
+			env.configSet("detect-encoding", "true");
+			refpack.setProjectBinariesEnabledOff();
+			cache.clear();
+		}
+	}
+
+
+}
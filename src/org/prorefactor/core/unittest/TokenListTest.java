@@ -0,0 +1,210 @@
+/**
+ * TokenListTest.java
+ *
+ * Copyright (c) 2010 Joanju (www.joanju.com).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.prorefactor.core.unittest;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.DoParse;
+import com.joanju.proparse.NodeTypes;
+import com.joanju.proparse.ProToken;
+
+
+/** Test the TokenList's review of the tokens in front of an OBJCOLON,
+ * and compare its tokens with those from the review done on a list of all of
+ * the compile unit's tokens, which is how TokenList worked before it had a ring buffer.
+ */
+public class TokenListTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession.getInstance().loadProject("sports2000");
+		file = File.createTempFile("tokenlist", ".p");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+
+	/** The tokens for the text, from the TokenList, as "TYPE[text]" separated by spaces. */
+	private String lex(String text) throws Exception {
+		FileUtils.writeStringToFile(file, text);
+		return tokensString(new DoParse(file.getPath()).lexTokens(true));
+	}
+
+
+	/** The tokens from the postlexer, reviewed the way they were before the ring buffer. */
+	private ArrayList<ProToken> reference(File file) throws Exception {
+		ArrayList<ProToken> list = new ArrayList<ProToken>();
+		for (ProToken token : new DoParse(file.getPath()).lexTokens(false)) {
+			list.add(token);
+			if (token.getType()==TokenTypes.OBJCOLON)
+				reviewObjcolon(list);
+		}
+		return list;
+	}
+
+
+	/** TokenList.reviewObjcolon() as it was, on a list of all of the tokens read so far.
+	 * The only change is the check for nothing in front of the OBJCOLON.
+	 */
+	private static void reviewObjcolon(ArrayList<ProToken> list) {
+		int lastIndex = list.size() - 2;
+		while (lastIndex >= 0 && (list.get(lastIndex).getType()==TokenTypes.WS || list.get(lastIndex).getType()==TokenTypes.COMMENT))
+			--lastIndex;
+		if (lastIndex < 0)
+			return;
+		int index = lastIndex;
+		boolean foundNamedot = false;
+		for(;;) {
+			if (index==0)
+				break;
+			int currType = list.get(index).getType();
+			if (currType==TokenTypes.WS || currType==TokenTypes.COMMENT)
+				return;
+			if (index >= 2 && list.get(index-1).getType() == TokenTypes.NAMEDOT) {
+				index = index - 2;
+			} else if(list.get(index).getText().charAt(0)=='.') {
+				index = index - 1;
+			} else {
+				break;
+			}
+			foundNamedot = true;
+		}
+		if (foundNamedot) {
+			ProToken token = list.get(index);
+			token.setType(TokenTypes.ID);
+			StringWriter text = new StringWriter();
+			text.append(token.getText());
+			int drop = index + 1;
+			for (int i = 0; i < lastIndex - index; i++) {
+				text.append(list.get(drop).getText());
+				list.remove(drop);
+			}
+			token.setText(text.toString());
+			return;
+		}
+		int ttype = list.get(index).getType();
+		if (NodeTypes.isReserved(ttype) && (! NodeTypes.isSystemHandleName(ttype)))
+			list.get(index).setType(TokenTypes.ID);
+	}
+
+
+	private static String tokensString(Collection<ProToken> tokens) {
+		StringBuilder ret = new StringBuilder();
+		for (ProToken token : tokens) {
+			if (ret.length() > 0)
+				ret.append(' ');
+			ret.append(NodeTypes.getTypeName(token.getType())).append('[').append(token.getText()).append(']');
+		}
+		return ret.toString();
+	}
+
+
+	private static String repeat(String s, int count) {
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			ret.append(s);
+		return ret.toString();
+	}
+
+
+	public void testNamedot() throws Exception {
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[newsyntax.101b.deep.FindMe] OBJCOLON[:] METHOD[Method]"
+				+ " LEFTPAREN[(] RIGHTPAREN[)] PERIOD[.]"
+				, lex("x = newsyntax.101b.deep.FindMe:Method()."));
+		// Space in front of a NAMEDOT leaves the parts alone.
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[a] PERIOD[.] WS[ ] ID[b] OBJCOLON[:] ID[Prop] PERIOD[.]"
+				, lex("x = a. b:Prop."));
+	}
+
+
+	public void testHidden() throws Exception {
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[a] WS[ ] COMMENT[/* c */] WS[ ] OBJCOLON[:] ID[Prop] PERIOD[.]"
+				, lex("x = a /* c */ :Prop."));
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[display] WS[ ] COMMENT[/* c */] WS[ ] OBJCOLON[:] ID[Prop] PERIOD[.]"
+				, lex("x = display /* c */ :Prop."));
+	}
+
+
+	public void testReserved() throws Exception {
+		assertEquals("ID[display] OBJCOLON[:] ID[Prop] PERIOD[.]", lex("display:Prop."));
+		// A system handle is left alone.
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] SESSION[session] OBJCOLON[:] ID[temp-directory] PERIOD[.]"
+				, lex("x = session:temp-directory."));
+	}
+
+
+	/** Chains and runs of comments longer than the ring buffer's first size. */
+	public void testRingGrowth() throws Exception {
+		String chain = "a" + repeat(".b", 100);
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[" + chain + "] OBJCOLON[:] ID[Prop] PERIOD[.]"
+				, lex("x = " + chain + ":Prop."));
+		String comments = repeat(" /*c*/", 50);
+		assertEquals(
+				"X[x] WS[ ] EQUAL[=] WS[ ] ID[display]" + repeat(" WS[ ] COMMENT[/*c*/]", 50)
+				+ " OBJCOLON[:] ID[Prop] PERIOD[.]"
+				, lex("x = display" + comments + ":Prop."));
+	}
+
+
+	public void testStart() throws Exception {
+		assertEquals("OBJCOLON[:] X[x] PERIOD[.]", lex(":x."));
+		assertEquals("WS[ ] OBJCOLON[:] X[x] PERIOD[.]", lex(" :x."));
+		assertEquals("X[x] OBJCOLON[:] Y[y] PERIOD[.]", lex("x:y."));
+		assertEquals("ID[display] OBJCOLON[:] Y[y] PERIOD[.]", lex("display:y."));
+		assertEquals("NAMEDOT[.] X[x] OBJCOLON[:] ID[Foo] PERIOD[.]", lex(".x:Foo."));
+	}
+
+
+	/** The same tokens as from the review on a list of all of the tokens, for the files in data. */
+	@SuppressWarnings("unchecked")
+	public void testData() throws Exception {
+		String [] extensions = {"p", "w", "i", "cls"};
+		Collection<File> all = FileUtils.listFiles(new File("data"), extensions, true);
+		int compared = 0;
+		for (File dataFile : all) {
+			ArrayList<ProToken> expect;
+			try {
+				expect = reference(dataFile);
+			} catch (Exception e) {
+				// Files that don't lex (ex: test data for errors) are left out.
+				continue;
+			}
+			assertEquals(dataFile.getPath(), tokensString(expect)
+					, tokensString(new DoParse(dataFile.getPath()).lexTokens(true)));
+			++compared;
+		}
+		assertTrue(compared > 100);
+	}
+
+
+}
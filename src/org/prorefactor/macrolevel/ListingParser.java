@@ -15,9 +15,6 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Arrays;
 
 import org.prorefactor.refactor.RefactorException;
 
@@ -27,6 +24,11 @@ import org.prorefactor.refactor.RefactorException;
  * Generates a "macro tree". The macro tree's root is
  * an IncludeRef object. The root IncludeRef represents
  * the main.p source file.
+ * <p>
+ * ProRefactor no longer needs the listing file - ParseUnit builds the
+ * macro tree in memory with a MacroGraphBuilder. This class is for
+ * reading listing files written for debugging, or by other tools.
+ * Each line is handed to a MacroGraphBuilder as the event that it lists.
  */
 public class ListingParser {
 
@@ -37,105 +39,35 @@ public class ListingParser {
 	/** Map of fileIndex (Integer) to fileName (String) */
 	public HashMap<Integer, String> fileIndexes = new HashMap<Integer, String>();
 
-	private IncludeRef root = null;
-
-	/* Temp stack of scopes, just used during tree creation */
-	private int column;
-	private int line;
 	private int listingFileLine = 0;
-	private LinkedList<Scope> scopeStack = new LinkedList<Scope>();
-	private IncludeRef currInclude;
-	/* Temp stack of global defines, just used during tree creation */
-	private HashMap<String, MacroDef> globalDefMap = new HashMap<String, MacroDef>();
-	private MacroRef currRef;
+	private MacroGraphBuilder builder;
 	private String listingFile;
 
-	/* These scopes are temporary, just used during tree creation */
-	private class Scope {
-		public Scope(IncludeRef ref) {
-			this.includeRef = ref;
-		}
-		HashMap<String, MacroDef> defMap = new HashMap<String, MacroDef>();
-		IncludeRef includeRef;
-	}
 
 
-	
 	/** Global or scoped define */
-	private void ampdef(String [] parts, int type) {
-		MacroDef newDef = new MacroDef();
-		getPosition(parts);
-		newDef.parent = currRef;
-		newDef.line = line;
-		newDef.column = column;
-		newDef.name = parts[4];
-		newDef.value = replaceEscapes(parts[5]);
-		newDef.type = type;
-		if (type==MacroDef.GLOBAL) globalDefMap.put(newDef.name, newDef);
-		if (type==MacroDef.SCOPED) {
-			Scope currScope = scopeStack.getFirst();
-			currScope.defMap.put(newDef.name, newDef);
-		}
-		currRef.macroEventList.add(newDef); 
+	private void ampdef(String [] parts, boolean isGlobal) {
+		builder.define(
+				Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+				, isGlobal, parts[4], replaceEscapes(parts[5])
+				);
 	}
 
 
-	private void ampelse(String [] parts) { return; }
+	private void ampelse(String [] parts) { builder.preproElse(0, 0, 0, null); }
 
 
-	private void ampelseif(String [] parts) { return; }
+	private void ampelseif(String [] parts) { builder.preproElseIf(0, 0, 0, null); }
 
 
-	private void ampendif(String [] parts) { return; }
+	private void ampendif(String [] parts) { builder.preproEndIf(0, 0, 0); }
 
 
-	private void ampif(String [] parts) { return; }
-
-
-	private void createRootNode() {
-		root = new IncludeRef(listingFileLine);
-		currRef = root;
-		currInclude = root;
-		scopeStack.addFirst(new Scope(root));
-	}
+	private void ampif(String [] parts) { builder.preproIf(0, 0, 0, false); }
 
 
 	private void fileindex(String [] parts) {
-		fileIndexes.put(new Integer(Integer.parseInt(parts[4])), parts[5]);
-	}
-
-
-	/** Find a MacroDef by name.
-	 * NOTE: I have not yet implemented {*} and other such
-	 * built-in macro reference tricks. Not sure how soon I'll need those.
-	 * There's a good chance that this function will return null.
-	 */
-	private MacroDef findMacroDef(String name) {
-		MacroDef ret;
-		Scope currScope = scopeStack.getFirst();
-		// First look for local SCOPED define
-		ret = currScope.defMap.get(name);
-		if (ret!=null) return ret;
-		// Second look for a named include file argument
-		ret = currInclude.lookupNamedArg(name);
-		if (ret!=null) return ret;
-		// Third look for a non-local SCOPED define
-		Iterator<Scope> it = scopeStack.iterator();
-		it.next(); // skip the current scope - already checked.
-		while (it.hasNext()) {
-			currScope = it.next();
-			ret = currScope.defMap.get(name);
-			if (ret!=null) return ret;
-		}
-		// Fourth look for a GLOBAL define
-		ret  = globalDefMap.get(name);
-		return ret;		
-	}
-
-
-	private void getPosition(String [] parts) {
-		line = Integer.parseInt(parts[1]);
-		column = Integer.parseInt(parts[2]);
+		builder.fileIndex(Integer.parseInt(parts[4]), parts[5]);
 	}
 
 
@@ -143,76 +75,47 @@ public class ListingParser {
 	 * which represents the main.p source file.
 	 */
 	public IncludeRef getRoot() {
-		return root;
+		return builder==null ? null : builder.getRoot();
 	}
 
 
 	private void globdef(String [] parts) {
-		ampdef(parts, MacroDef.GLOBAL);
+		ampdef(parts, true);
 	}
 
 
 	private void incarg(String [] parts) {
-		MacroDef newArg = new MacroDef();
-		newArg.value = replaceEscapes(parts[5]);
-		newArg.includeRef = currInclude;
-		newArg.parent = currInclude.parent;
-		int argNum = 0;
-		try {
-			argNum = Integer.parseInt(parts[4]);
-		} catch (NumberFormatException e) {}
-		if (argNum==0 || argNum != currInclude.numArgs() + 1) {
-			newArg.name = parts[4];
-			currInclude.usesNamedArgs = true;
-			newArg.type = MacroDef.NAMEDARG;
-			currInclude.addNamedArg(newArg);
-		} else {
-			newArg.type = MacroDef.NUMBEREDARG;
-			currInclude.addNumberedArg(newArg);
-		}
+		builder.includeArgument(parts[4], replaceEscapes(parts[5]));
 	}
 
 
 	private void incend(String [] parts) {
-		scopeStack.removeFirst();
-		currInclude = scopeStack.getFirst().includeRef;
-		currRef = currRef.parent;
+		builder.includeEnd();
 	}
 
 
 	private void include(String [] parts) {
-		IncludeRef newRef = new IncludeRef(listingFileLine);
-		scopeStack.addFirst(new Scope(newRef));
-		currRef.macroEventList.add(newRef);
-		newRef.parent = currRef; // not necessarily an include file!
-		currInclude = newRef;
-		currRef = newRef;
-		getPosition(parts);
-		newRef.refLine = line;
-		newRef.refColumn = column;
-		newRef.fileIndex = Integer.parseInt(parts[4]);
 		// Backwards compatability note: The filename reference string
 		// was not added to Proparse's preprocessor listing output until
 		// version 3.1C.
-		if (parts.length > 5)
-			newRef.setFileRefName(parts[5]);
+		builder.include(
+				Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+				, Integer.parseInt(parts[4])
+				, parts.length > 5 ? parts[5] : null
+				);
 	}
 
 
 	private void macroref(String [] parts) {
-		NamedMacroRef newRef = new NamedMacroRef(listingFileLine);
-		currRef.macroEventList.add(newRef);
-		newRef.parent = currRef;
-		currRef = newRef;
-		getPosition(parts);
-		newRef.refLine = line;
-		newRef.refColumn = column;
-		newRef.macroDef = findMacroDef(parts[4]);
+		builder.macroRef(
+				Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+				, parts[4]
+				);
 	}
 
 
 	private void macrorefend(String [] parts) {
-		currRef = currRef.parent;
+		builder.macroRefEnd();
 	}
 
 
@@ -231,12 +134,18 @@ public class ListingParser {
 	public void parse() throws IOException, RefactorException {
 		FileReader fileReader = new FileReader(listingFile);
 		BufferedReader reader = new BufferedReader(fileReader);
-		createRootNode();
+		builder = new MacroGraphBuilder();
+		fileIndexes = builder.getFileIndexes();
 		while (true) {
 			String currLine = reader.readLine();
 			if (currLine==null) break;
 			listingFileLine++;
 			String [] parts = currLine.split("\\s", 6);
+			// We might just be at an empty line at the end of the file.
+			if (currLine.trim().length()==0) {
+				builder.skipLine();
+				continue;
+			}
 			String token = parts[3].intern();
 			if (token=="globdef") { globdef(parts); continue; }
 			if (token=="scopdef") { scopdef(parts); continue; }
@@ -251,8 +160,6 @@ public class ListingParser {
 			if (token=="ampelse") { ampelse(parts); continue; }
 			if (token=="ampendif") { ampendif(parts); continue; }
 			if (token=="fileindex") { fileindex(parts); continue; }
-			// We might just be at an empty line at the end of the file.
-			if (currLine.trim().length()==0) continue;
 			throw new RefactorException(
 				"Invalid token in Proparse listing file."
 				+ " Token: " + token
@@ -300,7 +207,7 @@ public class ListingParser {
 
 
 	private void scopdef(String [] parts) {
-		ampdef(parts, MacroDef.SCOPED);
+		ampdef(parts, false);
 	}
 	
 
@@ -308,45 +215,15 @@ public class ListingParser {
 	 * @see org.prorefactor.macrolevel.MacroLevel#sourceArray(MacroRef)
 	 */
 	public MacroRef [] sourceArray() {
-		return MacroLevel.sourceArray(root);
+		return MacroLevel.sourceArray(getRoot());
 	}
 	
 
 	private void undef(String [] parts) {
-		// Add an object for this macro event.
-		String name = parts[4];
-		MacroDef newDef = new MacroDef();
-		currRef.macroEventList.add(newDef);
-		getPosition(parts);
-		newDef.parent = currRef;
-		newDef.line = line;
-		newDef.column = column;
-		newDef.name = name;
-		newDef.type = MacroDef.UNDEFINE;
-
-		// Now process the undefine.
-		Scope currScope = scopeStack.getFirst();
-		// First look for local SCOPED define
-		if (currScope.defMap.containsKey(name)) {
-			newDef.undefWhat = currScope.defMap.remove(name);
-			return;
-		}
-		// Second look for a named include file argument
-		newDef.undefWhat = currInclude.undefine(name);
-		if (newDef.undefWhat!=null) return;
-		// Third look for a non-local SCOPED define
-		Iterator<Scope> it = scopeStack.iterator();
-		it.next(); // skip the current scope - already checked.
-		while (it.hasNext()) {
-			currScope = it.next();
-			if (currScope.defMap.containsKey(name)) {
-				newDef.undefWhat = currScope.defMap.remove(name);
-				return;
-			}
-		}
-		// Fourth look for a GLOBAL define
-		if (globalDefMap.containsKey(name))
-			newDef.undefWhat = globalDefMap.remove(name);
+		builder.undefine(
+				Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])
+				, parts[4]
+				);
 	}
 
 
@@ -0,0 +1,258 @@
+/* MacroGraphBuilder.java
+ *
+ * Copyright (C) 2003-2010 Joanju Software
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.macrolevel;
+
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.joanju.proparse.PreprocessorEventListener;
+
+
+
+/** Builds the "macro tree" directly from the preprocessor's events,
+ * without the round trip through a listing file.
+ * The macro tree's root is an IncludeRef object, which represents the main.p source file.
+ * <p>
+ * Each event counts as one line of the old listing file, so that
+ * MacroRef.getListingFileLine() returns the same values as it did
+ * when the tree was built by ListingParser.
+ * @see com.joanju.proparse.DoParse#addPreprocessorListener(PreprocessorEventListener)
+ */
+public class MacroGraphBuilder implements PreprocessorEventListener {
+
+	public MacroGraphBuilder() {
+		root = new IncludeRef(listingFileLine);
+		currRef = root;
+		currInclude = root;
+		scopeStack.addFirst(new Scope(root));
+	}
+
+	/** Map of fileIndex (Integer) to fileName (String) */
+	HashMap<Integer, String> fileIndexes = new HashMap<Integer, String>();
+
+	private IncludeRef root;
+
+	private int listingFileLine = 0;
+	/* Temp stack of scopes, just used during tree creation */
+	private LinkedList<Scope> scopeStack = new LinkedList<Scope>();
+	private IncludeRef currInclude;
+	/* Temp stack of global defines, just used during tree creation */
+	private HashMap<String, MacroDef> globalDefMap = new HashMap<String, MacroDef>();
+	private MacroRef currRef;
+
+	/* These scopes are temporary, just used during tree creation */
+	private class Scope {
+		public Scope(IncludeRef ref) {
+			this.includeRef = ref;
+		}
+		HashMap<String, MacroDef> defMap = new HashMap<String, MacroDef>();
+		IncludeRef includeRef;
+	}
+
+
+
+	/** Global or scoped define */
+	public void define(int file, int line, int column, boolean isGlobal, String name, String value) {
+		listingFileLine++;
+		MacroDef newDef = new MacroDef();
+		newDef.parent = currRef;
+		newDef.line = line;
+		newDef.column = column;
+		newDef.name = name;
+		newDef.value = value;
+		newDef.type = isGlobal ? MacroDef.GLOBAL : MacroDef.SCOPED;
+		if (isGlobal) {
+			globalDefMap.put(newDef.name, newDef);
+		} else {
+			Scope currScope = scopeStack.getFirst();
+			currScope.defMap.put(newDef.name, newDef);
+		}
+		currRef.macroEventList.add(newDef);
+	}
+
+
+	public void fileIndex(int fileIndex, String fileName) {
+		listingFileLine++;
+		fileIndexes.put(new Integer(fileIndex), fileName);
+	}
+
+
+	/** Find a MacroDef by name.
+	 * NOTE: I have not yet implemented {*} and other such
+	 * built-in macro reference tricks. Not sure how soon I'll need those.
+	 * There's a good chance that this function will return null.
+	 */
+	private MacroDef findMacroDef(String name) {
+		MacroDef ret;
+		Scope currScope = scopeStack.getFirst();
+		// First look for local SCOPED define
+		ret = currScope.defMap.get(name);
+		if (ret!=null) return ret;
+		// Second look for a named include file argument
+		ret = currInclude.lookupNamedArg(name);
+		if (ret!=null) return ret;
+		// Third look for a non-local SCOPED define
+		Iterator<Scope> it = scopeStack.iterator();
+		it.next(); // skip the current scope - already checked.
+		while (it.hasNext()) {
+			currScope = it.next();
+			ret = currScope.defMap.get(name);
+			if (ret!=null) return ret;
+		}
+		// Fourth look for a GLOBAL define
+		ret  = globalDefMap.get(name);
+		return ret;
+	}
+
+
+	/** Map of fileIndex (Integer) to fileName (String) */
+	public HashMap<Integer, String> getFileIndexes() {
+		return fileIndexes;
+	}
+
+
+	/** Get the macro tree's root - an IncludeRef object
+	 * which represents the main.p source file.
+	 */
+	public IncludeRef getRoot() {
+		return root;
+	}
+
+
+	public void include(int file, int line, int column, int includeFileIndex, String referencedWithName) {
+		listingFileLine++;
+		IncludeRef newRef = new IncludeRef(listingFileLine);
+		scopeStack.addFirst(new Scope(newRef));
+		currRef.macroEventList.add(newRef);
+		newRef.parent = currRef; // not necessarily an include file!
+		currInclude = newRef;
+		currRef = newRef;
+		newRef.refLine = line;
+		newRef.refColumn = column;
+		newRef.fileIndex = includeFileIndex;
+		// Backwards compatability note: The filename reference string
+		// was not added to Proparse's preprocessor listing output until
+		// version 3.1C.
+		if (referencedWithName!=null)
+			newRef.setFileRefName(referencedWithName);
+	}
+
+
+	public void includeArgument(String name, String value) {
+		listingFileLine++;
+		MacroDef newArg = new MacroDef();
+		newArg.value = value;
+		newArg.includeRef = currInclude;
+		newArg.parent = currInclude.parent;
+		int argNum = 0;
+		try {
+			argNum = Integer.parseInt(name);
+		} catch (NumberFormatException e) {}
+		if (argNum==0 || argNum != currInclude.numArgs() + 1) {
+			newArg.name = name;
+			currInclude.usesNamedArgs = true;
+			newArg.type = MacroDef.NAMEDARG;
+			currInclude.addNamedArg(newArg);
+		} else {
+			newArg.type = MacroDef.NUMBEREDARG;
+			currInclude.addNumberedArg(newArg);
+		}
+	}
+
+
+	public void includeEnd() {
+		listingFileLine++;
+		scopeStack.removeFirst();
+		currInclude = scopeStack.getFirst().includeRef;
+		currRef = currRef.parent;
+	}
+
+
+	public void macroRef(int file, int line, int column, String macroName) {
+		listingFileLine++;
+		NamedMacroRef newRef = new NamedMacroRef(listingFileLine);
+		currRef.macroEventList.add(newRef);
+		newRef.parent = currRef;
+		currRef = newRef;
+		newRef.refLine = line;
+		newRef.refColumn = column;
+		newRef.macroDef = findMacroDef(macroName);
+	}
+
+
+	public void macroRefEnd() {
+		listingFileLine++;
+		currRef = currRef.parent;
+	}
+
+
+	public void preproElse(int file, int line, int column, Boolean isTrue) { listingFileLine++; }
+
+
+	public void preproElseIf(int file, int line, int column, Boolean isTrue) { listingFileLine++; }
+
+
+	public void preproEndIf(int file, int line, int column) { listingFileLine++; }
+
+
+	public void preproIf(int file, int line, int column, boolean isTrue) { listingFileLine++; }
+
+
+	/** For a line in a listing file that has no event, ex: a trailing blank line. */
+	void skipLine() { listingFileLine++; }
+
+
+	/** Get an array of the MacroRef objects, which would map to the SOURCENUM attribute from JPNode.
+	 * @see org.prorefactor.macrolevel.MacroLevel#sourceArray(MacroRef)
+	 */
+	public MacroRef [] sourceArray() {
+		return MacroLevel.sourceArray(root);
+	}
+
+
+	public void undefine(int file, int line, int column, String name) {
+		listingFileLine++;
+		// Add an object for this macro event.
+		MacroDef newDef = new MacroDef();
+		currRef.macroEventList.add(newDef);
+		newDef.parent = currRef;
+		newDef.line = line;
+		newDef.column = column;
+		newDef.name = name;
+		newDef.type = MacroDef.UNDEFINE;
+
+		// Now process the undefine.
+		Scope currScope = scopeStack.getFirst();
+		// First look for local SCOPED define
+		if (currScope.defMap.containsKey(name)) {
+			newDef.undefWhat = currScope.defMap.remove(name);
+			return;
+		}
+		// Second look for a named include file argument
+		newDef.undefWhat = currInclude.undefine(name);
+		if (newDef.undefWhat!=null) return;
+		// Third look for a non-local SCOPED define
+		Iterator<Scope> it = scopeStack.iterator();
+		it.next(); // skip the current scope - already checked.
+		while (it.hasNext()) {
+			currScope = it.next();
+			if (currScope.defMap.containsKey(name)) {
+				newDef.undefWhat = currScope.defMap.remove(name);
+				return;
+			}
+		}
+		// Fourth look for a GLOBAL define
+		if (globalDefMap.containsKey(name))
+			newDef.undefWhat = globalDefMap.remove(name);
+	}
+
+
+}
@@ -7,6 +7,10 @@
  */
 package org.prorefactor.nodetypes;
 
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.NodeTypeIndex;
+import org.prorefactor.core.PositionIndex;
+
 import com.joanju.proparse.ProToken;
 import com.joanju.DataXferStream;
 
@@ -26,13 +30,57 @@ public class ProgramRootNode extends BlockNode {
 
 	private static final long serialVersionUID = 7160983003100786995L;
 
+	private transient NodeTypeIndex nodeTypeIndex;
+	private transient PositionIndex positionIndex;
+	/** JPNode.getTreeChanges() as of the last time the position index was known to be current. */
+	private transient int positionIndexChanges;
+	/** Did the node type index agree with the tree when the position index was built? */
+	private transient boolean positionIndexChecked;
+
+
+	@Override
+	public NodeTypeIndex getNodeTypeIndex() { return nodeTypeIndex; }
+
+
+	/** The index of this tree's nodes by source position.
+	 * DoParse builds it during the parse if the "position-index" flag is on,
+	 * otherwise it's built by walking the tree the first time this is called.
+	 * If there have been tree changes (in any tree) since, and the node type index was
+	 * current when the position index was built and still is, then this tree hasn't
+	 * changed and the position index is kept. Otherwise it's rebuilt.
+	 * For a tree from PUB, don't call this until the whole tree has been loaded (PUB.getTree()).
+	 */
+	public synchronized PositionIndex getPositionIndex() {
+		int changes = JPNode.getTreeChanges();
+		if (positionIndex!=null && changes!=positionIndexChanges) {
+			if (! (positionIndexChecked && nodeTypeIndex!=null && nodeTypeIndex.isCurrent()))
+				positionIndex = null;
+		}
+		if (positionIndex==null)
+			setPositionIndex(PositionIndex.build(this));
+		else
+			positionIndexChanges = changes;
+		return positionIndex;
+	}
+
 
-	
 	/** Every JPNode subtype has its own index. Used for persistent storage. */
 	@Override
 	public int getSubtypeIndex() { return 6; }
 
 
+	/** Set by DoParse and PUB, after the tree has been built. */
+	public void setNodeTypeIndex(NodeTypeIndex nodeTypeIndex) { this.nodeTypeIndex = nodeTypeIndex; }
+
+
+	/** Set by DoParse, after the tree has been built, and after setNodeTypeIndex(). */
+	public synchronized void setPositionIndex(PositionIndex positionIndex) {
+		this.positionIndex = positionIndex;
+		positionIndexChanges = JPNode.getTreeChanges();
+		positionIndexChecked = nodeTypeIndex!=null && nodeTypeIndex.isCurrent();
+	}
+
+
 	/** Implement Xferable. */
 	@Override
 	public void writeXferBytes(DataXferStream out) throws IOException {
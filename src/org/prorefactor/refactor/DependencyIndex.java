@@ -0,0 +1,257 @@
+/* DependencyIndex.java
+ *
+ * Copyright (C) 2010 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.refactor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+
+/** Project level index of which compile units depend on which include files and
+ * super class files, so that the compile units affected by a set of changed files can be
+ * found without checking the timestamps of every PUB in the project.
+ * <p>
+ * Each compile unit's dependencies are recorded whenever its PUB is built: its include files,
+ * and the class file and include files of each of its super classes, all the way up.
+ * The affected set is found by following the dependents from each changed file, then from
+ * each affected class, and so on, so a unit whose super class's record is out of date
+ * is still found through its own record.
+ * <p>
+ * The index is kept in one file in the project directory. Each update is appended
+ * to the file, and a later record for a compile unit replaces any earlier one.
+ * The file is rewritten without the replaced records when there get to be
+ * too many of them. A partly written record at the end of the file (ex: from a crash)
+ * is ignored, so that unit just won't have an entry until its PUB is built again.
+ * <p>
+ * All file names are canonical paths. All methods are thread safe.
+ * @see RefactorSession#getDependencyIndex()
+ */
+public class DependencyIndex {
+
+	/** Create the index for a file, and load the file if it exists. */
+	public DependencyIndex(File file) throws IOException {
+		this.file = file;
+		load();
+	}
+
+	private static final int LAYOUT_VERSION = 1;
+
+	private File file;
+	/** Number of records in the file, including replaced ones. */
+	private int recordCount = 0;
+	/** Compile unit to its dependencies. */
+	private HashMap<String, String []> dependencies = new HashMap<String, String []>();
+	/** Dependency to the compile units that depend on it directly. */
+	private HashMap<String, HashSet<String>> dependents = new HashMap<String, HashSet<String>>();
+
+
+
+	private void add(String unit, String [] deps) {
+		String [] old = dependencies.put(unit, deps);
+		if (old!=null) {
+			for (String dep : old) {
+				HashSet<String> units = dependents.get(dep);
+				units.remove(unit);
+				if (units.isEmpty())
+					dependents.remove(dep);
+			}
+		}
+		for (String dep : deps) {
+			HashSet<String> units = dependents.get(dep);
+			if (units==null) {
+				units = new HashSet<String>();
+				dependents.put(dep, units);
+			}
+			units.add(unit);
+		}
+	}
+
+
+	/** Rewrite the file with just the current record for each compile unit. */
+	public synchronized void compact() throws IOException {
+		file.getParentFile().mkdirs();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(LAYOUT_VERSION);
+			for (String unit : new TreeSet<String>(dependencies.keySet()))
+				writeRecord(out, unit, dependencies.get(unit));
+		} finally {
+			out.close();
+		}
+		FileStuff.replaceFile(tempFile, file);
+		recordCount = dependencies.size();
+	}
+
+
+	/** The compile units that need to be rebuilt after a set of files has changed:
+	 * the compile units that were changed, the compile units that include any changed file,
+	 * and the subclasses (at any depth) of any of those.
+	 * Compile units that no longer exist are left out.
+	 * Only compile units that are in the index can be found.
+	 * @param changedFiles Any files. They don't have to be in the index.
+	 * @return The compile units, sorted by path.
+	 */
+	public synchronized ArrayList<File> getAffectedUnits(Collection<File> changedFiles) {
+		TreeSet<String> affected = new TreeSet<String>();
+		LinkedList<String> queue = new LinkedList<String>();
+		for (File changed : changedFiles)
+			queue.add(FileStuff.fullpath(changed));
+		while (! queue.isEmpty()) {
+			String name = queue.removeFirst();
+			if (dependencies.containsKey(name))
+				affected.add(name);
+			HashSet<String> units = dependents.get(name);
+			if (units==null)
+				continue;
+			for (String unit : units) {
+				if (! affected.contains(unit))
+					queue.add(unit);
+			}
+		}
+		ArrayList<File> ret = new ArrayList<File>();
+		for (String name : affected) {
+			File unit = new File(name);
+			if (unit.exists())
+				ret.add(unit);
+		}
+		return ret;
+	}
+
+
+	/** The include files, super class files, and super classes' include files that a compile unit
+	 * depended on when its PUB was last built. Empty if the unit is not in the index.
+	 */
+	public synchronized String [] getDependencies(File unit) {
+		String [] deps = dependencies.get(FileStuff.fullpath(unit));
+		return deps==null ? new String[0] : deps.clone();
+	}
+
+
+	/** The compile units that depend on this file: the ones that include it, that are subclasses
+	 * of this class file, or that are subclasses of a class which includes it.
+	 */
+	public synchronized Collection<String> getDependents(File dependency) {
+		HashSet<String> units = dependents.get(FileStuff.fullpath(dependency));
+		if (units==null)
+			return Collections.emptyList();
+		return new TreeSet<String>(units);
+	}
+
+
+	public File getFile() { return file; }
+
+
+	private void load() throws IOException {
+		if (! file.exists())
+			return;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		boolean partial = false;
+		try {
+			if (in.readInt() != LAYOUT_VERSION) {
+				// Old layout. Starts over, and fills in as PUBs are built.
+				in.close();
+				compact();
+				return;
+			}
+			for (;;) {
+				in.mark(1);
+				if (in.read() == -1)
+					break;
+				in.reset();
+				String unit = in.readUTF();
+				int count = in.readInt();
+				String [] deps = new String[count];
+				for (int i = 0; i < count; i++)
+					deps[i] = in.readUTF();
+				add(unit, deps);
+				++recordCount;
+			}
+		} catch (EOFException e) {
+			// A partly written record at the end. Rewrite the file without it,
+			// so that new records don't get appended after it.
+			partial = true;
+		} finally {
+			in.close();
+		}
+		if (partial || recordCount > 2 * dependencies.size() + 100)
+			compact();
+	}
+
+
+	/** Drop a compile unit from the index, ex: after update() failed to write its record.
+	 * Only the index in memory is changed. If the file still has a record for the unit,
+	 * it's dropped by the next compact(), or replaced when the unit is next updated.
+	 */
+	public synchronized void remove(File unit) {
+		String unitName = FileStuff.fullpath(unit);
+		// Clears the unit from the dependents.
+		add(unitName, new String[0]);
+		dependencies.remove(unitName);
+	}
+
+
+	/** The number of compile units in the index. */
+	public synchronized int size() { return dependencies.size(); }
+
+
+	/** Record the dependencies of a compile unit, replacing any that it had before.
+	 * @param unit The compile unit.
+	 * @param deps The include files, super class files, and super classes' include files
+	 * that the unit was built from.
+	 */
+	public synchronized void update(File unit, Collection<String> deps) throws IOException {
+		String unitName = FileStuff.fullpath(unit);
+		TreeSet<String> sorted = new TreeSet<String>();
+		for (String dep : deps)
+			sorted.add(FileStuff.fullpath(new File(dep)));
+		sorted.remove(unitName);
+		String [] array = sorted.toArray(new String[sorted.size()]);
+		String [] old = dependencies.get(unitName);
+		if (old!=null && Arrays.equals(old, array))
+			return;
+		add(unitName, array);
+		if (! file.exists()) {
+			compact();
+			return;
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		try {
+			writeRecord(out, unitName, array);
+		} finally {
+			out.close();
+		}
+		if (++recordCount > 2 * dependencies.size() + 100)
+			compact();
+	}
+
+
+	private static void writeRecord(DataOutputStream out, String unit, String [] deps) throws IOException {
+		out.writeUTF(unit);
+		out.writeInt(deps.length);
+		for (String dep : deps)
+			out.writeUTF(dep);
+	}
+
+
+}
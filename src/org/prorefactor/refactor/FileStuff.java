@@ -31,6 +31,9 @@ public class FileStuff {
 	/** OS specific text file line seperator - '\n' on unix, "\r\n" on Windows */
 	public static final String LINESEP = System.getProperty("line.separator");
 
+	/** How many times replaceFile() tries the rename. */
+	private static final int REPLACE_TRIES = 5;
+
 
 
 	/** Count lines in a file */
@@ -162,6 +165,28 @@ public class FileStuff {
 
 
 
+	/** Replace a file with a newly written temp file from the same directory.
+	 * Writers write to a temp file first and then call this, so that a reader in another
+	 * thread never sees a half written file.
+	 * <p>
+	 * On Unix, the rename replaces the target in one step, so a reader always finds either
+	 * the old file or the new one. On Windows, a rename fails if the target exists, so
+	 * only then is the target deleted and the rename tried again. Another writer of the
+	 * same target (ex: a BatchParser worker) might get in between, so that is retried
+	 * a few times.
+	 */
+	public static void replaceFile(File tempFile, File target) throws IOException {
+		for (int tries = 0; tries < REPLACE_TRIES; tries++) {
+			if (tempFile.renameTo(target))
+				return;
+			target.delete();
+		}
+		tempFile.delete();
+		throw new IOException("Could not rename " + tempFile + " to " + target);
+	} // replaceFile
+
+
+
 	/** Search a file for a given string.
 	 * Search is done line by line; searches across line breaks not supported.
 	 * @param file The file to search
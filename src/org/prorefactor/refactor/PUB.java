@@ -12,26 +12,34 @@
  */
 package org.prorefactor.refactor;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.commons.collections.bidimap.DualHashBidiMap;
+import org.apache.commons.io.IOUtils;
+import org.prorefactor.core.FlatTree;
 import org.prorefactor.core.IConstants;
 import org.prorefactor.core.JPNode;
+import org.prorefactor.core.NodeTypeIndex;
 import org.prorefactor.core.TokenTypes;
 import org.prorefactor.core.schema.Field;
 import org.prorefactor.core.schema.Table;
@@ -47,22 +55,51 @@ import org.prorefactor.treeparser.SymbolScopeSuper;
 import org.prorefactor.treeparser.TableBuffer;
 import org.prorefactor.treeparser01.TP01Support;
 import com.joanju.proparse.IntegerIndex;
+import com.joanju.proparse.ParseContext;
 
-/** The API for "Parse Unit Binary" files, which are a persistent store for syntax trees. */
+/** The API for "Parse Unit Binary" files, which are a persistent store for syntax trees.
+ * <p>
+ * The file starts with the layout version and a table of segment offsets, so a reader
+ * can go straight to the segment it needs. Loading reads the version and the segment table,
+ * and then, with positional reads, just the segments that were asked for, into heap buffers.
+ * For example, loadSegment(PUB.SCHEMA) reads the file index and the schema segment, and none
+ * of the tree. The file is not mapped, so that no mapping holds the file open after loading.
+ * (On Windows, a mapped file can't be replaced, and build() replaces the PUB file.)
+ * <p>
+ * The syntax tree is stored as parallel columns (node class, type, parent, file, line,
+ * column, source number, text) with variable length and delta encoding, plus one table
+ * for the other node attributes. Those can be worked on directly, with getTreeColumns(),
+ * or JPNode objects can be created from them. JPNode objects are created lazily,
+ * one top level subtree (statement) at a time, and the strings are decoded as the nodes
+ * that use them get created.
+ * @see #loadSegment(int)
+ * @see #getTopLevelNode(int)
+ * @see #getTreeColumns()
+ */
 public class PUB {
 	
 	/** Create a PUB for a compile unit fully qualified path/name.
 	 * RefactorSession must be configured for the project (schema loaded, project name set, etc)
 	 * before working with PUB files.
+	 * Uses the default ParseContext for the current thread.
 	 * @param fullPath The full path to the compile unit's source file.
 	 */
 	public PUB(String fullPath) {
+		this(fullPath, ParseContext.getDefault());
+	}
+
+	/** Create a PUB for a compile unit, with the project and settings from a ParseContext.
+	 * @param fullPath The full path to the compile unit's source file.
+	 * @param context The context which the compile unit is parsed with.
+	 */
+	public PUB(String fullPath, ParseContext context) {
+		this.context = context;
 		cuFile = new File(fullPath);
-		pubFile = new File(pubDirFileName(fullPath) + ".pub");
+		pubFile = new File(pubDirFileName(fullPath, context.getSession()) + ".pub");
 	}
 
 	/** This is like a "schema version" for .pub files. */
-	public static final int LAYOUT_VERSION = 11;
+	public static final int LAYOUT_VERSION = 13;
 
 	/** loadTo(PUBFILE_TIMESTAMP) - just check if the binary exists and
 	 * check that it is newer than the compile unit file. Does not read anything
@@ -102,21 +139,38 @@ public class PUB {
 	public static final int END = 100;
 	
 
-	/** Scratch JPNode attributes for storing string index. */
-	private static final int NODETEXT = 49001;
-	/** Scratch JPNode attributes for storing string index. */
+	/** Attribute table key for a node's comments. */
 	private static final int NODECOMMENTS = 49002;
 
+	/** The segments, in the order they are written. */
+	private static final int [] SEGMENTS = {FILES, HEADER, SCHEMA, IMPORTS, EXPORTS, AST, STRINGS};
+
 	private boolean checked = false;
 	private boolean current = false;
 	private boolean usingNonlocalInputBlob = false;
-	private int nodeCount;
+	/** The whole input blob, when not reading from a local PUB file. */
+	private ByteBuffer blob;
+	/** The segments that were read by the last load, indexed by segment number.
+	 * Each starts at position zero. Segments are read through duplicates of these.
+	 */
+	private ByteBuffer [] segmentBuffers;
+	/** Position of the first string's data in the STRINGS segment. */
+	private int stringsStart;
+	private int [] stringOffsets;
+	private TreeColumns columns;
+	/** The node number of each top level node (child of Program_root). */
+	private int [] topLevelNodeNums;
+	private JPNode [] topLevelNodes;
+	/** Nodes are added to it as they are created. */
+	private NodeTypeIndex nodeTypeIndex;
+	private ProgramRootNode rootNode;
 	private ArrayList<SymbolRef> exportList;
 	private ArrayList<String> fileList;
 	private ArrayList<SymbolRef> importList;
 	private DualHashBidiMap stringTable;
 	private File cuFile;
 	private File pubFile;
+	private ParseContext context;
 	private DataInputStream inStream;
 	private IntegerIndex<String> fileIndexes;
 	private ProgramRootNode tree;
@@ -145,6 +199,79 @@ public class PUB {
 		public String classSymbolRefName = null;
 	}
 	
+	/** The syntax tree as parallel arrays, indexed by node number.
+	 * Nodes are numbered in preorder, with Program_root as node zero, the same
+	 * as JPNode.getNodeNum() for a tree loaded from the PUB.
+	 * This is how the tree is stored in the PUB file, and it can be worked on
+	 * directly, without creating any JPNode objects.
+	 * @see PUB#getTreeColumns()
+	 */
+	public class TreeColumns {
+		TreeColumns(int size) {
+			subtype = new int[size];
+			type = new int[size];
+			parent = new int[size];
+			fileIndex = new int[size];
+			line = new int[size];
+			column = new int[size];
+			sourceNum = new int[size];
+			text = new int[size];
+		}
+		private int [] subtype;
+		private int [] type;
+		private int [] parent;
+		private int [] fileIndex;
+		private int [] line;
+		private int [] column;
+		private int [] sourceNum;
+		/** String index of the text, or zero if the node type's default text. */
+		private int [] text;
+		/** Attributes other than the text, sorted by node number. */
+		private int [] attrNode;
+		private int [] attrKey;
+		private int [] attrValue;
+
+		/** Same as JPNode.attrGet(). Returns zero if the attribute is not set. */
+		public int attrGet(int node, int key) {
+			for (int i = firstAttr(node); i < attrNode.length && attrNode[i]==node; i++) {
+				if (attrKey[i]==key) return attrValue[i];
+			}
+			return 0;
+		}
+		/** The index of the node's first entry in the attribute table. */
+		private int firstAttr(int node) {
+			int lo = 0;
+			int hi = attrNode.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (attrNode[mid] < node) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+		public int getColumn(int node) { return column[node]; }
+		/** The comments that precede the node, or null if none. */
+		public String getComments(int node) {
+			int index = attrGet(node, NODECOMMENTS);
+			return index > 0 ? getString(index) : null;
+		}
+		public int getFileIndex(int node) { return fileIndex[node]; }
+		public int getLine(int node) { return line[node]; }
+		/** The parent's node number, -1 for Program_root. */
+		public int getParent(int node) { return parent[node]; }
+		public int getSourceNum(int node) { return sourceNum[node]; }
+		/** The node's text, or the node type's default text. */
+		public String getText(int node) {
+			if (text[node] > 0) return getString(text[node]);
+			return TokenTypes.getDefaultText(type[node]);
+		}
+		public int getType(int node) { return type[node]; }
+		/** The number of nodes. */
+		public int size() { return type.length; }
+	}
+
+
+
 	private class TableRef {
 		TableRef(String name) { this.name = name; }
 		String name;
@@ -163,6 +290,12 @@ public class PUB {
 		importList = new ArrayList<SymbolRef>();
 		tableMap = new TreeMap<String, TableRef>();
 		stringTable = new DualHashBidiMap();
+		stringArray = null;
+		stringOffsets = null;
+		columns = null;
+		rootNode = null;
+		topLevelNodes = null;
+		segmentBuffers = null;
 		/* String index zero is not used.
 		 * This allows us to use 0 from JPNode.attrGet() to indicate "no string value present".
 		 */
@@ -182,6 +315,7 @@ public class PUB {
 	public ParseUnit build() throws IOException, RefactorException {
 		if (parseUnit==null) {
 			parseUnit = new ParseUnit(cuFile);
+			parseUnit.setContext(context);
 			parseUnit.setPUB(this);
 		}
 		pubFile.delete();
@@ -198,22 +332,93 @@ public class PUB {
 		tree = pu.getTopNode();
 		_refresh();
 		pubFile.getParentFile().mkdirs();
-		OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(pubFile));
-		DataOutputStream out = new DataOutputStream(fileOut);
-		writeVersion(out);
-		writeFileIndex(out);
-		writeHeader(out, pu.getRootScope());
-		ArrayList rootSymbols = pu.getRootScope().getAllSymbols();
-		writeSchemaSegment(out, rootSymbols);
-		writeImportSegment(out, rootSymbols);
-		writeExportSegment(out, rootSymbols);
-		writeTree(out, tree);
-		writeStrings(out);
-		out.close();
+		// Write to a temp file, so that a parse running in another thread
+		// (ex: from BatchParser) never reads a partially written PUB.
+		File tempFile = File.createTempFile(pubFile.getName(), ".tmp", pubFile.getParentFile());
+		boolean replaced = false;
+		try {
+			// Each segment is written to its own buffer, so that we know the offsets for the segment table.
+			ByteArrayOutputStream [] segments = new ByteArrayOutputStream[SEGMENTS.length];
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = new ByteArrayOutputStream();
+			writeFileIndex(new DataOutputStream(segments[0]));
+			writeHeader(new DataOutputStream(segments[1]), pu.getRootScope());
+			ArrayList rootSymbols = pu.getRootScope().getAllSymbols();
+			writeSchemaSegment(new DataOutputStream(segments[2]), rootSymbols);
+			writeImportSegment(new DataOutputStream(segments[3]), rootSymbols);
+			writeExportSegment(new DataOutputStream(segments[4]), rootSymbols);
+			writeTree(new DataOutputStream(segments[5]), tree);
+			writeStrings(new DataOutputStream(segments[6]));
+			OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+			DataOutputStream out = new DataOutputStream(fileOut);
+			try {
+				writeVersion(out);
+				out.writeInt(SEGMENTS.length);
+				int offset = 8 + SEGMENTS.length * 8;
+				for (int i = 0; i < SEGMENTS.length; i++) {
+					out.writeInt(SEGMENTS[i]);
+					out.writeInt(offset);
+					offset += segments[i].size();
+				}
+				for (ByteArrayOutputStream segment : segments)
+					segment.writeTo(out);
+			} finally {
+				out.close();
+			}
+			FileStuff.replaceFile(tempFile, pubFile);
+			replaced = true;
+		} finally {
+			// Don't leave a partly written temp file in the PUB directory.
+			if (! replaced)
+				tempFile.delete();
+		}
+		// The new PUB is in place, so a failure to record the dependencies doesn't fail the build.
+		// The unit is left out of the index instead, until its next build.
+		DependencyIndex dependencyIndex = pu.getContext().getSession().getDependencyIndex();
+		try {
+			dependencyIndex.update(cuFile, dependencies(pu.getRootScope()));
+		} catch (IOException e) {
+			dependencyIndex.remove(cuFile);
+		}
 	}
 	
 	
 	
+	/** Add the files from a PUB's file index, other than the compile unit itself. */
+	private static void addIncludeFiles(String [] files, ArrayList<String> list) {
+		for (int i = 1; i < files.length; i++) {
+			File file = FileStuff.findFile(files[i]);
+			if (file!=null) list.add(FileStuff.fullpath(file));
+		}
+	}
+
+
+	/** For the DependencyIndex: the include files, and the class file and include files
+	 * of each super class, all the way up the inheritance chain.
+	 * The super classes' include files come from their PUB files, which the tree parser
+	 * has just brought up to date. If a super class's PUB can't be loaded, then just
+	 * its class file is recorded.
+	 */
+	private ArrayList<String> dependencies(SymbolScopeRoot unitScope) {
+		ArrayList<String> ret = new ArrayList<String>();
+		addIncludeFiles(tree.getFilenames(), ret);
+		SymbolScopeSuper superScope = (SymbolScopeSuper) unitScope.getParentScope();
+		while (superScope!=null) {
+			File file = FileStuff.findFileForClassName(superScope.getClassName());
+			if (file!=null) {
+				String superPath = FileStuff.fullpath(file);
+				ret.add(superPath);
+				PUB superPub = new PUB(superPath, context);
+				if (superPub.loadTo(FILES))
+					addIncludeFiles(superPub.fileList.toArray(new String[superPub.fileList.size()]), ret);
+			}
+			superScope = (SymbolScopeSuper) superScope.getParentScope();
+		}
+		return ret;
+	}
+
+
+
 	/** Copies the lower case names of all schema tables into your collection.
 	 * The names are of the format "database.table".
 	 * You might use a sorted set or a hash set, depending on what you need it for.
@@ -273,17 +478,6 @@ public class PUB {
 	
 	
 
-	private DataInputStream getDataInputStream() {
-		try {
-			InputStream fileIn = new BufferedInputStream(new FileInputStream(pubFile));
-			DataInputStream inStream = new DataInputStream(fileIn);
-			return inStream;
-		} catch (FileNotFoundException e) {
-			return null;
-		}
-	}
-	
-	
 	public ParseUnit getParseUnit() { return parseUnit; }
 	
 	
@@ -299,8 +493,82 @@ public class PUB {
 	}
 	
 	
-	/** Return the JPNode syntax tree that was loaded with load() */
-	public ProgramRootNode getTree() { return tree; }
+	/** Get a string from the string table, decoding it if it hasn't been already. */
+	private String getString(int index) {
+		String s = stringArray[index];
+		if (s==null) {
+			ByteBuffer in = segment(STRINGS);
+			in.position(stringsStart + stringOffsets[index]);
+			s = readUTF(in);
+			stringArray[index] = s;
+		}
+		return s;
+	}
+
+
+	/** Get the syntax tree as a FlatTree, without creating any JPNode objects.
+	 * Requires loadTo(AST) or loadSegment(AST) first. All of the tree's strings get decoded.
+	 */
+	public FlatTree getFlatTree() {
+		TreeColumns c = columns;
+		String [] strings = new String[stringOffsets.length];
+		for (int i = 1; i < strings.length; i++)
+			strings[i] = getString(i);
+		return FlatTree.build(c.type, c.parent, c.fileIndex, c.line, c.column, c.text,
+				strings, fileList.toArray(new String[fileList.size()]));
+	}
+	
+	
+	
+	/** The number of top level nodes (children of Program_root) in the syntax tree.
+	 * Requires loadTo(AST) or loadSegment(AST) first.
+	 */
+	public int getTopLevelCount() { return topLevelNodeNums.length; }
+
+
+	/** Get one of the top level nodes (children of Program_root), decoding its subtree
+	 * if it hasn't been already. Requires loadTo(AST) or loadSegment(AST) first.
+	 * The node's parent is the Program_root node. Its siblings are only linked if
+	 * the whole tree has been decoded, with getTree().
+	 */
+	public JPNode getTopLevelNode(int index) {
+		JPNode node = topLevelNodes[index];
+		if (node==null) {
+			int start = topLevelNodeNums[index];
+			int end = index + 1 < topLevelNodeNums.length ? topLevelNodeNums[index + 1] : columns.size();
+			node = createSubtree(start, end);
+			node.setParent(rootNode);
+			topLevelNodes[index] = node;
+		}
+		return node;
+	}
+
+
+	/** Get the syntax tree's columns, for working on the tree without creating JPNode objects.
+	 * Requires loadTo(AST) or loadSegment(AST) first.
+	 */
+	public TreeColumns getTreeColumns() { return columns; }
+
+
+	/** Return the JPNode syntax tree that was loaded with load().
+	 * If only loadSegment(AST) was done, this decodes the whole tree.
+	 */
+	public ProgramRootNode getTree() {
+		if (tree==null && rootNode!=null) {
+			JPNode prev = null;
+			for (int i = 0; i < topLevelNodes.length; i++) {
+				JPNode node = getTopLevelNode(i);
+				if (prev==null)
+					rootNode.setFirstChild(node);
+				else
+					prev.setNextSibling(node);
+				node.setPrevSibling(prev);
+				prev = node;
+			}
+			tree = rootNode;
+		}
+		return tree;
+	}
 	
 	
 	/** Has the PUB been checked to see if it's current?
@@ -328,38 +596,118 @@ public class PUB {
 	 * @return false if the file is out of date and you need to call build() instead.
 	 */
 	public boolean loadTo(int lastSegmentToLoad) {
+		ArrayList<Integer> wanted = new ArrayList<Integer>();
+		for (int segment : SEGMENTS) {
+			if (segment <= lastSegmentToLoad || (segment==STRINGS && lastSegmentToLoad >= AST))
+				wanted.add(segment);
+		}
+		if (! loadFiles(lastSegmentToLoad, wanted)) return false;
+		if (lastSegmentToLoad==PUBFILE_TIMESTAMP || lastSegmentToLoad==FILES) return true;
+		try {
+			for (int segment : SEGMENTS) {
+				if (segment==FILES) continue;
+				if (segment > lastSegmentToLoad) break;
+				readSegment(segment);
+			}
+			if (lastSegmentToLoad >= AST) getTree();
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+		return true;
+	}
+
+
+
+	/** Check the version, read the file index, and check the time stamps.
+	 * For PUBFILE_TIMESTAMP, just check the time stamp of the PUB file.
+	 * @param wanted The segments to read, along with the file index.
+	 */
+	private boolean loadFiles(int lastSegmentToLoad, List<Integer> wanted) {
 		_refresh();
 		if (lastSegmentToLoad >= HEADER) checked = true;
 		if (! usingNonlocalInputBlob) {
 			if (! pubFile.exists()) return false;
 			if (cuFile.lastModified() > pubFile.lastModified()) return false;
 			if (lastSegmentToLoad==PUBFILE_TIMESTAMP) return true;
-			inStream = getDataInputStream();
-			if (inStream==null) return false;
 		}
 		try {
-			if (! readVersion(inStream)) return false;
-			readFileIndex(inStream);
-			if ((!usingNonlocalInputBlob) && (!testTimeStamps())) return false;
-			current = true;
-			if (lastSegmentToLoad==PUB.FILES) return true;
-			readHeader(inStream);
-			if (lastSegmentToLoad==PUB.HEADER) return true;
-			readSchema(inStream);
-			if (lastSegmentToLoad==PUB.SCHEMA) return true;
-			readImportSegment(inStream);
-			if (lastSegmentToLoad==PUB.IMPORTS) return true;
-			readExportSegment(inStream);
-			if (lastSegmentToLoad==PUB.EXPORTS) return true;
-			nodeCount = -1;
-			tree = (ProgramRootNode) readTree(inStream);
-			if (lastSegmentToLoad==PUB.AST) return true;
-			readStrings(inStream);
-			setStrings(tree);
-		} catch (IOException e1) {
+			if (! openSegments(wanted)) return false;
+			readFileIndex(segment(FILES));
+		} catch (IOException e) {
 			return false;
+		} catch (BufferUnderflowException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			// Bad position - truncated or damaged file.
+			return false;
+		}
+		if ((!usingNonlocalInputBlob) && (!testTimeStamps())) return false;
+		current = true;
+		return true;
+	}
+
+
+
+	/** Load just one segment, without reading the segments before it.
+	 * (The file index is always read, to check that the PUB is current.)
+	 * For example, a where-used report only needs loadSegment(PUB.SCHEMA).
+	 * For loadSegment(PUB.AST), the tree is decoded lazily.
+	 * @return false if the file is out of date and you need to call build() instead.
+	 * @see #getTopLevelNode(int)
+	 */
+	public boolean loadSegment(int segment) {
+		ArrayList<Integer> wanted = new ArrayList<Integer>();
+		wanted.add(segment);
+		if (segment==AST) wanted.add(STRINGS);
+		if (! loadFiles(FILES, wanted)) return false;
+		if (segment!=FILES) readSegment(segment);
+		return true;
+	}
+
+
+
+	/** Check the version, read the segment table, and read the wanted segments (and
+	 * the file index) from the PUB file or the input blob. From a PUB file, the other
+	 * segments aren't read at all.
+	 * Returns false if the PUB file is from a different layout version.
+	 */
+	private boolean openSegments(List<Integer> wanted) throws IOException {
+		segmentBuffers = new ByteBuffer[STRINGS + 1];
+		if (usingNonlocalInputBlob) {
+			if (blob==null) {
+				try {
+					blob = ByteBuffer.wrap(IOUtils.toByteArray(inStream));
+				} finally {
+					inStream.close();
+				}
+			}
+			ByteBuffer in = blob.duplicate();
+			if (! readVersion(in)) return false;
+			int [][] table = readSegmentTable(in, in.getInt(), blob.limit());
+			for (int [] entry : table) {
+				if (entry[0]==FILES || wanted.contains(entry[0])) {
+					ByteBuffer slice = blob.duplicate();
+					slice.limit(entry[2]);
+					slice.position(entry[1]);
+					segmentBuffers[entry[0]] = slice.slice();
+				}
+			}
+			return true;
+		}
+		FileInputStream fileIn = new FileInputStream(pubFile);
+		try {
+			FileChannel channel = fileIn.getChannel();
+			int size = (int) channel.size();
+			ByteBuffer in = readAt(channel, 0, 8);
+			if (! readVersion(in)) return false;
+			int numSegments = in.getInt();
+			in = readAt(channel, 8, numSegments * 8);
+			for (int [] entry : readSegmentTable(in, numSegments, size)) {
+				if (entry[0]==FILES || wanted.contains(entry[0]))
+					segmentBuffers[entry[0]] = readAt(channel, entry[1], entry[2] - entry[1]);
+			}
 		} finally {
-			try { inStream.close(); } catch (IOException e) { }
+			fileIn.close();
 		}
 		return true;
 	}
@@ -370,6 +718,11 @@ public class PUB {
 	 * The project for the RefactorSession must already be assigned.
 	 */
 	public static String pubDirFileName(String fullPath) {
+		return pubDirFileName(fullPath, RefactorSession.getInstance());
+	}
+
+	/** Same as pubDirFileName(String), but for the project of the given RefactorSession. */
+	public static String pubDirFileName(String fullPath, RefactorSession session) {
 		// For "C:" in the path, replace the ':' with '_'.
 		String path2;
 		if (fullPath.charAt(1)==':') {
@@ -377,11 +730,11 @@ public class PUB {
 		} else {
 			path2 = fullPath;
 		}
-		return RefactorSession.getInstance().getProRefactorProjectDir() + "/pubs/" + path2;
+		return session.getProRefactorProjectDir() + "/pubs/" + path2;
 	}
 	
 	
-	private void readExportSegment(DataInputStream in) throws IOException {
+	private void readExportSegment(ByteBuffer in) {
 		for (;;) {
 			SymbolRef symbolRef = readSymbol(in);
 			if (symbolRef==null) break;
@@ -391,12 +744,12 @@ public class PUB {
 	
 
 	
-	private void readFileIndex(DataInputStream in) throws IOException {
+	private void readFileIndex(ByteBuffer in) {
 		int index;
 		String filename;
 		for (;;) {
-			index = in.readInt();
-			filename = in.readUTF();
+			index = in.getInt();
+			filename = readUTF(in);
 			if (index == -1) break;
 			fileList.add(filename);
 			fileIndexes.add(filename);
@@ -405,14 +758,14 @@ public class PUB {
 	
 	
 	
-	private void readHeader(DataInputStream in) throws IOException {
-		unitClassName = in.readUTF(); if (unitClassName.length()==0) unitClassName = null;
-		superClassName = in.readUTF(); if (superClassName.length()==0) superClassName = null;
+	private void readHeader(ByteBuffer in) {
+		unitClassName = readUTF(in); if (unitClassName.length()==0) unitClassName = null;
+		superClassName = readUTF(in); if (superClassName.length()==0) superClassName = null;
 	}
 	
 	
 	
-	private void readImportSegment(DataInputStream in) throws IOException {
+	private void readImportSegment(ByteBuffer in) {
 		for (;;) {
 			SymbolRef symbolRef = readSymbol(in);
 			if (symbolRef==null) break;
@@ -422,14 +775,14 @@ public class PUB {
 	
 
 	
-	private void readSchema(DataInputStream in) throws IOException {
+	private void readSchema(ByteBuffer in) {
 		for (;;) {
-			String tableName = in.readUTF();
+			String tableName = readUTF(in);
 			if (tableName.length()==0) break;
 			TableRef tableRef = new TableRef(tableName);
 			tableMap.put(tableName.toLowerCase(), tableRef);
 			for (;;) {
-				String fieldName = in.readUTF();
+				String fieldName = readUTF(in);
 				if (fieldName.length()==0) break;
 				tableRef.fieldMap.put(fieldName.toLowerCase(), fieldName);
 			}
@@ -438,58 +791,285 @@ public class PUB {
 	
 	
 	
-	private void readStrings(DataInputStream in) throws IOException {
-		int size = in.readInt();
+	/** Create the JPNode for one node number, without linking it to any others.
+	 * Strings are decoded as they are needed.
+	 */
+	private JPNode createNode(int num) {
+		TreeColumns c = columns;
+		JPNode node = com.joanju.proparse.NodeFactory.createByIndex(c.subtype[num]);
+		node.setFilenameList(fileIndexes);
+		node.setNodeNum(num);
+		node.setType(c.type[num]);
+		node.setFileIndex(c.fileIndex[num]);
+		node.setLine(c.line[num]);
+		node.setColumn(c.column[num]);
+		node.setSourceNum(c.sourceNum[num]);
+		if (c.text[num] > 0) node.setText(getString(c.text[num]));
+		if (nodeTypeIndex!=null) nodeTypeIndex.setNode(node);
+		for (int i = c.firstAttr(num); i < c.attrNode.length && c.attrNode[i]==num; i++) {
+			int key = c.attrKey[i];
+			int value = c.attrValue[i];
+			switch (key) {
+				case NODECOMMENTS :
+					node.setComments(getString(value));
+					break;
+				case IConstants.PROPARSEDIRECTIVE :
+					node.attrSet(key, value);
+					((ProparseDirectiveNode)node).setDirectiveText(getString(value));
+					break;
+				case IConstants.QUALIFIED_CLASS_INT :
+					node.attrSet(key, value);
+					node.attrSetS(IConstants.QUALIFIED_CLASS_STRING, getString(value));
+					break;
+				default :
+					node.attrSet(key, value);
+			}
+		}
+		return node;
+	}
+
+
+
+	/** Create and link the JPNode objects for a subtree.
+	 * In preorder, a subtree is the node numbers from its top node up to (not including) end.
+	 */
+	private JPNode createSubtree(int start, int end) {
+		JPNode [] nodes = new JPNode[end - start];
+		JPNode [] lastChild = new JPNode[end - start];
+		for (int num = start; num < end; num++) {
+			JPNode node = createNode(num);
+			nodes[num - start] = node;
+			if (num==start) continue;
+			int parentNum = columns.parent[num] - start;
+			JPNode parent = nodes[parentNum];
+			JPNode prev = lastChild[parentNum];
+			if (prev==null)
+				parent.setFirstChild(node);
+			else
+				prev.setNextSibling(node);
+			node.setPrevSibling(prev);
+			node.setParent(parent);
+			lastChild[parentNum] = node;
+		}
+		return nodes[0];
+	}
+
+
+
+	/** Read one of the segments, positioned by the segment table. */
+	private void readSegment(int segment) {
+		ByteBuffer in = segment(segment);
+		switch (segment) {
+			case HEADER : readHeader(in); break;
+			case SCHEMA : readSchema(in); break;
+			case IMPORTS : readImportSegment(in); break;
+			case EXPORTS : readExportSegment(in); break;
+			case AST :
+				readStringOffsets(segment(STRINGS));
+				readTree(in);
+				break;
+			case STRINGS : readStringOffsets(in); break;
+		}
+	}
+
+
+
+	/** Read the string table's offsets. The strings themselves are decoded as they are needed. */
+	private void readStringOffsets(ByteBuffer in) {
+		if (stringOffsets!=null) return;
+		int size = readVarint(in);
+		stringOffsets = new int[size];
+		int offset = 0;
+		for (int i = 0; i < size; i++) {
+			stringOffsets[i] = offset;
+			offset += readVarint(in);
+		}
 		stringArray = new String[size];
-		for(int i = 0; i < size; i++) {
-			stringArray[i] = in.readUTF();
+		stringsStart = in.position();
+	}
+
+
+
+	/** Read the AST segment's columns and create the Program_root node.
+	 * The other JPNode objects are created later, as they are asked for.
+	 * @see #writeTree(DataOutputStream, JPNode)
+	 */
+	private void readTree(ByteBuffer in) {
+		int size = readVarint(in);
+		TreeColumns c = new TreeColumns(size);
+		for (int i = 0; i < size; i++)
+			c.subtype[i] = readVarint(in);
+		int [] typeTable = new int[readVarint(in)];
+		for (int i = 0; i < typeTable.length; i++)
+			typeTable[i] = readVarint(in);
+		for (int i = 0; i < size; i++)
+			c.type[i] = typeTable[readVarint(in)];
+		int numTopLevel = 0;
+		c.parent[0] = -1;
+		for (int i = 1; i < size; i++) {
+			c.parent[i] = i - readVarint(in);
+			if (c.parent[i]==0) numTopLevel++;
 		}
+		readRuns(in, c.fileIndex);
+		readDeltas(in, c.line);
+		for (int i = 0; i < size; i++)
+			c.column[i] = readZigzag(in);
+		readRuns(in, c.sourceNum);
+		for (int i = 0; i < size; i++)
+			c.text[i] = readVarint(in);
+		int numAttrs = readVarint(in);
+		c.attrNode = new int[numAttrs];
+		c.attrKey = new int[numAttrs];
+		c.attrValue = new int[numAttrs];
+		int node = 0;
+		for (int i = 0; i < numAttrs; i++) {
+			node += readVarint(in);
+			c.attrNode[i] = node;
+			c.attrKey[i] = readVarint(in);
+			c.attrValue[i] = readZigzag(in);
+		}
+		columns = c;
+		topLevelNodeNums = new int[numTopLevel];
+		numTopLevel = 0;
+		for (int i = 1; i < size; i++) {
+			if (c.parent[i]==0) topLevelNodeNums[numTopLevel++] = i;
+		}
+		topLevelNodes = new JPNode[topLevelNodeNums.length];
+		tree = null;
+		nodeTypeIndex = context.getEnvironment().isNodeTypeIndex()
+				? new NodeTypeIndex(c.type, c.parent)
+				: null;
+		rootNode = (ProgramRootNode) createNode(0);
+		rootNode.setNodeTypeIndex(nodeTypeIndex);
 	}
-	
-	
-	
-	private SymbolRef readSymbol(DataInputStream in) throws IOException {
-		SymbolRef symbolRef = new SymbolRef(in.readInt(), in.readUTF());
+
+
+
+	/** Read a column written by writeDeltas(). */
+	private static void readDeltas(ByteBuffer in, int [] values) {
+		int prev = 0;
+		for (int i = 0; i < values.length; i++) {
+			prev += readZigzag(in);
+			values[i] = prev;
+		}
+	}
+
+
+
+	private SymbolRef readSymbol(ByteBuffer in) {
+		SymbolRef symbolRef = new SymbolRef(in.getInt(), readUTF(in));
 		if (symbolRef.progressType == -1) return null;
-		symbolRef.dataType = in.readInt();
-		if (symbolRef.dataType==TokenTypes.CLASS) symbolRef.classSymbolRefName = in.readUTF();
+		symbolRef.dataType = in.getInt();
+		if (symbolRef.dataType==TokenTypes.CLASS) symbolRef.classSymbolRefName = readUTF(in);
 		return symbolRef;
 	}
-	
-	
-	
-	private JPNode readTree(DataInputStream in) throws IOException {
-		int nodeClass = in.readInt();
-		if (nodeClass == -1) return null;
-		JPNode node = com.joanju.proparse.NodeFactory.createByIndex(nodeClass);
-		node.setFilenameList(fileIndexes);
-		node.setNodeNum(++nodeCount);
-		node.setType(in.readInt());
-		node.setFileIndex(in.readShort());
-		node.setLine(in.readInt());
-		node.setColumn(in.readShort());
-		node.setSourceNum(in.readInt());
-		int key;
-		int value;
-		for (	key=in.readInt(), value=in.readInt()
-			;	key != -1
-			;	key=in.readInt(), value=in.readInt()
-			) {
-			node.attrSet(key, value);
-		}
-		node.setFirstChild(readTree(in));
-		node.setParentInChildren();
-		node.setNextSiblingWithLinks(readTree(in));
-		return node;
+
+
+
+	/** Read a string written by DataOutputStream.writeUTF(). */
+	private static String readUTF(ByteBuffer in) {
+		int len = in.getShort() & 0xffff;
+		int end = in.position() + len;
+		char [] chars = new char[len];
+		int count = 0;
+		while (in.position() < end) {
+			int c = in.get() & 0xff;
+			if (c < 0x80) {
+				chars[count++] = (char) c;
+			} else if ((c & 0xe0) == 0xc0) {
+				chars[count++] = (char) (((c & 0x1f) << 6) | (in.get() & 0x3f));
+			} else {
+				int c2 = in.get() & 0x3f;
+				chars[count++] = (char) (((c & 0x0f) << 12) | (c2 << 6) | (in.get() & 0x3f));
+			}
+		}
+		return new String(chars, 0, count);
 	}
-	
-	
-	
+
+
+
+	/** Read a column written by writeRuns(). */
+	private static void readRuns(ByteBuffer in, int [] values) {
+		int value = 0;
+		int i = 0;
+		while (i < values.length) {
+			int runLength = readVarint(in);
+			value += readZigzag(in);
+			for (int end = i + runLength; i < end; i++)
+				values[i] = value;
+		}
+	}
+
+
+
+	/** Read an unsigned variable length int: seven bits per byte, low order first. */
+	private static int readVarint(ByteBuffer in) {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+
+
+	/** Read a signed variable length int, written by writeZigzag(). */
+	private static int readZigzag(ByteBuffer in) {
+		int value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+
+
 	/** Read the version, return false if the PUB file is out of date, true otherwise. */
-	private boolean readVersion(DataInputStream in) throws IOException {
-		if (in.readInt() != LAYOUT_VERSION) return false;
+	private boolean readVersion(ByteBuffer in) {
+		if (in.getInt() != LAYOUT_VERSION) return false;
 		return true;
 	}
+
+
+
+	/** Get a buffer positioned at the start of a segment that was read by the last load. */
+	private ByteBuffer segment(int segment) {
+		return segmentBuffers[segment].duplicate();
+	}
+
+
+
+	/** Read the segment table. Returns {segment, start, end} for each segment, where
+	 * a segment ends where the next one starts, or at the end of the file.
+	 */
+	private static int [][] readSegmentTable(ByteBuffer in, int numSegments, int size) {
+		int [][] table = new int[numSegments][];
+		for (int i = 0; i < numSegments; i++) {
+			int segment = in.getInt();
+			table[i] = new int[] {segment, in.getInt(), size};
+			if (segment < 0 || segment > STRINGS) throw new IllegalArgumentException("Bad PUB segment number " + segment);
+		}
+		for (int [] entry : table) {
+			for (int [] other : table) {
+				if (other[1] > entry[1] && other[1] < entry[2]) entry[2] = other[1];
+			}
+		}
+		return table;
+	}
+
+
+
+	/** Read length bytes from the channel, starting at offset, without moving the channel's position. */
+	private static ByteBuffer readAt(FileChannel channel, long offset, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, offset + bytes.position()) == -1)
+				throw new BufferUnderflowException();
+		}
+		bytes.flip();
+		return bytes;
+	}
 	
 	
 	
@@ -497,6 +1077,7 @@ public class PUB {
 	public void setDataInputStream(DataInputStream inStream) {
 		this.inStream = inStream;
 		usingNonlocalInputBlob = true;
+		blob = null;
 	}
 	
 	
@@ -508,21 +1089,6 @@ public class PUB {
 	
 	
 	
-	private void setStrings(JPNode node) {
-		if (node==null) return;
-		int index;
-		if ((index=node.attrGet(NODETEXT)) > 0) node.setText(stringArray[index]);
-		if ((index=node.attrGet(NODECOMMENTS)) > 0) node.setComments(stringArray[index]);
-		if ((index=node.attrGet(IConstants.PROPARSEDIRECTIVE)) > 0)
-			((ProparseDirectiveNode)node).setDirectiveText(stringArray[index]);
-		if ((index=node.attrGet(IConstants.QUALIFIED_CLASS_INT)) > 0)
-			node.attrSetS(IConstants.QUALIFIED_CLASS_STRING, stringArray[index]);
-		setStrings(node.firstChild());
-		setStrings(node.nextSibling());
-	}
-	
-	
-	
 	private int stringIndex(String s) {
 		Integer index = (Integer) stringTable.getKey(s);
 		if (index==null) {
@@ -604,59 +1170,172 @@ public class PUB {
 	
 	
 	
-	private void writeTree(DataOutputStream out, JPNode node) throws IOException {
-		int nodeType = node.getType();
-		
-		out.writeInt(node.getSubtypeIndex());
-		out.writeInt(nodeType);
-		out.writeShort(node.getFileIndex());
-		out.writeInt(node.getLine());
-		out.writeShort(node.getColumn());
-		out.writeInt(node.getSourceNum());
-		
-		if ( ! TokenTypes.hasDefaultText(nodeType) ) {
-			out.writeInt(NODETEXT);
-			out.writeInt(stringIndex(node.getText()));
-		}
+	/** Write the attributes for one node, other than its text.
+	 * @return The number of attributes written.
+	 */
+	private int writeAttributes(DataOutputStream out, JPNode node, int nodeDelta) throws IOException {
+		int count = 0;
 		String comments = node.getComments();
 		if (comments != null) {
-			out.writeInt(NODECOMMENTS);
-			out.writeInt(stringIndex(comments));
+			writeAttribute(out, count++==0 ? nodeDelta : 0, NODECOMMENTS, stringIndex(comments));
 		}
 		if (node.attrGet(IConstants.STATEHEAD) == IConstants.TRUE) {
-			out.writeInt(IConstants.STATEHEAD);
-			out.writeInt(IConstants.TRUE);
-			out.writeInt(IConstants.STATE2);
-			out.writeInt(node.getState2());
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.STATEHEAD, IConstants.TRUE);
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.STATE2, node.getState2());
 		}
 		int attrVal;
 		if ( (attrVal = node.attrGet(IConstants.STORETYPE)) > 0 ) {
-			out.writeInt(IConstants.STORETYPE);
-			out.writeInt(attrVal);
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.STORETYPE, attrVal);
 		}
 		if (node instanceof ProparseDirectiveNode) {
-			out.writeInt(IConstants.PROPARSEDIRECTIVE);
-			out.writeInt(stringIndex(((ProparseDirectiveNode)node).getDirectiveText()));
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.PROPARSEDIRECTIVE,
+					stringIndex(((ProparseDirectiveNode)node).getDirectiveText()));
 		}
 		if ( (attrVal = node.attrGet(IConstants.OPERATOR)) > 0 ) {
-			out.writeInt(IConstants.OPERATOR);
-			out.writeInt(attrVal);
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.OPERATOR, attrVal);
 		}
 		if ( (attrVal = node.attrGet(IConstants.INLINE_VAR_DEF)) > 0 ) {
-			out.writeInt(IConstants.INLINE_VAR_DEF);
-			out.writeInt(attrVal);
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.INLINE_VAR_DEF, attrVal);
 		}
-		if (nodeType==TokenTypes.TYPE_NAME) {
-			out.writeInt(IConstants.QUALIFIED_CLASS_INT);
-			out.writeInt(stringIndex(node.attrGetS(IConstants.QUALIFIED_CLASS_STRING)));
+		if (node.getType()==TokenTypes.TYPE_NAME) {
+			writeAttribute(out, count++==0 ? nodeDelta : 0, IConstants.QUALIFIED_CLASS_INT,
+					stringIndex(node.attrGetS(IConstants.QUALIFIED_CLASS_STRING)));
 		}
-		out.writeInt(-1);
-		out.writeInt(-1); // Terminate the attribute key/value pairs.
-		JPNode next;
-		if ( (next = node.firstChild()) != null ) writeTree(out, next);
-		else out.writeInt(-1);
-		if ( (next = node.nextSibling()) != null ) writeTree(out, next);
-		else out.writeInt(-1);
+		return count;
+	}
+	private static void writeAttribute(DataOutputStream out, int nodeDelta, int key, int value) throws IOException {
+		writeVarint(out, nodeDelta);
+		writeVarint(out, key);
+		writeZigzag(out, value);
+	}
+
+
+
+	/** Write a column as the differences from one value to the next. */
+	private static void writeDeltas(DataOutputStream out, int [] values) throws IOException {
+		int prev = 0;
+		for (int i = 0; i < values.length; i++) {
+			writeZigzag(out, values[i] - prev);
+			prev = values[i];
+		}
+	}
+
+
+
+	/** Write a column as (run length, delta from the previous run's value) pairs.
+	 * For columns like file index, where a value is usually repeated for many nodes.
+	 */
+	private static void writeRuns(DataOutputStream out, int [] values) throws IOException {
+		int prev = 0;
+		int i = 0;
+		while (i < values.length) {
+			int value = values[i];
+			int start = i;
+			while (i < values.length && values[i]==value) i++;
+			writeVarint(out, i - start);
+			writeZigzag(out, value - prev);
+			prev = value;
+		}
+	}
+
+
+
+	/** Write the AST segment.
+	 * The nodes are numbered in preorder. Each of these columns has one entry per node:
+	 * <ul>
+	 * <li>node class (JPNode.getSubtypeIndex())
+	 * <li>node type, as an index into a table of the types used, which is written first
+	 * <li>parent, as the distance back to the parent's node number (not written for Program_root)
+	 * <li>file index and source number, as runs of the same value
+	 * <li>line, as deltas from the previous node
+	 * <li>column
+	 * <li>text, as the string index, or zero for the node type's default text
+	 * </ul>
+	 * That's followed by the attribute table: (node delta, key, value) for each attribute.
+	 * Unsigned values are written with writeVarint, and signed values with writeZigzag.
+	 */
+	private void writeTree(DataOutputStream out, JPNode root) throws IOException {
+		ArrayList<JPNode> nodes = new ArrayList<JPNode>();
+		ArrayList<Integer> parents = new ArrayList<Integer>();
+		// Preorder walk with an explicit stack of the siblings still to be visited,
+		// so that the depth of recursion doesn't depend on the size of the tree.
+		LinkedList<JPNode> siblingStack = new LinkedList<JPNode>();
+		LinkedList<Integer> parentStack = new LinkedList<Integer>();
+		JPNode node = root;
+		int parentNum = -1;
+		while (node!=null) {
+			int num = nodes.size();
+			nodes.add(node);
+			parents.add(parentNum);
+			JPNode next = node.nextSibling();
+			if (node!=root && next!=null) {
+				siblingStack.addFirst(next);
+				parentStack.addFirst(parentNum);
+			}
+			if (node.firstChild()!=null) {
+				node = node.firstChild();
+				parentNum = num;
+			} else if (siblingStack.isEmpty()) {
+				node = null;
+			} else {
+				node = siblingStack.removeFirst();
+				parentNum = parentStack.removeFirst();
+			}
+		}
+		int size = nodes.size();
+		int [] values = new int[size];
+		writeVarint(out, size);
+		for (JPNode n : nodes)
+			writeVarint(out, n.getSubtypeIndex());
+		// Node types are written as indexes into a table of the types used,
+		// most frequent first, so that most of them fit in one byte.
+		final HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+		for (JPNode n : nodes) {
+			Integer count = typeCounts.get(n.getType());
+			typeCounts.put(n.getType(), count==null ? 1 : count + 1);
+		}
+		ArrayList<Integer> typeTable = new ArrayList<Integer>(typeCounts.keySet());
+		Collections.sort(typeTable, new Comparator<Integer>() {
+			public int compare(Integer t1, Integer t2) {
+				int diff = typeCounts.get(t2) - typeCounts.get(t1);
+				return diff!=0 ? diff : t1 - t2;
+			}
+		});
+		HashMap<Integer, Integer> typeIndexes = new HashMap<Integer, Integer>();
+		writeVarint(out, typeTable.size());
+		for (int type : typeTable) {
+			typeIndexes.put(type, typeIndexes.size());
+			writeVarint(out, type);
+		}
+		for (JPNode n : nodes)
+			writeVarint(out, typeIndexes.get(n.getType()));
+		for (int i = 1; i < size; i++)
+			writeVarint(out, i - parents.get(i));
+		for (int i = 0; i < size; i++)
+			values[i] = nodes.get(i).getFileIndex();
+		writeRuns(out, values);
+		for (int i = 0; i < size; i++)
+			values[i] = nodes.get(i).getLine();
+		writeDeltas(out, values);
+		for (JPNode n : nodes)
+			writeZigzag(out, n.getColumn());
+		for (int i = 0; i < size; i++)
+			values[i] = nodes.get(i).getSourceNum();
+		writeRuns(out, values);
+		for (JPNode n : nodes)
+			writeVarint(out, TokenTypes.hasDefaultText(n.getType()) ? 0 : stringIndex(n.getText()));
+		ByteArrayOutputStream attrBytes = new ByteArrayOutputStream();
+		DataOutputStream attrOut = new DataOutputStream(attrBytes);
+		int numAttrs = 0;
+		int lastAttrNode = 0;
+		for (int i = 0; i < size; i++) {
+			int count = writeAttributes(attrOut, nodes.get(i), i - lastAttrNode);
+			if (count > 0) lastAttrNode = i;
+			numAttrs += count;
+		}
+		writeVarint(out, numAttrs);
+		attrOut.flush();
+		attrBytes.writeTo(out);
 	}
 	
 	
@@ -699,12 +1378,37 @@ public class PUB {
 	
 	
 	
+	/** Write the string table: the count, the length in bytes of each string, then the strings. */
 	private void writeStrings(DataOutputStream out) throws IOException {
 		int size = stringTable.size();
-		out.writeInt(size);
+		ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+		DataOutputStream stringOut = new DataOutputStream(stringBytes);
+		writeVarint(out, size);
 		for(int i = 0; i < size; i++) {
-			out.writeUTF((String) stringTable.get(new Integer(i)));
+			int start = stringOut.size();
+			stringOut.writeUTF((String) stringTable.get(new Integer(i)));
+			writeVarint(out, stringOut.size() - start);
+		}
+		stringOut.flush();
+		stringBytes.writeTo(out);
+	}
+
+
+
+	/** Write an unsigned variable length int: seven bits per byte, low order first. */
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
 		}
+		out.writeByte(value);
+	}
+
+
+
+	/** Write a signed variable length int. Zigzag encoding keeps small negative numbers small. */
+	private static void writeZigzag(DataOutputStream out, int value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 31));
 	}
 
 
@@ -12,7 +12,9 @@ package org.prorefactor.refactor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.prorefactor.core.schema.Schema;
 import org.prorefactor.refactor.settings.ApplicationSettings;
@@ -36,6 +38,7 @@ public class RefactorSession {
 	private boolean projectBinariesEnabled = false;
 	private long timeStamp;
 	private ApplicationSettings appSettings = null;
+	private DependencyIndex dependencyIndex = null;
 	private Environment env = Environment.instance();
 	private IDE ide = new IDEDefault(this);
 	private String projectName = null;
@@ -49,9 +52,11 @@ public class RefactorSession {
 	
 	
 	
-	private void configureProparse() throws Exception {
+	/** @param projectDir The project's ProRefactor directory. The compiled schema file goes in there. */
+	private void configureProparse(String projectDir) throws Exception {
 
 		schema.clear();
+		schema.setCompiledDir(new File(projectDir + "/schema"));
 		if (proparseSettings.schemaFile!=null && proparseSettings.schemaFile.length()>0) {
 			schema.loadSchema(proparseSettings.schemaFile);
 		}
@@ -62,6 +67,9 @@ public class RefactorSession {
 		env.configSet("propath", progressSettings.propath);
 		env.configSet("proversion", progressSettings.proversion);
 		env.configSet("window-system", progressSettings.windowSystem);
+		env.configSet("source-encoding", proparseSettings.sourceEncoding);
+		env.configSet("source-encoding-dirs", proparseSettings.sourceEncodingDirs);
+		env.configSet("detect-encoding", proparseSettings.detectEncoding ? "true" : "false");
 
 		schema.aliasDelete(null); // deletes all
 		String [] alias = progressSettings.dbAliases.split(",");
@@ -101,6 +109,15 @@ public class RefactorSession {
 		else return "";
 	}
 
+	/** The include file and super class dependency index for the current project.
+	 * It's kept up to date as PUB files are built.
+	 */
+	public synchronized DependencyIndex getDependencyIndex() throws IOException {
+		if (dependencyIndex==null)
+			dependencyIndex = new DependencyIndex(new File(getProRefactorProjectDir() + "/dependencies.idx"));
+		return dependencyIndex;
+	}
+
 	public IDE getIDE() { return ide; }
 
 	/** Get a string for the indent for the current project.
@@ -118,16 +135,29 @@ public class RefactorSession {
 		return indentString;
 	}
 
+	private static AtomicInteger listingFileCount = new AtomicInteger();
+	private static ThreadLocal<String> listingFileSuffix = new ThreadLocal<String>() {
+		@Override
+		protected String initialValue() {
+			int num = listingFileCount.getAndIncrement();
+			return num==0 ? "" : "-" + num;
+		}
+	};
+
 	/** Get the Singleton instance. */
-	public static RefactorSession getInstance() {
+	public static synchronized RefactorSession getInstance() {
 		if (theInstance == null)
 			theInstance = new RefactorSession();
 		return theInstance;
 	}
 
-	/** Get the listing file name, makes sure the directory exists. */
+	/** Get the listing file name, makes sure the directory exists.
+	 * The first thread to ask gets "listingfile.txt". Any other thread
+	 * gets its own numbered listing file, so that parses running in
+	 * different threads don't write over each other's listing.
+	 */
 	public static String getListingFileName() {
-		String ret = getContextDirName() + "prorefactor/temp/listingfile.txt";
+		String ret = getContextDirName() + "prorefactor/temp/listingfile" + listingFileSuffix.get() + ".txt";
 		(new File(ret)).getParentFile().mkdirs();
 		return ret;
 	}
@@ -226,7 +256,8 @@ public class RefactorSession {
 				, nameToLoad
 				);
 		try {proparseSettings.loadSettings();} catch (FileNotFoundException e) {}
-		configureProparse();
+		configureProparse(getProRefactorProjectDir(nameToLoad));
+		synchronized (this) { dependencyIndex = null; }
 		this.projectName = nameToLoad;
 		timeStamp = System.currentTimeMillis();
 	}
@@ -262,7 +293,7 @@ public class RefactorSession {
 		progressSettings.loadSettings();
 		proparseSettings = new ProparseProjectSettings(fullyQualifiedDirName + "/proparse.properties", "");
 		proparseSettings.loadSettings();
-		configureProparse();
+		configureProparse(fullyQualifiedDirName);
 	}
 
 
@@ -25,11 +25,17 @@ public class ProparseProjectSettings extends Settings {
 	}
 
 	public boolean capKeyword = true;
+	/** Look for byte order marks and cpstream comments in source files. */
+	public boolean detectEncoding = true;
 	public boolean indentTab = false;
 	public int indentSpaces = 3;
 	public String keywordall = "";
 	public String rCodeDir = "";
 	public String schemaFile;
+	/** Encoding of the project's source files. Blank for the JVM's default. */
+	public String sourceEncoding = "";
+	/** Encodings for directories, as comma separated dir=encoding pairs. */
+	public String sourceEncodingDirs = "";
 
 	public void loadSettings() throws Exception {
 		super.loadSettings();
@@ -38,6 +44,9 @@ public class ProparseProjectSettings extends Settings {
 		tmp = properties.getProperty("capitalize_keywords");
 		capKeyword = (tmp==null || tmp.equals("true"));
 
+		tmp = properties.getProperty("detect_encoding");
+		detectEncoding = (tmp==null || tmp.equals("true"));
+
 		tmp = properties.getProperty("indent_tab");
 		if (tmp!=null) indentTab = (tmp.equals("true"));
 
@@ -47,15 +56,20 @@ public class ProparseProjectSettings extends Settings {
 		keywordall = getVal(keywordall, "keywordall");
 		rCodeDir = getVal(rCodeDir, "r_code_dir");
 		schemaFile = getVal(schemaFile, "schema_file");
+		sourceEncoding = getVal(sourceEncoding, "source_encoding");
+		sourceEncodingDirs = getVal(sourceEncodingDirs, "source_encoding_dirs");
 	}
 
 	public void saveSettings() throws Exception {
 		properties.put("capitalize_keywords", capKeyword ? "true" : "false");
+		properties.put("detect_encoding", detectEncoding ? "true" : "false");
 		properties.put("indent_tab", indentTab ? "true" : "false");
 		properties.put("indent_spaces", Integer.toString(indentSpaces));
 		properties.put("keywordall", keywordall);
 		properties.put("r_code_dir", rCodeDir);
 		properties.put("schema_file", schemaFile);
+		properties.put("source_encoding", sourceEncoding);
+		properties.put("source_encoding_dirs", sourceEncodingDirs);
 
 		super.saveSettings();
 	}
@@ -0,0 +1,86 @@
+/* BatchParserTest.java
+ *
+ * Copyright (C) 2009 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.refactor.unittest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.refactor.FileStuff;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.BatchParser;
+
+
+/** Test that a batch parse with worker threads writes the same PUB files as a serial parse. */
+public class BatchParserTest extends TestCase {
+
+	public BatchParserTest(String arg0) {
+		super(arg0);
+	}
+
+	private RefactorSession refpack = RefactorSession.getInstance();
+	private ArrayList<File> files = new ArrayList<File>();
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(BatchParserTest.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void setUp() throws Exception {
+		refpack.loadProject("sports2000");
+		refpack.setProjectBinariesEnabledOn();
+		String [] extensions = {"p", "w", "cls"};
+		files.addAll(FileUtils.listFiles(new File("data/pub"), extensions, true));
+		files.addAll(FileUtils.listFiles(new File("data/tp01tests"), extensions, true));
+		files.addAll(FileUtils.listFiles(new File("data/newsyntax/101b"), extensions, true));
+	}
+
+	private File pubFile(File cuFile) {
+		return new File(PUB.pubDirFileName(FileStuff.fullpath(cuFile)) + ".pub");
+	}
+
+	private void deletePubs() {
+		for (File cuFile : files) pubFile(cuFile).delete();
+	}
+
+	public void testSameAsSerial() throws Exception {
+		deletePubs();
+		HashMap<File, byte[]> serialPubs = new HashMap<File, byte[]>();
+		BatchParser serial = new BatchParser(files, 1);
+		serial.run();
+		for (File cuFile : files) {
+			File pubFile = pubFile(cuFile);
+			if (pubFile.exists()) serialPubs.put(cuFile, FileUtils.readFileToByteArray(pubFile));
+		}
+		assertTrue(serialPubs.size() > 0);
+
+		deletePubs();
+		BatchParser batch = new BatchParser(files, 4);
+		batch.setProgressInterval(1);
+		batch.run();
+		assertEquals(serial.getErrorCount(), batch.getErrorCount());
+		assertEquals(files.size(), batch.getParsedCount() + batch.getCurrentCount());
+		for (File cuFile : files) {
+			File pubFile = pubFile(cuFile);
+			assertEquals(serialPubs.containsKey(cuFile), pubFile.exists());
+			if (! pubFile.exists()) continue;
+			assertTrue(cuFile.toString(), Arrays.equals(serialPubs.get(cuFile), FileUtils.readFileToByteArray(pubFile)));
+		}
+
+		// A second run finds everything current.
+		batch.run();
+		assertEquals(serialPubs.size(), batch.getCurrentCount());
+	}
+
+}
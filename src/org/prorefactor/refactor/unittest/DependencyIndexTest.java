@@ -0,0 +1,168 @@
+/* DependencyIndexTest.java
+ *
+ * Copyright (C) 2010 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.refactor.unittest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.refactor.DependencyIndex;
+import org.prorefactor.refactor.FileStuff;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.BatchParser;
+
+
+/** Test the include file and super class dependency index. */
+public class DependencyIndexTest extends TestCase {
+
+	public DependencyIndexTest(String arg0) {
+		super(arg0);
+	}
+
+	private RefactorSession refpack = RefactorSession.getInstance();
+	private File dir;
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DependencyIndexTest.class);
+	}
+
+	protected void setUp() throws Exception {
+		// The unittest project's propath finds the 101b super class.
+		refpack.loadProjectForced("unittest");
+		refpack.setProjectBinariesEnabledOn();
+		dir = File.createTempFile("dependencies", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private File file(String name) throws Exception {
+		File file = new File(dir, name);
+		file.createNewFile();
+		return file;
+	}
+
+	private String path(File file) {
+		return FileStuff.fullpath(file);
+	}
+
+
+	public void testAffected() throws Exception {
+		File indexFile = new File(dir, "dependencies.idx");
+		DependencyIndex index = new DependencyIndex(indexFile);
+		File a = file("a.p");
+		File b = file("b.p");
+		File base = file("base.cls");
+		File sub = file("sub.cls");
+		File subsub = file("subsub.cls");
+		File inc1 = file("one.i");
+		File inc2 = file("two.i");
+		// Lower case names, so that the sort order is the same on any file system.
+		index.update(a, Arrays.asList(path(inc1), path(inc2)));
+		index.update(b, Arrays.asList(path(inc2)));
+		index.update(base, Arrays.asList(path(inc1)));
+		index.update(sub, Arrays.asList(path(base)));
+		index.update(subsub, Arrays.asList(path(sub)));
+
+		assertEquals(Arrays.asList(a, base, sub, subsub), index.getAffectedUnits(Arrays.asList(inc1)));
+		assertEquals(Arrays.asList(a, b), index.getAffectedUnits(Arrays.asList(inc2)));
+		assertEquals(Arrays.asList(sub, subsub), index.getAffectedUnits(Arrays.asList(sub)));
+		assertEquals(0, index.getAffectedUnits(Arrays.asList(new File(dir, "other.i"))).size());
+
+		// A later record replaces the earlier one, including after a reload.
+		index.update(a, Arrays.asList(path(inc2)));
+		assertEquals(Arrays.asList(base, sub, subsub), index.getAffectedUnits(Arrays.asList(inc1)));
+		index = new DependencyIndex(indexFile);
+		assertEquals(5, index.size());
+		assertEquals(Arrays.asList(base, sub, subsub), index.getAffectedUnits(Arrays.asList(inc1)));
+		assertEquals(Arrays.asList(path(inc2)), Arrays.asList(index.getDependencies(a)));
+
+		// A partly written record at the end is dropped.
+		FileOutputStream out = new FileOutputStream(indexFile, true);
+		out.write(new byte[] {0, 20, 'x'});
+		out.close();
+		index = new DependencyIndex(indexFile);
+		assertEquals(5, index.size());
+		index.update(b, Arrays.asList(path(inc1)));
+		index = new DependencyIndex(indexFile);
+		assertEquals(Arrays.asList(b, base, sub, subsub), index.getAffectedUnits(Arrays.asList(inc1)));
+
+		// Deleted compile units are left out.
+		subsub.delete();
+		assertEquals(Arrays.asList(sub), index.getAffectedUnits(Arrays.asList(sub)));
+	}
+
+
+	/** The index gets updated as PUBs are built. */
+	public void testBuild() throws Exception {
+		File test01 = new File("data/pub/test01.p");
+		File findMe = new File("data/newsyntax/101b/deep/FindMe.cls");
+		File test1 = new File("data/newsyntax/101b/Test1.cls");
+		File test2 = new File("data/newsyntax/101b/Test2.cls");
+		ArrayList<File> files = new ArrayList<File>(Arrays.asList(test01, findMe, test1, test2));
+		BatchParser batchParser = new BatchParser(files, 1);
+		batchParser.setForceParse(true);
+		batchParser.run();
+		assertEquals(4, batchParser.getParsedCount());
+		assertEquals(0, batchParser.getErrorCount());
+
+		DependencyIndex index = refpack.getDependencyIndex();
+		assertTrue(index.getDependents(new File("data/pub/test01.i")).contains(path(test01)));
+		assertTrue(index.getDependents(findMe).contains(path(test1)));
+		assertTrue(index.getDependents(findMe).contains(path(test2)));
+		ArrayList<File> affected = index.getAffectedUnits(Arrays.asList(findMe));
+		assertTrue(affected.contains(new File(path(test1))));
+		assertTrue(affected.contains(new File(path(test2))));
+		assertFalse(affected.contains(new File(path(test01))));
+	}
+
+
+	/** A class depends on every class up its inheritance chain, and on their include files.
+	 * A failure to write the index doesn't fail the build.
+	 */
+	public void testSuperChain() throws Exception {
+		File leaf = new File("data/dependencies/Leaf.cls");
+		PUB pub = new PUB(path(leaf));
+		pub.build();
+		DependencyIndex index = refpack.getDependencyIndex();
+		assertEquals(
+				Arrays.asList(
+						path(new File("data/dependencies/Base.cls")),
+						path(new File("data/dependencies/Mid.cls")),
+						path(new File("data/dependencies/base.i"))),
+				Arrays.asList(index.getDependencies(leaf)));
+
+		// Make the index file unwritable, and build again.
+		File indexFile = index.getFile();
+		File saved = new File(dir, "saved.idx");
+		assertTrue(indexFile.renameTo(saved));
+		assertTrue(indexFile.mkdir());
+		try {
+			index.remove(leaf);
+			pub = new PUB(path(leaf));
+			pub.build();
+			assertTrue(pub.load());
+			assertEquals(0, index.getDependencies(leaf).length);
+		} finally {
+			indexFile.delete();
+			saved.renameTo(indexFile);
+		}
+	}
+
+
+}
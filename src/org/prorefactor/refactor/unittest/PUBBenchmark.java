@@ -0,0 +1,308 @@
+/**
+ * PUBBenchmark.java
+ *
+ * Copyright (C) 2010 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.refactor.unittest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.prorefactor.core.IConstants;
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.nodetypes.ProparseDirectiveNode;
+import org.prorefactor.refactor.FileStuff;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorSession;
+
+
+/** Measures the PUB file syntax tree size and load time.
+ * For each PUB file, the same file is also written in the old row-per-node layout
+ * (layout 12: several 4-byte ints per node, with key/value attribute pairs and -1
+ * terminators, and a string table with 4-byte offsets), and the sizes are compared.
+ * The other segments are the same in both layouts, and are copied as they are.
+ * <p>
+ * Usage: PUBBenchmark [directory ...]
+ * Uses the sports2000 project. Defaults to data/pub and data/tp01tests.
+ */
+public class PUBBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		RefactorSession refpack = RefactorSession.getInstance();
+		refpack.loadProject("sports2000");
+		refpack.setProjectBinariesEnabledOn();
+		String [] dirs = args.length > 0 ? args : new String[] {"data/pub", "data/tp01tests"};
+		String [] extensions = {"p", "w", "cls"};
+		ArrayList<File> files = new ArrayList<File>();
+		for (String dir : dirs) {
+			Collection found = FileUtils.listFiles(new File(dir), extensions, true);
+			for (Object obj : found) files.add((File) obj);
+		}
+		new PUBBenchmark().run(files, System.out);
+	}
+
+
+	private long astBytes;
+	private long fileBytes;
+	private long nodes;
+	private long rowAstBytes;
+	private long rowFileBytes;
+
+
+	/** Read the PUB file's segments, by segment number. */
+	static HashMap<Integer, byte[]> readSegments(File pubFile) throws IOException {
+		byte [] bytes = FileUtils.readFileToByteArray(pubFile);
+		DataInputStream in = new DataInputStream(new FileInputStream(pubFile));
+		try {
+			in.readInt(); // version
+			int numSegments = in.readInt();
+			int [] segments = new int[numSegments];
+			int [] offsets = new int[numSegments + 1];
+			for (int i = 0; i < numSegments; i++) {
+				segments[i] = in.readInt();
+				offsets[i] = in.readInt();
+			}
+			offsets[numSegments] = bytes.length;
+			HashMap<Integer, byte[]> map = new HashMap<Integer, byte[]>();
+			for (int i = 0; i < numSegments; i++) {
+				byte [] segment = new byte[offsets[i + 1] - offsets[i]];
+				System.arraycopy(bytes, offsets[i], segment, 0, segment.length);
+				map.put(segments[i], segment);
+			}
+			return map;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	/** Writes a PUB file in the layout 12 row-per-node layout, the way PUB.build() used to. */
+	static class RowLayout {
+		private static final int NODETEXT = 49001;
+		private static final int NODECOMMENTS = 49002;
+		private HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		private ArrayList<String> strings = new ArrayList<String>();
+		int astSize;
+
+		/** Write the whole file. The segments other than AST and STRINGS are copied from the
+		 * current layout's file, since those haven't changed.
+		 */
+		byte [] write(HashMap<Integer, byte[]> segments, JPNode root) throws IOException {
+			ByteArrayOutputStream astBytes = new ByteArrayOutputStream();
+			writeTree(new DataOutputStream(astBytes), root);
+			astSize = astBytes.size();
+			ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+			writeStrings(new DataOutputStream(stringBytes));
+			int [] order = {PUB.FILES, PUB.HEADER, PUB.SCHEMA, PUB.IMPORTS, PUB.EXPORTS, PUB.AST, PUB.STRINGS};
+			byte [][] data = new byte[order.length][];
+			for (int i = 0; i < order.length; i++)
+				data[i] = segments.get(order[i]);
+			data[5] = astBytes.toByteArray();
+			data[6] = stringBytes.toByteArray();
+			ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(fileBytes);
+			out.writeInt(12);
+			out.writeInt(order.length);
+			int offset = 8 + order.length * 8;
+			for (int i = 0; i < order.length; i++) {
+				out.writeInt(order[i]);
+				out.writeInt(offset);
+				offset += data[i].length;
+			}
+			for (byte [] segment : data)
+				out.write(segment);
+			out.flush();
+			return fileBytes.toByteArray();
+		}
+
+		private int stringIndex(String s) {
+			Integer index = stringIndexes.get(s);
+			if (index!=null) return index;
+			stringIndexes.put(s, strings.size());
+			strings.add(s);
+			return strings.size() - 1;
+		}
+
+		private void writeNode(DataOutputStream out, JPNode node) throws IOException {
+			int nodeType = node.getType();
+			out.writeInt(node.getSubtypeIndex());
+			out.writeInt(nodeType);
+			out.writeShort(node.getFileIndex());
+			out.writeInt(node.getLine());
+			out.writeShort(node.getColumn());
+			out.writeInt(node.getSourceNum());
+			if (! TokenTypes.hasDefaultText(nodeType)) {
+				out.writeInt(NODETEXT);
+				out.writeInt(stringIndex(node.getText()));
+			}
+			if (node.getComments()!=null) {
+				out.writeInt(NODECOMMENTS);
+				out.writeInt(stringIndex(node.getComments()));
+			}
+			if (node.attrGet(IConstants.STATEHEAD)==IConstants.TRUE) {
+				out.writeInt(IConstants.STATEHEAD);
+				out.writeInt(IConstants.TRUE);
+				out.writeInt(IConstants.STATE2);
+				out.writeInt(node.getState2());
+			}
+			int attrVal;
+			if ((attrVal = node.attrGet(IConstants.STORETYPE)) > 0) {
+				out.writeInt(IConstants.STORETYPE);
+				out.writeInt(attrVal);
+			}
+			if (node instanceof ProparseDirectiveNode) {
+				out.writeInt(IConstants.PROPARSEDIRECTIVE);
+				out.writeInt(stringIndex(((ProparseDirectiveNode)node).getDirectiveText()));
+			}
+			if ((attrVal = node.attrGet(IConstants.OPERATOR)) > 0) {
+				out.writeInt(IConstants.OPERATOR);
+				out.writeInt(attrVal);
+			}
+			if ((attrVal = node.attrGet(IConstants.INLINE_VAR_DEF)) > 0) {
+				out.writeInt(IConstants.INLINE_VAR_DEF);
+				out.writeInt(attrVal);
+			}
+			if (nodeType==TokenTypes.TYPE_NAME) {
+				out.writeInt(IConstants.QUALIFIED_CLASS_INT);
+				out.writeInt(stringIndex(node.attrGetS(IConstants.QUALIFIED_CLASS_STRING)));
+			}
+			out.writeInt(-1);
+			out.writeInt(-1);
+		}
+
+		private int writeSubtree(DataOutputStream out, JPNode node) throws IOException {
+			int count = 1;
+			writeNode(out, node);
+			for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+				count += writeSubtree(out, child);
+			out.writeInt(-1);
+			return count;
+		}
+
+		private void writeTree(DataOutputStream out, JPNode root) throws IOException {
+			ByteArrayOutputStream subtreeBytes = new ByteArrayOutputStream();
+			DataOutputStream subtreeOut = new DataOutputStream(subtreeBytes);
+			ArrayList<Integer> offsets = new ArrayList<Integer>();
+			ArrayList<Integer> nodeNums = new ArrayList<Integer>();
+			int numNodes = 1;
+			for (JPNode child = root.firstChild(); child!=null; child = child.nextSibling()) {
+				offsets.add(subtreeOut.size());
+				nodeNums.add(numNodes);
+				numNodes += writeSubtree(subtreeOut, child);
+			}
+			out.writeInt(numNodes);
+			out.writeInt(offsets.size());
+			for (int offset : offsets)
+				out.writeInt(offset);
+			for (int nodeNum : nodeNums)
+				out.writeInt(nodeNum);
+			writeNode(out, root);
+			subtreeOut.flush();
+			subtreeBytes.writeTo(out);
+			out.flush();
+		}
+
+		private void writeStrings(DataOutputStream out) throws IOException {
+			ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+			DataOutputStream stringOut = new DataOutputStream(stringBytes);
+			out.writeInt(strings.size());
+			int start = 4 + strings.size() * 4;
+			for (String s : strings) {
+				out.writeInt(start + stringOut.size());
+				stringOut.writeUTF(s);
+			}
+			stringOut.flush();
+			stringBytes.writeTo(out);
+			out.flush();
+		}
+	}
+
+
+	void run(Collection<File> files, java.io.PrintStream out) throws Exception {
+		ArrayList<PUB> pubs = new ArrayList<PUB>();
+		for (File file : files) {
+			PUB pub = new PUB(FileStuff.fullpath(file));
+			try {
+				pub.build();
+			} catch (Exception e) {
+				out.println("Skipped " + file + ": " + e);
+				continue;
+			}
+			File pubFile = new File(PUB.pubDirFileName(FileStuff.fullpath(file)) + ".pub");
+			JPNode tree = pub.getTree();
+			nodes += countNodes(tree);
+			HashMap<Integer, byte[]> segments = readSegments(pubFile);
+			RowLayout rowLayout = new RowLayout();
+			rowFileBytes += rowLayout.write(segments, tree).length;
+			rowAstBytes += rowLayout.astSize;
+			astBytes += segments.get(PUB.AST).length;
+			fileBytes += pubFile.length();
+			pubs.add(new PUB(FileStuff.fullpath(file)));
+		}
+		out.println("Files: " + pubs.size() + "  Nodes: " + nodes);
+		out.println("AST bytes, row layout: " + rowAstBytes);
+		out.println("AST bytes, columns:    " + astBytes
+				+ "  (" + ratio(rowAstBytes, astBytes) + "x smaller)");
+		out.println("PUB bytes, row layout: " + rowFileBytes);
+		out.println("PUB bytes, columns:    " + fileBytes
+				+ "  (" + ratio(rowFileBytes, fileBytes) + "x smaller)");
+
+		int iterations = 20;
+		// Warm up, then time.
+		time(pubs, 2, false);
+		long full = time(pubs, iterations, false);
+		long columns = time(pubs, iterations, true);
+		out.println("Load, full tree:    " + (full / 1000 / iterations) + " microsec per pass over all files");
+		out.println("Load, columns only: " + (columns / 1000 / iterations) + " microsec per pass over all files");
+	}
+
+
+	private static int countNodes(JPNode top) {
+		int count = 0;
+		ArrayList<JPNode> stack = new ArrayList<JPNode>();
+		stack.add(top);
+		while (! stack.isEmpty()) {
+			JPNode node = stack.remove(stack.size() - 1);
+			count++;
+			for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+				stack.add(child);
+		}
+		return count;
+	}
+
+
+	private static String ratio(long a, long b) {
+		return String.format("%.1f", (double) a / b);
+	}
+
+
+	private static long time(ArrayList<PUB> pubs, int iterations, boolean columnsOnly) {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (PUB pub : pubs) {
+				if (columnsOnly) {
+					if (! pub.loadSegment(PUB.AST)) throw new RuntimeException("PUB not current");
+					pub.getTreeColumns();
+				} else {
+					if (! pub.load()) throw new RuntimeException("PUB not current");
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+
+}
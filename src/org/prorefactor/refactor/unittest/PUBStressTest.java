@@ -0,0 +1,212 @@
+/**
+ * PUBStressTest.java
+ *
+ * Copyright (C) 2010 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.refactor.unittest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import org.prorefactor.core.IConstants;
+import org.prorefactor.core.JPNode;
+import org.prorefactor.core.TokenTypes;
+import org.prorefactor.nodetypes.ProparseDirectiveNode;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorSession;
+
+
+/** Parse a very long program, and a very deeply nested one, and write and read their PUB files.
+ * In the long program every statement is a child of Program_root, so the tree is very wide.
+ * Reading the PUB file and walking the tree is run on a thread with a small stack,
+ * so that anything that recurses from one sibling to the next, or from a node
+ * to its children, fails.
+ * The built and loaded trees are compared node by node, in preorder.
+ */
+public class PUBStressTest extends TestCase {
+
+	private static final int STATEMENTS = 200000;
+
+	/** Nesting depth of the DO blocks and of the parentheses in the deep program. */
+	private static final int DEPTH = 300;
+
+	/** Smaller than any JVM's default thread stack. */
+	private static final long STACK_SIZE = 256 * 1024;
+
+	/** The parser and TreeParser01 recurse once or more per nesting level. */
+	private static final long BIG_STACK_SIZE = 64 * 1024 * 1024;
+
+	private Throwable failure;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RefactorSession refpack = RefactorSession.getInstance();
+		refpack.loadProject("sports2000");
+		refpack.setProjectBinariesEnabledOn();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		RefactorSession.getInstance().setProjectBinariesEnabledOff();
+		super.tearDown();
+	}
+
+
+	/** Run on a new thread with the given stack size, and rethrow whatever it throws. */
+	private void runWithStack(long stackSize, final Callable<Object> callable) throws Throwable {
+		failure = null;
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					callable.call();
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		}, "PUBStressTest", stackSize);
+		thread.start();
+		thread.join();
+		if (failure!=null)
+			throw failure;
+	}
+
+
+	/** Build the PUB, then load it on a small stack and compare the trees.
+	 * @return The number of statements in the loaded tree.
+	 */
+	private int roundTrip(File file, long buildStackSize) throws Throwable {
+		final String fullPath = file.getCanonicalPath();
+		final JPNode [] built = new JPNode[1];
+		final int [] statements = new int[1];
+		try {
+			runWithStack(buildStackSize, new Callable<Object>() {
+				public Object call() throws Exception {
+					PUB pub = new PUB(fullPath);
+					pub.build();
+					built[0] = pub.getTree();
+					return null;
+				}
+			});
+			runWithStack(STACK_SIZE, new Callable<Object>() {
+				public Object call() throws Exception {
+					PUB pub = new PUB(fullPath);
+					assertTrue(pub.load());
+					JPNode loaded = pub.getTree();
+					statements[0] = compareTrees(built[0], loaded);
+					int children = 0;
+					for (JPNode n = loaded.firstChild(); n!=null; n = n.nextSibling())
+						children++;
+					assertEquals(pub.getTopLevelCount(), children);
+					return null;
+				}
+			});
+		} finally {
+			file.delete();
+			new File(PUB.pubDirFileName(fullPath) + ".pub").delete();
+		}
+		return statements[0];
+	}
+
+
+	/** Compare the two trees node by node, in preorder, without recursion.
+	 * @return The number of statement head nodes.
+	 */
+	private int compareTrees(JPNode built, JPNode loaded) {
+		int statements = 0;
+		JPNode a = built;
+		JPNode b = loaded;
+		while (a!=null) {
+			assertNotNull(b);
+			String where = "node " + a.getType() + " at line " + a.getLine();
+			assertSame(where, a.getClass(), b.getClass());
+			assertEquals(where, a.getType(), b.getType());
+			// With the same preorder sequence, these make the trees the same shape.
+			assertEquals(where, a.firstChild()==null, b.firstChild()==null);
+			assertEquals(where, a.nextSibling()==null, b.nextSibling()==null);
+			assertEquals(where, a.getLine(), b.getLine());
+			assertEquals(where, a.getColumn(), b.getColumn());
+			assertEquals(where, a.getFileIndex(), b.getFileIndex());
+			assertEquals(where, a.getSourceNum(), b.getSourceNum());
+			// Keyword node text isn't stored in the PUB file.
+			if (! TokenTypes.hasDefaultText(a.getType()))
+				assertEquals(where, a.getText(), b.getText());
+			assertEquals(where, a.getComments(), b.getComments());
+			assertEquals(where, a.attrGet(IConstants.STATEHEAD), b.attrGet(IConstants.STATEHEAD));
+			if (a.isStateHead())
+				assertEquals(where, a.getState2(), b.getState2());
+			assertEquals(where, a.attrGet(IConstants.STORETYPE), b.attrGet(IConstants.STORETYPE));
+			assertEquals(where, a.attrGet(IConstants.OPERATOR), b.attrGet(IConstants.OPERATOR));
+			assertEquals(where, a.attrGet(IConstants.INLINE_VAR_DEF), b.attrGet(IConstants.INLINE_VAR_DEF));
+			assertEquals(where
+					, a.attrGetS(IConstants.QUALIFIED_CLASS_STRING)
+					, b.attrGetS(IConstants.QUALIFIED_CLASS_STRING));
+			if (a instanceof ProparseDirectiveNode)
+				assertEquals(where
+						, ((ProparseDirectiveNode) a).getDirectiveText()
+						, ((ProparseDirectiveNode) b).getDirectiveText());
+			if (a.isStateHead())
+				statements++;
+			a = nextPreorder(a);
+			b = nextPreorder(b);
+		}
+		assertNull(b);
+		return statements;
+	}
+
+
+	/** The next node in preorder, or null at the end of the tree. */
+	private static JPNode nextPreorder(JPNode node) {
+		if (node.firstChild()!=null)
+			return node.firstChild();
+		for (JPNode n = node; n!=null; n = n.parent()) {
+			if (n.nextSibling()!=null)
+				return n.nextSibling();
+		}
+		return null;
+	}
+
+
+	public void test01() throws Throwable {
+		File file = File.createTempFile("pubstress", ".p");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write("define variable i as integer no-undo.\n");
+		for (int n = 1; n < STATEMENTS; n++) {
+			writer.write("i = i + 1.\n");
+		}
+		writer.close();
+		assertEquals(STATEMENTS, roundTrip(file, STACK_SIZE));
+	}
+
+
+	/** Deeply nested DO blocks, with a deeply nested expression in the middle. */
+	public void testDeep() throws Throwable {
+		File file = File.createTempFile("pubdeep", ".p");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write("define variable i as integer no-undo. /* comment */\n");
+		for (int n = 0; n < DEPTH; n++)
+			writer.write("do:\n");
+		writer.write("i = ");
+		for (int n = 0; n < DEPTH; n++)
+			writer.write("(i + ");
+		writer.write("1");
+		for (int n = 0; n < DEPTH; n++)
+			writer.write(")");
+		writer.write(".\n");
+		for (int n = 0; n < DEPTH; n++)
+			writer.write("end.\n");
+		writer.close();
+		assertEquals(1 + DEPTH + 1, roundTrip(file, BIG_STACK_SIZE));
+	}
+
+
+}
@@ -14,12 +14,17 @@ package org.prorefactor.refactor.unittest;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 
+import org.prorefactor.core.FlatTree;
 import org.prorefactor.core.JPNode;
+import org.prorefactor.core.NodeTypeIndex;
 import org.prorefactor.core.TokenTypes;
 import org.prorefactor.core.unittest.UnitTestBase2;
 import org.prorefactor.refactor.PUB;
 import org.prorefactor.refactor.RefactorSession;
+import org.prorefactor.treeparser.ParseUnit;
 
 
 
@@ -133,6 +138,169 @@ public class PUBTest extends UnitTestBase2 {
 		
 	}
 
+	private String describe(JPNode node) {
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(node.getNodeNum()).append(" ").append(node.getType()).append(" ")
+			.append(node.getLine()).append(":").append(node.getColumn()).append(" ")
+			.append(node.getText()).append(" ").append(node.getComments()).append("\n");
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			bldr.append(describe(child));
+		return bldr.toString();
+	}
+
+	/** Same as describe(JPNode), but without the comments, and with default text
+	 * in place of the empty text of keyword nodes loaded from PUB.
+	 */
+	private String describeFlat(JPNode node) {
+		String text = node.getText();
+		if (text.length()==0 && TokenTypes.hasDefaultText(node.getType()))
+			text = TokenTypes.getDefaultText(node.getType());
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(node.getNodeNum()).append(" ").append(node.getType()).append(" ")
+			.append(node.getLine()).append(":").append(node.getColumn()).append(" ")
+			.append(text).append("\n");
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			bldr.append(describeFlat(child));
+		return bldr.toString();
+	}
+
+	private String describeFlat(FlatTree.Cursor cursor) {
+		StringBuilder bldr = new StringBuilder();
+		bldr.append(cursor.getNodeNum()).append(" ").append(cursor.getType()).append(" ")
+			.append(cursor.getLine()).append(":").append(cursor.getColumn()).append(" ")
+			.append(cursor.getText()).append("\n");
+		FlatTree.Cursor child = cursor.copy();
+		if (child.firstChild()) {
+			do {
+				bldr.append(describeFlat(child));
+			} while (child.nextSibling());
+		}
+		return bldr.toString();
+	}
+
+	public void testFlatTree() throws Exception {
+		assertTrue(pub.load());
+		JPNode topNode = pub.getTree();
+		String expect = describeFlat(topNode);
+		FlatTree fromNodes = FlatTree.build(topNode);
+		assertEquals(expect, describeFlat(fromNodes.cursor()));
+
+		PUB lazyPub = new PUB(parseFile.getCanonicalPath());
+		assertTrue(lazyPub.loadSegment(PUB.AST));
+		FlatTree fromPUB = lazyPub.getFlatTree();
+		assertEquals(expect, describeFlat(fromPUB.cursor()));
+		assertEquals(fromNodes.size(), fromPUB.size());
+		assertEquals(topNode.getFilenames()[1], fromPUB.getFilename(1));
+
+		int [] ids = fromPUB.cursor().query(TokenTypes.ID);
+		assertEquals(topNode.query(TokenTypes.ID).size(), ids.length);
+		FlatTree.Cursor cursor = fromPUB.cursor(ids[0]);
+		assertTrue(cursor.parent());
+		assertEquals(fromPUB.getParent(ids[0]), cursor.getNodeNum());
+		assertFalse(fromPUB.cursor().parent());
+	}
+
+	public void testLazyTree() throws Exception {
+		assertTrue(pub.load());
+		JPNode topNode = pub.getTree();
+
+		// Just the schema, without the segments in front of it.
+		PUB lazyPub = new PUB(parseFile.getCanonicalPath());
+		assertTrue(lazyPub.loadSegment(PUB.SCHEMA));
+		ArrayList fields = new ArrayList();
+		lazyPub.copySchemaFieldLowercaseNamesInto(fields, "sports2000.customer");
+		assertEquals(1, fields.size());
+		assertNull(lazyPub.getTreeColumns());
+
+		// Top level subtrees decoded one at a time match the fully loaded tree.
+		assertTrue(lazyPub.loadSegment(PUB.AST));
+		int i = 0;
+		for (JPNode node = topNode.firstChild(); node!=null; node = node.nextSibling()) {
+			JPNode lazyNode = lazyPub.getTopLevelNode(i++);
+			assertEquals(node.getNodeNum(), lazyNode.getNodeNum());
+			assertEquals(node.getType(), lazyNode.getType());
+			assertEquals(describe(node), describe(lazyNode));
+			// The index answers for the decoded subtrees, before the rest of the tree is decoded.
+			assertEquals(node.query(node.getType()).size(),
+					lazyNode.getNodeTypeIndex().query(lazyNode, lazyNode.getType()).size());
+		}
+		assertEquals(i, lazyPub.getTopLevelCount());
+	}
+
+	/** Same as JPNode.query(), without the NodeTypeIndex. Type zero for all nodes. */
+	private void walkQuery(JPNode node, int type, ArrayList<JPNode> list) {
+		if (type==0 || node.getType()==type) list.add(node);
+		for (JPNode child = node.firstChild(); child!=null; child = child.nextSibling())
+			walkQuery(child, type, list);
+	}
+
+	/** Query every subtree for every node type in the tree, with and without the index. */
+	private void checkNodeTypeIndex(JPNode topNode) {
+		NodeTypeIndex index = topNode.getNodeTypeIndex();
+		assertNotNull(index);
+		ArrayList<JPNode> all = new ArrayList<JPNode>();
+		walkQuery(topNode, 0, all);
+		assertEquals(all.size(), index.size());
+		HashSet<Integer> types = new HashSet<Integer>();
+		for (JPNode node : all)
+			types.add(node.getType());
+		for (JPNode node : all) {
+			for (int type : types) {
+				ArrayList<JPNode> expect = new ArrayList<JPNode>();
+				walkQuery(node, type, expect);
+				ArrayList<JPNode> indexed = index.query(node, type);
+				assertNotNull(indexed);
+				assertEquals(expect, indexed);
+				assertEquals(expect, node.query(type));
+			}
+		}
+	}
+
+	public void testNodeTypeIndex() throws Exception {
+		ParseUnit pu = new ParseUnit(parseFile);
+		pu.parse();
+		checkNodeTypeIndex(pu.getTopNode());
+		assertTrue(pub.load());
+		checkNodeTypeIndex(pub.getTree());
+	}
+
+	/** After a node's type or the tree's structure is changed, the index doesn't answer, and query() walks the tree. */
+	public void testNodeTypeIndexChanges() throws Exception {
+		ParseUnit pu = new ParseUnit(parseFile);
+		pu.parse();
+		JPNode topNode = pu.getTopNode();
+		NodeTypeIndex index = topNode.getNodeTypeIndex();
+		List<JPNode> ids = topNode.query(TokenTypes.ID);
+		JPNode id = ids.get(0);
+
+		// Setting the same type, or linking the same nodes, leaves the index usable.
+		id.setType(TokenTypes.ID);
+		JPNode first = topNode.firstChild();
+		topNode.setFirstChild(first);
+		first.setNextSibling(first.nextSibling());
+		assertSame(index, topNode.getNodeTypeIndex());
+		assertEquals(ids, index.query(topNode, TokenTypes.ID));
+
+		id.setType(TokenTypes.TYPELESS_TOKEN);
+		assertNull(index.query(topNode, TokenTypes.ID));
+		ArrayList<JPNode> expect = new ArrayList<JPNode>();
+		walkQuery(topNode, TokenTypes.ID, expect);
+		assertEquals(ids.size() - 1, expect.size());
+		assertEquals(expect, topNode.query(TokenTypes.ID));
+
+		// Drop the first statement.
+		pu = new ParseUnit(parseFile);
+		pu.parse();
+		topNode = pu.getTopNode();
+		index = topNode.getNodeTypeIndex();
+		assertNotNull(index.query(topNode, TokenTypes.ID));
+		topNode.setFirstChild(topNode.firstChild().nextSibling());
+		assertNull(index.query(topNode, TokenTypes.ID));
+		expect = new ArrayList<JPNode>();
+		walkQuery(topNode, TokenTypes.ID, expect);
+		assertEquals(expect, topNode.query(TokenTypes.ID));
+	}
+
 	public void testText() throws Exception {
 		assertTrue(pub.load());
 
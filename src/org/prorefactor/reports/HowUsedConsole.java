@@ -108,7 +108,7 @@ public class HowUsedConsole extends Console {
 	private void processOne(ParseUnit pu, LogWriter log) throws Exception {
 		try {
 			PUB pub = pu.getPUB();
-			boolean wasCurrent = pub.loadTo(PUB.SCHEMA);
+			boolean wasCurrent = pub.loadSegment(PUB.SCHEMA);
 			if (wasCurrent==false) pub.build();
 			if (usesField(pub) == false) return;
 			reportOut.write(pu.getFile().toString());
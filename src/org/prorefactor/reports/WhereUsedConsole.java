@@ -88,7 +88,7 @@ public class WhereUsedConsole extends Console {
 	private void processOne(ParseUnit pu, LogWriter log) throws Exception {
 		try {
 			PUB pub = pu.getPUB();
-			boolean wasCurrent = pub.loadTo(PUB.SCHEMA);
+			boolean wasCurrent = pub.loadSegment(PUB.SCHEMA);
 			if (wasCurrent==false) pub.build();
 			if (usesField(pub) == false) return;
 			reportOut.write(pu.getFile().toString());
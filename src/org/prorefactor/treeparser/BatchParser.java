@@ -0,0 +1,227 @@
+/* BatchParser.java
+ *
+ * Copyright (C) 2009 Joanju Software.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.prorefactor.treeparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.prorefactor.core.schema.Schema;
+import org.prorefactor.io.LogWriter;
+import org.prorefactor.refactor.PUB;
+import org.prorefactor.refactor.RefactorException;
+import org.prorefactor.refactor.RefactorSession;
+
+import com.joanju.proparse.Environment;
+
+
+/** Parses a collection of compile units using a pool of worker threads.
+ * Each compile unit gets the same treatment as in a serial parse of a directory:
+ * if its PUB is current then nothing is done, otherwise TreeParser01 is run, which
+ * (if project binaries are enabled) writes the .pub and .msg files.
+ * <p>
+ * Log lines are written from the calling thread, in the order of the input
+ * collection, regardless of the order that the workers finish in.
+ * Progress and throughput are reported to the optional progress stream.
+ * <p>
+ * One difference from a serial run: a super class might be parsed by its own
+ * worker at the same time as its PUB is being built for a subclass in another worker,
+ * so its log line might say "parse" where a serial run would have said "PUB is current".
+ * The .pub and .msg files are the same either way.
+ */
+public class BatchParser {
+
+	/** Uses one worker thread per available processor. */
+	public BatchParser(Collection<File> files) {
+		this(files, Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchParser(Collection<File> files, int numThreads) {
+		this.files = new ArrayList<File>(files);
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	private boolean forceParse = false;
+	private int currentCount = 0;
+	private int errorCount = 0;
+	private int numThreads;
+	private int parsedCount = 0;
+	private int progressInterval = 100;
+	private long elapsedMillis = 0;
+	private ArrayList<File> files;
+	private LogWriter log = null;
+	private PrintStream progressStream = null;
+
+
+	private static class UnitResult {
+		boolean pubWasCurrent = false;
+		RefactorException exception = null;
+	}
+
+
+	private static class UnitParse implements Callable<UnitResult> {
+		UnitParse(File cuFile, boolean forceParse) {
+			this.cuFile = cuFile;
+			this.forceParse = forceParse;
+		}
+		boolean forceParse;
+		File cuFile;
+		public UnitResult call() {
+			UnitResult result = new UnitResult();
+			ParseUnit pu = new ParseUnit(cuFile);
+			PUB pub = pu.getPUB();
+			try {
+				if (forceParse) {
+					// Deletes the old PUB first, so that TreeParser01 builds a new one.
+					pub.build();
+					return result;
+				}
+				pub.loadTo(PUB.HEADER);
+				if (pub.isCurrent()) {
+					result.pubWasCurrent = true;
+					return result;
+				}
+				pu.treeParser01();
+			} catch (RefactorException e) {
+				result.exception = e;
+			} catch (IOException e) {
+				result.exception = new RefactorException(e);
+			}
+			return result;
+		}
+	}
+
+
+	/** The number of compile units whose PUB was already current. */
+	public int getCurrentCount() { return currentCount; }
+
+	/** Elapsed time of the last run(), in milliseconds. */
+	public long getElapsedMillis() { return elapsedMillis; }
+
+	/** The number of compile units which failed with a RefactorException. */
+	public int getErrorCount() { return errorCount; }
+
+	/** Throughput of the last run(), in compile units per second. */
+	public double getFilesPerSecond() {
+		return filesPerSecond(files.size(), elapsedMillis);
+	}
+
+	public int getNumThreads() { return numThreads; }
+
+	/** The number of compile units which were parsed (including those with errors). */
+	public int getParsedCount() { return parsedCount; }
+
+
+	private static double filesPerSecond(int numFiles, long millis) {
+		if (millis <= 0) return 0;
+		return numFiles * 1000.0 / millis;
+	}
+
+
+	private void progress(int numDone, long startTime) {
+		if (progressStream==null) return;
+		long millis = System.currentTimeMillis() - startTime;
+		progressStream.println(
+				"Progress: " + numDone + "/" + files.size()
+				+ " in " + (millis / 1000) + " seconds, "
+				+ String.format("%.1f", filesPerSecond(numDone, millis))
+				+ " files/sec"
+				);
+	}
+
+
+	/** Parse all of the compile units.
+	 * A RefactorException from a compile unit is logged, and the batch carries on.
+	 * Any other exception from a worker stops the batch, and is thrown from here.
+	 */
+	public void run() throws IOException, InterruptedException {
+		// Make sure the singletons are created before any worker threads need them.
+		RefactorSession.getInstance();
+		Environment.instance();
+		Schema.getInstance();
+		currentCount = 0;
+		errorCount = 0;
+		parsedCount = 0;
+		long startTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			ArrayList<Future<UnitResult>> futures = new ArrayList<Future<UnitResult>>(files.size());
+			for (File cuFile : files) {
+				futures.add(pool.submit(new UnitParse(cuFile, forceParse)));
+			}
+			String totalFiles = "/" + files.size() + " ";
+			for (int i = 0; i < files.size(); i++) {
+				UnitResult result = waitFor(futures.get(i));
+				File cuFile = files.get(i);
+				String logMsg = Integer.toString(i + 1) + totalFiles + cuFile.toString();
+				if (result.pubWasCurrent) {
+					currentCount++;
+					if (log!=null) log.log(logMsg + " PUB is current");
+				} else {
+					parsedCount++;
+					if (log!=null) log.log(logMsg + " parse");
+					if (result.exception!=null) {
+						errorCount++;
+						if (log!=null) log.logException(cuFile.toString(), result.exception);
+					}
+				}
+				if ((i + 1) % progressInterval == 0) progress(i + 1, startTime);
+			}
+		} finally {
+			pool.shutdownNow();
+			elapsedMillis = System.currentTimeMillis() - startTime;
+		}
+		if (progressStream!=null) {
+			progressStream.println(
+					"Done: " + parsedCount + " parsed, " + currentCount + " current, "
+					+ errorCount + " errors, in " + (elapsedMillis / 1000) + " seconds, "
+					+ String.format("%.1f", getFilesPerSecond()) + " files/sec, "
+					+ numThreads + " threads"
+					);
+		}
+	}
+
+
+	/** Parse every compile unit, even if its PUB is current. Default is false.
+	 * Used for rebuilding the units affected by a change to an include file or super class,
+	 * since a PUB's timestamp check doesn't look at its super classes.
+	 * @see org.prorefactor.refactor.DependencyIndex#getAffectedUnits(Collection)
+	 */
+	public void setForceParse(boolean forceParse) { this.forceParse = forceParse; }
+
+	/** Optional. Receives the same log lines as a serial parse of the directory. */
+	public void setLogWriter(LogWriter log) { this.log = log; }
+
+	/** Report progress after this many compile units. Default is 100. */
+	public void setProgressInterval(int progressInterval) { this.progressInterval = Math.max(1, progressInterval); }
+
+	/** Optional. Progress and throughput are reported to this stream. */
+	public void setProgressStream(PrintStream progressStream) { this.progressStream = progressStream; }
+
+
+	private static UnitResult waitFor(Future<UnitResult> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+
+}
@@ -26,7 +26,6 @@ import java.io.IOException;
 import org.prorefactor.core.JPNode;
 import org.prorefactor.core.TokenTypes;
 import org.prorefactor.core.schema.Field;
-import org.prorefactor.core.schema.Schema;
 import org.prorefactor.nodetypes.RecordNameNode;
 import org.prorefactor.widgettypes.Frame;
 import com.joanju.Xferable;
@@ -61,8 +60,6 @@ public class Block implements Xferable {
 		else
 			this.parent = null; // is program-block
 	}
-	
-	private static Schema schema = Schema.getInstance();
 
 	private ArrayList<Frame> frames = new ArrayList<Frame>();
 	private Block parent;
@@ -378,7 +375,7 @@ public class Block implements Xferable {
 					tableBuff = 
 						symbolScope.getRootScope().getLocalTableBuffer(field.getTable());
 				} else {
-					field = schema.lookupUnqualifiedField(name);
+					field = symbolScope.getSchema().lookupUnqualifiedField(name);
 					if (field==null) return null;
 					tableBuff = symbolScope.getUnnamedBuffer(field.getTable());
 				}
@@ -62,7 +62,7 @@ public class FieldBuffer extends Symbol implements Primative {
 		assert input.generateName().toLowerCase().equals(input.generateName());
 		Field.Name self = new Field.Name(this.fullName().toLowerCase());
 		if (input.db!=null) {
-			Schema schema = Schema.getInstance();
+			Schema schema = getScope().getSchema();
 			if (this.buffer.getTable().getDatabase() != schema.lookupDatabase(input.db)) return false;
 		}
 		if (input.table!=null) {
@@ -22,7 +22,7 @@ import java.io.ObjectOutputStream;
 import org.prorefactor.core.JPNode;
 import org.prorefactor.core.PRCException;
 import org.prorefactor.macrolevel.IncludeRef;
-import org.prorefactor.macrolevel.ListingParser;
+import org.prorefactor.macrolevel.MacroGraphBuilder;
 import org.prorefactor.macrolevel.MacroLevel;
 import org.prorefactor.macrolevel.MacroRef;
 import org.prorefactor.nodetypes.ProgramRootNode;
@@ -34,6 +34,7 @@ import org.prorefactor.treeparser01.TP01Action;
 import org.prorefactor.treeparser01.TreeParser01;
 
 import com.joanju.proparse.DoParse;
+import com.joanju.proparse.ParseContext;
 
 
 /** Provides parse unit information, such as the symbol table and a reference to the AST.
@@ -58,14 +59,18 @@ public class ParseUnit {
 
 	protected int style = DEFAULT;
 	protected File file;
+	private ParseContext context = ParseContext.getDefault();
 	private IncludeRef macroGraph = null;
 	private ProgramRootNode topNode;
 	protected PUB pub = null;
-	protected RefactorSession refpack = RefactorSession.getInstance();
 	private SymbolScopeRoot rootScope;
 
 	
 	
+	/** The context used for parsing this unit, and for TreeParser01. */
+	public ParseContext getContext() { return context; }
+
+
 	public File getFile() {
 		if (file==null) {
 			// A lot of old code starts with a string filename, sends that to Proparse, gets the top node
@@ -126,7 +131,7 @@ public class ParseUnit {
 	/** Get or create a PUB */
 	public PUB getPUB() {
 		if (pub==null) {
-			pub = new PUB(FileStuff.fullpath(getFile()));
+			pub = new PUB(FileStuff.fullpath(getFile()), context);
 			pub.setParseUnit(this);
 		}
 		return pub;
@@ -162,26 +167,33 @@ public class ParseUnit {
 	
 	private File macroGraphFile() {
 		// .msg = Macro Source Graph. Common source of heartburn.
-		return new File(PUB.pubDirFileName(file.getAbsolutePath()) + ".msg");
+		return new File(PUB.pubDirFileName(file.getAbsolutePath(), context.getSession()) + ".msg");
 	}
 	
 	
 	public void parse() throws RefactorException {
-		refpack.enableParserListing();
-		DoParse doParse = new DoParse(file.getPath());
+		DoParse doParse = new DoParse(file.getPath(), context);
+		// The macro graph is built in memory from the preprocessor's events.
+		// The listing file is only written for debugging, if it was turned on with
+		// RefactorSession.enableParserListing(), and then each thread gets its own file.
+		String listingFile = context.getEnvironment().configGet("listing-file");
+		if (listingFile!=null && listingFile.length() > 0)
+			doParse.setListingFile(RefactorSession.getListingFileName());
+		MacroGraphBuilder macroGraphBuilder = new MacroGraphBuilder();
+		doParse.addPreprocessorListener(macroGraphBuilder);
 		try {
 			doParse.doParse();
-			ListingParser listingParser = new ListingParser(RefactorSession.getListingFileName());
-			listingParser.parse();
-			macroGraph = listingParser.getRoot();
-			if (RefactorSession.getInstance().getProjectBinaraiesEnabled()) {
+			macroGraph = macroGraphBuilder.getRoot();
+			if (context.getSession().getProjectBinaraiesEnabled()) {
 				File macroGraphFile = macroGraphFile();
 				macroGraphFile.getParentFile().mkdirs();
-				FileOutputStream fileOut = new FileOutputStream(macroGraphFile);
+				File tempFile = File.createTempFile(macroGraphFile.getName(), ".tmp", macroGraphFile.getParentFile());
+				FileOutputStream fileOut = new FileOutputStream(tempFile);
 				ObjectOutputStream out = new ObjectOutputStream(fileOut);
 				out.writeObject(macroGraph);
 				out.close();
 				fileOut.close();
+				FileStuff.replaceFile(tempFile, macroGraphFile);
 			}
 		} catch (Exception e) {
 			throw new RefactorException(e);
@@ -190,6 +202,12 @@ public class ParseUnit {
 	}
 
 
+	/** Use a context other than the default one for the current thread.
+	 * Must be set before parsing.
+	 */
+	public void setContext(ParseContext context) { this.context = context; }
+
+
 	public ParseUnit setPUB(PUB pub) {
 		this.pub = pub;
 		if (pub.getParseUnit()!=this) pub.setParseUnit(this);
@@ -43,8 +43,6 @@ public class SymbolScope implements Xferable {
 	/** Only to be used for persistence/serialization. */
 	public SymbolScope() {}
 
-	private static Schema schema = Schema.getInstance();
-
 	protected ArrayList<Symbol> allSymbols = new ArrayList<Symbol>();
 	protected ArrayList<Call> callList = new ArrayList<Call>();
 	protected ArrayList<SymbolScope> childScopes = new ArrayList<SymbolScope>();
@@ -243,7 +241,7 @@ public class SymbolScope implements Xferable {
 		// The default buffer for temp and work tables was defined at
 		// the time that the table was defined. So, lookupBuffer() would have found
 		// temp/work table references, and all we have to search now is schema.
-		Table table = schema.lookupTable(inName);
+		Table table = getSchema().lookupTable(inName);
 		if (table==null) return null;
 		return getUnnamedBuffer(table);
 	}
@@ -279,6 +277,12 @@ public class SymbolScope implements Xferable {
 	public SymbolScopeRoot getRootScope() { return rootScope; }
 
 
+	/** The schema for looking up database tables and fields.
+	 * This comes from the ParseContext that the parse unit was parsed with.
+	 */
+	public Schema getSchema() { return rootScope.getSchema(); }
+
+
 
 	/** Get or create the unnamed buffer for a schema table. */
 	public TableBuffer getUnnamedBuffer(Table table) {
@@ -408,7 +412,7 @@ public class SymbolScope implements Xferable {
 	 * buffer/temp/work name, then abbreviated schema names. Sheesh.
 	 */
 	public TableBuffer lookupTableOrBufferSymbol(String inName) {
-		Table table = schema.lookupTable(inName);
+		Table table = getSchema().lookupTable(inName);
 		if (table!=null && table.getName().length()==inName.length()) return getUnnamedBuffer(table);
 		TableBuffer ret2 = lookupBuffer(inName);
 		if (ret2!=null) return ret2;
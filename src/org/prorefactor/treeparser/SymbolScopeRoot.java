@@ -20,6 +20,8 @@ import java.io.IOException;
 
 import org.prorefactor.core.IConstants;
 import org.prorefactor.core.schema.Field;
+import org.prorefactor.core.schema.FieldNameIndex;
+import org.prorefactor.core.schema.Schema;
 import org.prorefactor.core.schema.Table;
 import com.joanju.DataXferStream;
 
@@ -37,14 +39,20 @@ public class SymbolScopeRoot extends SymbolScope {
 	}
 	
 	private String className = null;
+	private Schema schema = null;
 
 	private Map<String, Table> tableMap = new HashMap<String, Table>();
+	/** Index of the field names of the tables in tableMap, in the order the tables were added. */
+	private FieldNameIndex fieldIndex = new FieldNameIndex();
 	
 	
 	
 	public void addTableDefinitionIfNew(Table table) {
 		String lowerName = table.getName().toLowerCase();
-		if (tableMap.get(lowerName)==null) tableMap.put(lowerName, table);
+		if (tableMap.get(lowerName)==null) {
+			tableMap.put(lowerName, table);
+			fieldIndex.addTable(table);
+		}
 	}
 
 	
@@ -64,6 +72,7 @@ public class SymbolScopeRoot extends SymbolScope {
 	public TableBuffer defineTable(String name, int type) {
 		Table table = new Table(name, type);
 		tableMap.put(name.toLowerCase(), table);
+		fieldIndex.addTable(table);
 		// Pass empty string for name for default buffer.
 		TableBuffer bufferSymbol = new TableBuffer("", this, table);
 		// The default buffer for a temp/work table is not "unnamed" the way
@@ -106,6 +115,13 @@ public class SymbolScopeRoot extends SymbolScope {
 	 */
 	public String getClassName() { return className; }
 
+
+	/** The schema for the parse unit's ParseContext, or the Schema singleton if none was set. */
+	@Override
+	public Schema getSchema() {
+		return schema!=null ? schema : Schema.getInstance();
+	}
+
 	
 	public TableBuffer getLocalTableBuffer(Table table) {
 		assert table.getStoretype() != IConstants.ST_DBTABLE;
@@ -130,15 +146,12 @@ public class SymbolScopeRoot extends SymbolScope {
 	 * Does not test for uniqueness. That job is left to the compiler.
 	 * (In fact, anywhere this is run, the compiler would check that the
 	 * field name is also unique against schema tables.)
+	 * If more than one table has a matching field, the table defined first is used.
+	 * Fields attached to a temp/work table after it is defined are indexed too.
 	 * Returns null if nothing found.
 	 */
 	protected Field lookupUnqualifiedField(String name) {
-		Field field;
-		for (Table table : tableMap.values()) {
-			field = table.lookupField(name);
-			if (field!=null) return field;
-		}
-		return null;
+		return fieldIndex.lookup(name);
 	}
 
 
@@ -155,6 +168,10 @@ public class SymbolScopeRoot extends SymbolScope {
 	public void setClassName(String s) { className=s; }
 
 
+	/** Set by TreeParser01, from the parse unit's ParseContext. */
+	public void setSchema(Schema schema) { this.schema = schema; }
+
+
 	/** Implement Xferable. */
 	@Override
 	public void writeXferBytes(DataXferStream out) throws IOException {
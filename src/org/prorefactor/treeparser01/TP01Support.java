@@ -23,14 +23,12 @@ import org.prorefactor.core.IConstants;
 import org.prorefactor.core.JPNode;
 import org.prorefactor.core.TokenTypes;
 import org.prorefactor.core.schema.Field;
-import org.prorefactor.core.schema.Schema;
 import org.prorefactor.core.schema.Table;
 import org.prorefactor.nodetypes.BlockNode;
 import org.prorefactor.nodetypes.FieldRefNode;
 import org.prorefactor.nodetypes.RecordNameNode;
 import org.prorefactor.refactor.FileStuff;
 import org.prorefactor.refactor.PUB;
-import org.prorefactor.refactor.RefactorSession;
 import org.prorefactor.treeparser.Block;
 import org.prorefactor.treeparser.BufferScope;
 import org.prorefactor.treeparser.CQ;
@@ -92,7 +90,6 @@ public class TP01Support extends TP01Action {
 	private LinkedList<Parameter> wipParameters = new LinkedList<Parameter>();
 	private Routine currentRoutine;
 	private Routine rootRoutine;
-	private Schema schema = Schema.getInstance();
 
 	/** The symbol last, or currently being, defined.
 	 * Needed when we have complex syntax like DEFINE id ... LIKE,
@@ -198,7 +195,7 @@ public class TP01Support extends TP01Action {
 			table = tableBuffer.getTable();
 			isDefault = tableBuffer.isDefault();
 		} else {
-			table = schema.lookupTable(buffName);
+			table = parseUnit.getContext().getSchema().lookupTable(buffName);
 			isDefault = true;
 		}
 		TableBuffer newBuff = currentScope.defineBuffer(isDefault ? "" : buffName, table);
@@ -242,19 +239,21 @@ public class TP01Support extends TP01Action {
 			// vendor libraries, etc.
 			return null;
 		}
-		PUB pub = new PUB(FileStuff.fullpath(file));
+		PUB pub = new PUB(FileStuff.fullpath(file), parseUnit.getContext());
 		boolean pubIsCurrent = pub.loadTo(PUB.HEADER);
 		ParseUnit pu = new ParseUnit(file);
+		pu.setContext(parseUnit.getContext());
 		pu.setPUB(pub);
 		JPNode superClassTree = (JPNode) classNode.getLink(JPNode.SUPER_CLASS_TREE);
 		try {
 			if (superClassTree != null) {
 				pu.setTopNode(superClassTree);
-			} else {
-				if (!pubIsCurrent)
-					throw new Error("Internal error: No tree from PUB or Proparse, for class: " + className);
+			} else if (pubIsCurrent) {
 				pub.load();
 				pu.setTopNode(pub.getTree());
+			} else {
+				// The parser got the super scope from its SuperScopeCache, so there's no tree.
+				pu.parse();
 			}
 			pu.treeParser01();
 		} catch (Exception e) { throw new Error(e); }
@@ -892,6 +891,7 @@ if (result==null) return;
 	@Override
 	protected void programRoot(AST rootAST) {
 		BlockNode blockNode = (BlockNode) rootAST;
+		rootScope.setSchema(parseUnit.getContext().getSchema());
 		currentBlock = pushBlock(new Block(rootScope, blockNode));
 		rootScope.setRootBlock(currentBlock);
 		blockNode.setBlock(currentBlock);
@@ -912,7 +912,7 @@ if (result==null) return;
 		// Because the tree parser depends on PUB files for getting inheritance information
 		// from super classes, the tree parser is responsible for keeping the PUB files up
 		// to date.
-		if (RefactorSession.getInstance().getProjectBinaraiesEnabled()) {
+		if (parseUnit.getContext().getSession().getProjectBinaraiesEnabled()) {
 			try {
 				PUB pub = parseUnit.getPUB();
 				if (! pub.isChecked()) pub.loadTo(PUB.HEADER);
@@ -1010,7 +1010,7 @@ if (result==null) return;
 				buffer = currentScope.lookupTempTable(anode.getText());
 				break;
 			case CQ.SCHEMATABLESYMBOL :
-				Table table = schema.lookupTable(anode.getText());
+				Table table = parseUnit.getContext().getSchema().lookupTable(anode.getText());
 				if (table!=null) buffer = currentScope.getUnnamedBuffer(table);
 				break;
 			default :
@@ -11,8 +11,9 @@ package proparse;
 import com.joanju.proparse.sockets.SocketListener;
 import org.prorefactor.refactor.RefactorSession;
 
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -36,10 +37,13 @@ public class Server {
 			} else {
 				System.out.println("Proparse Server not configured with any project.");
 			}
-			ServerSocket serverSocket = new ServerSocket(port);
+			// Sockets accepted from a channel have a channel of their own,
+			// which SocketListener uses for streaming mode.
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(port));
 			System.out.println("Proparse Server is listening on socket " + port);
 			while (true) {
-				Socket socket = serverSocket.accept();
+				Socket socket = serverChannel.accept().socket();
 				SocketListener listener = new SocketListener(socket);
 				Thread thread = new Thread(listener);
 				thread.start();